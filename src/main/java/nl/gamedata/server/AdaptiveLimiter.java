@@ -0,0 +1,212 @@
+package nl.gamedata.server;
+
+/**
+ * AdaptiveLimiter limits the number of storage workers that store a message at the same time, and adapts that limit to the
+ * observed latency of the storage. A worker takes a permit after it took a task from the queue and before it stores the task,
+ * so a worker that waits for a task does not hold a permit, and at most one task per worker waits for a permit; the other
+ * tasks above the limit wait in the RequestQueueManager, where they are scheduled fairly and can be spilled to disk, instead
+ * of waiting for a connection of the pool.
+ * <p>
+ * The limit follows a gradient: the time to store a message (the round-trip time, rtt) is compared with the rtt without load,
+ * which is the smallest rtt in the last <code>limiter.windowSeconds</code>. While the smoothed rtt stays within
+ * <code>limiter.rttTolerance</code> times the rtt without load, the limit grows towards its value plus its square root; when
+ * the rtt rises above it, e.g., because of lock waits, the limit shrinks in proportion, by at most half. The limit moves by
+ * the fraction <code>limiter.smoothing</code> of that change per rtt. A transient database
+ * failure, such as a pool timeout, multiplies the limit by <code>limiter.backoffRatio</code>. The limit stays between
+ * <code>limiter.minLimit</code> and <code>limiter.maxLimit</code>, by default the number of storage workers, and not more than
+ * the size of the write pool.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class AdaptiveLimiter
+{
+    /** the weight of a new rtt in the smoothed rtt. */
+    private static final double RTT_ALPHA = 0.1;
+
+    private static final Object lock = new Object();
+
+    private static boolean enabled = false;
+
+    private static int minLimit = 1;
+
+    private static int maxLimit = 1;
+
+    private static double limit = 1.0;
+
+    private static int inFlight = 0;
+
+    private static double smoothing = 0.2;
+
+    private static double tolerance = 1.5;
+
+    private static double backoffRatio = 0.9;
+
+    private static long windowNanos = 30_000_000_000L;
+
+    /** the smallest rtt of the previous and the current window in ns; the estimate of the rtt without load. */
+    private static long noLoadRttNanos = Long.MAX_VALUE;
+
+    /** the smallest rtt of the current window in ns. */
+    private static long windowMinRttNanos = Long.MAX_VALUE;
+
+    private static long windowStartNanos = 0;
+
+    private static double smoothedRttNanos = 0.0;
+
+    private static long samples = 0;
+
+    private static long drops = 0;
+
+    private static long waits = 0;
+
+    private AdaptiveLimiter()
+    {
+        // utility class
+    }
+
+    /**
+     * Read the settings of the limiter; called when the storage starts.
+     * @param workers the number of storage workers, which is the largest useful limit
+     * @param poolSize the size of the write pool, or 0 when the storage does not use the database
+     */
+    public static void configure(final int workers, final int poolSize)
+    {
+        synchronized (lock)
+        {
+            enabled = ServerProperties.getBoolean("limiter.enabled", true);
+            int upper = poolSize > 0 ? Math.min(workers, poolSize) : workers;
+            maxLimit = Math.max(1, Math.min(upper, ServerProperties.getInt("limiter.maxLimit", upper)));
+            minLimit = Math.max(1, Math.min(maxLimit, ServerProperties.getInt("limiter.minLimit", 1)));
+            limit = enabled ? Math.max(minLimit, Math.min(maxLimit,
+                    ServerProperties.getInt("limiter.initialLimit", (maxLimit + 1) / 2))) : maxLimit;
+            smoothing = Math.max(0.01, Math.min(1.0, ServerProperties.getDouble("limiter.smoothing", 0.2)));
+            tolerance = Math.max(1.0, ServerProperties.getDouble("limiter.rttTolerance", 1.5));
+            backoffRatio = Math.max(0.1, Math.min(1.0, ServerProperties.getDouble("limiter.backoffRatio", 0.9)));
+            windowNanos = Math.max(1, ServerProperties.getLong("limiter.windowSeconds", 30)) * 1_000_000_000L;
+            windowStartNanos = System.nanoTime();
+            noLoadRttNanos = Long.MAX_VALUE;
+            windowMinRttNanos = Long.MAX_VALUE;
+            smoothedRttNanos = 0.0;
+        }
+    }
+
+    /**
+     * Wait until a worker may store a task, and take a permit.
+     * @throws InterruptedException when the thread is interrupted while waiting
+     */
+    public static void acquire() throws InterruptedException
+    {
+        synchronized (lock)
+        {
+            if (inFlight >= (int) limit)
+            {
+                waits++;
+                while (inFlight >= (int) limit)
+                    lock.wait();
+            }
+            inFlight++;
+        }
+    }
+
+    /** Return the permit of a worker. */
+    public static void release()
+    {
+        synchronized (lock)
+        {
+            inFlight--;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Record the time to store a task, and adapt the limit.
+     * @param rttNanos the time to store the task in ns
+     */
+    public static void sample(final long rttNanos)
+    {
+        synchronized (lock)
+        {
+            samples++;
+            long now = System.nanoTime();
+            if (now - windowStartNanos > windowNanos)
+            {
+                // the rtt without load of the window that ended, so the estimate follows a slower or faster database
+                noLoadRttNanos = Math.min(windowMinRttNanos, rttNanos);
+                windowMinRttNanos = rttNanos;
+                windowStartNanos = now;
+            }
+            windowMinRttNanos = Math.min(windowMinRttNanos, rttNanos);
+            noLoadRttNanos = Math.min(noLoadRttNanos, rttNanos);
+            smoothedRttNanos = smoothedRttNanos == 0.0 ? rttNanos : smoothedRttNanos * (1.0 - RTT_ALPHA) + rttNanos * RTT_ALPHA;
+            if (!enabled)
+                return;
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * noLoadRttNanos / smoothedRttNanos));
+            double newLimit = limit * gradient + Math.sqrt(limit);
+            // do not grow a limit that is not used, since its rtt says nothing about a higher concurrency
+            if (newLimit > limit && inFlight < limit / 2)
+                return;
+            // about limit tasks finish per rtt, so the limit moves by the fraction smoothing of the change per rtt
+            double weight = smoothing / limit;
+            setLimit(limit * (1.0 - weight) + newLimit * weight);
+        }
+    }
+
+    /** Record a transient database failure, such as a pool timeout or lock wait timeout, and reduce the limit. */
+    public static void drop()
+    {
+        synchronized (lock)
+        {
+            drops++;
+            if (enabled)
+                setLimit(limit * backoffRatio);
+        }
+    }
+
+    /**
+     * Change the limit within the bounds, while holding the lock, and wake up the workers when the limit grows.
+     * @param newLimit the new limit
+     */
+    private static void setLimit(final double newLimit)
+    {
+        double old = limit;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if ((int) limit > (int) old)
+            lock.notifyAll();
+    }
+
+    /**
+     * Return the statistics of the limiter.
+     * @return the statistics
+     */
+    public static Statistics getStatistics()
+    {
+        synchronized (lock)
+        {
+            return new Statistics(enabled, (int) limit, minLimit, maxLimit, inFlight,
+                    noLoadRttNanos == Long.MAX_VALUE ? -1 : noLoadRttNanos / 1000, (long) smoothedRttNanos / 1000, samples,
+                    drops, waits);
+        }
+    }
+
+    /**
+     * Statistics of the limiter.
+     * @param enabled whether the limit adapts to the rtt
+     * @param limit the current number of workers that may store a task at the same time
+     * @param minLimit the lowest limit
+     * @param maxLimit the highest limit
+     * @param inFlight the number of workers that hold a permit
+     * @param noLoadRttMicros the estimated rtt without load in microseconds, or -1 when no task was stored yet
+     * @param smoothedRttMicros the smoothed rtt in microseconds
+     * @param samples the number of stored tasks of which the rtt was recorded
+     * @param drops the number of transient database failures that reduced the limit
+     * @param waits the number of times that a worker waited for a permit
+     */
+    public record Statistics(boolean enabled, int limit, int minLimit, int maxLimit, int inFlight, long noLoadRttMicros,
+            long smoothedRttMicros, long samples, long drops, long waits)
+    {
+    }
+}
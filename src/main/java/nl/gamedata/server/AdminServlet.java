@@ -0,0 +1,576 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * AdminServlet gives access to the internal state of the server for the administrators. The endpoints are only available when
+ * an <code>adminToken</code> is set in gamedata.properties, and the request carries the same token in the header
+ * <code>X-Gamedata-Admin-Token</code> or in the parameter <code>token</code>.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+@WebServlet("/admin/*")
+public class AdminServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final Log.Logger log = Log.logger("AdminServlet");
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        if (!authorized(request, response))
+            return;
+        String path = request.getPathInfo() == null ? "" : request.getPathInfo();
+        switch (path)
+        {
+            case "/status" -> writeJson(response, status());
+            case "/trace" -> writeJson(response, trace(request));
+            case "/archive" -> readArchive(request, response);
+            case "/log-level" -> writeJson(response, logLevels());
+            case "/shards" -> writeJson(response, shards());
+            case "/heavy-hitters" -> writeJson(response, heavyHitters(request));
+            default -> notFound(response, path);
+        }
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        if (!authorized(request, response))
+            return;
+        String path = request.getPathInfo() == null ? "" : request.getPathInfo();
+        switch (path)
+        {
+            case "/trace" -> setSampleRate(request, response);
+            case "/archive" -> archiveSession(request, response);
+            case "/log-level" -> setLogLevel(request, response);
+            case "/shard/move" -> moveTenant(request, response);
+            default -> notFound(response, path);
+        }
+    }
+
+    /**
+     * Check the admin token of the request.
+     * @param request the request
+     * @param response the response, on which an error is sent when the request is not authorized
+     * @return whether the request is authorized
+     * @throws IOException on error writing the response
+     */
+    private boolean authorized(final HttpServletRequest request, final HttpServletResponse response) throws IOException
+    {
+        String adminToken = ServerProperties.get("adminToken", null);
+        if (adminToken == null || adminToken.isEmpty())
+        {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Admin endpoints are disabled");
+            return false;
+        }
+        String token = request.getHeader("X-Gamedata-Admin-Token");
+        if (token == null)
+            token = request.getParameter("token");
+        if (!adminToken.equals(token))
+        {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Invalid admin token");
+            return false;
+        }
+        return true;
+    }
+
+    private JSONObject status()
+    {
+        JSONObject status = new JSONObject();
+        status.put("active", TaskProcessor.isActive());
+        status.put("servletError", TaskProcessor.getServletError());
+        status.put("queueSize", RequestQueueManager.numberOfTasks());
+        status.put("queueRejected", RequestQueueManager.numberOfRejectedTasks());
+        RequestQueueManager.SpillStatistics sp = RequestQueueManager.getSpillStatistics();
+        JSONObject spill = new JSONObject();
+        spill.put("enabled", sp.enabled());
+        spill.put("inMemory", sp.inMemory());
+        spill.put("onDisk", sp.onDisk());
+        spill.put("diskBytes", sp.diskBytes());
+        spill.put("spilled", sp.spilled());
+        spill.put("drained", sp.drained());
+        spill.put("drainLagMs", sp.drainLagMs());
+        status.put("spill", spill);
+        JSONObject tenants = new JSONObject();
+        for (Map.Entry<String, RequestQueueManager.TenantStatistics> entry : RequestQueueManager.getTenantStatistics()
+                .entrySet())
+        {
+            RequestQueueManager.TenantStatistics ts = entry.getValue();
+            JSONObject tenant = new JSONObject();
+            tenant.put("waiting", ts.waiting());
+            tenant.put("enqueued", ts.enqueued());
+            tenant.put("dequeued", ts.dequeued());
+            tenant.put("weight", ts.weight());
+            tenant.put("averageWaitMs", ts.averageWaitMs());
+            tenant.put("maxWaitMs", ts.maxWaitMs());
+            tenants.put(entry.getKey(), tenant);
+        }
+        status.put("tenants", tenants);
+
+        RateLimiter.Statistics rl = RateLimiter.getStatistics();
+        JSONObject rateLimiter = new JSONObject();
+        rateLimiter.put("allowed", rl.allowed());
+        rateLimiter.put("rejectedSession", rl.rejectedSession());
+        rateLimiter.put("rejectedClient", rl.rejectedClient());
+        rateLimiter.put("sessionBuckets", rl.sessionBuckets());
+        rateLimiter.put("clientBuckets", rl.clientBuckets());
+        rateLimiter.put("evictedBuckets", rl.evicted());
+        status.put("rateLimiter", rateLimiter);
+
+        DuplicateFilter.Statistics df = DuplicateFilter.getStatistics();
+        JSONObject duplicateFilter = new JSONObject();
+        duplicateFilter.put("checked", df.checked());
+        duplicateFilter.put("duplicates", df.duplicates());
+        duplicateFilter.put("overflow", df.overflow());
+        duplicateFilter.put("sessions", df.sessions());
+        status.put("duplicateFilter", duplicateFilter);
+
+        RetryManager.Statistics rm = RetryManager.getStatistics();
+        JSONObject retry = new JSONObject();
+        retry.put("queued", rm.queued());
+        retry.put("scheduled", rm.scheduled());
+        retry.put("deadLettered", rm.deadLettered());
+        retry.put("circuitState", CircuitBreaker.getState().name());
+        retry.put("circuitOpened", CircuitBreaker.getTimesOpened());
+        status.put("retry", retry);
+
+        RollupManager.Statistics ru = RollupManager.getStatistics();
+        JSONObject rollup = new JSONObject();
+        rollup.put("rules", ru.rules());
+        rollup.put("open", ru.open());
+        rollup.put("written", ru.written());
+        rollup.put("pending", ru.pending());
+        rollup.put("late", ru.late());
+        rollup.put("deadLettered", ru.deadLettered());
+        status.put("rollup", rollup);
+
+        AdaptiveLimiter.Statistics ls = AdaptiveLimiter.getStatistics();
+        JSONObject limiter = new JSONObject();
+        limiter.put("enabled", ls.enabled());
+        limiter.put("limit", ls.limit());
+        limiter.put("minLimit", ls.minLimit());
+        limiter.put("maxLimit", ls.maxLimit());
+        limiter.put("inFlight", ls.inFlight());
+        limiter.put("noLoadRttMicros", ls.noLoadRttMicros());
+        limiter.put("smoothedRttMicros", ls.smoothedRttMicros());
+        limiter.put("samples", ls.samples());
+        limiter.put("drops", ls.drops());
+        limiter.put("waits", ls.waits());
+        status.put("limiter", limiter);
+
+        RequestBodies.Statistics rb = RequestBodies.getStatistics();
+        JSONObject compression = new JSONObject();
+        compression.put("requests", rb.requests());
+        compression.put("compressedBytes", rb.compressedBytes());
+        compression.put("decompressedBytes", rb.decompressedBytes());
+        compression.put("ratio", rb.ratio());
+        compression.put("decodeCpuMs", rb.decodeCpuMs());
+        compression.put("tooLarge", rb.tooLarge());
+        status.put("compression", compression);
+
+        StreamServlet.Statistics ss = StreamServlet.getStatistics();
+        JSONObject streams = new JSONObject();
+        streams.put("open", ss.open());
+        streams.put("streams", ss.streams());
+        streams.put("messages", ss.messages());
+        status.put("streams", streams);
+
+        StoredAck.Statistics as = StoredAck.getStatistics();
+        JSONObject storedAck = new JSONObject();
+        storedAck.put("stored", as.stored());
+        storedAck.put("rejected", as.rejected());
+        storedAck.put("timedOut", as.timedOut());
+        status.put("storedAck", storedAck);
+
+        ClusterManager.Statistics cs = ClusterManager.getStatistics();
+        JSONObject cluster = new JSONObject();
+        cluster.put("enabled", cs.enabled());
+        cluster.put("nodeId", cs.nodeId());
+        cluster.put("liveNodes", cs.liveNodes());
+        cluster.put("ownedPartitions", cs.ownedPartitions());
+        cluster.put("releasing", cs.releasing());
+        cluster.put("lost", cs.lost());
+        cluster.put("forwarded", cs.forwarded());
+        cluster.put("forwardFailures", cs.forwardFailures());
+        cluster.put("handedOver", cs.handedOver());
+        cluster.put("claimed", cs.claimed());
+        cluster.put("released", cs.released());
+        cluster.put("handedOff", cs.handedOff());
+        status.put("cluster", cluster);
+
+        TrafficCapture.Statistics tcs = TrafficCapture.getStatistics();
+        JSONObject capture = new JSONObject();
+        capture.put("enabled", tcs.enabled());
+        capture.put("sampleRate", tcs.sampleRate());
+        capture.put("captured", tcs.captured());
+        capture.put("dropped", tcs.dropped());
+        status.put("capture", capture);
+
+        SessionArchiver.Statistics ars = SessionArchiver.getStatistics();
+        JSONObject archive = new JSONObject();
+        archive.put("enabled", ars.enabled());
+        archive.put("sessions", ars.sessions());
+        archive.put("archivedRows", ars.archivedRows());
+        archive.put("lastRun", ars.lastRun());
+        archive.put("lastError", ars.lastError());
+        status.put("archive", archive);
+
+        MetadataCache.Statistics ms = MetadataCache.getStatistics();
+        JSONObject metadataCache = new JSONObject();
+        metadataCache.put("enabled", ms.enabled());
+        metadataCache.put("entries", ms.entries());
+        metadataCache.put("hits", ms.hits());
+        metadataCache.put("misses", ms.misses());
+        metadataCache.put("snapshotRecords", ms.snapshotRecords());
+        metadataCache.put("warmUpRecords", ms.warmUpRecords());
+        metadataCache.put("warmUpMillis", ms.warmUpMillis());
+        metadataCache.put("lastWarmUp", ms.lastWarmUp());
+        status.put("metadataCache", metadataCache);
+
+        Log.Statistics logs = Log.getStatistics();
+        JSONObject logStatus = new JSONObject();
+        logStatus.put("level", logs.level());
+        logStatus.put("written", logs.written());
+        logStatus.put("dropped", logs.dropped());
+        logStatus.put("pending", logs.pending());
+        status.put("log", logStatus);
+
+        if (ShardRouter.getStatistics().enabled())
+            status.put("shards", shards());
+
+        ServerData data = TaskProcessor.getServerData();
+        if (data != null && data.getSink() != null)
+        {
+            JSONObject sink = new JSONObject();
+            sink.put("name", data.getSink().name());
+            sink.put("usesDatabase", data.getSink().usesDatabase());
+            sink.put("records", new JSONObject(data.getSink().counts()));
+            status.put("sink", sink);
+        }
+        if (data != null)
+        {
+            ServerData.RoutingStatistics rs = data.getRoutingStatistics();
+            JSONObject database = new JSONObject();
+            database.put("readPool", rs.readPool());
+            database.put("readRouted", rs.readRouted());
+            database.put("replicaState", rs.replicaState());
+            database.put("replicaLagSeconds", rs.replicaLagSeconds());
+            database.put("replicaLookups", rs.replicaLookups());
+            database.put("primaryLookups", rs.primaryLookups());
+            database.put("primaryRechecks", rs.primaryRechecks());
+            status.put("database", database);
+        }
+        return status;
+    }
+
+    /**
+     * Return the slowest recent traces and the time per stage of the traces in the ring buffer of the Tracer.
+     * @param request the request, with the optional parameter limit for the number of slowest traces (default 20)
+     * @return the traces as JSON
+     */
+    private static JSONObject trace(final HttpServletRequest request)
+    {
+        int limit = 20;
+        try
+        {
+            if (request.getParameter("limit") != null)
+                limit = Math.max(0, Integer.parseInt(request.getParameter("limit")));
+        }
+        catch (NumberFormatException e)
+        {
+            // keep the default
+        }
+        JSONObject result = new JSONObject();
+        result.put("sampleRate", Tracer.getSampleRate());
+        JSONArray stages = new JSONArray();
+        for (Tracer.StageStatistics st : Tracer.breakdown())
+        {
+            JSONObject stage = new JSONObject();
+            stage.put("stage", st.stage());
+            stage.put("count", st.count());
+            stage.put("meanMicros", st.meanMicros());
+            stage.put("p50Micros", st.p50Micros());
+            stage.put("p99Micros", st.p99Micros());
+            stage.put("maxMicros", st.maxMicros());
+            stages.put(stage);
+        }
+        result.put("stages", stages);
+        JSONArray slowest = new JSONArray();
+        Tracer.Stage[] stageNames = Tracer.Stage.values();
+        for (Tracer.TraceView view : Tracer.slowest(limit))
+        {
+            JSONObject trace = new JSONObject();
+            trace.put("id", view.id());
+            trace.put("session", view.session() == null ? JSONObject.NULL : view.session());
+            trace.put("error", view.error() == null ? JSONObject.NULL : view.error());
+            trace.put("totalMicros", view.totalNanos() / 1000);
+            JSONObject durations = new JSONObject();
+            for (int i = 1; i < stageNames.length; i++)
+                if (view.durations()[i] >= 0)
+                    durations.put(stageNames[i].name(), view.durations()[i] / 1000);
+            trace.put("stageMicros", durations);
+            slowest.put(trace);
+        }
+        result.put("slowest", slowest);
+        return result;
+    }
+
+    /**
+     * Change the sample rate of the Tracer to the parameter sampleRate, a fraction between 0 and 1.
+     * @param request the request with the parameter sampleRate
+     * @param response the response with the new sample rate
+     * @throws IOException on error writing the response
+     */
+    private static void setSampleRate(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException
+    {
+        String value = request.getParameter("sampleRate");
+        try
+        {
+            if (value == null)
+                throw new NumberFormatException("missing");
+            Tracer.setSampleRate(Double.parseDouble(value));
+        }
+        catch (NumberFormatException e)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameter sampleRate missing or not a number");
+            return;
+        }
+        log.info("trace sample rate set to " + Tracer.getSampleRate());
+        writeJson(response, new JSONObject().put("sampleRate", Tracer.getSampleRate()));
+    }
+
+    /**
+     * Return the default level and the level of every logger.
+     * @return the levels as JSON
+     */
+    private static JSONObject logLevels()
+    {
+        return new JSONObject(Log.getLevels());
+    }
+
+    /**
+     * Change the level of the logger in the parameter logger, or without that parameter the default level, to the parameter
+     * level: DEBUG, INFO, WARN, ERROR or OFF.
+     * @param request the request with the parameter level, and the optional parameter logger
+     * @param response the response with the levels after the change
+     * @throws IOException on error writing the response
+     */
+    private static void setLogLevel(final HttpServletRequest request, final HttpServletResponse response) throws IOException
+    {
+        String level = request.getParameter("level");
+        String logger = request.getParameter("logger");
+        try
+        {
+            if (level == null)
+                throw new IllegalArgumentException("Parameter level missing");
+            Log.setLevel(logger, level);
+        }
+        catch (IllegalArgumentException e)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        log.info("level of " + (logger == null ? "the log" : logger) + " set to " + level.toUpperCase());
+        writeJson(response, logLevels());
+    }
+
+    /**
+     * Return the shards, the assignments of the tenants, and the number of messages per shard.
+     * @return the state of the ShardRouter as JSON
+     */
+    private static JSONObject shards()
+    {
+        ShardRouter.Statistics ss = ShardRouter.getStatistics();
+        JSONObject shards = new JSONObject();
+        shards.put("enabled", ss.enabled());
+        shards.put("key", ss.key());
+        shards.put("defaultShard", ss.defaultShard());
+        shards.put("shards", new JSONArray(ss.shards()));
+        shards.put("assignments", new JSONObject(ss.assignments()));
+        shards.put("moving", new JSONArray(ss.moving()));
+        shards.put("held", ss.held());
+        shards.put("routed", new JSONObject(ss.routed()));
+        shards.put("movedRows", ss.movedRows());
+        return shards;
+    }
+
+    /**
+     * Return the sessions, organizations, players and event keys with the most messages and bytes in the sliding window, at
+     * ingress and at storage.
+     * @param request the request, with the optional parameter limit for the number of keys per list (default 10)
+     * @return the heavy hitters as JSON
+     */
+    private static JSONObject heavyHitters(final HttpServletRequest request)
+    {
+        int limit = 10;
+        try
+        {
+            if (request.getParameter("limit") != null)
+                limit = Math.max(0, Integer.parseInt(request.getParameter("limit")));
+        }
+        catch (NumberFormatException e)
+        {
+            // keep the default
+        }
+        JSONObject result = new JSONObject();
+        result.put("enabled", HeavyHitters.isEnabled());
+        result.put("windowSeconds", HeavyHitters.getWindowSeconds());
+        result.put("capacity", HeavyHitters.getCapacity());
+        for (HeavyHitters.Stage stage : HeavyHitters.Stage.values())
+        {
+            JSONObject dimensions = new JSONObject();
+            for (HeavyHitters.Dimension dimension : HeavyHitters.Dimension.values())
+            {
+                JSONObject metrics = new JSONObject();
+                for (HeavyHitters.Metric metric : HeavyHitters.Metric.values())
+                {
+                    JSONArray entries = new JSONArray();
+                    for (HeavyHitters.Entry e : HeavyHitters.top(stage, dimension, metric, limit))
+                        entries.put(new JSONObject().put("key", e.key()).put("count", e.count()).put("error", e.error()));
+                    metrics.put(metric.name().toLowerCase(), entries);
+                }
+                dimensions.put(dimension.name().toLowerCase(), metrics);
+            }
+            result.put(stage.name().toLowerCase(), dimensions);
+        }
+        return result;
+    }
+
+    /**
+     * Move the data of the tenant in the parameter tenant, the code of an organization or game, to the shard in the parameter
+     * shard. The request returns when the move is finished.
+     * @param request the request with the parameters tenant and shard
+     * @param response the response with the result of the move
+     * @throws IOException on error writing the response
+     */
+    private static void moveTenant(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException
+    {
+        String tenant = request.getParameter("tenant");
+        String shard = request.getParameter("shard");
+        if (tenant == null || shard == null)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameters tenant and shard are required");
+            return;
+        }
+        try
+        {
+            ShardRouter.MoveResult result = ShardRouter.move(tenant, shard);
+            JSONObject json = new JSONObject();
+            json.put("tenant", result.tenant());
+            json.put("from", result.from());
+            json.put("to", result.to());
+            json.put("sessions", result.sessions());
+            json.put("rows", result.rows());
+            json.put("millis", result.millis());
+            json.put("cleanupError", result.cleanupError());
+            writeJson(response, json);
+        }
+        catch (IllegalArgumentException e)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        }
+        catch (IllegalStateException e)
+        {
+            response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Move failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the manifest of the archive, or with the parameter session, the archived rows of that game session as NDJSON.
+     * @param request the request, with the optional parameter session for the id of a game session
+     * @param response the response
+     * @throws IOException on error reading the archive or writing the response
+     */
+    private static void readArchive(final HttpServletRequest request, final HttpServletResponse response) throws IOException
+    {
+        String session = request.getParameter("session");
+        if (session == null)
+        {
+            writeJson(response, SessionArchiver.getManifest());
+            return;
+        }
+        int sessionId;
+        try
+        {
+            sessionId = Integer.parseInt(session);
+        }
+        catch (NumberFormatException e)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameter session is not a number");
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        if (!SessionArchiver.export(sessionId, response.getOutputStream()))
+        {
+            response.reset();
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Game session " + sessionId + " has no archive");
+        }
+    }
+
+    /**
+     * Move the events of the archived game session in the parameter session to the archive now.
+     * @param request the request with the parameter session for the id of the game session
+     * @param response the response with the number of moved rows
+     * @throws IOException on error writing the response
+     */
+    private static void archiveSession(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException
+    {
+        try
+        {
+            int sessionId = Integer.parseInt(request.getParameter("session"));
+            int rows = SessionArchiver.archive(sessionId);
+            writeJson(response, new JSONObject().put("session", sessionId).put("rows", rows));
+        }
+        catch (NumberFormatException e)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameter session missing or not a number");
+        }
+        catch (IllegalStateException e)
+        {
+            response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Archive failed: " + e.getMessage());
+        }
+    }
+
+    static void writeJson(final HttpServletResponse response, final JSONObject json) throws IOException
+    {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(json.toString(2));
+    }
+
+    private static void notFound(final HttpServletResponse response, final String path) throws IOException
+    {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown admin endpoint: " + path);
+    }
+}
@@ -12,17 +12,22 @@ import jakarta.servlet.annotation.WebListener;
 @WebListener
 public class AppLifecycleListener implements ServletContextListener
 {
+    private static final Log.Logger log = Log.logger("AppLifecycleListener");
 
     @Override
     public void contextInitialized(final ServletContextEvent sce)
     {
-        System.out.println("contextInitialized");
+        Log.start();
+        log.info("contextInitialized");
         TaskProcessor.startProcessing();
+        HealthMonitor.start();
     }
 
     @Override
     public void contextDestroyed(final ServletContextEvent sce)
     {
+        HealthMonitor.stop();
         TaskProcessor.stopProcessing();
+        Log.stop();
     }
 }
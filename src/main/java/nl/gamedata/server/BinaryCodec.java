@@ -0,0 +1,225 @@
+package nl.gamedata.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BinaryCodec decodes the compact binary message format with Content-Type <code>application/x-gamedata</code>. A message starts
+ * with a version byte (1), followed by a sequence of fields. A field consists of a one-byte field id, the length of the value as
+ * an unsigned varint, and the UTF-8 bytes of the value. Field ids from 1 stand for the documented keys (see FIELDS). Field id 0
+ * is followed by the length and the bytes of a key that has no field id, and then the length and the bytes of the value. The
+ * values are decoded directly from the request bytes, without building a String for the whole payload.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class BinaryCodec
+{
+    /** the Content-Type of the binary format. */
+    public static final String CONTENT_TYPE = "application/x-gamedata";
+
+    /** the version of the format. */
+    public static final int VERSION = 1;
+
+    /** the keys for the field ids; the index in the array is the field id. Ids may never be changed or reused. */
+    static final String[] FIELDS = {null, "data", "session_token", "organization_game_token", "game_token", "game_mission",
+            "game_session_code", "game_code", "game_version_code", "organization_code", "player_name", "player_display_name",
+            "player_attempt_nr", "player_attempt_status", "group_name", "group_role", "group_attempt_nr", "group_attempt_status",
+            "type", "key", "value", "timestamp", "status", "round", "game_time", "grouping_code", "player_initiated",
+            "group_initiated", "facilitator_initiated", "score_type", "delta", "new_score_number", "new_score_string",
+            "final_score", "player_objective", "group_objective", "learning_goal", "scale_type", "message_id"};
+
+    private static final Map<String, Integer> FIELD_IDS = new HashMap<>();
+
+    static
+    {
+        for (int i = 1; i < FIELDS.length; i++)
+            FIELD_IDS.put(FIELDS[i], i);
+    }
+
+    private BinaryCodec()
+    {
+        // utility class
+    }
+
+    /**
+     * Decode a binary message into the request map.
+     * @param body the bytes of the message
+     * @param requestMap the map to fill
+     * @param duplicateKeys list to which keys that are used more than once are added; the last value is used
+     * @return null when the message was decoded, or an error message
+     */
+    public static String decode(final byte[] body, final Map<String, String> requestMap, final List<String> duplicateKeys)
+    {
+        if (body == null || body.length == 0)
+            return "empty binary message";
+        if (body[0] != VERSION)
+            return "unknown binary format version " + body[0];
+        int[] pos = {1};
+        while (pos[0] < body.length)
+        {
+            int id = body[pos[0]++] & 0xFF;
+            String key;
+            if (id == 0)
+            {
+                int keyLength = readVarint(body, pos);
+                if (keyLength < 0 || pos[0] + keyLength > body.length)
+                    return "binary message truncated in key at position " + pos[0];
+                key = new String(body, pos[0], keyLength, StandardCharsets.UTF_8).toLowerCase().strip();
+                pos[0] += keyLength;
+            }
+            else if (id < FIELDS.length)
+                key = FIELDS[id];
+            else
+                return "unknown field id " + id + " in binary message";
+            int length = readVarint(body, pos);
+            if (length < 0 || pos[0] + length > body.length)
+                return "binary message truncated in value of " + key;
+            if (requestMap.put(key, new String(body, pos[0], length, StandardCharsets.UTF_8)) != null)
+                duplicateKeys.add(key);
+            pos[0] += length;
+        }
+        return null;
+    }
+
+    /**
+     * Find the value of one key in a binary message, without decoding the other values.
+     * @param body the bytes of the message
+     * @param key the key to look for (lower case); a key without field id is compared ignoring case
+     * @return the value, or null when the key is not present or the message is not valid
+     */
+    public static String find(final byte[] body, final String key)
+    {
+        if (body == null || body.length == 0 || body[0] != VERSION)
+            return null;
+        Integer wantedId = FIELD_IDS.get(key);
+        int[] pos = {1};
+        while (pos[0] < body.length)
+        {
+            int id = body[pos[0]++] & 0xFF;
+            boolean match = wantedId != null && id == wantedId;
+            if (id == 0)
+            {
+                int keyLength = readVarint(body, pos);
+                if (keyLength < 0 || pos[0] + keyLength > body.length)
+                    return null;
+                match = new String(body, pos[0], keyLength, StandardCharsets.UTF_8).toLowerCase().strip().equals(key);
+                pos[0] += keyLength;
+            }
+            int length = readVarint(body, pos);
+            if (length < 0 || pos[0] + length > body.length)
+                return null;
+            if (match)
+                return new String(body, pos[0], length, StandardCharsets.UTF_8);
+            pos[0] += length;
+        }
+        return null;
+    }
+
+    /**
+     * Return a copy of a binary message in which the values of the given keys are replaced, e.g., to leave out the tokens. The
+     * other fields are copied as they are, in the same order.
+     * @param body the bytes of the message
+     * @param keys the keys of which the value is replaced (lower case); a key without field id is compared ignoring case
+     * @param replacement the value that replaces the values of the keys
+     * @return the message with the values replaced, or null when the message is not valid
+     */
+    public static byte[] replace(final byte[] body, final Set<String> keys, final String replacement)
+    {
+        if (body == null || body.length == 0 || body[0] != VERSION)
+            return null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        out.write(VERSION);
+        int[] pos = {1};
+        while (pos[0] < body.length)
+        {
+            int start = pos[0];
+            int id = body[pos[0]++] & 0xFF;
+            boolean match = id != 0 && id < FIELDS.length && keys.contains(FIELDS[id]);
+            if (id == 0)
+            {
+                int keyLength = readVarint(body, pos);
+                if (keyLength < 0 || pos[0] + keyLength > body.length)
+                    return null;
+                match = keys.contains(new String(body, pos[0], keyLength, StandardCharsets.UTF_8).toLowerCase().strip());
+                pos[0] += keyLength;
+            }
+            else if (id >= FIELDS.length)
+                return null;
+            int valueStart = pos[0];
+            int length = readVarint(body, pos);
+            if (length < 0 || pos[0] + length > body.length)
+                return null;
+            out.write(body, start, valueStart - start);
+            if (match)
+                writeBytes(out, replacement.getBytes(StandardCharsets.UTF_8));
+            else
+                out.write(body, valueStart, pos[0] + length - valueStart);
+            pos[0] += length;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode a map of keys and values in the binary format, e.g., for testing and for client libraries written in Java.
+     * @param fields the keys and values
+     * @return the encoded message
+     */
+    public static byte[] encode(final Map<String, String> fields)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(VERSION);
+        for (Map.Entry<String, String> entry : fields.entrySet())
+        {
+            Integer id = FIELD_IDS.get(entry.getKey());
+            if (id == null)
+            {
+                out.write(0);
+                writeBytes(out, entry.getKey().getBytes(StandardCharsets.UTF_8));
+            }
+            else
+                out.write(id);
+            writeBytes(out, entry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeBytes(final ByteArrayOutputStream out, final byte[] bytes)
+    {
+        int length = bytes.length;
+        while ((length & ~0x7F) != 0)
+        {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Read an unsigned varint of at most 4 bytes (lengths up to 256 MB).
+     * @param body the message
+     * @param pos the position, which is advanced past the varint
+     * @return the value, or -1 when the varint is not valid
+     */
+    private static int readVarint(final byte[] body, final int[] pos)
+    {
+        int value = 0;
+        for (int shift = 0; shift < 28; shift += 7)
+        {
+            if (pos[0] >= body.length)
+                return -1;
+            int b = body[pos[0]++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,657 @@
+package nl.gamedata.server;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.mysql.cj.jdbc.JdbcStatement;
+
+/**
+ * BulkImporter stores a whole session of events that is uploaded after the fact. The game session, the tokens, and the
+ * missions, players and groups of the rows are resolved once per import with the StorageProcessor, after which the rows are
+ * buffered per table and written in bulk: with <code>LOAD DATA LOCAL INFILE</code> from an in-memory stream when
+ * <code>import.loadData</code> is set, and with batched prepared statements (rewritten to multi-row inserts by the driver)
+ * otherwise. Rows that cannot be stored are reported in the error table, as is the progress of the import. When a batch
+ * fails because of one bad row, the rows of the batch are inserted one by one, so only the bad rows are lost, and they are
+ * reported with their line numbers.
+ * <p>
+ * The missions, players and groups are resolved while the import holds the stripe of its game session in the
+ * RequestQueueManager, as a storage thread does, so a player or group attempt is not created twice when messages of the
+ * session arrive during the import. The stripe is claimed for each lookup, not for the whole import.
+ * </p>
+ * <p>
+ * The rows are written to the shard of the tenant of the game session (see ShardRouter), which is entered when the import is
+ * opened and left when it is closed, so the tenant is not moved while it is imported. When a write fails because metadata
+ * that was added to the main database later is missing in the shard, the metadata is copied again and the write is repeated.
+ * </p>
+ * <p>
+ * Only the event types (mission_event, player_event and group_event) can be imported in bulk. Rollup rules are not applied to
+ * imported events.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class BulkImporter
+{
+    private static final Log.Logger log = Log.logger("BulkImporter");
+
+    /** the fields that identify a player, and that are used when a player or player attempt has to be created. */
+    private static final String[] PLAYER_FIELDS =
+            {"player_name", "player_display_name", "player_attempt_nr", "player_attempt_status", "group_name", "group_role"};
+
+    /** the fields that identify a group, and that are used when a group attempt has to be created. */
+    private static final String[] GROUP_FIELDS = {"group_name", "group_attempt_nr", "group_attempt_status"};
+
+    /** whether LOAD DATA LOCAL INFILE was refused by the driver or server; from then on, batched inserts are used. */
+    private static volatile boolean loadDataRefused = false;
+
+    private final Map<String, String> header;
+
+    /** the fields for the StorageProcessor that resolves the identities; changed for every new mission, player or group. */
+    private final Map<String, String> identity;
+
+    private final StorageProcessor resolver;
+
+    private final StorageRequestTask importTask;
+
+    private final Map<String, Integer> missionIds = new HashMap<>();
+
+    private final Map<String, Integer> playerAttemptIds = new HashMap<>();
+
+    private final Map<String, Integer> groupAttemptIds = new HashMap<>();
+
+    private final RowBuffer missionEvents = new RowBuffer("mission_event", "game_session_id", "game_mission_id",
+            "facilitator_initiated");
+
+    private final RowBuffer playerEvents = new RowBuffer("player_event", "player_attempt_id", null, "player_initiated");
+
+    private final RowBuffer groupEvents = new RowBuffer("group_event", "group_attempt_id", null, "group_initiated");
+
+    private final int batchSize;
+
+    private final int maxRowErrors;
+
+    private final long progressEvery;
+
+    private long rows = 0;
+
+    private long stored = 0;
+
+    private long errors = 0;
+
+    private long warnings = 0;
+
+    private boolean usedLoadData = false;
+
+    /**
+     * Create an importer for the session in the header of an import.
+     * @param data the server data with the connection pool
+     * @param header the fields of the first line of the import, that apply to all rows
+     */
+    public BulkImporter(final ServerData data, final Map<String, String> header)
+    {
+        this.header = header;
+        this.identity = new HashMap<>(header);
+        this.importTask = importTask(header);
+        this.resolver = new StorageProcessor(data, this.importTask, this.identity);
+        this.batchSize = Math.max(1, ServerProperties.getInt("import.batchSize", 5000));
+        this.maxRowErrors = ServerProperties.getInt("import.maxRowErrors", 1000);
+        this.progressEvery = ServerProperties.getLong("import.progressEvery", 50_000);
+    }
+
+    /**
+     * Create the task that stands for the import in the error table and in the RequestQueueManager. The header is sent as a
+     * JSON object, so the RequestQueueManager finds the session of the import, and claims the same stripe as for the messages
+     * of that session that arrive by POST or stream.
+     * @param header the fields of the first line of the import
+     * @return the task of the import
+     */
+    static StorageRequestTask importTask(final Map<String, String> header)
+    {
+        return new StorageRequestTask("IMPORT", "application/json", new JSONObject(header).toString());
+    }
+
+    /**
+     * Resolve the game session and check the tokens of the import.
+     * @return whether the rows can be imported; when not, an error has been stored
+     */
+    public boolean open()
+    {
+        return claimed(this.resolver::resolveSession);
+    }
+
+    /**
+     * Resolve an identity while holding the stripe of the game session, and wait while a storage thread holds it.
+     * @param resolve the lookup
+     * @return the result of the lookup
+     */
+    private <T> T claimed(final Supplier<T> resolve)
+    {
+        while (!RequestQueueManager.claim(this.importTask))
+            LockSupport.parkNanos(1_000_000L);
+        try
+        {
+            return resolve.get();
+        }
+        finally
+        {
+            RequestQueueManager.release(this.importTask);
+        }
+    }
+
+    /**
+     * Leave the shard of the import; called when the import ends, also when it failed.
+     */
+    public void close()
+    {
+        this.resolver.exitShard();
+    }
+
+    /**
+     * Add one row of the import, and write the buffered rows when a buffer is full.
+     * @param line the JSON object of the row
+     * @param lineNr the line number in the import, for error messages
+     * @throws SQLException when a transient database error occurs; the import has to be stopped
+     */
+    public void add(final String line, final long lineNr) throws SQLException
+    {
+        this.rows++;
+        if (this.rows % this.progressEvery == 0)
+            progress("in progress");
+
+        Map<String, String> row = new HashMap<>();
+        try
+        {
+            parse(line, row);
+        }
+        catch (JSONException e)
+        {
+            rowError(lineNr, line, row, "not a JSON object: " + e.getMessage());
+            return;
+        }
+
+        String dataType = field(row, "data");
+        if (dataType == null)
+        {
+            rowError(lineNr, line, row, "no data element");
+            return;
+        }
+        String key = field(row, "key");
+        String value = field(row, "value");
+        if (key == null || value == null)
+        {
+            rowError(lineNr, line, row, "no tag " + (key == null ? "key" : "value"));
+            return;
+        }
+        Integer missionId = missionId(field(row, "game_mission"));
+        if (missionId == null)
+        {
+            rowError(lineNr, line, row, "game mission " + field(row, "game_mission") + " not found");
+            return;
+        }
+
+        RowBuffer buffer;
+        Integer ownerId;
+        String initiatedField;
+        switch (dataType)
+        {
+            case "mission_event" ->
+            {
+                buffer = this.missionEvents;
+                ownerId = this.resolver.getGameSessionId();
+                initiatedField = "facilitator_initiated";
+            }
+            case "player_event" ->
+            {
+                buffer = this.playerEvents;
+                ownerId = attemptId(row, PLAYER_FIELDS, this.playerAttemptIds, true);
+                initiatedField = "player_initiated";
+            }
+            case "group_event" ->
+            {
+                buffer = this.groupEvents;
+                ownerId = attemptId(row, GROUP_FIELDS, this.groupAttemptIds, false);
+                initiatedField = "group_initiated";
+            }
+            default ->
+            {
+                rowError(lineNr, line, row, "data type " + dataType + " cannot be imported in bulk");
+                return;
+            }
+        }
+        if (ownerId == null)
+        {
+            rowError(lineNr, line, row, "player or group could not be resolved");
+            return;
+        }
+
+        LocalDateTime timestamp = this.importTask.timestamp();
+        String ts = field(row, "timestamp");
+        if (ts != null)
+        {
+            LocalDateTime parsed = DateTimeParser.parse(ts);
+            if (parsed == null)
+                rowWarning(lineNr, line, row, "timestamp " + ts + " not valid; import time used, row still stored");
+            else
+                timestamp = parsed;
+        }
+        byte initiated = 0;
+        String b = field(row, initiatedField);
+        if (b != null)
+        {
+            try
+            {
+                initiated = Integer.parseInt(b) == 0 ? (byte) 0 : (byte) 1;
+            }
+            catch (NumberFormatException e)
+            {
+                rowWarning(lineNr, line, row, initiatedField + " " + b + " not valid; 0 used, row still stored");
+            }
+        }
+        String type = field(row, "type");
+        buffer.rows.add(new BufferedRow(lineNr, line, new Object[] {ownerId, missionId, type == null ? "string" : type, key,
+                value, timestamp, field(row, "status"), field(row, "round"), field(row, "game_time"),
+                field(row, "grouping_code"), initiated}));
+        if (buffer.rows.size() >= this.batchSize)
+            flush(buffer);
+    }
+
+    /**
+     * Write the remaining rows, and store the final progress record.
+     * @return the result of the import
+     * @throws SQLException when a transient database error occurs
+     */
+    public Result finish() throws SQLException
+    {
+        flush(this.missionEvents);
+        flush(this.playerEvents);
+        flush(this.groupEvents);
+        progress("finished");
+        return getResult();
+    }
+
+    public Result getResult()
+    {
+        return new Result(this.rows, this.stored, this.errors, this.warnings, this.usedLoadData ? "load_data" : "batch");
+    }
+
+    /**
+     * Add the fields of a JSON line to a row, with lower-case keys.
+     * @throws JSONException when the line is not a JSON object
+     */
+    private static void parse(final String line, final Map<String, String> row)
+    {
+        JSONObject json = new JSONObject(line);
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext())
+        {
+            String key = keys.next();
+            row.put(key.toLowerCase().strip(), json.optString(key, ""));
+        }
+    }
+
+    private String field(final Map<String, String> row, final String key)
+    {
+        String value = row.get(key);
+        return value != null ? value : this.header.get(key);
+    }
+
+    private Integer missionId(final String missionCode)
+    {
+        if (missionCode == null)
+            return null;
+        Integer id = this.missionIds.get(missionCode);
+        if (id == null)
+        {
+            this.identity.put("game_mission", missionCode);
+            id = claimed(this.resolver::resolveMission);
+            this.missionIds.put(missionCode, id == null ? -1 : id);
+        }
+        return id == null || id < 0 ? null : id;
+    }
+
+    /**
+     * Return the player attempt or group attempt id for the identity fields of a row, resolving it once per import.
+     */
+    private Integer attemptId(final Map<String, String> row, final String[] fields, final Map<String, Integer> cache,
+            final boolean player)
+    {
+        String mission = field(row, "game_mission");
+        StringBuilder cacheKey = new StringBuilder(mission);
+        for (String f : fields)
+            cacheKey.append('\u0000').append(field(row, f));
+        Integer id = cache.get(cacheKey.toString());
+        if (id == null)
+        {
+            // the resolver uses the mission that was resolved last
+            this.identity.put("game_mission", mission);
+            for (String f : fields)
+            {
+                String value = field(row, f);
+                if (value == null)
+                    this.identity.remove(f);
+                else
+                    this.identity.put(f, value);
+            }
+            id = claimed(() ->
+            {
+                this.resolver.resolveMission();
+                return player ? this.resolver.resolvePlayerAttempt() : this.resolver.resolveGroupAttempt();
+            });
+            cache.put(cacheKey.toString(), id == null ? -1 : id);
+        }
+        return id == null || id < 0 ? null : id;
+    }
+
+    /**
+     * Write the rows of a buffer to the shard of the import, and copy the metadata to the shard again when a row refers to
+     * metadata that is missing there. When the batch still fails, the rows are inserted one by one.
+     */
+    private void flush(final RowBuffer buffer) throws SQLException
+    {
+        if (buffer.rows.isEmpty())
+            return;
+        try
+        {
+            try
+            {
+                write(buffer);
+            }
+            catch (SQLException e)
+            {
+                if (!ShardRouter.isMissingReference(e) || !this.resolver.refreshMetadata())
+                    throw e;
+                write(buffer);
+            }
+        }
+        catch (SQLException e)
+        {
+            if (RetryManager.isTransient(e))
+                throw e;
+            // the batch was rolled back; one bad row should not cost the other rows of the batch
+            log.warn("Import: batch of " + buffer.rows.size() + " rows for " + buffer.table
+                    + " failed, inserting the rows one by one: " + e.getMessage());
+            insertEach(buffer);
+        }
+        finally
+        {
+            buffer.rows.clear();
+        }
+    }
+
+    /**
+     * Write the rows of a buffer with LOAD DATA when allowed, and with a batch insert otherwise.
+     */
+    private void write(final RowBuffer buffer) throws SQLException
+    {
+        try (Connection connection = this.resolver.getShardData().getDataSource().getConnection())
+        {
+            if (ServerProperties.getBoolean("import.loadData", false) && !loadDataRefused)
+            {
+                try
+                {
+                    loadData(connection, buffer);
+                    this.usedLoadData = true;
+                    return;
+                }
+                catch (SQLException e)
+                {
+                    if (RetryManager.isTransient(e))
+                        throw e;
+                    // e.g., local infile disabled on the server; nothing has been loaded
+                    loadDataRefused = true;
+                    log.warn("LOAD DATA LOCAL INFILE not possible, using batched inserts: "
+                            + e.getMessage());
+                }
+            }
+            batchInsert(connection, buffer);
+        }
+    }
+
+    private void loadData(final Connection connection, final RowBuffer buffer) throws SQLException
+    {
+        // for player and group events, the mission id of the row is not stored
+        StringBuilder tsv = new StringBuilder(buffer.rows.size() * 128);
+        for (BufferedRow bufferedRow : buffer.rows)
+        {
+            Object[] row = bufferedRow.values();
+            for (int i = 0; i < row.length; i++)
+            {
+                if (i == 1 && buffer.missionColumn == null)
+                    continue;
+                if (i > 0)
+                    tsv.append('\t');
+                appendTsv(tsv, row[i]);
+            }
+            tsv.append('\n');
+        }
+        try (Statement statement = connection.createStatement())
+        {
+            statement.unwrap(JdbcStatement.class)
+                    .setLocalInfileInputStream(new ByteArrayInputStream(tsv.toString().getBytes(StandardCharsets.UTF_8)));
+            statement.execute("LOAD DATA LOCAL INFILE 'import.tsv' INTO TABLE `" + buffer.table
+                    + "` CHARACTER SET utf8mb4 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' ("
+                    + buffer.columnList() + ")");
+            long loaded = statement.getUpdateCount();
+            this.stored += loaded;
+            // LOCAL implies IGNORE: rows with errors are skipped or truncated, and reported as warnings
+            long skipped = buffer.rows.size() - loaded;
+            if (skipped > 0)
+                this.errors += skipped;
+            int reported = 0;
+            for (SQLWarning w = statement.getWarnings(); w != null && reported < 20; w = w.getNextWarning(), reported++)
+                ErrorHandler.storeWarning(this.resolver.getShardData(), this.importTask, this.header,
+                        "Import lines " + buffer.rows.get(0).lineNr() + "-" + buffer.rows.get(buffer.rows.size() - 1).lineNr()
+                                + " (row n is the n-th of these lines): LOAD DATA into " + buffer.table + ": "
+                                + w.getMessage());
+        }
+    }
+
+    private void batchInsert(final Connection connection, final RowBuffer buffer) throws SQLException
+    {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(buffer.insertSql()))
+        {
+            for (BufferedRow row : buffer.rows)
+            {
+                setParameters(statement, buffer, row.values());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            connection.commit();
+            this.stored += buffer.rows.size();
+        }
+        catch (SQLException e)
+        {
+            connection.rollback();
+            throw e;
+        }
+        finally
+        {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Insert the rows of a buffer one at a time after the batch failed, and report the rows that cannot be stored with their
+     * line numbers.
+     * @throws SQLException when a transient database error occurs
+     */
+    private void insertEach(final RowBuffer buffer) throws SQLException
+    {
+        try (Connection connection = this.resolver.getShardData().getDataSource().getConnection();
+                PreparedStatement statement = connection.prepareStatement(buffer.insertSql()))
+        {
+            for (BufferedRow row : buffer.rows)
+            {
+                try
+                {
+                    setParameters(statement, buffer, row.values());
+                    statement.executeUpdate();
+                    this.stored++;
+                }
+                catch (SQLException e)
+                {
+                    if (RetryManager.isTransient(e))
+                        throw e;
+                    Map<String, String> fields = new HashMap<>();
+                    parse(row.line(), fields);
+                    rowError(row.lineNr(), row.line(), fields, "not stored in " + buffer.table + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void setParameters(final PreparedStatement statement, final RowBuffer buffer, final Object[] row)
+            throws SQLException
+    {
+        int p = 1;
+        statement.setInt(p++, (Integer) row[0]);
+        if (buffer.missionColumn != null)
+            statement.setInt(p++, (Integer) row[1]);
+        statement.setString(p++, (String) row[2]);
+        statement.setString(p++, (String) row[3]);
+        statement.setString(p++, (String) row[4]);
+        statement.setTimestamp(p++, Timestamp.valueOf((LocalDateTime) row[5]));
+        for (int i = 6; i <= 9; i++)
+            statement.setString(p++, (String) row[i]);
+        statement.setByte(p++, (Byte) row[10]);
+    }
+
+    private static void appendTsv(final StringBuilder tsv, final Object value)
+    {
+        if (value == null)
+        {
+            tsv.append("\\N");
+            return;
+        }
+        String s = value instanceof LocalDateTime dt ? dt.toLocalDate() + " " + dt.toLocalTime() : value.toString();
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            switch (c)
+            {
+                case '\\' -> tsv.append("\\\\");
+                case '\t' -> tsv.append("\\t");
+                case '\n' -> tsv.append("\\n");
+                case '\r' -> tsv.append("\\r");
+                case '\0' -> tsv.append("\\0");
+                default -> tsv.append(c);
+            }
+        }
+    }
+
+    private void rowError(final long lineNr, final String line, final Map<String, String> row, final String message)
+    {
+        this.errors++;
+        report(lineNr, line, row, message, "ERROR", false);
+    }
+
+    private void rowWarning(final long lineNr, final String line, final Map<String, String> row, final String message)
+    {
+        this.warnings++;
+        report(lineNr, line, row, message, "WARNING", true);
+    }
+
+    private void report(final long lineNr, final String line, final Map<String, String> row, final String message,
+            final String errorType, final boolean recordStored)
+    {
+        long reported = this.errors + this.warnings;
+        if (reported <= this.maxRowErrors)
+            ErrorHandler.storeError(this.resolver.getShardData(),
+                    new StorageRequestTask("IMPORT", StreamServlet.CONTENT_TYPE, line), row,
+                    "Import line " + lineNr + ": " + message, errorType, recordStored);
+        else if (reported == this.maxRowErrors + 1)
+            ErrorHandler.storeError(this.resolver.getShardData(), this.importTask, this.header,
+                    "Import: more than " + this.maxRowErrors + " row errors, further row errors are not reported");
+    }
+
+    private void progress(final String state)
+    {
+        ErrorHandler.storeError(this.resolver.getShardData(), this.importTask, this.header,
+                "Import " + state + ": " + this.rows + " rows read, " + this.stored + " stored, " + this.errors + " errors, "
+                        + this.warnings + " warnings",
+                "IMPORT", true);
+    }
+
+    /**
+     * The result of an import.
+     * @param rows the number of rows that were read
+     * @param stored the number of rows that were stored
+     * @param errors the number of rows with an error, that were not stored
+     * @param warnings the number of rows with a warning, that were stored with a default value
+     * @param method load_data or batch
+     */
+    public record Result(long rows, long stored, long errors, long warnings, String method)
+    {
+    }
+
+    /**
+     * A buffered row with the line it was read from, to report it when it cannot be stored.
+     * @param lineNr the line number in the import
+     * @param line the JSON of the line
+     * @param values the owner id, mission id, and the event fields
+     */
+    private record BufferedRow(long lineNr, String line, Object[] values)
+    {
+    }
+
+    /** The buffered rows for one table. */
+    private static class RowBuffer
+    {
+        final String table;
+
+        final String ownerColumn;
+
+        final String missionColumn;
+
+        final String initiatedColumn;
+
+        final List<BufferedRow> rows = new ArrayList<>();
+
+        RowBuffer(final String table, final String ownerColumn, final String missionColumn, final String initiatedColumn)
+        {
+            this.table = table;
+            this.ownerColumn = ownerColumn;
+            this.missionColumn = missionColumn;
+            this.initiatedColumn = initiatedColumn;
+        }
+
+        String columnList()
+        {
+            return "`" + this.ownerColumn + "`, " + (this.missionColumn == null ? "" : "`" + this.missionColumn + "`, ")
+                    + "`type`, `key`, `value`, `timestamp`, `status`, `round`, `game_time`, `grouping_code`, `"
+                    + this.initiatedColumn + "`";
+        }
+
+        int columnCount()
+        {
+            return this.missionColumn == null ? 10 : 11;
+        }
+
+        String insertSql()
+        {
+            return "INSERT INTO `" + this.table + "` (" + columnList() + ") VALUES (" + "?,".repeat(columnCount() - 1) + "?)";
+        }
+    }
+}
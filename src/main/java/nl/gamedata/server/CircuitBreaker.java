@@ -0,0 +1,140 @@
+package nl.gamedata.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CircuitBreaker pauses the consumption of tasks when the database is not available. After a number of consecutive transient
+ * database failures the circuit opens, and the storage workers wait for the open period. After that, the circuit is half-open:
+ * the first worker that asks for permission tries a single task (the probe), and the other workers wait for its result. When
+ * the probe succeeds, the circuit closes; when it fails, the circuit opens again. A worker that finds no task, or a task that
+ * does not reach the database, gives the probe to the next worker. While the circuit is open, new tasks are buffered in the
+ * RequestQueueManager.
+ * <p>
+ * Settings in gamedata.properties: <code>circuit.failureThreshold</code> (default 5) and <code>circuit.openSeconds</code>
+ * (default 10).
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class CircuitBreaker
+{
+    private static final Log.Logger log = Log.logger("CircuitBreaker");
+
+    /** The states of the circuit. */
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static volatile State state = State.CLOSED;
+
+    private static int consecutiveFailures = 0;
+
+    private static long openUntilNanos = 0;
+
+    private static long timesOpened = 0;
+
+    /** the worker that tries a task while the circuit is half-open, or null. */
+    private static volatile Thread probe = null;
+
+    private CircuitBreaker()
+    {
+        // utility class
+    }
+
+    /**
+     * Wait until tasks may be processed. When the circuit is open, the calling thread waits until the open period has passed,
+     * and the circuit becomes half-open. When the circuit is half-open, the calling thread becomes the probe, or waits while
+     * another thread is the probe. A thread that has been given permission calls releasePermission when it is done with its
+     * task.
+     * @throws InterruptedException when the thread is interrupted while waiting
+     */
+    public static void awaitPermission() throws InterruptedException
+    {
+        if (state == State.CLOSED)
+            return;
+        synchronized (CircuitBreaker.class)
+        {
+            while (state != State.CLOSED)
+            {
+                if (state == State.OPEN)
+                {
+                    long waitNanos = openUntilNanos - System.nanoTime();
+                    if (waitNanos > 0)
+                    {
+                        TimeUnit.NANOSECONDS.timedWait(CircuitBreaker.class, waitNanos);
+                        continue;
+                    }
+                    state = State.HALF_OPEN;
+                }
+                if (probe == null || probe == Thread.currentThread())
+                {
+                    probe = Thread.currentThread();
+                    return;
+                }
+                // another worker tries a task; wait until the circuit closes or opens again
+                CircuitBreaker.class.wait();
+            }
+        }
+    }
+
+    /**
+     * Give up the probe when the calling thread holds it and the circuit is still half-open, e.g., because it found no task, so
+     * another worker can try a task.
+     */
+    public static void releasePermission()
+    {
+        if (probe != Thread.currentThread())
+            return;
+        synchronized (CircuitBreaker.class)
+        {
+            if (probe == Thread.currentThread())
+            {
+                probe = null;
+                CircuitBreaker.class.notifyAll();
+            }
+        }
+    }
+
+    public static synchronized void recordSuccess()
+    {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED)
+        {
+            log.info("database available again, circuit closed");
+            state = State.CLOSED;
+            probe = null;
+            CircuitBreaker.class.notifyAll();
+        }
+    }
+
+    public static synchronized void recordTransientFailure()
+    {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && consecutiveFailures >= ServerProperties.getInt("circuit.failureThreshold", 5)))
+        {
+            long openSeconds = ServerProperties.getLong("circuit.openSeconds", 10);
+            openUntilNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(openSeconds);
+            state = State.OPEN;
+            timesOpened++;
+            probe = null;
+            CircuitBreaker.class.notifyAll();
+            log.warn(consecutiveFailures + " consecutive database failures, circuit open for "
+                    + openSeconds + " s");
+        }
+    }
+
+    public static State getState()
+    {
+        return state;
+    }
+
+    public static synchronized long getTimesOpened()
+    {
+        return timesOpened;
+    }
+}
@@ -0,0 +1,274 @@
+package nl.gamedata.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.exception.DataAccessException;
+import org.json.JSONObject;
+
+import jakarta.servlet.ServletException;
+
+/**
+ * ClusterCheck verifies with several local JVMs that the ClusterManager lets one node at a time store the messages of a
+ * session. The check starts a number of nodes as separate processes on the database of the <code>gamedata.properties</code> of
+ * the user that runs it, which should be a test database, since the tables of the cluster are changed. Every node runs the
+ * heartbeat of the ClusterManager, and writes numbered rows for a fixed set of sessions in the table
+ * <code>cluster_check</code>, for the sessions of which it holds the lease. A node continues the numbering of a session from
+ * the highest number in the table when it gains the session, and the number and session are the primary key of the table, so
+ * two nodes that store a session at the same time, or a node that stores a session after it lost the lease, collide on the
+ * key.
+ * <p>
+ * Usage: <code>java nl.gamedata.server.ClusterCheck [--nodes n] [--seconds s] [--sessions n] [--pause s]</code>. With
+ * <code>--pause</code>, the second node is stopped with <code>kill -STOP</code> for the given number of seconds after a third
+ * of the run, which should be longer than <code>cluster.leaseMillis</code>, so its leases expire while its state is kept, as
+ * in a long garbage collection. Stopping a node needs the <code>kill</code> command of Linux or macOS. The check reports the
+ * rows and the collisions of every node, and the sessions with gaps in their numbers, and exits with status 1 on a collision
+ * or a gap. Another <code>gamedata.properties</code> can be used by starting the check with
+ * <code>-Duser.home=folder</code>; the nodes use the same folder.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class ClusterCheck
+{
+    private int nodes = 3;
+
+    private int seconds = 60;
+
+    private int sessions = 100;
+
+    private int pauseSeconds = 0;
+
+    /** the id of the node when this process is a node, or null for the process that starts the nodes. */
+    private String nodeId = null;
+
+    private ClusterCheck()
+    {
+        // created by main
+    }
+
+    /**
+     * Start the nodes and check the result, or run one node.
+     * @param args the options
+     */
+    public static void main(final String[] args)
+    {
+        ClusterCheck check = new ClusterCheck();
+        if (!check.parseArgs(args))
+        {
+            System.err.println("Usage: ClusterCheck [--nodes n] [--seconds s] [--sessions n] [--pause s]");
+            System.exit(2);
+        }
+        int status;
+        try
+        {
+            status = check.nodeId == null ? check.runCheck() : check.runNode();
+        }
+        catch (IOException | ServletException | DataAccessException e)
+        {
+            System.err.println("ClusterCheck: " + e.getMessage());
+            status = 1;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    private boolean parseArgs(final String[] args)
+    {
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--nodes" -> this.nodes = Integer.parseInt(args[++i]);
+                    case "--seconds" -> this.seconds = Integer.parseInt(args[++i]);
+                    case "--sessions" -> this.sessions = Integer.parseInt(args[++i]);
+                    case "--pause" -> this.pauseSeconds = Integer.parseInt(args[++i]);
+                    case "--node" -> this.nodeId = args[++i];
+                    default ->
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException | NumberFormatException e)
+        {
+            return false;
+        }
+        return this.nodes >= 1 && this.seconds >= 1 && this.sessions >= 1 && this.pauseSeconds >= 0;
+    }
+
+    private static DSLContext openDatabase() throws ServletException
+    {
+        ServerData data = new ServerData();
+        data.setDataSource(TaskProcessor.openDataSource());
+        return data.getDSL();
+    }
+
+    /**
+     * Start the nodes, stop one of them for a while when asked, and check the rows of the nodes.
+     * @return the exit status: 0 when the sessions were stored by one node at a time, 1 otherwise
+     * @throws IOException when a node cannot be started
+     * @throws ServletException when the database cannot be opened
+     * @throws InterruptedException when the check is interrupted
+     */
+    private int runCheck() throws IOException, ServletException, InterruptedException
+    {
+        DSLContext dsl = openDatabase();
+        dsl.execute("CREATE TABLE IF NOT EXISTS cluster_check (session_key VARCHAR(64) NOT NULL, seq INT NOT NULL, "
+                + "node_id VARCHAR(64) NOT NULL, PRIMARY KEY (session_key, seq))");
+        dsl.execute("DELETE FROM cluster_check");
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<Process> processes = new ArrayList<>();
+        for (int i = 1; i <= this.nodes; i++)
+        {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "-Duser.home=" + System.getProperty("user.home"), ClusterCheck.class.getName(), "--node", "node-" + i,
+                    "--seconds", Integer.toString(this.seconds), "--sessions", Integer.toString(this.sessions))
+                            .redirectError(ProcessBuilder.Redirect.INHERIT).start());
+        }
+        if (this.pauseSeconds > 0 && processes.size() > 1)
+        {
+            Thread.sleep(this.seconds * 1000L / 3);
+            String pid = Long.toString(processes.get(1).pid());
+            System.out.println("ClusterCheck: stopping node-2 for " + this.pauseSeconds + " s");
+            new ProcessBuilder("kill", "-STOP", pid).inheritIO().start().waitFor();
+            Thread.sleep(this.pauseSeconds * 1000L);
+            new ProcessBuilder("kill", "-CONT", pid).inheritIO().start().waitFor();
+        }
+
+        int status = 0;
+        JSONObject report = new JSONObject();
+        JSONObject nodeReports = new JSONObject();
+        for (Process process : processes)
+        {
+            String last = null;
+            try (BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    last = line;
+            }
+            if (process.waitFor() != 0 || last == null)
+            {
+                status = 1;
+                continue;
+            }
+            JSONObject nodeReport = new JSONObject(last);
+            nodeReports.put(nodeReport.getString("node"), nodeReport);
+            if (nodeReport.getLong("collisions") > 0)
+                status = 1;
+        }
+        report.put("nodes", nodeReports);
+
+        // a session that was stored by one node at a time has the numbers 1 to its highest number
+        List<String> gaps = new ArrayList<>();
+        for (Record r : dsl.fetch("SELECT session_key, COUNT(*), MAX(seq) FROM cluster_check GROUP BY session_key"))
+        {
+            if (r.get(1, Long.class).longValue() != r.get(2, Long.class).longValue())
+                gaps.add(r.get(0, String.class));
+        }
+        report.put("rows", dsl.fetchOne("SELECT COUNT(*) FROM cluster_check").get(0, Long.class));
+        report.put("sessionsWithGaps", gaps);
+        if (!gaps.isEmpty())
+            status = 1;
+        report.put("result", status == 0 ? "ok" : "failed");
+        System.out.println(report.toString(2));
+        return status;
+    }
+
+    /**
+     * Run one node: start the heartbeat of the ClusterManager, and write numbered rows for the sessions of which this node
+     * holds the lease until the time is up.
+     * @return the exit status
+     * @throws ServletException when the database cannot be opened
+     * @throws InterruptedException when the node is interrupted
+     */
+    private int runNode() throws ServletException, InterruptedException
+    {
+        ServerProperties.override("cluster.enabled", "true");
+        ServerProperties.override("cluster.nodeId", this.nodeId);
+        if (ServerProperties.get("cluster.secret", "").isEmpty())
+            ServerProperties.override("cluster.secret", "cluster-check");
+        // the last line of the output is the report of the node, and every node has its own log
+        ServerProperties.override("log.console", "false");
+        ServerProperties.override("log.dir", ServerProperties.getConfigDir() + "/logs/" + this.nodeId);
+        Log.start();
+        ServerData data = new ServerData();
+        data.setDataSource(TaskProcessor.openDataSource());
+        DSLContext dsl = data.getDSL();
+        ClusterManager.start(data);
+
+        StorageRequestTask[] tasks = new StorageRequestTask[this.sessions];
+        for (int i = 0; i < this.sessions; i++)
+            tasks[i] = new StorageRequestTask("POST", "application/json", "{\"session_token\":\"check-" + i + "\"}");
+        Map<Integer, Integer> next = new HashMap<>();
+        long rows = 0;
+        long collisions = 0;
+        long end = System.currentTimeMillis() + this.seconds * 1000L;
+        while (System.currentTimeMillis() < end)
+        {
+            for (int i = 0; i < this.sessions; i++)
+            {
+                if (ClusterManager.route(tasks[i]).kind() != ClusterManager.Route.Kind.LOCAL
+                        || !ClusterManager.holdsLease(tasks[i]))
+                {
+                    next.remove(i);
+                    continue;
+                }
+                String session = "check-" + i;
+                Integer seq = next.get(i);
+                if (seq == null)
+                    seq = dsl.fetchOne("SELECT COALESCE(MAX(seq), 0) FROM cluster_check WHERE session_key = ?", session)
+                            .get(0, Integer.class) + 1;
+                try
+                {
+                    dsl.execute("INSERT INTO cluster_check (session_key, seq, node_id) VALUES (?, ?, ?)", session, seq,
+                            this.nodeId);
+                    next.put(i, seq + 1);
+                    rows++;
+                }
+                catch (DataAccessException e)
+                {
+                    if (e.sqlState() == null || !e.sqlState().startsWith("23"))
+                        throw e;
+                    // another node stored this session at the same time
+                    next.remove(i);
+                    collisions++;
+                }
+            }
+            Thread.sleep(5);
+        }
+        ClusterManager.Statistics statistics = ClusterManager.getStatistics();
+        ClusterManager.stop();
+        Log.stop();
+
+        JSONObject report = new JSONObject();
+        report.put("node", this.nodeId);
+        report.put("rows", rows);
+        report.put("collisions", collisions);
+        report.put("claimed", statistics.claimed());
+        report.put("released", statistics.released());
+        System.out.println(report);
+        return 0;
+    }
+}
@@ -0,0 +1,699 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.exception.DataAccessException;
+import org.json.JSONObject;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * ClusterManager lets several server nodes share the storage of one database. Game sessions are hashed into
+ * <code>cluster.partitions</code> partitions, and every partition is owned by one node through a lease in the table
+ * <code>partition_lease</code>. All messages of a session are stored by the owner of its partition, so the order of the
+ * messages of a session and the get-or-create of players and groups stay on one storage thread, as on a single node.
+ * <p>
+ * Every node writes a heartbeat in the table <code>cluster_node</code> every <code>cluster.heartbeatMillis</code>, and renews
+ * the leases of its partitions for <code>cluster.leaseMillis</code>. The live nodes divide the partitions evenly: a node with
+ * too few partitions claims free or expired leases, and a node with too many partitions hands the excess over. A partition that
+ * is handed over first stops accepting messages (the client receives <code>503</code> with <code>Retry-After: 1</code>), and is
+ * released when its last queued message has been processed, after which another node claims it. When a node dies, its leases
+ * expire, and the other nodes claim its partitions.
+ * </p>
+ * <p>
+ * A message that arrives at a node that does not own its partition is forwarded to the owner with the header
+ * <code>X-Gamedata-Forwarded</code>, which carries the shared secret <code>cluster.secret</code>; cluster mode does not start
+ * without this secret. Streams and imports are
+ * redirected to the owner with <code>307 Temporary Redirect</code>. Leases are compared with the clocks of the nodes, which
+ * should therefore be synchronized.
+ * </p>
+ * <p>
+ * Every claim of a lease increments its epoch. A node stores a message only when it holds the lease of the partition for at
+ * least another fifth of <code>cluster.leaseMillis</code>, see holdsLease(). When a node loses a lease, e.g., because its
+ * heartbeat stalled, the messages of the partition in its queue are handed to the new owner, and the node does not claim the
+ * partition again until they are gone, unless the epoch shows that no other node has claimed the partition in between.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class ClusterManager
+{
+    private static final Log.Logger log = Log.logger("ClusterManager");
+
+    /** the header that marks a forwarded request; its value is the shared secret of the cluster. */
+    public static final String FORWARDED_HEADER = "X-Gamedata-Forwarded";
+
+    private static volatile boolean enabled = false;
+
+    private static String nodeId = "";
+
+    private static String nodeUrl = "";
+
+    private static String secret = "";
+
+    private static int partitions = 64;
+
+    private static long leaseMillis = 10_000;
+
+    private static ServerData data = null;
+
+    private static ScheduledExecutorService heartbeat = null;
+
+    private static HttpClient httpClient = null;
+
+    /** the partitions owned by this node, with the time until which the lease is valid. */
+    private static final Map<Integer, Long> ownedUntil = new ConcurrentHashMap<>();
+
+    /** the epoch of the leases of this node. */
+    private static final Map<Integer, Long> ownedEpoch = new ConcurrentHashMap<>();
+
+    /** the partitions of which this node lost the lease while it had accepted messages, with the epoch of the lost lease. */
+    private static final Map<Integer, Long> lost = new ConcurrentHashMap<>();
+
+    /** the partitions that are handed over, and do not accept new messages. */
+    private static final Set<Integer> releasing = ConcurrentHashMap.newKeySet();
+
+    /** the partitions that were marked for hand-over before the last heartbeat, and can be released when idle. */
+    private static final Set<Integer> releasable = new TreeSet<>();
+
+    /** the owners and the URLs of the other nodes, from the last heartbeat. */
+    private static volatile Map<Integer, String> ownerUrls = Map.of();
+
+    private static volatile List<String> liveNodes = List.of();
+
+    /** the number of tasks per partition that have been accepted by this node but are not finished. */
+    private static AtomicIntegerArray inFlight = new AtomicIntegerArray(1);
+
+    private static final LongAdder forwarded = new LongAdder();
+
+    private static final LongAdder forwardFailures = new LongAdder();
+
+    private static final LongAdder handedOver = new LongAdder();
+
+    private static final LongAdder claimed = new LongAdder();
+
+    private static final LongAdder released = new LongAdder();
+
+    private static final LongAdder handedOff = new LongAdder();
+
+    private ClusterManager()
+    {
+        // utility class
+    }
+
+    /**
+     * Create the cluster tables when needed, and start the heartbeat when <code>cluster.enabled</code> is true.
+     * @param serverData the server data with the write pool
+     * @throws IllegalStateException when cluster mode is on without <code>cluster.secret</code>
+     */
+    public static synchronized void start(final ServerData serverData)
+    {
+        if (!ServerProperties.getBoolean("cluster.enabled", false) || heartbeat != null)
+            return;
+        // without a secret, any client could mark its requests as forwarded and skip the rate limits
+        secret = ServerProperties.get("cluster.secret", "");
+        if (secret.isEmpty())
+            throw new IllegalStateException("cluster.enabled is true, but cluster.secret is not set");
+        data = serverData;
+        nodeId = ServerProperties.get("cluster.nodeId", defaultNodeId());
+        nodeUrl = ServerProperties.get("cluster.nodeUrl", "");
+        partitions = Math.max(1, ServerProperties.getInt("cluster.partitions", 64));
+        leaseMillis = Math.max(1000, ServerProperties.getLong("cluster.leaseMillis", 10_000));
+        long heartbeatMillis = Math.max(100, ServerProperties.getLong("cluster.heartbeatMillis", leaseMillis / 5));
+        if (nodeUrl.isEmpty())
+            log.warn("cluster.nodeUrl is not set; other nodes cannot forward messages to this node");
+        inFlight = new AtomicIntegerArray(partitions);
+        try
+        {
+            createTables(data.getDSL());
+        }
+        catch (DataAccessException e)
+        {
+            log.error("cluster tables could not be created: " + e.getMessage());
+        }
+        httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        enabled = true;
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(ClusterManager::heartbeat, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+        log.info("node " + nodeId + " started with " + partitions + " partitions");
+    }
+
+    /** Stop the heartbeat, and release the leases of this node, so the other nodes can claim them at once. */
+    public static synchronized void stop()
+    {
+        if (heartbeat == null)
+            return;
+        heartbeat.shutdownNow();
+        heartbeat = null;
+        enabled = false;
+        try
+        {
+            DSLContext dsl = data.getDSL();
+            dsl.execute("UPDATE partition_lease SET node_id = NULL, lease_until = 0 WHERE node_id = ?", nodeId);
+            dsl.execute("DELETE FROM cluster_node WHERE node_id = ?", nodeId);
+        }
+        catch (DataAccessException e)
+        {
+            log.error("leases could not be released: " + e.getMessage());
+        }
+        ownedUntil.clear();
+        ownedEpoch.clear();
+        lost.clear();
+        releasing.clear();
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    private static String defaultNodeId()
+    {
+        try
+        {
+            return InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+        }
+        catch (IOException e)
+        {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    private static void createTables(final DSLContext dsl)
+    {
+        dsl.execute("CREATE TABLE IF NOT EXISTS cluster_node (node_id VARCHAR(64) NOT NULL PRIMARY KEY, "
+                + "url VARCHAR(255) NOT NULL, heartbeat BIGINT NOT NULL)");
+        dsl.execute("CREATE TABLE IF NOT EXISTS partition_lease (partition_nr INT NOT NULL PRIMARY KEY, "
+                + "node_id VARCHAR(64) NULL, lease_until BIGINT NOT NULL, epoch BIGINT NOT NULL)");
+    }
+
+    /**
+     * Renew the heartbeat and the leases of this node, and claim or hand over partitions so the live nodes own the partitions
+     * evenly.
+     */
+    private static void heartbeat()
+    {
+        try
+        {
+            DSLContext dsl = data.getDSL();
+            long now = System.currentTimeMillis();
+            long until = now + leaseMillis;
+            if (dsl.execute("UPDATE cluster_node SET url = ?, heartbeat = ? WHERE node_id = ?", nodeUrl, now, nodeId) == 0)
+                dsl.execute("INSERT INTO cluster_node (node_id, url, heartbeat) VALUES (?, ?, ?)", nodeId, nodeUrl, now);
+            dsl.execute("UPDATE partition_lease SET lease_until = ? WHERE node_id = ? AND lease_until >= ?", until, nodeId, now);
+
+            // the live nodes and the current owners
+            Map<String, String> urls = new HashMap<>();
+            for (Record r : dsl.fetch("SELECT node_id, url FROM cluster_node WHERE heartbeat >= ?", now - leaseMillis))
+                urls.put(r.get(0, String.class), r.get(1, String.class));
+            Result<Record> leases = dsl.fetch("SELECT partition_nr, node_id, lease_until, epoch FROM partition_lease");
+            if (leases.size() < partitions)
+            {
+                insertMissingLeases(dsl, leases);
+                leases = dsl.fetch("SELECT partition_nr, node_id, lease_until, epoch FROM partition_lease");
+            }
+            Map<Integer, String> owners = new HashMap<>();
+            Map<Integer, Long> epochs = new HashMap<>();
+            for (Record r : leases)
+            {
+                int partition = r.get(0, Integer.class);
+                String owner = r.get(1, String.class);
+                epochs.put(partition, r.get(3, Long.class));
+                if (partition < partitions && owner != null && r.get(2, Long.class) >= now)
+                    owners.put(partition, owner);
+            }
+
+            // the even share of this node: the first (partitions % nodes) nodes in the order of their id get one extra
+            List<String> nodes = new ArrayList<>(new TreeSet<>(urls.keySet()));
+            int index = Math.max(0, nodes.indexOf(nodeId));
+            int share = partitions / Math.max(1, nodes.size()) + (index < partitions % Math.max(1, nodes.size()) ? 1 : 0);
+            List<Integer> mine = new ArrayList<>();
+            for (int p = 0; p < partitions; p++)
+            {
+                if (nodeId.equals(owners.get(p)))
+                {
+                    mine.add(p);
+                    ownedEpoch.putIfAbsent(p, epochs.get(p));
+                }
+            }
+
+            // a lease that was not renewed in time is lost; its accepted messages may not be stored here anymore
+            for (Integer p : ownedUntil.keySet())
+            {
+                if (!mine.contains(p))
+                {
+                    Long epoch = ownedEpoch.remove(p);
+                    if (inFlight.get(p) > 0 && epoch != null)
+                    {
+                        lost.put(p, epoch);
+                        log.warn("lease of partition " + p + " lost with " + inFlight.get(p) + " accepted messages");
+                    }
+                }
+            }
+            lost.keySet().removeIf(p -> inFlight.get(p) <= 0);
+
+            for (int p = 0; p < partitions && mine.size() < share; p++)
+            {
+                Long epoch = epochs.get(p);
+                if (owners.containsKey(p) || epoch == null)
+                    continue;
+                // a lost partition is claimed again when no other node claimed it in between, or when its messages are gone
+                Long lostEpoch = lost.get(p);
+                if (lostEpoch != null && !lostEpoch.equals(epoch))
+                    continue;
+                if (dsl.execute("UPDATE partition_lease SET node_id = ?, lease_until = ?, epoch = epoch + 1 "
+                        + "WHERE partition_nr = ? AND epoch = ? AND (node_id IS NULL OR lease_until < ?)", nodeId, until, p,
+                        epoch, now) == 1)
+                {
+                    owners.put(p, nodeId);
+                    mine.add(p);
+                    ownedEpoch.put(p, epoch + 1);
+                    lost.remove(p);
+                    claimed.increment();
+                }
+            }
+            handOver(dsl, mine, share, owners);
+
+            Map<Integer, Long> newOwned = new HashMap<>();
+            for (int p : mine)
+                newOwned.put(p, until);
+            ownedUntil.keySet().retainAll(newOwned.keySet());
+            ownedUntil.putAll(newOwned);
+            ownedEpoch.keySet().retainAll(newOwned.keySet());
+            releasing.retainAll(newOwned.keySet());
+            Map<Integer, String> newOwnerUrls = new HashMap<>();
+            for (Map.Entry<Integer, String> entry : owners.entrySet())
+            {
+                String url = urls.get(entry.getValue());
+                if (!nodeId.equals(entry.getValue()) && url != null && !url.isEmpty())
+                    newOwnerUrls.put(entry.getKey(), url);
+            }
+            ownerUrls = newOwnerUrls;
+            liveNodes = List.copyOf(nodes);
+        }
+        catch (RuntimeException e)
+        {
+            log.error("heartbeat failed: " + e.getMessage());
+        }
+    }
+
+    private static void insertMissingLeases(final DSLContext dsl, final Result<Record> leases)
+    {
+        Set<Integer> existing = new TreeSet<>();
+        for (Record r : leases)
+            existing.add(r.get(0, Integer.class));
+        for (int p = 0; p < partitions; p++)
+        {
+            if (existing.contains(p))
+                continue;
+            try
+            {
+                dsl.execute("INSERT INTO partition_lease (partition_nr, node_id, lease_until, epoch) VALUES (?, NULL, 0, 0)",
+                        p);
+            }
+            catch (DataAccessException e)
+            {
+                // inserted by another node at the same time
+            }
+        }
+    }
+
+    /**
+     * Hand over the partitions above the share of this node. A partition is first marked, so new messages are refused, and it
+     * is released at a later heartbeat when no accepted message of the partition is waiting anymore.
+     * @param dsl the DSL of the write pool
+     * @param mine the partitions of this node; released partitions are removed
+     * @param share the number of partitions this node should own
+     * @param owners the owners of the partitions; released partitions are removed
+     */
+    private static void handOver(final DSLContext dsl, final List<Integer> mine, final int share,
+            final Map<Integer, String> owners)
+    {
+        for (int i = mine.size() - 1; i >= 0 && mine.size() - releasing.size() > share; i--)
+            releasing.add(mine.get(i));
+        if (mine.size() <= share)
+        {
+            // another node left, or did not claim the partitions: keep them
+            releasing.clear();
+        }
+        for (Integer p : new ArrayList<>(releasing))
+        {
+            if (releasable.contains(p) && inFlight.get(p) <= 0)
+            {
+                dsl.execute("UPDATE partition_lease SET node_id = NULL, lease_until = 0 "
+                        + "WHERE partition_nr = ? AND node_id = ?", p, nodeId);
+                releasing.remove(p);
+                mine.remove(p);
+                owners.remove(p);
+                released.increment();
+            }
+        }
+        releasable.retainAll(releasing);
+        releasable.addAll(releasing);
+    }
+
+    /**
+     * Return the partition of the session of a task: the session_token, or the game_session_code and organization_code.
+     * @param task the task
+     * @return the partition number
+     */
+    static int partition(final StorageRequestTask task)
+    {
+        return Math.floorMod(IngressFields.session(task).hashCode(), partitions);
+    }
+
+    /**
+     * Determine where a task should be stored.
+     * @param task the task
+     * @return the route of the task
+     */
+    public static Route route(final StorageRequestTask task)
+    {
+        if (!enabled)
+            return Route.LOCAL;
+        int partition = partition(task);
+        Long until = ownedUntil.get(partition);
+        if (until != null && until >= System.currentTimeMillis())
+        {
+            if (releasing.contains(partition))
+            {
+                handedOver.increment();
+                return Route.UNAVAILABLE;
+            }
+            return Route.LOCAL;
+        }
+        String url = ownerUrls.get(partition);
+        if (url == null)
+        {
+            handedOver.increment();
+            return Route.UNAVAILABLE;
+        }
+        return new Route(Route.Kind.REMOTE, url);
+    }
+
+    /**
+     * Return whether this node may store a task: it holds the lease of the partition of the task for at least another fifth of
+     * <code>cluster.leaseMillis</code>, and has not lost the lease since the task was accepted. Another node can only claim the
+     * partition when the lease has expired, so the nodes do not store messages of one session at the same time, provided that
+     * a store takes less than this margin and the clocks are synchronized.
+     * @param task the task
+     * @return whether the task can be stored by this node
+     */
+    public static boolean holdsLease(final StorageRequestTask task)
+    {
+        if (!enabled)
+            return true;
+        int partition = partition(task);
+        if (lost.containsKey(partition))
+            return false;
+        Long until = ownedUntil.get(partition);
+        return until != null && until - leaseMillis / 5 > System.currentTimeMillis();
+    }
+
+    /**
+     * Hand a task of which this node does not hold the lease to the current owner of its partition. The task is forwarded
+     * asynchronously, and finished with TaskProcessor.finish() when the owner has answered. When the partition has no owner
+     * yet, or the owner does not accept the task, the task is scheduled for a retry.
+     * @param task the task
+     * @param attempt the number of the attempt
+     * @return true when the task will be finished later, false when it was moved to the dead-letter file
+     */
+    public static boolean handOff(final StorageRequestTask task, final int attempt)
+    {
+        handedOff.increment();
+        int partition = partition(task);
+        String url = ownerUrls.get(partition);
+        if (url == null)
+            return RetryManager.scheduleRetry(task, attempt,
+                    new IllegalStateException("partition " + partition + " is not owned by this node"));
+        httpClient.sendAsync(forwardRequest(task, url, task.listener() instanceof StoredAck),
+                HttpResponse.BodyHandlers.ofString()).whenComplete((answer, e) ->
+                {
+                    if (e == null && answer.statusCode() / 100 == 2)
+                    {
+                        forwarded.increment();
+                        TaskProcessor.finish(task, null, null);
+                        return;
+                    }
+                    forwardFailures.increment();
+                    String reason = e == null ? "owner answered " + answer.statusCode() : e.getMessage();
+                    if (!RetryManager.scheduleRetry(task, attempt, new IllegalStateException(reason)))
+                        TaskProcessor.finish(task, null, "Message could not be handed to the owner: " + reason);
+                });
+        return true;
+    }
+
+    /**
+     * Return whether a request was forwarded by another node of the cluster.
+     * @param request the request
+     * @return whether the request carries the forwarded header with the secret of the cluster
+     */
+    public static boolean isForwarded(final HttpServletRequest request)
+    {
+        if (!enabled)
+            return false;
+        String header = request.getHeader(FORWARDED_HEADER);
+        // compared in constant time, so the secret cannot be guessed from the response times
+        return header != null && !secret.isEmpty() && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Register that a task of a local partition has been accepted; called before the task is queued.
+     * @param task the task
+     */
+    public static void accepted(final StorageRequestTask task)
+    {
+        if (enabled)
+            inFlight.incrementAndGet(partition(task));
+    }
+
+    /**
+     * Register that a task has been stored, reported as an error, or could not be queued.
+     * @param task the task
+     */
+    public static void finished(final StorageRequestTask task)
+    {
+        if (enabled)
+            inFlight.decrementAndGet(partition(task));
+    }
+
+    /**
+     * Forward a message to the node that owns its partition, and copy the answer of that node to the response.
+     * @param task the task with the (decompressed) payload
+     * @param route the route with the URL of the owner
+     * @param ackStored whether the client waits for a stored acknowledgement
+     * @param response the response to the client
+     * @throws IOException on error writing the response
+     */
+    public static void forward(final StorageRequestTask task, final Route route, final boolean ackStored,
+            final HttpServletResponse response) throws IOException
+    {
+        try
+        {
+            HttpResponse<String> answer =
+                    httpClient.send(forwardRequest(task, route.nodeUrl(), ackStored), HttpResponse.BodyHandlers.ofString());
+            forwarded.increment();
+            response.setStatus(answer.statusCode());
+            answer.headers().firstValue("Retry-After").ifPresent(value -> response.setHeader("Retry-After", value));
+            answer.headers().firstValue("Content-Type").ifPresent(response::setContentType);
+            response.getWriter().write(answer.body());
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            forwardFailures.increment();
+            unavailable(response);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            forwardFailures.increment();
+            unavailable(response);
+        }
+    }
+
+    /**
+     * Forward a single message of a stream to the node that owns its partition, e.g., because its line names another session
+     * than the handshake of the stream. The calling thread waits for the answer of the owner.
+     * @param task the task of the line of the stream
+     * @param route the route with the URL of the owner
+     * @return whether the owner accepted the message
+     */
+    public static boolean forward(final StorageRequestTask task, final Route route)
+    {
+        try
+        {
+            HttpResponse<String> answer =
+                    httpClient.send(forwardRequest(task, route.nodeUrl(), false), HttpResponse.BodyHandlers.ofString());
+            forwarded.increment();
+            return answer.statusCode() >= 200 && answer.statusCode() < 300;
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            forwardFailures.increment();
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            forwardFailures.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Build the request that forwards a task to another node. The fields of the handshake of a stream are added to the message,
+     * since the other node receives it as a single JSON message.
+     * @param task the task
+     * @param nodeUrl the URL of the other node
+     * @param ackStored whether the other node should answer when the task has been stored
+     * @return the request
+     */
+    private static HttpRequest forwardRequest(final StorageRequestTask task, final String nodeUrl, final boolean ackStored)
+    {
+        HttpRequest.Builder builder;
+        if ("GET".equals(task.requestType()))
+            builder = HttpRequest.newBuilder(URI.create(nodeUrl + "/store?" + task.payload())).GET();
+        else if ("STREAM".equals(task.requestType()))
+        {
+            JSONObject json = new JSONObject(task.payload());
+            if (task.context() != null)
+                task.context().forEach((key, value) ->
+                {
+                    if (!json.has(key))
+                        json.put(key, value);
+                });
+            builder = HttpRequest.newBuilder(URI.create(nodeUrl + "/store")).header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(json.toString(), StandardCharsets.UTF_8));
+        }
+        else
+        {
+            byte[] body = task.payload() == null ? task.body() : task.payload().getBytes(StandardCharsets.UTF_8);
+            builder = HttpRequest.newBuilder(URI.create(nodeUrl + "/store"))
+                    .header("Content-Type", task.contentType()).POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        }
+        long timeoutMillis = ServerProperties.getLong("cluster.forwardTimeoutMillis", 5000);
+        if (ackStored)
+        {
+            builder.header(StoredAck.HEADER, "stored");
+            timeoutMillis += ServerProperties.getLong("ack.timeoutMillis", 10_000);
+        }
+        return builder.header(FORWARDED_HEADER, secret).timeout(Duration.ofMillis(timeoutMillis)).build();
+    }
+
+    /**
+     * Redirect a stream or import to the node that owns its partition, or answer that the partition is not available.
+     * @param route the route of the session
+     * @param path the path of the endpoint, e.g., /stream
+     * @param response the response to the client
+     * @throws IOException on error writing the response
+     */
+    public static void redirect(final Route route, final String path, final HttpServletResponse response) throws IOException
+    {
+        if (route.kind() != Route.Kind.REMOTE)
+        {
+            unavailable(response);
+            return;
+        }
+        response.setStatus(307);
+        response.setHeader("Location", route.nodeUrl() + path);
+        response.getWriter().write("Session is stored by another node: " + route.nodeUrl());
+    }
+
+    /**
+     * Answer that the partition of the message is moving to another node.
+     * @param response the response to the client
+     * @throws IOException on error writing the response
+     */
+    public static void unavailable(final HttpServletResponse response) throws IOException
+    {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "1");
+        response.getWriter().write("Session is moving to another node, try again");
+    }
+
+    /**
+     * Return the statistics of the cluster.
+     * @return the statistics
+     */
+    public static Statistics getStatistics()
+    {
+        return new Statistics(enabled, nodeId, liveNodes, ownedUntil.size(), new TreeSet<>(releasing),
+                new TreeSet<>(lost.keySet()), forwarded.sum(), forwardFailures.sum(), handedOver.sum(), claimed.sum(),
+                released.sum(), handedOff.sum());
+    }
+
+    /**
+     * The route of a message.
+     * @param kind whether the message is stored locally, by another node, or cannot be accepted now
+     * @param nodeUrl the URL of the owner for a remote route, otherwise null
+     */
+    public record Route(Kind kind, String nodeUrl)
+    {
+        /** the route for messages that are stored by this node. */
+        public static final Route LOCAL = new Route(Kind.LOCAL, null);
+
+        /** the route for messages of a partition that has no owner or is being handed over. */
+        public static final Route UNAVAILABLE = new Route(Kind.UNAVAILABLE, null);
+
+        /** the kind of route. */
+        public enum Kind
+        {
+            LOCAL, REMOTE, UNAVAILABLE;
+        }
+    }
+
+    /**
+     * Statistics of the cluster.
+     * @param enabled whether cluster mode is on
+     * @param nodeId the id of this node
+     * @param liveNodes the ids of the live nodes
+     * @param ownedPartitions the number of partitions owned by this node
+     * @param releasing the partitions that are handed over
+     * @param lost the partitions of which the lease was lost while accepted messages were waiting
+     * @param forwarded the number of messages forwarded to another node
+     * @param forwardFailures the number of messages that could not be forwarded
+     * @param handedOver the number of messages refused because their partition had no owner or was handed over
+     * @param claimed the number of partitions claimed by this node
+     * @param released the number of partitions released by this node
+     * @param handedOff the number of accepted messages that were handed to another node after a lease was lost
+     */
+    public record Statistics(boolean enabled, String nodeId, List<String> liveNodes, int ownedPartitions,
+            Set<Integer> releasing, Set<Integer> lost, long forwarded, long forwardFailures, long handedOver, long claimed,
+            long released, long handedOff)
+    {
+    }
+}
@@ -0,0 +1,191 @@
+package nl.gamedata.server;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * DateTimeParser parses the timestamps in messages without exceptions for the common formats. The documented format
+ * <code>yyyy-MM-ddTHH:mm:ss[.fraction]</code> (with <code>T</code> or a space between date and time, and optional seconds) is
+ * checked and parsed character by character. Accepted variants are a trailing <code>Z</code> or offset such as
+ * <code>+01:00</code>, which is converted to the time zone of the server, and an integer number of 12 to 18 digits, which is
+ * interpreted as epoch milliseconds (from 1973 on); shorter numbers, e.g., epoch seconds or a compact date such as
+ * <code>20240315</code>, are not valid timestamps. Only unusual inputs that start like an ISO-8601 timestamp, e.g., with a
+ * zone id in brackets or a signed year, are passed to the general java.time parser. Malformed values return null, so a client
+ * that sends a wrong format for every message does not cost an exception per message.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class DateTimeParser
+{
+    /** the minimum number of digits of epoch milliseconds, so a number in seconds or a compact date is not taken as one. */
+    private static final int MIN_EPOCH_DIGITS = 12;
+
+    /** the maximum number of digits of epoch milliseconds, which always fits in a long. */
+    private static final int MAX_EPOCH_DIGITS = 18;
+
+    /** the largest offset from UTC that a ZoneOffset accepts, +18:00 or -18:00. */
+    private static final int MAX_OFFSET_SECONDS = 18 * 3600;
+
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000, 100_000_000};
+
+    private DateTimeParser()
+    {
+        // utility class
+    }
+
+    /**
+     * Parse a timestamp.
+     * @param s the string to parse
+     * @return the timestamp in the time zone of the server, or null when the string is not a valid timestamp
+     */
+    public static LocalDateTime parse(final String s)
+    {
+        if (s == null)
+            return null;
+        int length = s.length();
+        if (length == 0)
+            return null;
+        if (allDigits(s))
+            return length >= MIN_EPOCH_DIGITS && length <= MAX_EPOCH_DIGITS ? epochMillis(Long.parseLong(s)) : null;
+        if (length >= 16 && s.charAt(4) == '-')
+            return parseIso(s, length);
+        if ((s.charAt(0) == '+' || s.charAt(0) == '-') && length > 1 && isDigit(s.charAt(1)))
+            return parseGeneral(s);
+        return null;
+    }
+
+    private static LocalDateTime parseIso(final String s, final int length)
+    {
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        char sep = s.charAt(10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month) || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || s.charAt(7) != '-' || (sep != 'T' && sep != 't' && sep != ' ')
+                || s.charAt(13) != ':')
+            return null;
+        int pos = 16;
+        int second = 0;
+        int nano = 0;
+        if (pos < length && s.charAt(pos) == ':')
+        {
+            second = digits(s, pos + 1, 2);
+            if (second < 0 || second > 59)
+                return null;
+            pos += 3;
+            if (pos < length && (s.charAt(pos) == '.' || s.charAt(pos) == ','))
+            {
+                int start = ++pos;
+                while (pos < length && isDigit(s.charAt(pos)))
+                    pos++;
+                int n = pos - start;
+                if (n == 0 || n > 9)
+                    return null;
+                nano = digits(s, start, n) * POWERS_OF_TEN[9 - n];
+            }
+        }
+        LocalDateTime dateTime = LocalDateTime.of(year, month, day, hour, minute, second, nano);
+        if (pos == length)
+            return dateTime;
+
+        // offset: Z, +HH, +HHMM or +HH:MM
+        char c = s.charAt(pos);
+        if ((c == 'Z' || c == 'z') && pos + 1 == length)
+            return toServerTime(dateTime, ZoneOffset.UTC);
+        if (c == '+' || c == '-')
+        {
+            int remaining = length - pos - 1;
+            int offsetHours = digits(s, pos + 1, 2);
+            int offsetMinutes = 0;
+            if (remaining == 4)
+                offsetMinutes = digits(s, pos + 3, 2);
+            else if (remaining == 5 && s.charAt(pos + 3) == ':')
+                offsetMinutes = digits(s, pos + 4, 2);
+            else if (remaining != 2)
+                return parseGeneral(s);
+            if (offsetHours < 0 || offsetMinutes < 0 || offsetMinutes > 59)
+                return null;
+            int seconds = (offsetHours * 3600 + offsetMinutes * 60) * (c == '-' ? -1 : 1);
+            if (Math.abs(seconds) > MAX_OFFSET_SECONDS)
+                return null;
+            return toServerTime(dateTime, ZoneOffset.ofTotalSeconds(seconds));
+        }
+        return parseGeneral(s);
+    }
+
+    /** The fallback for unusual formats, e.g., a zone id in brackets; package-private for the benchmark. */
+    static LocalDateTime parseGeneral(final String s)
+    {
+        try
+        {
+            var parsed = DateTimeFormatter.ISO_DATE_TIME.parseBest(s, ZonedDateTime::from, LocalDateTime::from);
+            if (parsed instanceof ZonedDateTime zoned)
+                return zoned.withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+            return (LocalDateTime) parsed;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    private static LocalDateTime toServerTime(final LocalDateTime dateTime, final ZoneOffset offset)
+    {
+        return dateTime.atOffset(offset).atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+    }
+
+    private static LocalDateTime epochMillis(final long millis)
+    {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    /** Return the number of n digits at the position, or -1 when not all characters are digits or the string is too short. */
+    private static int digits(final String s, final int start, final int n)
+    {
+        if (start + n > s.length())
+            return -1;
+        int value = 0;
+        for (int i = start; i < start + n; i++)
+        {
+            char c = s.charAt(i);
+            if (!isDigit(c))
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean allDigits(final String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            if (!isDigit(s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(final char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int lengthOfMonth(final int year, final int month)
+    {
+        return switch (month)
+        {
+            case 2 -> (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4, 6, 9, 11 -> 30;
+            default -> 31;
+        };
+    }
+}
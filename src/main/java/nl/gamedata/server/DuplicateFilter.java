@@ -0,0 +1,210 @@
+package nl.gamedata.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DuplicateFilter drops messages that are sent again by a client with the same <code>message_id</code> within a time window. The
+ * check is done at ingress, so duplicates never reach the queue or the StorageProcessor. The message ids are kept per game
+ * session in insertion order, so expired ids can be removed from the head of the list. Memory is bounded by a maximum number of
+ * ids per session and a maximum number of sessions. When a message is not accepted after the check, e.g., because the queue is
+ * full, its id is removed again with forget(), so the retry of the client is not taken for a duplicate.
+ * <p>
+ * Settings in gamedata.properties: <code>dedup.enabled</code> (default true), <code>dedup.windowSeconds</code> (default 600),
+ * <code>dedup.maxPerSession</code> (default 10000) and <code>dedup.maxSessions</code> (default 10000).
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class DuplicateFilter
+{
+    private static final Map<String, SessionWindow> sessions = new ConcurrentHashMap<>();
+
+    private static final LongAdder checked = new LongAdder();
+
+    private static final LongAdder duplicates = new LongAdder();
+
+    private static final LongAdder overflow = new LongAdder();
+
+    private static volatile boolean enabled = false;
+
+    private static volatile long windowNanos = TimeUnit.SECONDS.toNanos(600);
+
+    private static volatile int maxPerSession = 10_000;
+
+    private static volatile int maxSessions = 10_000;
+
+    private static ScheduledExecutorService sweeper = null;
+
+    private DuplicateFilter()
+    {
+        // utility class
+    }
+
+    public static synchronized void start()
+    {
+        enabled = ServerProperties.getBoolean("dedup.enabled", true);
+        windowNanos = TimeUnit.SECONDS.toNanos(ServerProperties.getLong("dedup.windowSeconds", 600));
+        maxPerSession = ServerProperties.getInt("dedup.maxPerSession", 10_000);
+        maxSessions = ServerProperties.getInt("dedup.maxSessions", 10_000);
+        if (enabled && sweeper == null)
+        {
+            sweeper = Executors.newSingleThreadScheduledExecutor();
+            sweeper.scheduleWithFixedDelay(DuplicateFilter::expire, 30, 30, TimeUnit.SECONDS);
+        }
+    }
+
+    public static synchronized void stop()
+    {
+        if (sweeper != null)
+        {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Check whether the task carries a message_id that has been seen before for the same session within the window. When not,
+     * the message_id is registered.
+     * @param task the task to check
+     * @return whether the task is a duplicate that should be dropped
+     */
+    public static boolean isDuplicate(final StorageRequestTask task)
+    {
+        if (!enabled)
+            return false;
+        String messageId = IngressFields.find(task, "message_id");
+        if (messageId == null || messageId.isEmpty())
+            return false;
+        checked.increment();
+
+        // the check and the registration are done in compute(), so expire() cannot remove the window in between
+        long now = System.nanoTime();
+        boolean[] result = new boolean[2];
+        sessions.compute(IngressFields.session(task), (key, window) ->
+        {
+            SessionWindow w = window;
+            if (w == null)
+            {
+                if (sessions.size() >= maxSessions)
+                {
+                    result[1] = true;
+                    return null;
+                }
+                w = new SessionWindow();
+            }
+            result[0] = w.checkAndAdd(messageId, now);
+            return w;
+        });
+        if (result[1])
+            overflow.increment();
+        if (result[0])
+            duplicates.increment();
+        return result[0];
+    }
+
+    /**
+     * Remove the message_id of a task that was registered by isDuplicate() but not accepted, e.g., because the queue was full,
+     * so the client can send the message again.
+     * @param task the task that was not accepted
+     */
+    public static void forget(final StorageRequestTask task)
+    {
+        if (!enabled)
+            return;
+        String messageId = IngressFields.find(task, "message_id");
+        if (messageId == null || messageId.isEmpty())
+            return;
+        sessions.computeIfPresent(IngressFields.session(task), (key, window) -> window.remove(messageId) ? null : window);
+    }
+
+    /**
+     * Remove the expired message ids, and the sessions without message ids. A window is removed in computeIfPresent(), so no
+     * message id can be added to it while it is removed.
+     */
+    private static void expire()
+    {
+        long now = System.nanoTime();
+        for (String session : sessions.keySet())
+            sessions.computeIfPresent(session, (key, window) -> window.expire(now) ? null : window);
+    }
+
+    /**
+     * Return the counters of the duplicate filter.
+     * @return the counters
+     */
+    public static Statistics getStatistics()
+    {
+        return new Statistics(checked.sum(), duplicates.sum(), overflow.sum(), sessions.size());
+    }
+
+    /**
+     * Counters of the duplicate filter.
+     * @param checked the number of messages with a message_id that have been checked
+     * @param duplicates the number of dropped duplicates
+     * @param overflow the number of messages that could not be checked because the maximum number of sessions was reached
+     * @param sessions the current number of sessions with message ids
+     */
+    public record Statistics(long checked, long duplicates, long overflow, int sessions)
+    {
+    }
+
+    /** The message ids of one session in the order they were received; package-private for the tests. */
+    static class SessionWindow
+    {
+        private final LinkedHashMap<String, Long> ids = new LinkedHashMap<>();
+
+        synchronized boolean checkAndAdd(final String messageId, final long now)
+        {
+            removeExpired(now);
+            if (this.ids.containsKey(messageId))
+                return true;
+            this.ids.put(messageId, now);
+            if (this.ids.size() > maxPerSession)
+            {
+                Iterator<String> it = this.ids.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+            return false;
+        }
+
+        /**
+         * Remove a message id.
+         * @param messageId the message id
+         * @return whether the window is empty after removal
+         */
+        synchronized boolean remove(final String messageId)
+        {
+            this.ids.remove(messageId);
+            return this.ids.isEmpty();
+        }
+
+        /**
+         * Remove the expired ids.
+         * @param now the current time in nanoseconds
+         * @return whether the window is empty after removal
+         */
+        synchronized boolean expire(final long now)
+        {
+            removeExpired(now);
+            return this.ids.isEmpty();
+        }
+
+        private void removeExpired(final long now)
+        {
+            Iterator<Long> it = this.ids.values().iterator();
+            while (it.hasNext() && now - it.next() > windowNanos)
+                it.remove();
+        }
+    }
+}
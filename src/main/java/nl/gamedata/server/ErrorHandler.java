@@ -15,6 +15,8 @@ import nl.gamedata.data.tables.records.ErrorRecord;
  */
 public class ErrorHandler
 {
+    private static final Log.Logger log = Log.logger("ErrorHandler");
+
     public static void storeError(final ServerData data, final StorageRequestTask task, final Map<String, String> requestMap,
             final String message)
     {
@@ -30,19 +32,27 @@ public class ErrorHandler
     public static void storeError(final ServerData data, final StorageRequestTask task, final Map<String, String> requestMap,
             final String message, final String errorType, final boolean recordStored)
     {
-        System.err.println("ERROR: " + message);
-        System.err.println(" task: " + task);
-        System.err.println("  map: " + requestMap);
+        String session = requestMap.getOrDefault("session_token", requestMap.get("game_session_code"));
+        log.log(recordStored ? Log.Level.WARN : Log.Level.ERROR, message, session, requestMap.get("data"), errorType, null);
+        if (log.isEnabled(Log.Level.DEBUG))
+            log.debug("task: " + task + ", map: " + requestMap);
+
+        // while the database is known to be unavailable, do not wait for another failure
+        if (CircuitBreaker.getState() == CircuitBreaker.State.OPEN)
+        {
+            log.warn("error record not stored in the database: database unavailable");
+            return;
+        }
 
-        // store in database
+        // store through the sink
         try
         {
-            ErrorRecord error = data.getDSL().newRecord(Tables.ERROR);
+            ErrorRecord error = data.getSink().newRecord(Tables.ERROR);
             error.setTimestamp(task.timestamp());
             error.setErrorType(errorType);
             error.setRecordStored(recordStored ? (byte) 1 : (byte) 0);
             error.setMessage(message);
-            error.setContent(task.payload());
+            error.setContent(task.payloadText());
             if (requestMap.containsKey("data"))
                 error.setDataType(requestMap.get("data"));
             if (requestMap.containsKey("session_token"))
@@ -53,12 +63,11 @@ public class ErrorHandler
                 error.setGameVersionCode(requestMap.get("game_version_code"));
             if (requestMap.containsKey("organization_code"))
                 error.setOrganizationCode(requestMap.get("organization_code"));
-            error.store();
+            data.getSink().writeError(error);
         }
         catch (Exception e)
         {
-            e.printStackTrace();
-            System.err.println("Could not store error record in the database: " + e.getMessage());
+            log.error("could not store error record: " + e.getMessage(), e);
         }
     }
 }
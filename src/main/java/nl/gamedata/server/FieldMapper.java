@@ -0,0 +1,262 @@
+package nl.gamedata.server;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * FieldMapper copies the fields of a request map into a record, according to a table of mappings that is built once for each
+ * data type. Every mapping holds the key, whether the key is required, the default value, and a typed setter; the table is
+ * compiled into a flat array, so storing a message is a single loop with one map lookup per field. Values that cannot be parsed
+ * are reported as a warning, and replaced by the default value.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ * @param <R> the record type
+ */
+public final class FieldMapper<R>
+{
+    private final Mapping<R>[] mappings;
+
+    private FieldMapper(final Mapping<R>[] mappings)
+    {
+        this.mappings = mappings;
+    }
+
+    /**
+     * Create a builder for the table of mappings of a record type.
+     * @param <R> the record type
+     * @return a new builder
+     */
+    public static <R> Builder<R> builder()
+    {
+        return new Builder<>();
+    }
+
+    /**
+     * Copy the fields of the request map into the record.
+     * @param record the record to fill
+     * @param fields the request map
+     * @param timestamp the default for timestamp fields without a default value, normally the time of the request
+     * @param reporter the reporter for missing and invalid fields
+     * @return whether all required fields were present; when false, the missing field has been reported
+     */
+    public boolean apply(final R record, final Map<String, String> fields, final LocalDateTime timestamp,
+            final Reporter reporter)
+    {
+        for (Mapping<R> mapping : this.mappings)
+        {
+            String value = fields.get(mapping.key);
+            if (value == null)
+            {
+                if (mapping.required)
+                {
+                    reporter.missing(mapping.key);
+                    return false;
+                }
+                mapping.setDefault(record, timestamp);
+            }
+            else if (!mapping.set(record, value))
+            {
+                reporter.invalid(mapping.typeName(), mapping.key, value);
+                mapping.setDefault(record, timestamp);
+            }
+        }
+        return true;
+    }
+
+    /** Receiver of the problems that are found while the fields are mapped. */
+    public interface Reporter
+    {
+        /**
+         * A required field is missing.
+         * @param key the key of the field
+         */
+        void missing(String key);
+
+        /**
+         * A field has a value that cannot be parsed; the default value is used.
+         * @param typeName the name of the expected type, e.g., DateTime
+         * @param key the key of the field
+         * @param value the value that could not be parsed
+         */
+        void invalid(String typeName, String key, String value);
+    }
+
+    /**
+     * Builder for the table of mappings.
+     * @param <R> the record type
+     */
+    public static final class Builder<R>
+    {
+        private final List<Mapping<R>> mappings = new ArrayList<>();
+
+        private Builder()
+        {
+            // use FieldMapper.builder()
+        }
+
+        public Builder<R> string(final String key, final boolean required, final String defaultValue,
+                final BiConsumer<R, String> setter)
+        {
+            this.mappings.add(new Mapping<R>(key, required)
+            {
+                @Override
+                boolean set(final R record, final String value)
+                {
+                    setter.accept(record, value);
+                    return true;
+                }
+
+                @Override
+                void setDefault(final R record, final LocalDateTime timestamp)
+                {
+                    setter.accept(record, defaultValue);
+                }
+
+                @Override
+                String typeName()
+                {
+                    return "String";
+                }
+            });
+            return this;
+        }
+
+        /** A timestamp, see DateTimeParser; the default is the timestamp that is passed to apply. */
+        public Builder<R> dateTime(final String key, final BiConsumer<R, LocalDateTime> setter)
+        {
+            this.mappings.add(new Mapping<R>(key, false)
+            {
+                @Override
+                boolean set(final R record, final String value)
+                {
+                    LocalDateTime dt = DateTimeParser.parse(value);
+                    if (dt == null)
+                        return false;
+                    setter.accept(record, dt);
+                    return true;
+                }
+
+                @Override
+                void setDefault(final R record, final LocalDateTime timestamp)
+                {
+                    setter.accept(record, timestamp);
+                }
+
+                @Override
+                String typeName()
+                {
+                    return "DateTime";
+                }
+            });
+            return this;
+        }
+
+        /** A boolean stored as a byte: 0 is false, any other integer is true. */
+        public Builder<R> bool(final String key, final byte defaultValue, final BiConsumer<R, Byte> setter)
+        {
+            this.mappings.add(new Mapping<R>(key, false)
+            {
+                @Override
+                boolean set(final R record, final String value)
+                {
+                    int b;
+                    try
+                    {
+                        b = Integer.parseInt(value);
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        return false;
+                    }
+                    setter.accept(record, b == 0 ? (byte) 0 : (byte) 1);
+                    return true;
+                }
+
+                @Override
+                void setDefault(final R record, final LocalDateTime timestamp)
+                {
+                    setter.accept(record, defaultValue);
+                }
+
+                @Override
+                String typeName()
+                {
+                    return "Byte";
+                }
+            });
+            return this;
+        }
+
+        /** An optional floating point number; the default is null. */
+        public Builder<R> number(final String key, final BiConsumer<R, Double> setter)
+        {
+            this.mappings.add(new Mapping<R>(key, false)
+            {
+                @Override
+                boolean set(final R record, final String value)
+                {
+                    double d;
+                    try
+                    {
+                        d = Double.parseDouble(value);
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        return false;
+                    }
+                    setter.accept(record, Double.isNaN(d) ? null : d);
+                    return true;
+                }
+
+                @Override
+                void setDefault(final R record, final LocalDateTime timestamp)
+                {
+                    setter.accept(record, null);
+                }
+
+                @Override
+                String typeName()
+                {
+                    return "Double";
+                }
+            });
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public FieldMapper<R> build()
+        {
+            return new FieldMapper<>(this.mappings.toArray(new Mapping[0]));
+        }
+    }
+
+    /**
+     * The mapping of one field.
+     * @param <R> the record type
+     */
+    private abstract static class Mapping<R>
+    {
+        final String key;
+
+        final boolean required;
+
+        Mapping(final String key, final boolean required)
+        {
+            this.key = key;
+            this.required = required;
+        }
+
+        /** Parse the value and set it in the record; return false when the value cannot be parsed. */
+        abstract boolean set(R record, String value);
+
+        abstract void setDefault(R record, LocalDateTime timestamp);
+
+        abstract String typeName();
+    }
+}
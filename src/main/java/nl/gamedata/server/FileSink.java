@@ -0,0 +1,152 @@
+package nl.gamedata.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jooq.Field;
+import org.jooq.UpdatableRecord;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * FileSink appends the data to a sequential NDJSON file, e.g., to keep receiving data while the database is not available.
+ * The metadata and the identities are resolved as in the MemorySink; every created player, group, group role or attempt, and
+ * every event, score and error is written as one line with the name of its table and its fields, in the format of the
+ * SessionArchiver. The events, scores and errors are not kept in memory. The file
+ * <code>sink-yyyyMMdd-HHmmss.ndjson</code> is created at the start in <code>storage.file.dir</code>, by default the folder
+ * <code>sink</code> in the config folder, and every line is flushed when it has been written. The metadata file has to hold
+ * the tokens (see <code>metadata.snapshot.tokens</code>); otherwise the sink does not start.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class FileSink extends MemorySink
+{
+    private static final Log.Logger log = Log.logger("FileSink");
+
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final Path file;
+
+    private final BufferedWriter writer;
+
+    /**
+     * Create a file sink, read the metadata as in the MemorySink, and open a new file in <code>storage.file.dir</code>.
+     * @throws IllegalStateException when the metadata file is missing or was written without the tokens
+     * @throws UncheckedIOException when the file cannot be created
+     */
+    public FileSink()
+    {
+        checkMetadata(MemorySink.metadataFile());
+        Path dir = Paths.get(ServerProperties.get("storage.file.dir", ServerProperties.getConfigDir() + "/sink"));
+        String base = "sink-" + LocalDateTime.now().format(FILE_TIME);
+        try
+        {
+            Files.createDirectories(dir);
+            Path path = dir.resolve(base + ".ndjson");
+            for (int i = 1; Files.exists(path); i++)
+                path = dir.resolve(base + "-" + i + ".ndjson");
+            this.file = path;
+            this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("FileSink: file could not be created in " + dir, e);
+        }
+        log.info("writing to " + this.file);
+    }
+
+    /**
+     * Check that the metadata file can resolve the messages that the server receives. The file sink takes over from the
+     * database, so the messages carry the usual session tokens and game tokens, which are only in a snapshot that was written
+     * with <code>metadata.snapshot.tokens=true</code>. Without them, every message would be stored as an error, so the sink
+     * refuses to start, and the server answers 503 instead of accepting the messages.
+     * @param metadata the metadata file
+     * @throws IllegalStateException when the file is missing, cannot be read, or has no tokens
+     */
+    static void checkMetadata(final Path metadata)
+    {
+        if (!Files.isReadable(metadata))
+            throw new IllegalStateException("FileSink: metadata file " + metadata + " not found");
+        try
+        {
+            if (!MetadataCache.snapshotHasTokens(metadata))
+                throw new IllegalStateException("FileSink: metadata file " + metadata
+                        + " has no tokens; write the snapshot with metadata.snapshot.tokens=true");
+        }
+        catch (IOException | JSONException e)
+        {
+            throw new IllegalStateException("FileSink: metadata file " + metadata + " could not be read: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String name()
+    {
+        return "file";
+    }
+
+    @Override
+    protected void stored(final UpdatableRecord<?> record, final boolean identity)
+    {
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("table", record.getTable().getName());
+        for (Field<?> field : record.fields())
+        {
+            Object value = record.get(field);
+            line.put(field.getName(), value == null ? JSONObject.NULL
+                    : value instanceof Number || value instanceof Boolean ? value : value.toString());
+        }
+        String json = new JSONObject(line).toString();
+        synchronized (this.writer)
+        {
+            try
+            {
+                this.writer.write(json);
+                this.writer.write('\n');
+                this.writer.flush();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException("FileSink: record could not be written to " + this.file, e);
+            }
+        }
+    }
+
+    /**
+     * Return the file to which the records are written.
+     * @return the path of the file
+     */
+    public Path getFile()
+    {
+        return this.file;
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (this.writer)
+        {
+            try
+            {
+                this.writer.close();
+            }
+            catch (IOException e)
+            {
+                log.error("file could not be closed: " + e.getMessage());
+            }
+        }
+    }
+}
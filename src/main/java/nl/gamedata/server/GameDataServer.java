@@ -6,7 +6,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Properties;
+import java.util.zip.ZipException;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -30,15 +34,17 @@ import jakarta.servlet.http.HttpServletResponse;
  * </p>
  * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
  */
-@WebServlet("/store")
+@WebServlet(value = "/store", asyncSupported = true)
 public class GameDataServer extends HttpServlet
 {
     private static final long serialVersionUID = 1L;
 
+    private static final Log.Logger log = Log.logger("GameDataServer");
+
     @Override
     public void init() throws ServletException
     {
-        System.out.println("init()");
+        log.info("init()");
         super.init();
         System.getProperties().setProperty("org.jooq.no-logo", "true");
 
@@ -106,38 +112,91 @@ public class GameDataServer extends HttpServlet
         {
             throw new ServletException(e);
         }
+
+        RateLimiter.start();
+        DuplicateFilter.start();
+        TrafficCapture.start();
+        HeavyHitters.start();
+    }
+
+    @Override
+    public void destroy()
+    {
+        RateLimiter.stop();
+        DuplicateFilter.stop();
+        TrafficCapture.stop();
+        HeavyHitters.stop();
+        super.destroy();
     }
 
     @Override
     protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
             throws ServletException, IOException
     {
-        StringBuilder payload = new StringBuilder();
-        try (BufferedReader reader = request.getReader())
+        long receivedNanos = System.nanoTime();
+        boolean forwarded = ClusterManager.isForwarded(request);
+        if (!forwarded && !RateLimiter.allowClient(clientAddress(request)))
         {
-            String line;
-            while ((line = reader.readLine()) != null)
-            {
-                payload.append(line);
-            }
+            tooManyRequests(response);
+            return;
         }
 
-        String contentType = request.getContentType();
+        String contentType = request.getContentType() == null ? "" : request.getContentType().toLowerCase();
         // TODO: handle not-supported content types
 
-        // Add task to queue
-        StorageRequestTask task = new StorageRequestTask("POST", contentType.toLowerCase(), payload.toString());
-        RequestQueueManager.addTask(task);
-
-        // Respond to client
-        response.setStatus(HttpServletResponse.SC_ACCEPTED);
-        response.getWriter().write("Task submitted successfully");
+        // Read the (possibly compressed) body and add task to queue
+        StorageRequestTask task;
+        try (InputStream stream = RequestBodies.open(request, RequestBodies.maxBytes(true), RequestBodies.maxBytes(false)))
+        {
+            if (contentType.contains(BinaryCodec.CONTENT_TYPE))
+                task = new StorageRequestTask("POST", contentType, stream.readAllBytes());
+            else
+            {
+                Charset charset = request.getCharacterEncoding() == null ? StandardCharsets.UTF_8
+                        : Charset.forName(request.getCharacterEncoding());
+                StringBuilder payload = new StringBuilder();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(stream, charset));
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    payload.append(line);
+                }
+                task = new StorageRequestTask("POST", contentType, payload.toString());
+            }
+        }
+        catch (RequestBodies.UnsupportedEncodingException e)
+        {
+            response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            response.getWriter().write(e.getMessage());
+            return;
+        }
+        catch (RequestBodies.PayloadTooLargeException e)
+        {
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            response.getWriter().write(e.getMessage());
+            return;
+        }
+        catch (ZipException e)
+        {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("Request body could not be decompressed: " + e.getMessage());
+            return;
+        }
+        submit(task, receivedNanos, forwarded, request, response);
     }
 
     @Override
     protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
             throws ServletException, IOException
     {
+        long receivedNanos = System.nanoTime();
+        boolean forwarded = ClusterManager.isForwarded(request);
+        if (!forwarded && !RateLimiter.allowClient(clientAddress(request)))
+        {
+            tooManyRequests(response);
+            return;
+        }
+
         String queryString = request.getQueryString();
         if (queryString == null)
         {
@@ -149,11 +208,106 @@ public class GameDataServer extends HttpServlet
 
         // Add task to queue
         StorageRequestTask task = new StorageRequestTask("GET", "x-www-form-urlencoded", queryString);
-        RequestQueueManager.addTask(task);
+        submit(task, receivedNanos, forwarded, request, response);
+    }
+
+    /**
+     * Check the session limit and duplicates for a task, add it to the queue, and respond to the client. In cluster mode, a
+     * task of a session that is stored by another node is forwarded to that node. When the client asks for a stored
+     * acknowledgement, the response is sent when the task has been processed.
+     * @param task the task to submit
+     * @param receivedNanos the time at which the request was received, from System.nanoTime()
+     * @param forwarded whether the request was forwarded by another node of the cluster
+     * @param request the request of the client
+     * @param response the response to the client
+     * @throws IOException on error writing the response
+     */
+    private static void submit(final StorageRequestTask task, final long receivedNanos, final boolean forwarded,
+            final HttpServletRequest request, final HttpServletResponse response) throws IOException
+    {
+        if (!forwarded)
+        {
+            TrafficCapture.capture(task);
+            HeavyHitters.ingress(task);
+        }
+        boolean ackStored = StoredAck.requested(request, task);
+        if (!TaskProcessor.getServletError().isEmpty())
+        {
+            // the connection pool could not be opened at startup, so the task would never be stored
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().write("Server not available: " + TaskProcessor.getServletError());
+            return;
+        }
+        ClusterManager.Route route = ClusterManager.route(task);
+        if (route.kind() == ClusterManager.Route.Kind.REMOTE && !forwarded)
+        {
+            ClusterManager.forward(task, route, ackStored, response);
+            return;
+        }
+        if (route.kind() != ClusterManager.Route.Kind.LOCAL)
+        {
+            ClusterManager.unavailable(response);
+            return;
+        }
+        if (!RateLimiter.allowSession(task))
+        {
+            tooManyRequests(response);
+            return;
+        }
+        if (DuplicateFilter.isDuplicate(task))
+        {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().write("Duplicate message ignored");
+            return;
+        }
+        StoredAck ack = ackStored ? new StoredAck() : null;
+        StorageRequestTask queuedTask = (ack == null ? task : task.withListener(ack)).withTrace(Tracer.sample(receivedNanos));
+        ClusterManager.accepted(queuedTask);
+        if (!RequestQueueManager.addTask(queuedTask))
+        {
+            ClusterManager.finished(queuedTask);
+            DuplicateFilter.forget(task);
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "10");
+            response.getWriter().write("Server busy, try again later");
+            return;
+        }
 
         // Respond to client
+        if (ack != null)
+        {
+            ack.respondWhenStored(request);
+            return;
+        }
         response.setStatus(HttpServletResponse.SC_ACCEPTED);
         response.getWriter().write("Task submitted successfully");
     }
 
+    /**
+     * Return the address of the client, taken from the configured proxy header when present.
+     * @param request the request
+     * @return the client address
+     */
+    static String clientAddress(final HttpServletRequest request)
+    {
+        String header = RateLimiter.getClientHeader();
+        if (header != null)
+        {
+            String forwarded = request.getHeader(header);
+            if (forwarded != null && !forwarded.isEmpty())
+            {
+                int comma = forwarded.indexOf(',');
+                return (comma < 0 ? forwarded : forwarded.substring(0, comma)).strip();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    static void tooManyRequests(final HttpServletResponse response) throws IOException
+    {
+        response.setStatus(429);
+        response.setHeader("Retry-After", "1");
+        response.getWriter().write("Too many requests");
+    }
+
 }
@@ -0,0 +1,229 @@
+package nl.gamedata.server;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * HealthMonitor determines the health of the storage pipeline for the <code>/health</code> and <code>/ready</code> endpoints.
+ * The checks run on a background thread every <code>health.checkMillis</code>, and the endpoints only read the last snapshot,
+ * so a probe never touches the queue lock or the database. The database is checked with a round trip on the write pool every
+ * <code>health.dbCheckSeconds</code>.
+ * <p>
+ * The server is alive when the storage thread runs. The server is ready when it is alive, the last database round trip
+ * succeeded, the circuit breaker is not open, the storage thread is not stalled, and the backlog is within its limits: the
+ * number of waiting tasks is below the high-water mark, and the oldest task waits less than
+ * <code>health.ready.maxQueueAgeSeconds</code>. Once the backlog has passed a limit, the server only becomes ready again when
+ * the backlog is below half of the limits, so the load balancer does not switch the node on and off at every check.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class HealthMonitor
+{
+    private static final Log.Logger log = Log.logger("HealthMonitor");
+
+    private static volatile Snapshot snapshot = null;
+
+    private static ScheduledExecutorService checker = null;
+
+    /** whether the backlog has passed its limits; only accessed in update(). */
+    private static boolean backlogExceeded = false;
+
+    private static volatile boolean dbOk = false;
+
+    private static volatile long dbRoundTripMs = -1;
+
+    private static volatile long dbCheckMillis = 0;
+
+    private static volatile String dbError = "not checked yet";
+
+    private HealthMonitor()
+    {
+        // utility class
+    }
+
+    /** Start the checks; the first snapshot is taken immediately. */
+    public static synchronized void start()
+    {
+        if (checker != null)
+            return;
+        checker = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "health-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long dbInterval = Math.max(1, ServerProperties.getLong("health.dbCheckSeconds", 5));
+        checker.scheduleWithFixedDelay(HealthMonitor::checkDatabase, 0, dbInterval, TimeUnit.SECONDS);
+        long interval = Math.max(100, ServerProperties.getLong("health.checkMillis", 1000));
+        checker.scheduleWithFixedDelay(HealthMonitor::update, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stop()
+    {
+        if (checker != null)
+        {
+            checker.shutdownNow();
+            checker = null;
+        }
+    }
+
+    /**
+     * Return the last snapshot of the health of the server.
+     * @return the last snapshot; when the checks have not run yet, a snapshot is taken on the calling thread. Never null: when
+     *         the check itself fails, the snapshot is not ready
+     */
+    public static Snapshot getSnapshot()
+    {
+        if (snapshot == null)
+            update();
+        return snapshot;
+    }
+
+    /** Execute a round trip on the write pool, and remember its result and duration. */
+    private static void checkDatabase()
+    {
+        ServerData data = TaskProcessor.getServerData();
+        if (data == null)
+        {
+            dbOk = false;
+            dbError = "no connection pool";
+            dbCheckMillis = System.currentTimeMillis();
+            return;
+        }
+        if (!data.getSink().usesDatabase())
+        {
+            dbOk = true;
+            dbError = "";
+            dbRoundTripMs = 0;
+            dbCheckMillis = System.currentTimeMillis();
+            return;
+        }
+        long start = System.nanoTime();
+        try (Connection connection = data.getDataSource().getConnection())
+        {
+            dbOk = connection.isValid(ServerProperties.getInt("health.dbTimeoutSeconds", 2));
+            dbError = dbOk ? "" : "connection not valid";
+        }
+        catch (Exception e)
+        {
+            dbOk = false;
+            dbError = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        }
+        dbRoundTripMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        dbCheckMillis = System.currentTimeMillis();
+    }
+
+    /** Take a new snapshot. */
+    private static synchronized void update()
+    {
+        try
+        {
+            long now = System.currentTimeMillis();
+            List<String> problems = new ArrayList<>();
+
+            boolean running = TaskProcessor.isActive();
+            String servletError = TaskProcessor.getServletError();
+            if (servletError != null && !servletError.isEmpty())
+                problems.add("startup failed: " + servletError);
+            else if (!running)
+                problems.add("storage thread not running");
+            boolean alive = problems.isEmpty();
+
+            long heartbeat = TaskProcessor.getHeartbeatMillis();
+            long idleMs = heartbeat == 0 ? -1 : now - heartbeat;
+            long maxStallMs = ServerProperties.getLong("health.maxStallSeconds", 120) * 1000L;
+            CircuitBreaker.State circuit = CircuitBreaker.getState();
+            if (running && circuit != CircuitBreaker.State.OPEN && idleMs > maxStallMs)
+                problems.add("storage thread stalled for " + idleMs + " ms");
+            if (circuit == CircuitBreaker.State.OPEN)
+                problems.add("circuit breaker open");
+
+            long dbCheckAgeMs = dbCheckMillis == 0 ? -1 : now - dbCheckMillis;
+            long maxDbCheckAgeMs = 3000L * Math.max(1, ServerProperties.getLong("health.dbCheckSeconds", 5));
+            if (!dbOk)
+                problems.add("database check failed: " + dbError);
+            else if (dbCheckAgeMs > maxDbCheckAgeMs)
+                problems.add("database check is " + dbCheckAgeMs + " ms old");
+
+            int queueDepth = RequestQueueManager.numberOfTasks();
+            int highWater = (int) (RequestQueueManager.getMaxSize()
+                    * Math.min(1.0, ServerProperties.getDouble("health.ready.queueHighWater", 0.8)));
+            long oldestMs = RequestQueueManager.oldestTaskAgeMillis();
+            long maxAgeMs = ServerProperties.getLong("health.ready.maxQueueAgeSeconds", 60) * 1000L;
+            if (backlogExceeded)
+                backlogExceeded = queueDepth >= highWater / 2 || oldestMs >= maxAgeMs / 2;
+            else
+                backlogExceeded = queueDepth >= highWater || oldestMs >= maxAgeMs;
+            if (backlogExceeded)
+                problems.add("backlog of " + queueDepth + " tasks (high-water " + highWater + "), oldest " + oldestMs + " ms");
+
+            int poolActive = -1;
+            int poolTotal = -1;
+            int poolMax = -1;
+            int poolWaiting = -1;
+            ServerData data = TaskProcessor.getServerData();
+            DataSource dataSource = data == null ? null : data.getDataSource();
+            if (dataSource instanceof HikariDataSource hikari && hikari.getHikariPoolMXBean() != null)
+            {
+                HikariPoolMXBean pool = hikari.getHikariPoolMXBean();
+                poolActive = pool.getActiveConnections();
+                poolTotal = pool.getTotalConnections();
+                poolMax = hikari.getMaximumPoolSize();
+                poolWaiting = pool.getThreadsAwaitingConnection();
+            }
+
+            snapshot = new Snapshot(now, alive, problems.isEmpty(), List.copyOf(problems), running, idleMs, circuit.name(),
+                    queueDepth, highWater, oldestMs, poolActive, poolTotal, poolMax, poolWaiting, dbOk, dbRoundTripMs,
+                    dbCheckAgeMs);
+        }
+        catch (RuntimeException e)
+        {
+            log.error("error while checking the health: " + e.getMessage());
+            // the server is not ready while its health is unknown; it stays alive when the last check found it alive
+            Snapshot last = snapshot;
+            String problem = "health check failed: " + (e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+            snapshot = new Snapshot(System.currentTimeMillis(), last != null && last.alive(), false, List.of(problem),
+                    last != null && last.workersRunning(), -1, "UNKNOWN", -1, -1, -1, -1, -1, -1, -1, dbOk, dbRoundTripMs,
+                    dbCheckMillis == 0 ? -1 : System.currentTimeMillis() - dbCheckMillis);
+        }
+    }
+
+    /**
+     * The health of the server at one moment.
+     * @param timestamp the time of the snapshot in ms since the epoch
+     * @param alive whether the server is alive
+     * @param ready whether the server is ready to receive traffic
+     * @param problems the reasons why the server is not ready, empty when it is ready
+     * @param workersRunning whether the storage thread runs
+     * @param workerIdleMs the time since the last heartbeat of the storage thread in ms, or -1 when it never ran
+     * @param circuitBreaker the state of the circuit breaker
+     * @param queueDepth the number of waiting tasks, in memory and on disk
+     * @param queueHighWater the number of waiting tasks at which the server is no longer ready
+     * @param oldestTaskAgeMs the wait time of the oldest task in memory in ms
+     * @param poolActive the number of connections of the write pool in use, or -1 when unknown
+     * @param poolTotal the number of open connections of the write pool, or -1 when unknown
+     * @param poolMax the maximum number of connections of the write pool, or -1 when unknown
+     * @param poolWaiting the number of threads waiting for a connection of the write pool, or -1 when unknown
+     * @param dbOk whether the last database round trip succeeded
+     * @param dbRoundTripMs the duration of the last database round trip in ms, or -1 when there was none
+     * @param dbCheckAgeMs the time since the last database round trip in ms, or -1 when there was none
+     */
+    public record Snapshot(long timestamp, boolean alive, boolean ready, List<String> problems, boolean workersRunning,
+            long workerIdleMs, String circuitBreaker, int queueDepth, int queueHighWater, long oldestTaskAgeMs, int poolActive,
+            int poolTotal, int poolMax, int poolWaiting, boolean dbOk, long dbRoundTripMs, long dbCheckAgeMs)
+    {
+    }
+}
@@ -0,0 +1,65 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * HealthServlet answers the probes of a load balancer or container orchestrator. <code>GET /health</code> (liveness) returns
+ * 200 while the storage thread runs, and <code>GET /ready</code> (readiness) returns 200 while the server can store new
+ * messages in time; otherwise the status is 503. The body is a JSON object with the last snapshot of the HealthMonitor. The
+ * endpoints do not need the admin token, and do not reveal more than the state of the pipeline.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+@WebServlet({"/health", "/ready"})
+public class HealthServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        HealthMonitor.Snapshot snapshot = HealthMonitor.getSnapshot();
+        boolean up = "/ready".equals(request.getServletPath()) ? snapshot.ready() : snapshot.alive();
+        JSONObject json = new JSONObject();
+        json.put("status", up ? "UP" : "DOWN");
+        json.put("alive", snapshot.alive());
+        json.put("ready", snapshot.ready());
+        json.put("problems", snapshot.problems());
+        json.put("checkedAgoMs", System.currentTimeMillis() - snapshot.timestamp());
+        json.put("workersRunning", snapshot.workersRunning());
+        json.put("workerIdleMs", snapshot.workerIdleMs());
+        json.put("circuitBreaker", snapshot.circuitBreaker());
+        json.put("queueDepth", snapshot.queueDepth());
+        json.put("queueHighWater", snapshot.queueHighWater());
+        json.put("oldestTaskAgeMs", snapshot.oldestTaskAgeMs());
+        JSONObject pool = new JSONObject();
+        pool.put("active", snapshot.poolActive());
+        pool.put("total", snapshot.poolTotal());
+        pool.put("max", snapshot.poolMax());
+        pool.put("waiting", snapshot.poolWaiting());
+        json.put("pool", pool);
+        JSONObject db = new JSONObject();
+        db.put("ok", snapshot.dbOk());
+        db.put("roundTripMs", snapshot.dbRoundTripMs());
+        db.put("checkedAgoMs", snapshot.dbCheckAgeMs());
+        json.put("database", db);
+
+        response.setStatus(up ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Cache-Control", "no-store");
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(json.toString());
+    }
+}
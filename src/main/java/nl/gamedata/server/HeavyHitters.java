@@ -0,0 +1,364 @@
+package nl.gamedata.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HeavyHitters finds the game sessions, organizations, players and event keys that send the most messages or the most bytes,
+ * without queries on the event tables. The messages are counted at ingress, when they arrive, and at storage, when they have
+ * been stored. Every combination of stage, dimension and metric has a Space-Saving summary of
+ * <code>heavyHitters.capacity</code> counters per bucket of a sliding window of <code>heavyHitters.windowSeconds</code>,
+ * which is divided in <code>heavyHitters.buckets</code> buckets; the oldest bucket is cleared when the window slides. The
+ * summaries are allocated at the start, so the memory is fixed, however many sessions send messages.
+ * <p>
+ * A Space-Saving summary keeps a counter for the keys it has seen, and when all counters are in use, gives the counter with the
+ * lowest count to the new key, and remembers that count as the possible overestimate (the error) of the new key. Every key
+ * with more than a fraction 1/capacity of the messages of a bucket is guaranteed to have a counter. The reported count is an
+ * upper bound; the true count is at least the count minus the error. The counters of a summary are kept in a binary min-heap,
+ * so the counter with the lowest count is found at once, and an update takes O(log capacity) steps for both metrics.
+ * </p>
+ * <p>
+ * At ingress, the session is the session_token or the game_session_code of the message, and is counted for every message; the
+ * organization is only counted for messages that carry an organization_code. At storage, the session is the code of the game
+ * session, the player is the game session code and player name, and the key is the key of an event.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class HeavyHitters
+{
+    /** the stage at which a message is counted. */
+    public enum Stage
+    {
+        INGRESS, STORAGE
+    }
+
+    /** what is counted. */
+    public enum Dimension
+    {
+        SESSION, ORGANIZATION, PLAYER, KEY
+    }
+
+    /** the weight of a message. */
+    public enum Metric
+    {
+        MESSAGES, BYTES
+    }
+
+    private static volatile boolean enabled = false;
+
+    private static int capacity = 100;
+
+    private static long bucketMillis = 10_000L;
+
+    /** the summaries per stage, dimension and metric. */
+    private static volatile Window[][][] windows = null;
+
+    private HeavyHitters()
+    {
+        // utility class
+    }
+
+    /** Read the settings, and allocate the summaries when <code>heavyHitters.enabled</code> is true. */
+    public static synchronized void start()
+    {
+        enabled = false;
+        if (!ServerProperties.getBoolean("heavyHitters.enabled", true))
+            return;
+        capacity = Math.max(10, ServerProperties.getInt("heavyHitters.capacity", 100));
+        int buckets = Math.max(1, ServerProperties.getInt("heavyHitters.buckets", 6));
+        bucketMillis = Math.max(1000L, ServerProperties.getLong("heavyHitters.windowSeconds", 60) * 1000L / buckets);
+        Window[][][] newWindows = new Window[Stage.values().length][Dimension.values().length][Metric.values().length];
+        for (Window[][] stage : newWindows)
+            for (Window[] dimension : stage)
+                for (int m = 0; m < dimension.length; m++)
+                    dimension[m] = new Window(buckets, capacity);
+        windows = newWindows;
+        enabled = true;
+    }
+
+    public static synchronized void stop()
+    {
+        enabled = false;
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Count a message when it arrives.
+     * @param task the task of the message
+     */
+    public static void ingress(final StorageRequestTask task)
+    {
+        if (!enabled)
+            return;
+        long bytes = size(task);
+        long now = System.currentTimeMillis();
+        String session = IngressFields.find(task, "session_token");
+        if (session == null)
+            session = IngressFields.find(task, "game_session_code");
+        add(Stage.INGRESS, Dimension.SESSION, session, bytes, now);
+        add(Stage.INGRESS, Dimension.ORGANIZATION, IngressFields.find(task, "organization_code"), bytes, now);
+    }
+
+    /**
+     * Count a message that has been stored.
+     * @param task the task of the message
+     * @param session the code of the game session, or null when the game session was not found
+     * @param organization the code of the organization, or null when the game session was not found
+     * @param player the name of the player, or null for a message without player
+     * @param key the key of the event, or null for a message without key
+     */
+    public static void storage(final StorageRequestTask task, final String session, final String organization,
+            final String player, final String key)
+    {
+        if (!enabled)
+            return;
+        long bytes = size(task);
+        long now = System.currentTimeMillis();
+        add(Stage.STORAGE, Dimension.SESSION, session, bytes, now);
+        add(Stage.STORAGE, Dimension.ORGANIZATION, organization, bytes, now);
+        if (session != null && player != null)
+            add(Stage.STORAGE, Dimension.PLAYER, session + "/" + player, bytes, now);
+        add(Stage.STORAGE, Dimension.KEY, key, bytes, now);
+    }
+
+    private static long size(final StorageRequestTask task)
+    {
+        if (task.payload() != null)
+            return task.payload().length();
+        return task.body() == null ? 0 : task.body().length;
+    }
+
+    private static void add(final Stage stage, final Dimension dimension, final String value, final long bytes,
+            final long now)
+    {
+        if (value == null)
+            return;
+        Window[] metrics = windows[stage.ordinal()][dimension.ordinal()];
+        metrics[Metric.MESSAGES.ordinal()].add(value, 1, now);
+        metrics[Metric.BYTES.ordinal()].add(value, bytes, now);
+    }
+
+    /**
+     * Return the keys with the highest counts in the sliding window.
+     * @param stage the stage
+     * @param dimension the dimension
+     * @param metric the metric
+     * @param limit the maximum number of keys
+     * @return the keys in the order of their count, highest first; empty when the counting is not enabled
+     */
+    public static List<Entry> top(final Stage stage, final Dimension dimension, final Metric metric, final int limit)
+    {
+        Window[][][] current = windows;
+        if (!enabled || current == null)
+            return List.of();
+        return current[stage.ordinal()][dimension.ordinal()][metric.ordinal()].top(limit, System.currentTimeMillis());
+    }
+
+    /**
+     * Return the length of the sliding window.
+     * @return the length of the sliding window in seconds
+     */
+    public static long getWindowSeconds()
+    {
+        Window[][][] current = windows;
+        return current == null ? 0 : current[0][0][0].buckets.length * bucketMillis / 1000L;
+    }
+
+    public static int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * A key with its count in the sliding window.
+     * @param key the key
+     * @param count the count, an upper bound of the true count
+     * @param error the maximum overestimate of the count
+     */
+    public record Entry(String key, long count, long error)
+    {
+    }
+
+    /** The Space-Saving summaries of the buckets of a sliding window; package-private for the tests. */
+    static final class Window
+    {
+        private final Summary[] buckets;
+
+        /** the number of the period of bucketMillis of each bucket. */
+        private final long[] periods;
+
+        Window(final int buckets, final int capacity)
+        {
+            this.buckets = new Summary[buckets];
+            this.periods = new long[buckets];
+            for (int i = 0; i < buckets; i++)
+                this.buckets[i] = new Summary(capacity);
+            Arrays.fill(this.periods, -1L);
+        }
+
+        synchronized void add(final String key, final long weight, final long now)
+        {
+            long period = now / bucketMillis;
+            int slot = (int) (period % this.buckets.length);
+            if (this.periods[slot] != period)
+            {
+                this.buckets[slot].clear();
+                this.periods[slot] = period;
+            }
+            this.buckets[slot].add(key, weight);
+        }
+
+        /**
+         * Merge the buckets of the window. A key that is not in a full bucket may have been counted there up to the lowest
+         * count of that bucket, which is added to its count and its error.
+         */
+        synchronized List<Entry> top(final int limit, final long now)
+        {
+            long period = now / bucketMillis;
+            Map<String, long[]> merged = new HashMap<>();
+            List<Summary> live = new ArrayList<>();
+            for (int i = 0; i < this.buckets.length; i++)
+            {
+                if (this.periods[i] <= period - this.buckets.length || this.buckets[i].size == 0)
+                    continue;
+                Summary summary = this.buckets[i];
+                live.add(summary);
+                for (int j = 0; j < summary.size; j++)
+                {
+                    long[] value = merged.computeIfAbsent(summary.keys[j], k -> new long[2]);
+                    value[0] += summary.counts[j];
+                    value[1] += summary.errors[j];
+                }
+            }
+            for (Summary summary : live)
+            {
+                if (summary.size < summary.keys.length)
+                    continue;
+                long min = summary.counts[0];
+                for (Map.Entry<String, long[]> entry : merged.entrySet())
+                {
+                    if (!summary.index.containsKey(entry.getKey()))
+                    {
+                        entry.getValue()[0] += min;
+                        entry.getValue()[1] += min;
+                    }
+                }
+            }
+            return merged.entrySet().stream().map(e -> new Entry(e.getKey(), e.getValue()[0], e.getValue()[1]))
+                    .sorted((a, b) -> Long.compare(b.count(), a.count())).limit(Math.max(0, limit)).toList();
+        }
+    }
+
+    /**
+     * A Space-Saving summary with a fixed number of counters. The counters form a binary min-heap on their count, so the
+     * counter with the lowest count is always at position 0; the index gives the position of every key.
+     */
+    private static final class Summary
+    {
+        private final String[] keys;
+
+        private final long[] counts;
+
+        private final long[] errors;
+
+        /** the position of every key in the heap. */
+        private final Map<String, Integer> index;
+
+        private int size = 0;
+
+        Summary(final int capacity)
+        {
+            this.keys = new String[capacity];
+            this.counts = new long[capacity];
+            this.errors = new long[capacity];
+            this.index = new HashMap<>(capacity * 2);
+        }
+
+        void add(final String key, final long weight)
+        {
+            Integer i = this.index.get(key);
+            if (i != null)
+            {
+                this.counts[i] += weight;
+                siftDown(i);
+                return;
+            }
+            if (this.size < this.keys.length)
+            {
+                int last = this.size++;
+                this.keys[last] = key;
+                this.counts[last] = weight;
+                this.errors[last] = 0;
+                this.index.put(key, last);
+                siftUp(last);
+                return;
+            }
+            // replace the key with the lowest count, which may have been counted for the new key as well
+            this.index.remove(this.keys[0]);
+            this.keys[0] = key;
+            this.errors[0] = this.counts[0];
+            this.counts[0] += weight;
+            this.index.put(key, 0);
+            siftDown(0);
+        }
+
+        private void siftUp(final int position)
+        {
+            int i = position;
+            while (i > 0 && this.counts[(i - 1) / 2] > this.counts[i])
+            {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        private void siftDown(final int position)
+        {
+            int i = position;
+            while (true)
+            {
+                int smallest = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < this.size; child++)
+                    if (this.counts[child] < this.counts[smallest])
+                        smallest = child;
+                if (smallest == i)
+                    return;
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(final int i, final int j)
+        {
+            String key = this.keys[i];
+            this.keys[i] = this.keys[j];
+            this.keys[j] = key;
+            long count = this.counts[i];
+            this.counts[i] = this.counts[j];
+            this.counts[j] = count;
+            long error = this.errors[i];
+            this.errors[i] = this.errors[j];
+            this.errors[j] = error;
+            this.index.put(this.keys[i], i);
+            this.index.put(this.keys[j], j);
+        }
+
+        void clear()
+        {
+            Arrays.fill(this.keys, 0, this.size, null);
+            this.index.clear();
+            this.size = 0;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.ZipException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * ImportServlet receives the bulk import of a whole session in one POST request with Content-Type
+ * <code>application/x-ndjson</code>. The first line holds the fields of the session, the next lines hold one event each, as
+ * for the stream endpoint. The import is stored by the BulkImporter while the body is read, and the response is a JSON object
+ * with the number of rows that were read, stored and rejected. Only one import runs at a time.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+@WebServlet("/import")
+public class ImportServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final Semaphore importPermit = new Semaphore(1);
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        if (!RateLimiter.allowClient(GameDataServer.clientAddress(request)))
+        {
+            GameDataServer.tooManyRequests(response);
+            return;
+        }
+        String contentType = request.getContentType() == null ? "" : request.getContentType().toLowerCase();
+        if (!contentType.contains(StreamServlet.CONTENT_TYPE))
+        {
+            response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            response.getWriter().write("Content-Type of an import should be " + StreamServlet.CONTENT_TYPE);
+            return;
+        }
+        ServerData data = TaskProcessor.getServerData();
+        if (data != null && !data.getSink().usesDatabase())
+        {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().write("Imports are only available for the jooq storage sink");
+            return;
+        }
+        if (data == null || !importPermit.tryAcquire())
+        {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "60");
+            response.getWriter().write(data == null ? "Database not available" : "Another import is running, try again later");
+            return;
+        }
+
+        int maxLineBytes = ServerProperties.getInt("stream.maxLineBytes", 65536);
+        long maxBytes = ServerProperties.getLong("import.maxBytes", 1_073_741_824L);
+        BulkImporter importer = null;
+        try (InputStream stream = RequestBodies.open(request, maxBytes <= 0 ? Long.MAX_VALUE : maxBytes))
+        {
+            Map<String, String> header;
+            try
+            {
+                String line = StreamServlet.readLine(stream, maxLineBytes);
+                header = line == null ? null : StreamServlet.parseHandshake(line);
+            }
+            catch (JSONException | StreamServlet.LineTooLongException e)
+            {
+                header = null;
+            }
+            if (header == null || header.isEmpty())
+            {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("First line of an import should be a JSON object with the session fields");
+                return;
+            }
+            ClusterManager.Route route = ClusterManager.route(new StorageRequestTask("STREAM", "application/json", "{}", null,
+                    header, null, LocalDateTime.now()));
+            if (route.kind() != ClusterManager.Route.Kind.LOCAL)
+            {
+                ClusterManager.redirect(route, "/import", response);
+                return;
+            }
+
+            importer = new BulkImporter(data, header);
+            if (!importer.open())
+            {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("Game session of the import not found or not accessible; see the error table");
+                return;
+            }
+            String line;
+            long lineNr = 1;
+            while ((line = StreamServlet.readLine(stream, maxLineBytes)) != null)
+            {
+                lineNr++;
+                if (!line.isBlank())
+                    importer.add(line, lineNr);
+            }
+            writeResult(response, HttpServletResponse.SC_OK, importer.finish(), null);
+        }
+        catch (SQLException e)
+        {
+            // transient database error: the rows up to the last batch have been stored
+            response.setHeader("Retry-After", "60");
+            writeResult(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, importer.getResult(),
+                    "Database not available: " + e.getMessage());
+        }
+        catch (RequestBodies.UnsupportedEncodingException e)
+        {
+            response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            response.getWriter().write(e.getMessage());
+        }
+        catch (RequestBodies.PayloadTooLargeException | StreamServlet.LineTooLongException | ZipException e)
+        {
+            if (importer == null)
+            {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write(e.getMessage());
+            }
+            else
+                writeResult(response, HttpServletResponse.SC_BAD_REQUEST, importer.getResult(),
+                        "Import stopped: " + e.getMessage());
+        }
+        finally
+        {
+            if (importer != null)
+                importer.close();
+            importPermit.release();
+        }
+    }
+
+    private static void writeResult(final HttpServletResponse response, final int status, final BulkImporter.Result result,
+            final String error) throws IOException
+    {
+        JSONObject json = new JSONObject();
+        json.put("rows", result.rows());
+        json.put("stored", result.stored());
+        json.put("errors", result.errors());
+        json.put("warnings", result.warnings());
+        json.put("method", result.method());
+        if (error != null)
+            json.put("error", error);
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(json.toString());
+    }
+}
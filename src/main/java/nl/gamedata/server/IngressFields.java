@@ -0,0 +1,210 @@
+package nl.gamedata.server;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * IngressFields finds the value of a single field in the raw payload of a request, without fully decoding the payload. It is
+ * used on the request thread, e.g., to determine the tenant of a message before it is queued. The scan is superficial: when a
+ * value cannot be found quickly, null is returned, and the message is fully decoded and checked later by the TaskProcessor.
+ * Keys are compared ignoring case and surrounding whitespace, as the TaskProcessor normalizes them before storage, so the
+ * dedup, the rate limits and the traffic statistics see the same fields as the storage.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class IngressFields
+{
+    private IngressFields()
+    {
+        // utility class
+    }
+
+    /**
+     * Find the value for a key in the payload of a task.
+     * @param task the task with the request type, content type and payload
+     * @param key the key to look for (lower case); the key in the payload may use any case
+     * @return the value, or null when the key could not be found
+     */
+    public static String find(final StorageRequestTask task, final String key)
+    {
+        String value = findInPayload(task, key);
+        if (value == null && task.context() != null)
+            return task.context().get(key);
+        return value;
+    }
+
+    private static String findInPayload(final StorageRequestTask task, final String key)
+    {
+        String payload = task.payload();
+        if (payload == null)
+            return task.body() == null ? null : BinaryCodec.find(task.body(), key);
+        String contentType = task.contentType();
+        if ("GET".equals(task.requestType()) || contentType.contains("x-www-form-urlencoded"))
+            return findForm(payload, key);
+        // a line of a stream or an import is a JSON object as well
+        if (contentType.contains("application/json") || contentType.contains(StreamServlet.CONTENT_TYPE))
+            return findJson(payload, key);
+        if (contentType.contains("application/xml"))
+            return findXml(payload, key);
+        return null;
+    }
+
+    /**
+     * Return the key that identifies the game session of a message: the session_token, or the game_session_code and the
+     * organization_code.
+     * @param task the task
+     * @return the session key, never null
+     */
+    public static String session(final StorageRequestTask task)
+    {
+        String session = find(task, "session_token");
+        if (session == null)
+            session = find(task, "game_session_code") + "|" + find(task, "organization_code");
+        return session;
+    }
+
+    /**
+     * Return the key that identifies the tenant of a message: the organization_code. Messages that only carry a session_token
+     * do not name their organization before the token has been looked up, and have no tenant at ingress.
+     * @param task the task
+     * @return the organization code, or null when the message has no organization_code
+     */
+    public static String tenant(final StorageRequestTask task)
+    {
+        String tenant = find(task, "organization_code");
+        return tenant == null || tenant.isEmpty() ? null : tenant;
+    }
+
+    static String findForm(final String payload, final String key)
+    {
+        // like convertFormTask, the last value of a key that is used twice wins
+        String value = null;
+        int start = 0;
+        while (start < payload.length())
+        {
+            int amp = payload.indexOf('&', start);
+            int end = amp < 0 ? payload.length() : amp;
+            int eq = payload.indexOf('=', start);
+            if (eq > start && eq < end)
+            {
+                String name = payload.substring(start, eq);
+                if (name.indexOf('%') >= 0 || name.indexOf('+') >= 0)
+                    name = URLDecoder.decode(name, StandardCharsets.UTF_8);
+                if (name.strip().equalsIgnoreCase(key))
+                {
+                    value = payload.substring(eq + 1, end);
+                    if (value.indexOf('%') >= 0 || value.indexOf('+') >= 0)
+                        value = URLDecoder.decode(value, StandardCharsets.UTF_8);
+                }
+            }
+            start = end + 1;
+        }
+        return value;
+    }
+
+    static String findJson(final String payload, final String key)
+    {
+        int pos = -1;
+        int quote = payload.indexOf('"');
+        while (quote >= 0 && pos < 0)
+        {
+            int end = matchKey(payload, quote + 1, key);
+            if (end >= 0)
+            {
+                int colon = skipWhitespace(payload, end + 1);
+                if (colon < payload.length() && payload.charAt(colon) == ':')
+                    pos = colon + 1;
+            }
+            quote = payload.indexOf('"', quote + 1);
+        }
+        if (pos < 0)
+            return null;
+        pos = skipWhitespace(payload, pos);
+        if (pos >= payload.length())
+            return null;
+        if (payload.charAt(pos) == '"')
+        {
+            int end = payload.indexOf('"', pos + 1);
+            if (end < 0)
+                return null;
+            String value = payload.substring(pos + 1, end);
+            // escaped characters are rare in codes and tokens; leave those to the full JSON parser
+            return value.indexOf('\\') >= 0 ? null : value;
+        }
+        int end = pos;
+        while (end < payload.length() && ",}\r\n".indexOf(payload.charAt(end)) < 0)
+            end++;
+        return payload.substring(pos, end).strip();
+    }
+
+    static String findXml(final String payload, final String key)
+    {
+        int start = tag(payload, 0, key, false);
+        if (start < 0)
+            return null;
+        int index = start;
+        while ((index = payload.indexOf("</", index)) >= 0)
+        {
+            int end = index;
+            index = tag(payload, index, key, true);
+            if (index >= 0)
+            {
+                String value = payload.substring(start, end).strip();
+                return value.indexOf('&') >= 0 ? null : value;
+            }
+            index = end + 2;
+        }
+        return null;
+    }
+
+    /**
+     * Find the start or end tag of a key, ignoring the case of the tag name as convertXmlTask does.
+     * @param payload the XML payload
+     * @param from the position to search from
+     * @param key the tag name (lower case)
+     * @param closing whether to look for the end tag
+     * @return the position after the tag, or -1 when there is no such tag
+     */
+    private static int tag(final String payload, final int from, final String key, final boolean closing)
+    {
+        String open = closing ? "</" : "<";
+        int index = from;
+        while ((index = payload.indexOf(open, index)) >= 0)
+        {
+            int end = index + open.length() + key.length();
+            if (payload.regionMatches(true, index + open.length(), key, 0, key.length()) && end < payload.length()
+                    && payload.charAt(end) == '>')
+                return end + 1;
+            index += open.length();
+        }
+        return -1;
+    }
+
+    /**
+     * Check whether a JSON string that starts at a position is the key, ignoring case and surrounding whitespace as
+     * convertJsonTask does.
+     * @param payload the JSON payload
+     * @param start the position after the opening quote
+     * @param key the key (lower case)
+     * @return the position of the closing quote when the string is the key, or -1
+     */
+    private static int matchKey(final String payload, final int start, final String key)
+    {
+        int pos = skipWhitespace(payload, start);
+        if (!payload.regionMatches(true, pos, key, 0, key.length()))
+            return -1;
+        pos = skipWhitespace(payload, pos + key.length());
+        return pos < payload.length() && payload.charAt(pos) == '"' ? pos : -1;
+    }
+
+    private static int skipWhitespace(final String s, final int start)
+    {
+        int pos = start;
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+            pos++;
+        return pos;
+    }
+}
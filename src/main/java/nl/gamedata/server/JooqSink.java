@@ -0,0 +1,113 @@
+package nl.gamedata.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.jooq.Table;
+import org.jooq.UpdatableRecord;
+
+import nl.gamedata.data.tables.records.ErrorRecord;
+
+/**
+ * JooqSink stores the data in the MySQL database with jOOQ. Lookups go through the read pool of ServerData when a replica is
+ * usable, records are inserted through the write pool, and errors through the error pool.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class JooqSink implements StorageSink
+{
+    private final ServerData data;
+
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Create a sink on the connection pools of the server data.
+     * @param data the server data with the opened connection pools
+     */
+    public JooqSink(final ServerData data)
+    {
+        this.data = data;
+    }
+
+    @Override
+    public String name()
+    {
+        return "jooq";
+    }
+
+    @Override
+    public boolean usesDatabase()
+    {
+        return true;
+    }
+
+    @Override
+    public <R extends UpdatableRecord<R>> R newRecord(final Table<R> table)
+    {
+        return this.data.getDSL().newRecord(table);
+    }
+
+    @Override
+    public <R extends UpdatableRecord<R>> R resolveSession(final Lookup<R> lookup)
+    {
+        return this.data.lookup(dsl -> dsl.selectFrom(lookup.table()).where(lookup.condition()).fetchAny());
+    }
+
+    @Override
+    public <R extends UpdatableRecord<R>> R resolveIdentity(final Lookup<R> lookup, final Consumer<R> initializer)
+    {
+        R record = this.data.lookup(dsl -> dsl.selectFrom(lookup.table()).where(lookup.condition()).fetchAny());
+        if (record == null)
+        {
+            record = this.data.getDSL().newRecord(lookup.table());
+            initializer.accept(record);
+            store(record);
+        }
+        return record;
+    }
+
+    @Override
+    public void writeEvent(final UpdatableRecord<?> event)
+    {
+        store(event);
+    }
+
+    @Override
+    public void writeScore(final UpdatableRecord<?> score)
+    {
+        store(score);
+    }
+
+    @Override
+    public void writeError(final ErrorRecord error)
+    {
+        error.attach(this.data.getErrorDSL().configuration());
+        store(error);
+    }
+
+    private void store(final UpdatableRecord<?> record)
+    {
+        record.store();
+        this.counts.computeIfAbsent(record.getTable().getName(), t -> new LongAdder()).increment();
+    }
+
+    @Override
+    public Map<String, Long> counts()
+    {
+        Map<String, Long> result = new TreeMap<>();
+        this.counts.forEach((table, count) -> result.put(table, count.sum()));
+        return result;
+    }
+
+    @Override
+    public void close()
+    {
+        // the connection pools are closed with the server data
+    }
+}
@@ -0,0 +1,493 @@
+package nl.gamedata.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+/**
+ * Log is the structured log of the server. A message is written with its level, logger, thread and optional fields (game
+ * session, data type and error type) into a preallocated ring buffer, and a background thread writes the entries as JSON lines
+ * to the file <code>gamedata.log</code> in <code>log.dir</code>, by default the folder <code>logs</code> in the config folder.
+ * The file is rotated when it reaches <code>log.maxFileBytes</code>, and <code>log.maxFiles</code> old files are kept.
+ * <p>
+ * A thread that logs never waits: when the ring buffer is full, the entry is dropped and counted. A message of a level that
+ * is disabled costs one comparison, and allocates nothing when the message is a constant or is guarded with isEnabled(). The
+ * level is <code>log.level</code> (default INFO), and can be set per logger with <code>log.level.&lt;logger&gt;</code>; both
+ * can be changed at runtime through <code>/admin/log-level</code>. With <code>log.console</code>, the background thread also
+ * writes the entries to the console.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class Log
+{
+    /** The levels of the log, from the most to the least detailed. */
+    public enum Level
+    {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /** the number of entries of the ring buffer; a power of 2. */
+    private static final int CAPACITY = 16384;
+
+    private static final Entry[] ring = createRing();
+
+    /** the sequence number of the next entry to claim. */
+    private static final AtomicLong head = new AtomicLong();
+
+    /** the sequence number of the next entry to write; only changed by the writer thread. */
+    private static volatile long tail = 0;
+
+    private static final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    private static volatile Level defaultLevel = Level.INFO;
+
+    private static final LongAdder written = new LongAdder();
+
+    private static final LongAdder dropped = new LongAdder();
+
+    private static Thread writerThread = null;
+
+    private static volatile boolean stopping = false;
+
+    /** whether the levels have been read from the properties. */
+    private static volatile boolean configured = false;
+
+    private static boolean console = false;
+
+    private static Path logFile = null;
+
+    private static long maxFileBytes = 10_485_760L;
+
+    /** the writer of the log file; only accessed by the writer thread. */
+    private static BufferedWriter writer = null;
+
+    /** the number of bytes in the log file; only accessed by the writer thread. */
+    private static long fileBytes = 0;
+
+    private Log()
+    {
+        // utility class
+    }
+
+    private static Entry[] createRing()
+    {
+        Entry[] entries = new Entry[CAPACITY];
+        for (int i = 0; i < CAPACITY; i++)
+        {
+            entries[i] = new Entry();
+            entries[i].sequence = i - CAPACITY;
+        }
+        return entries;
+    }
+
+    /**
+     * Return the logger with a name, e.g., the name of the class that logs. Loggers are meant to be kept in a static field.
+     * @param name the name of the logger
+     * @return the logger
+     */
+    public static Logger logger(final String name)
+    {
+        return loggers.computeIfAbsent(name, Logger::new);
+    }
+
+    /**
+     * Read the levels and start the writer thread. Entries that were logged before the start are written as well, up to the
+     * size of the ring buffer.
+     */
+    public static synchronized void start()
+    {
+        if (writerThread != null)
+            return;
+        defaultLevel = parseLevel(ServerProperties.get("log.level", "INFO"), Level.INFO);
+        for (Logger logger : loggers.values())
+            logger.configure();
+        configured = true;
+        console = ServerProperties.getBoolean("log.console", false);
+        logFile = Paths.get(ServerProperties.get("log.dir", ServerProperties.getConfigDir() + "/logs"), "gamedata.log");
+        maxFileBytes = Math.max(65536, ServerProperties.getLong("log.maxFileBytes", 10_485_760L));
+        stopping = false;
+        writerThread = new Thread(Log::writeLoop, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /** Write the entries in the ring buffer, and stop the writer thread. */
+    public static synchronized void stop()
+    {
+        if (writerThread == null)
+            return;
+        stopping = true;
+        try
+        {
+            writerThread.join(5000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+    }
+
+    private static Level parseLevel(final String level, final Level defaultValue)
+    {
+        try
+        {
+            return Level.valueOf(level.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException | NullPointerException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Claim an entry in the ring buffer and fill it; drop the entry when the buffer is full.
+     */
+    private static void append(final Level level, final String logger, final String message, final String session,
+            final String dataType, final String errorType, final Throwable throwable)
+    {
+        long sequence;
+        do
+        {
+            sequence = head.get();
+            if (sequence - tail >= CAPACITY)
+            {
+                dropped.increment();
+                return;
+            }
+        }
+        while (!head.compareAndSet(sequence, sequence + 1));
+        Entry entry = ring[(int) (sequence & (CAPACITY - 1))];
+        entry.timeMillis = System.currentTimeMillis();
+        entry.level = level;
+        entry.logger = logger;
+        entry.thread = Thread.currentThread().getName();
+        entry.message = message;
+        entry.session = session;
+        entry.dataType = dataType;
+        entry.errorType = errorType;
+        entry.throwable = throwable;
+        entry.sequence = sequence;
+    }
+
+    private static void writeLoop()
+    {
+        while (true)
+        {
+            long next = tail;
+            Entry entry = ring[(int) (next & (CAPACITY - 1))];
+            if (entry.sequence != next)
+            {
+                // nothing published; an entry that is claimed but not yet filled is written at the next round
+                if (stopping && head.get() == next)
+                    break;
+                flush();
+                LockSupport.parkNanos(10_000_000L);
+                continue;
+            }
+            String line = format(entry);
+            entry.message = null;
+            entry.throwable = null;
+            tail = next + 1;
+            write(line);
+        }
+        flush();
+        closeFile();
+    }
+
+    private static String format(final Entry entry)
+    {
+        JSONObject json = new JSONObject();
+        json.put("time", Instant.ofEpochMilli(entry.timeMillis).toString());
+        json.put("level", entry.level.name());
+        json.put("logger", entry.logger);
+        json.put("thread", entry.thread);
+        json.put("message", entry.message);
+        if (entry.session != null)
+            json.put("session", entry.session);
+        if (entry.dataType != null)
+            json.put("dataType", entry.dataType);
+        if (entry.errorType != null)
+            json.put("errorType", entry.errorType);
+        if (entry.throwable != null)
+        {
+            StringWriter stackTrace = new StringWriter();
+            entry.throwable.printStackTrace(new PrintWriter(stackTrace));
+            json.put("exception", stackTrace.toString());
+        }
+        return json.toString();
+    }
+
+    private static void write(final String line)
+    {
+        written.increment();
+        if (console)
+            System.out.println(line);
+        try
+        {
+            if (writer == null)
+                openFile();
+            writer.write(line);
+            writer.write('\n');
+            fileBytes += line.length() + 1;
+            if (fileBytes >= maxFileBytes)
+                rotate();
+        }
+        catch (IOException e)
+        {
+            // the log cannot be written to its file; keep the entry on the console
+            if (!console)
+                System.err.println(line);
+            closeFile();
+        }
+    }
+
+    private static void flush()
+    {
+        try
+        {
+            if (writer != null)
+                writer.flush();
+        }
+        catch (IOException e)
+        {
+            closeFile();
+        }
+    }
+
+    private static void openFile() throws IOException
+    {
+        Files.createDirectories(logFile.getParent());
+        writer = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        fileBytes = Files.size(logFile);
+    }
+
+    private static void closeFile()
+    {
+        if (writer == null)
+            return;
+        try
+        {
+            writer.close();
+        }
+        catch (IOException e)
+        {
+            // the file is reopened by the next entry
+        }
+        writer = null;
+    }
+
+    /**
+     * Move gamedata.log to gamedata.log.1, and the older files one number up, removing the oldest.
+     * @throws IOException when a file cannot be moved
+     */
+    private static void rotate() throws IOException
+    {
+        closeFile();
+        int maxFiles = Math.max(1, ServerProperties.getInt("log.maxFiles", 10));
+        Path dir = logFile.getParent();
+        String name = logFile.getFileName().toString();
+        Files.deleteIfExists(dir.resolve(name + "." + maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--)
+        {
+            Path file = dir.resolve(name + "." + i);
+            if (Files.exists(file))
+                Files.move(file, dir.resolve(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(logFile, dir.resolve(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Return the default level and the levels of the loggers.
+     * @return the default level under the key <code>default</code>, and the level of every logger by name
+     */
+    public static Map<String, String> getLevels()
+    {
+        Map<String, String> levels = new TreeMap<>();
+        for (Logger logger : loggers.values())
+            levels.put(logger.name, logger.getLevel().name());
+        levels.put("default", defaultLevel.name());
+        return levels;
+    }
+
+    /**
+     * Change the level of one logger, or the default level of all loggers without a level of their own.
+     * @param loggerName the name of the logger, or null for the default level
+     * @param level the new level
+     * @throws IllegalArgumentException when the level or the logger does not exist
+     */
+    public static void setLevel(final String loggerName, final String level)
+    {
+        Level newLevel = parseLevel(level, null);
+        if (newLevel == null)
+            throw new IllegalArgumentException("Unknown level " + level + ", use DEBUG, INFO, WARN, ERROR or OFF");
+        if (loggerName == null)
+        {
+            defaultLevel = newLevel;
+            for (Logger logger : loggers.values())
+                if (!logger.ownLevel)
+                    logger.threshold = newLevel.ordinal();
+            return;
+        }
+        Logger logger = loggers.get(loggerName);
+        if (logger == null)
+            throw new IllegalArgumentException("Unknown logger " + loggerName);
+        logger.ownLevel = true;
+        logger.threshold = newLevel.ordinal();
+    }
+
+    /**
+     * Return the statistics of the log.
+     * @return the statistics
+     */
+    public static Statistics getStatistics()
+    {
+        return new Statistics(defaultLevel.name(), written.sum(), dropped.sum(), head.get() - tail);
+    }
+
+    /**
+     * Statistics of the log.
+     * @param level the default level
+     * @param written the number of entries that were written
+     * @param dropped the number of entries that were dropped because the ring buffer was full
+     * @param pending the number of entries in the ring buffer that still have to be written
+     */
+    public record Statistics(String level, long written, long dropped, long pending)
+    {
+    }
+
+    /** A named logger with its own level. */
+    public static final class Logger
+    {
+        private final String name;
+
+        private volatile int threshold;
+
+        /** whether the level was set for this logger, and does not follow the default level. */
+        private volatile boolean ownLevel = false;
+
+        private Logger(final String name)
+        {
+            this.name = name;
+            this.threshold = defaultLevel.ordinal();
+            if (configured)
+                configure();
+        }
+
+        /**
+         * Read the level of the logger from <code>log.level.&lt;name&gt;</code>. Not called while the properties are loaded,
+         * since ServerProperties has a logger of its own.
+         */
+        private void configure()
+        {
+            String level = ServerProperties.get("log.level." + this.name, null);
+            this.ownLevel = level != null;
+            this.threshold = parseLevel(level, defaultLevel).ordinal();
+        }
+
+        /**
+         * Return the level of the logger.
+         * @return the lowest level that is written
+         */
+        public Level getLevel()
+        {
+            return Level.values()[this.threshold];
+        }
+
+        /**
+         * Return whether messages of a level are written, e.g., to skip building a message.
+         * @param level the level
+         * @return whether messages of the level are written
+         */
+        public boolean isEnabled(final Level level)
+        {
+            return level.ordinal() >= this.threshold;
+        }
+
+        public void debug(final String message)
+        {
+            log(Level.DEBUG, message, null, null, null, null);
+        }
+
+        public void info(final String message)
+        {
+            log(Level.INFO, message, null, null, null, null);
+        }
+
+        public void warn(final String message)
+        {
+            log(Level.WARN, message, null, null, null, null);
+        }
+
+        public void error(final String message)
+        {
+            log(Level.ERROR, message, null, null, null, null);
+        }
+
+        public void error(final String message, final Throwable throwable)
+        {
+            log(Level.ERROR, message, null, null, null, throwable);
+        }
+
+        /**
+         * Log a message with the fields of a message of a game.
+         * @param level the level
+         * @param message the message
+         * @param session the session token or game session code, or null
+         * @param dataType the data type of the message, or null
+         * @param errorType the error type, e.g., ERROR or WARNING, or null
+         * @param throwable the exception with the stack trace, or null
+         */
+        public void log(final Level level, final String message, final String session, final String dataType,
+                final String errorType, final Throwable throwable)
+        {
+            if (level.ordinal() >= this.threshold)
+                append(level, this.name, message, session, dataType, errorType, throwable);
+        }
+    }
+
+    /** A slot of the ring buffer; the sequence is written last, and publishes the entry to the writer thread. */
+    private static final class Entry
+    {
+        private volatile long sequence;
+
+        private long timeMillis;
+
+        private Level level;
+
+        private String logger;
+
+        private String thread;
+
+        private String message;
+
+        private String session;
+
+        private String dataType;
+
+        private String errorType;
+
+        private Throwable throwable;
+    }
+}
@@ -0,0 +1,268 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.SQLDialect;
+import org.jooq.Table;
+import org.jooq.UpdatableRecord;
+import org.jooq.impl.DSL;
+
+import nl.gamedata.data.tables.records.ErrorRecord;
+
+/**
+ * MemorySink keeps the data in memory, so the storage pipeline can run, be profiled and be benchmarked without a database.
+ * The metadata is read at the start from a snapshot file of the MetadataCache, <code>storage.memory.metadata</code>, by default
+ * the <code>metadata-snapshot.json</code> in the config folder; more records can be added with add(). Players, groups and
+ * attempts are created in memory with ids per table, and the events, scores and errors are kept up to
+ * <code>storage.memory.maxRecords</code>, after which they are only counted.
+ * <p>
+ * The sink takes no locks: the records are kept in concurrent queues, and the found and created records in a concurrent map
+ * per lookup key. When two threads create the same identity at the same time, the first one in the map wins and the other
+ * thread returns that record, so an identity is never created twice.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class MemorySink implements StorageSink
+{
+    private static final Log.Logger log = Log.logger("MemorySink");
+
+    /** the DSL for new records; the records are not attached to a database. */
+    private static final DSLContext DSL_CONTEXT = DSL.using(SQLDialect.MYSQL);
+
+    /** all records per table name, for records(). */
+    private final Map<String, Queue<UpdatableRecord<?>>> tables = new ConcurrentHashMap<>();
+
+    /** the records that were added with add() per table name, which are searched when a lookup is not in the index. */
+    private final Map<String, Queue<UpdatableRecord<?>>> added = new ConcurrentHashMap<>();
+
+    /** the found and created records per lookup key. */
+    private final Map<String, UpdatableRecord<?>> index = new ConcurrentHashMap<>();
+
+    /** the last id per table name. */
+    private final Map<String, AtomicInteger> ids = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    private final long maxRecords;
+
+    private final LongAdder kept = new LongAdder();
+
+    /** Create an in-memory sink, and read the metadata of <code>storage.memory.metadata</code>. */
+    public MemorySink()
+    {
+        this.maxRecords = Math.max(0, ServerProperties.getLong("storage.memory.maxRecords", 1_000_000L));
+        loadMetadata();
+    }
+
+    /**
+     * Return the snapshot file with the metadata of the sink.
+     * @return the path of <code>storage.memory.metadata</code>, by default the snapshot file of the MetadataCache
+     */
+    static Path metadataFile()
+    {
+        return Paths.get(ServerProperties.get("storage.memory.metadata", MetadataCache.snapshotFile().toString()));
+    }
+
+    private void loadMetadata()
+    {
+        Path file = metadataFile();
+        if (!Files.isReadable(file))
+        {
+            log.warn("no metadata file " + file + "; messages will not find their game session");
+            return;
+        }
+        try
+        {
+            List<Record> records = MetadataCache.readSnapshotFile(file, 0);
+            for (Record record : records)
+                add((UpdatableRecord<?>) record);
+            log.info(records.size() + " metadata records read from " + file);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            log.error("metadata could not be read from " + file + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String name()
+    {
+        return "memory";
+    }
+
+    @Override
+    public boolean usesDatabase()
+    {
+        return false;
+    }
+
+    /**
+     * Add a record to the sink, e.g., metadata for a test. A record without id gets the next id of its table.
+     * @param record the record to add
+     */
+    public void add(final UpdatableRecord<?> record)
+    {
+        assignId(record);
+        String table = record.getTable().getName();
+        this.added.computeIfAbsent(table, t -> new ConcurrentLinkedQueue<>()).add(record);
+        this.tables.computeIfAbsent(table, t -> new ConcurrentLinkedQueue<>()).add(record);
+    }
+
+    /**
+     * Return the records of a table that are in memory.
+     * @param <R> the record type
+     * @param table the table
+     * @return a copy of the list of records of the table, in the order in which they were added
+     */
+    @SuppressWarnings("unchecked")
+    public <R extends UpdatableRecord<R>> List<R> records(final Table<R> table)
+    {
+        List<R> result = new ArrayList<>();
+        Queue<UpdatableRecord<?>> queue = this.tables.get(table.getName());
+        if (queue != null)
+            queue.forEach(r -> result.add((R) r));
+        return result;
+    }
+
+    @Override
+    public <R extends UpdatableRecord<R>> R newRecord(final Table<R> table)
+    {
+        return DSL_CONTEXT.newRecord(table);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends UpdatableRecord<R>> R resolveSession(final Lookup<R> lookup)
+    {
+        String key = lookup.key();
+        UpdatableRecord<?> record = this.index.get(key);
+        if (record != null)
+            return (R) record;
+        Queue<UpdatableRecord<?>> queue = this.added.get(lookup.table().getName());
+        if (queue == null)
+            return null;
+        for (UpdatableRecord<?> candidate : queue)
+        {
+            if (lookup.matches((R) candidate))
+            {
+                record = this.index.putIfAbsent(key, candidate);
+                return (R) (record == null ? candidate : record);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends UpdatableRecord<R>> R resolveIdentity(final Lookup<R> lookup, final Consumer<R> initializer)
+    {
+        R record = resolveSession(lookup);
+        if (record != null)
+            return record;
+        R created = newRecord(lookup.table());
+        initializer.accept(created);
+        assignId(created);
+        UpdatableRecord<?> existing = this.index.putIfAbsent(lookup.key(), created);
+        if (existing != null)
+            return (R) existing;
+        this.tables.computeIfAbsent(lookup.table().getName(), t -> new ConcurrentLinkedQueue<>()).add(created);
+        count(created);
+        stored(created, true);
+        return created;
+    }
+
+    @Override
+    public void writeEvent(final UpdatableRecord<?> event)
+    {
+        write(event);
+    }
+
+    @Override
+    public void writeScore(final UpdatableRecord<?> score)
+    {
+        write(score);
+    }
+
+    @Override
+    public void writeError(final ErrorRecord error)
+    {
+        write(error);
+    }
+
+    private void write(final UpdatableRecord<?> record)
+    {
+        assignId(record);
+        count(record);
+        stored(record, false);
+    }
+
+    /**
+     * Keep a record that was written or created. The created identities are always kept, since they are found again by their
+     * lookups; the written records are kept up to <code>storage.memory.maxRecords</code>.
+     * @param record the record
+     * @param identity whether the record is a created identity, or a written event, score or error
+     */
+    protected void stored(final UpdatableRecord<?> record, final boolean identity)
+    {
+        if (identity || this.kept.sum() >= this.maxRecords)
+            return;
+        this.kept.increment();
+        this.tables.computeIfAbsent(record.getTable().getName(), t -> new ConcurrentLinkedQueue<>()).add(record);
+    }
+
+    /**
+     * Give a record without id the next id of its table, or move the last id of the table past the id of the record.
+     * @param record the record
+     */
+    private void assignId(final UpdatableRecord<?> record)
+    {
+        Field<Integer> idField = record.getTable().field("id", Integer.class);
+        if (idField == null)
+            return;
+        AtomicInteger lastId = this.ids.computeIfAbsent(record.getTable().getName(), t -> new AtomicInteger());
+        Integer id = record.get(idField);
+        if (id == null)
+            record.set(idField, lastId.incrementAndGet());
+        else
+            lastId.accumulateAndGet(id, Math::max);
+    }
+
+    private void count(final UpdatableRecord<?> record)
+    {
+        this.counts.computeIfAbsent(record.getTable().getName(), t -> new LongAdder()).increment();
+    }
+
+    @Override
+    public Map<String, Long> counts()
+    {
+        Map<String, Long> result = new TreeMap<>();
+        this.counts.forEach((table, count) -> result.put(table, count.sum()));
+        return result;
+    }
+
+    @Override
+    public void close()
+    {
+        // nothing to release
+    }
+}
@@ -0,0 +1,498 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.Table;
+import org.jooq.TableRecord;
+import org.jooq.impl.DSL;
+import org.json.JSONObject;
+
+import nl.gamedata.data.Tables;
+import nl.gamedata.data.tables.records.GameMissionRecord;
+import nl.gamedata.data.tables.records.GameRecord;
+import nl.gamedata.data.tables.records.GameSessionRecord;
+import nl.gamedata.data.tables.records.GameTokenRecord;
+import nl.gamedata.data.tables.records.GameVersionRecord;
+import nl.gamedata.data.tables.records.GroupObjectiveRecord;
+import nl.gamedata.data.tables.records.LearningGoalRecord;
+import nl.gamedata.data.tables.records.OrganizationGameRecord;
+import nl.gamedata.data.tables.records.OrganizationGameTokenRecord;
+import nl.gamedata.data.tables.records.OrganizationRecord;
+import nl.gamedata.data.tables.records.PlayerObjectiveRecord;
+import nl.gamedata.data.tables.records.ScaleRecord;
+
+/**
+ * MetadataCache keeps the metadata that the StorageProcessor looks up for every message: games, versions, organizations,
+ * sessions, missions, learning goals, objectives, scales and tokens. A record is cached for <code>metadata.ttlSeconds</code>
+ * after it has been read; records that are not found are not cached, so new metadata is seen at once.
+ * <p>
+ * At startup, the cache is first filled from the snapshot file <code>metadata-snapshot.json</code> in the config folder, so the
+ * first messages after a restart are served without database lookups. In the background, the metadata of the active sessions
+ * (not archived, played in the last <code>metadata.warmup.days</code> days) is then read again from the database with one
+ * set-based query per table, which replaces the records of the snapshot. This warm-up is repeated every
+ * <code>metadata.refreshSeconds</code>, after which the snapshot file is written again.
+ * </p>
+ * <p>
+ * Tokens are secrets, and are only cached for <code>metadata.tokenTtlSeconds</code> (the game tokens, organization game tokens
+ * and the lookups by session token), so a revoked token is refused after at most that time. They are left out of the snapshot
+ * file, unless <code>metadata.snapshot.tokens</code> is set for the metadata file of the MemorySink or FileSink; when they
+ * are left out, the session tokens of the game sessions in the snapshot are blanked as well.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class MetadataCache
+{
+    private static final Log.Logger log = Log.logger("MetadataCache");
+
+    private static final String SNAPSHOT_FILE = "metadata-snapshot.json";
+
+    /** the tables in the snapshot, in the order in which they are written. */
+    private static final List<Table<?>> TABLES = List.of(Tables.GAME, Tables.GAME_VERSION, Tables.ORGANIZATION,
+            Tables.ORGANIZATION_GAME, Tables.GAME_SESSION, Tables.GAME_MISSION, Tables.LEARNING_GOAL, Tables.PLAYER_OBJECTIVE,
+            Tables.GROUP_OBJECTIVE, Tables.SCALE, Tables.GAME_TOKEN, Tables.ORGANIZATION_GAME_TOKEN);
+
+    /** the kinds of keys of the token lookups, which are cached for a shorter time. */
+    private static final List<String> TOKEN_KEYS = List.of("game_token|", "organization_game_token|", "game_session_token|");
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static volatile boolean enabled = false;
+
+    private static volatile ServerData data = null;
+
+    private static ScheduledExecutorService refresher = null;
+
+    private static final LongAdder hits = new LongAdder();
+
+    private static final LongAdder misses = new LongAdder();
+
+    private static volatile int snapshotRecords = 0;
+
+    private static volatile int warmUpRecords = 0;
+
+    private static volatile long warmUpMillis = -1;
+
+    private static volatile long lastWarmUp = 0;
+
+    private MetadataCache()
+    {
+        // utility class
+    }
+
+    /**
+     * Fill the cache from the snapshot file, and start the warm-up from the database in the background.
+     * @param serverData the server data with the connection pools
+     */
+    public static synchronized void start(final ServerData serverData)
+    {
+        if (!ServerProperties.getBoolean("metadata.cache.enabled", true) || refresher != null)
+            return;
+        data = serverData;
+        enabled = true;
+        readSnapshot();
+        refresher = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "metadata-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long refreshSeconds = Math.max(10, ServerProperties.getLong("metadata.refreshSeconds", 300));
+        refresher.scheduleWithFixedDelay(MetadataCache::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Stop the refresh, and write the snapshot file for the next start. */
+    public static synchronized void stop()
+    {
+        if (refresher == null)
+            return;
+        refresher.shutdownNow();
+        refresher = null;
+        writeSnapshot();
+        enabled = false;
+    }
+
+    /**
+     * Return a cached record, or look it up and cache it.
+     * @param <R> the record type
+     * @param key the key of the record, see key()
+     * @param loader the lookup in the database, which returns null when the record does not exist
+     * @return the record, or null when it does not exist
+     */
+    @SuppressWarnings("unchecked")
+    public static <R extends Record> R get(final String key, final Supplier<R> loader)
+    {
+        if (!enabled)
+            return loader.get();
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.validUntil >= now)
+        {
+            hits.increment();
+            return (R) entry.record;
+        }
+        misses.increment();
+        R record = loader.get();
+        if (record == null)
+            entries.remove(key);
+        else if (entries.size() < ServerProperties.getInt("metadata.cache.maxEntries", 100_000))
+        {
+            put(record, now + ttlMillis());
+            store(key, record, now + ttlMillis());
+        }
+        return record;
+    }
+
+    /**
+     * Return the key of a record in the cache.
+     * @param kind the kind of key, e.g., game_code
+     * @param parts the parts of the key, e.g., the code of the game
+     * @return the key
+     */
+    public static String key(final String kind, final Object... parts)
+    {
+        StringBuilder key = new StringBuilder(kind);
+        for (Object part : parts)
+            key.append('|').append(part);
+        return key.toString();
+    }
+
+    private static long ttlMillis()
+    {
+        return ServerProperties.getLong("metadata.ttlSeconds", 300) * 1000L;
+    }
+
+    private static long tokenTtlMillis()
+    {
+        return ServerProperties.getLong("metadata.tokenTtlSeconds", 30) * 1000L;
+    }
+
+    /**
+     * Cache a record under a key; a token lookup is valid for at most <code>metadata.tokenTtlSeconds</code>.
+     * @param key the key
+     * @param record the record
+     * @param validUntil the time until which the record is valid
+     */
+    private static void store(final String key, final Record record, final long validUntil)
+    {
+        long until = validUntil;
+        for (String tokenKey : TOKEN_KEYS)
+            if (key.startsWith(tokenKey))
+                until = Math.min(until, System.currentTimeMillis() + tokenTtlMillis());
+        entries.put(key, new Entry(record, until));
+    }
+
+    /**
+     * Cache a record under all keys with which the StorageProcessor looks it up.
+     * @param record the record
+     * @param validUntil the time until which the record is valid
+     */
+    private static void put(final Record record, final long validUntil)
+    {
+        if (record instanceof GameRecord r)
+        {
+            store(key("game", r.getId()), record, validUntil);
+            store(key("game_code", r.getCode()), record, validUntil);
+        }
+        else if (record instanceof GameVersionRecord r)
+        {
+            store(key("game_version", r.getId()), record, validUntil);
+            store(key("game_version_code", r.getGameId(), r.getCode()), record, validUntil);
+        }
+        else if (record instanceof OrganizationRecord r)
+        {
+            store(key("organization", r.getId()), record, validUntil);
+            store(key("organization_code", r.getCode()), record, validUntil);
+        }
+        else if (record instanceof OrganizationGameRecord r)
+            store(key("organization_game", r.getGameId(), r.getOrganizationId()), record, validUntil);
+        else if (record instanceof GameSessionRecord r)
+        {
+            if (r.getSessionToken() != null && !r.getSessionToken().isEmpty())
+                store(key("game_session_token", r.getSessionToken()), record, validUntil);
+            store(key("game_session_code", r.getGameVersionId(), r.getOrganizationId(), r.getCode()), record, validUntil);
+        }
+        else if (record instanceof GameMissionRecord r)
+            store(key("game_mission", r.getGameVersionId(), r.getCode()), record, validUntil);
+        else if (record instanceof LearningGoalRecord r)
+            store(key("learning_goal", r.getGameMissionId(), r.getCode()), record, validUntil);
+        else if (record instanceof PlayerObjectiveRecord r)
+            store(key("player_objective", r.getLearningGoalId(), r.getCode()), record, validUntil);
+        else if (record instanceof GroupObjectiveRecord r)
+            store(key("group_objective", r.getLearningGoalId(), r.getCode()), record, validUntil);
+        else if (record instanceof ScaleRecord r)
+            store(key("scale", r.getGameId(), r.getType()), record, validUntil);
+        else if (record instanceof GameTokenRecord r)
+            store(key("game_token", r.getGameId(), r.getValue()), record, validUntil);
+        else if (record instanceof OrganizationGameTokenRecord r)
+            store(key("organization_game_token", r.getOrganizationGameId(), r.getValue()), record, validUntil);
+    }
+
+    /** Warm up the cache from the database, remove expired entries, and write the snapshot. */
+    private static void refresh()
+    {
+        try
+        {
+            warmUp();
+            long now = System.currentTimeMillis();
+            entries.values().removeIf(entry -> entry.validUntil < now);
+            writeSnapshot();
+        }
+        catch (RuntimeException e)
+        {
+            log.error("warm-up failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the metadata of the active game sessions with one query per table, and cache it.
+     */
+    private static void warmUp()
+    {
+        long start = System.currentTimeMillis();
+        long validUntil = start + ttlMillis();
+        DSLContext dsl = data.getDSL();
+        LocalDate since = LocalDate.now().minusDays(ServerProperties.getInt("metadata.warmup.days", 7));
+        Result<GameSessionRecord> sessions = dsl.selectFrom(Tables.GAME_SESSION)
+                .where(Tables.GAME_SESSION.ARCHIVED.eq((byte) 0).and(Tables.GAME_SESSION.PLAY_DATE.ge(since)))
+                .limit(ServerProperties.getInt("metadata.warmup.maxSessions", 10_000)).fetch();
+        Set<Integer> versionIds = Set.copyOf(sessions.getValues(Tables.GAME_SESSION.GAME_VERSION_ID));
+        Set<Integer> organizationIds = Set.copyOf(sessions.getValues(Tables.GAME_SESSION.ORGANIZATION_ID));
+        Result<GameVersionRecord> versions =
+                dsl.selectFrom(Tables.GAME_VERSION).where(Tables.GAME_VERSION.ID.in(versionIds)).fetch();
+        Set<Integer> gameIds = Set.copyOf(versions.getValues(Tables.GAME_VERSION.GAME_ID));
+        Result<GameRecord> games = dsl.selectFrom(Tables.GAME).where(Tables.GAME.ID.in(gameIds)).fetch();
+        Result<OrganizationRecord> organizations =
+                dsl.selectFrom(Tables.ORGANIZATION).where(Tables.ORGANIZATION.ID.in(organizationIds)).fetch();
+        Result<OrganizationGameRecord> organizationGames = dsl.selectFrom(Tables.ORGANIZATION_GAME)
+                .where(Tables.ORGANIZATION_GAME.GAME_ID.in(gameIds)
+                        .and(Tables.ORGANIZATION_GAME.ORGANIZATION_ID.in(organizationIds)))
+                .fetch();
+        Result<GameMissionRecord> missions =
+                dsl.selectFrom(Tables.GAME_MISSION).where(Tables.GAME_MISSION.GAME_VERSION_ID.in(versionIds)).fetch();
+        Result<LearningGoalRecord> learningGoals = dsl.selectFrom(Tables.LEARNING_GOAL)
+                .where(Tables.LEARNING_GOAL.GAME_MISSION_ID.in(missions.getValues(Tables.GAME_MISSION.ID))).fetch();
+        List<Integer> learningGoalIds = learningGoals.getValues(Tables.LEARNING_GOAL.ID);
+        Result<PlayerObjectiveRecord> playerObjectives = dsl.selectFrom(Tables.PLAYER_OBJECTIVE)
+                .where(Tables.PLAYER_OBJECTIVE.LEARNING_GOAL_ID.in(learningGoalIds)).fetch();
+        Result<GroupObjectiveRecord> groupObjectives = dsl.selectFrom(Tables.GROUP_OBJECTIVE)
+                .where(Tables.GROUP_OBJECTIVE.LEARNING_GOAL_ID.in(learningGoalIds)).fetch();
+        Result<ScaleRecord> scales = dsl.selectFrom(Tables.SCALE).where(Tables.SCALE.GAME_ID.in(gameIds)).fetch();
+        Result<GameTokenRecord> gameTokens =
+                dsl.selectFrom(Tables.GAME_TOKEN).where(Tables.GAME_TOKEN.GAME_ID.in(gameIds)).fetch();
+        Result<OrganizationGameTokenRecord> organizationGameTokens = dsl.selectFrom(Tables.ORGANIZATION_GAME_TOKEN)
+                .where(Tables.ORGANIZATION_GAME_TOKEN.ORGANIZATION_GAME_ID
+                        .in(organizationGames.getValues(Tables.ORGANIZATION_GAME.ID)))
+                .fetch();
+
+        int count = 0;
+        for (Result<?> result : List.of(games, versions, organizations, organizationGames, sessions, missions, learningGoals,
+                playerObjectives, groupObjectives, scales, gameTokens, organizationGameTokens))
+        {
+            for (Record record : result)
+                put(record, validUntil);
+            count += result.size();
+        }
+        warmUpRecords = count;
+        lastWarmUp = System.currentTimeMillis();
+        warmUpMillis = lastWarmUp - start;
+    }
+
+    /**
+     * Write the cached records to the snapshot file, grouped per table in the JSON format of jOOQ. The file is first written
+     * under a temporary name, so a crash during the write does not leave a broken snapshot. The tokens are only written when
+     * <code>metadata.snapshot.tokens</code> is true.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void writeSnapshot()
+    {
+        if (!ServerProperties.getBoolean("metadata.snapshot.enabled", true))
+            return;
+        DSLContext dsl = DSL.using(SQLDialect.MYSQL);
+        Map<Table<?>, Result> results = new LinkedHashMap<>();
+        for (Table<?> table : TABLES)
+            results.put(table, dsl.newResult((Table) table));
+        boolean tokens = ServerProperties.getBoolean("metadata.snapshot.tokens", false);
+        if (!tokens)
+        {
+            results.remove(Tables.GAME_TOKEN);
+            results.remove(Tables.ORGANIZATION_GAME_TOKEN);
+        }
+        Set<Record> written = Collections.newSetFromMap(new IdentityHashMap<>());
+        long now = System.currentTimeMillis();
+        for (Entry entry : entries.values())
+        {
+            if (entry.validUntil >= now && entry.record instanceof TableRecord<?> tr && written.add(tr))
+            {
+                Result result = results.get(tr.getTable());
+                if (result == null)
+                    continue;
+                if (!tokens && tr instanceof GameSessionRecord session && session.getSessionToken() != null)
+                {
+                    GameSessionRecord blanked = session.into(Tables.GAME_SESSION);
+                    blanked.setSessionToken("");
+                    result.add(blanked);
+                }
+                else
+                    result.add(tr);
+            }
+        }
+        JSONObject tables = new JSONObject();
+        for (Map.Entry<Table<?>, Result> entry : results.entrySet())
+            tables.put(entry.getKey().getName(), new JSONObject(entry.getValue().formatJSON()));
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("written", now);
+        snapshot.put("tables", tables);
+        try
+        {
+            Path file = snapshotFile();
+            Path temp = Paths.get(ServerProperties.getConfigDir(), SNAPSHOT_FILE + ".tmp");
+            Files.writeString(temp, snapshot.toString(), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            log.error("snapshot could not be written: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fill the cache from the snapshot file, when it is not older than <code>metadata.snapshot.maxAgeHours</code>. The records
+     * are valid for one ttl, during which the warm-up replaces them with the records from the database.
+     */
+    private static void readSnapshot()
+    {
+        Path file = snapshotFile();
+        if (!ServerProperties.getBoolean("metadata.snapshot.enabled", true) || !Files.isReadable(file))
+            return;
+        try
+        {
+            long maxAgeMillis = ServerProperties.getLong("metadata.snapshot.maxAgeHours", 24) * 3_600_000L;
+            List<Record> records = readSnapshotFile(file, maxAgeMillis);
+            if (records == null)
+            {
+                log.info("snapshot is too old and is not used");
+                return;
+            }
+            long validUntil = System.currentTimeMillis() + ttlMillis();
+            for (Record record : records)
+            {
+                record.attach(data.getDSL().configuration());
+                put(record, validUntil);
+            }
+            snapshotRecords = records.size();
+            log.info(records.size() + " records read from the snapshot");
+        }
+        catch (IOException | RuntimeException e)
+        {
+            log.error("snapshot could not be read: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the snapshot file in the config folder.
+     * @return the path of the snapshot file
+     */
+    static Path snapshotFile()
+    {
+        return Paths.get(ServerProperties.getConfigDir(), SNAPSHOT_FILE);
+    }
+
+    /**
+     * Read the records of a snapshot file. The records are not attached to a database, e.g., for the MemorySink.
+     * @param file the snapshot file
+     * @param maxAgeMillis the maximum age of the snapshot in ms, or 0 for a snapshot of any age
+     * @return the records of the snapshot in the order of the tables, or null when the snapshot is too old
+     * @throws IOException when the file cannot be read
+     */
+    static List<Record> readSnapshotFile(final Path file, final long maxAgeMillis) throws IOException
+    {
+        JSONObject snapshot = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+        if (maxAgeMillis > 0 && System.currentTimeMillis() - snapshot.getLong("written") > maxAgeMillis)
+            return null;
+        DSLContext dsl = DSL.using(SQLDialect.MYSQL);
+        JSONObject tables = snapshot.getJSONObject("tables");
+        List<Record> records = new ArrayList<>();
+        for (Table<?> table : TABLES)
+        {
+            if (!tables.has(table.getName()))
+                continue;
+            for (Record record : dsl.fetchFromJSON(tables.getJSONObject(table.getName()).toString()).into(table))
+            {
+                record.changed(false);
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Return whether a snapshot file holds the tokens, i.e., it was written with <code>metadata.snapshot.tokens</code>. Without
+     * the tokens, messages with a session_token or a forced game token cannot be resolved from the snapshot alone.
+     * @param file the snapshot file
+     * @return whether the token tables are in the snapshot
+     * @throws IOException when the file cannot be read
+     */
+    static boolean snapshotHasTokens(final Path file) throws IOException
+    {
+        JSONObject tables = new JSONObject(Files.readString(file, StandardCharsets.UTF_8)).getJSONObject("tables");
+        return tables.has(Tables.GAME_TOKEN.getName()) && tables.has(Tables.ORGANIZATION_GAME_TOKEN.getName());
+    }
+
+    /**
+     * Return the statistics of the cache.
+     * @return the statistics
+     */
+    public static Statistics getStatistics()
+    {
+        return new Statistics(enabled, entries.size(), hits.sum(), misses.sum(), snapshotRecords, warmUpRecords, warmUpMillis,
+                lastWarmUp);
+    }
+
+    /**
+     * Statistics of the cache.
+     * @param enabled whether the cache is enabled
+     * @param entries the number of keys in the cache
+     * @param hits the number of lookups that were served from the cache
+     * @param misses the number of lookups that went to the database
+     * @param snapshotRecords the number of records that were read from the snapshot at startup
+     * @param warmUpRecords the number of records that were read by the last warm-up
+     * @param warmUpMillis the duration of the last warm-up in ms, or -1 when there was none
+     * @param lastWarmUp the time of the last warm-up in ms since the epoch, or 0 when there was none
+     */
+    public record Statistics(boolean enabled, int entries, long hits, long misses, int snapshotRecords, int warmUpRecords,
+            long warmUpMillis, long lastWarmUp)
+    {
+    }
+
+    /** A cached record with the time until which it is valid. */
+    private record Entry(Record record, long validUntil)
+    {
+    }
+}
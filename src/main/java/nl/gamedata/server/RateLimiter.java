@@ -0,0 +1,271 @@
+package nl.gamedata.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RateLimiter limits the number of messages per game session and per client address at ingress, before a message is queued.
+ * Every key has a token bucket, implemented as a generic cell rate algorithm on a single AtomicLong that holds the theoretical
+ * arrival time of the next message. A check is one compare-and-set on the request thread without locking. Buckets that have
+ * been idle for a while are evicted by a background sweeper.
+ * <p>
+ * The default limits are set in gamedata.properties with <code>ratelimit.session.rate</code> and
+ * <code>ratelimit.session.burst</code> (messages per second and burst size per session), and <code>ratelimit.client.rate</code>
+ * and <code>ratelimit.client.burst</code> per client address. A rate of 0 (the default) switches the limit off. Session limits
+ * can be overridden per organization or game with <code>ratelimit.organization.&lt;code&gt;.rate</code> and
+ * <code>ratelimit.game.&lt;code&gt;.rate</code> (and .burst), for messages that carry the organization_code or game_code.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class RateLimiter
+{
+    private static final Map<String, Bucket> sessionBuckets = new ConcurrentHashMap<>();
+
+    private static final Map<String, Bucket> clientBuckets = new ConcurrentHashMap<>();
+
+    private static final LongAdder allowed = new LongAdder();
+
+    private static final LongAdder rejectedSession = new LongAdder();
+
+    private static final LongAdder rejectedClient = new LongAdder();
+
+    private static final LongAdder evicted = new LongAdder();
+
+    private static volatile Limit sessionLimit = Limit.NONE;
+
+    private static volatile Limit clientLimit = Limit.NONE;
+
+    private static volatile boolean sessionOverrides = false;
+
+    private static volatile String clientHeader = null;
+
+    private static ScheduledExecutorService sweeper = null;
+
+    private RateLimiter()
+    {
+        // utility class
+    }
+
+    /**
+     * Read the default limits and start the sweeper that evicts idle buckets.
+     */
+    public static synchronized void start()
+    {
+        sessionLimit = Limit.of(ServerProperties.getDouble("ratelimit.session.rate", 0.0),
+                ServerProperties.getInt("ratelimit.session.burst", 10));
+        clientLimit = Limit.of(ServerProperties.getDouble("ratelimit.client.rate", 0.0),
+                ServerProperties.getInt("ratelimit.client.burst", 10));
+        sessionOverrides = !ServerProperties.keysWithPrefix("ratelimit.organization.").isEmpty()
+                || !ServerProperties.keysWithPrefix("ratelimit.game.").isEmpty();
+        clientHeader = ServerProperties.get("ratelimit.client.header", null);
+        long idleNanos = TimeUnit.SECONDS.toNanos(ServerProperties.getLong("ratelimit.idleSeconds", 300));
+        if (sweeper == null)
+        {
+            sweeper = Executors.newSingleThreadScheduledExecutor();
+            sweeper.scheduleWithFixedDelay(() -> evictIdle(idleNanos), 60, 60, TimeUnit.SECONDS);
+        }
+    }
+
+    public static synchronized void stop()
+    {
+        if (sweeper != null)
+        {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Return the name of the header that contains the client address when the server runs behind a proxy, or null when the
+     * remote address of the request is used.
+     * @return the header with the client address, or null
+     */
+    public static String getClientHeader()
+    {
+        return clientHeader;
+    }
+
+    /**
+     * Check the limit for a client address. This check can be done before the payload is read.
+     * @param clientAddress the address of the client
+     * @return whether the request is allowed
+     */
+    public static boolean allowClient(final String clientAddress)
+    {
+        if (clientLimit == Limit.NONE || clientAddress == null)
+            return true;
+        Bucket bucket = clientBuckets.get(clientAddress);
+        if (bucket == null)
+            bucket = clientBuckets.computeIfAbsent(clientAddress, k -> new Bucket(clientLimit));
+        if (!bucket.tryAcquire(System.nanoTime()))
+        {
+            rejectedClient.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the limit for the game session of a task. The session is identified by the session_token or game_session_code.
+     * @param task the task with the payload
+     * @return whether the task is allowed
+     */
+    public static boolean allowSession(final StorageRequestTask task)
+    {
+        if (sessionLimit == Limit.NONE && !sessionOverrides)
+        {
+            allowed.increment();
+            return true;
+        }
+        String session = IngressFields.find(task, "session_token");
+        if (session == null)
+            session = IngressFields.find(task, "game_session_code");
+        if (session == null)
+        {
+            allowed.increment();
+            return true;
+        }
+        Bucket bucket = sessionBuckets.get(session);
+        if (bucket == null)
+            bucket = sessionBuckets.computeIfAbsent(session, k -> new Bucket(sessionLimitFor(task)));
+        if (!bucket.tryAcquire(System.nanoTime()))
+        {
+            rejectedSession.increment();
+            return false;
+        }
+        allowed.increment();
+        return true;
+    }
+
+    /**
+     * Determine the limit for a new session bucket, using the organization or game overrides when present.
+     * @param task the first task of the session
+     * @return the limit for the session
+     */
+    private static Limit sessionLimitFor(final StorageRequestTask task)
+    {
+        String organizationCode = IngressFields.find(task, "organization_code");
+        if (organizationCode != null)
+        {
+            double rate = ServerProperties.getDouble("ratelimit.organization." + organizationCode + ".rate", -1.0);
+            if (rate >= 0.0)
+                return Limit.of(rate, ServerProperties.getInt("ratelimit.organization." + organizationCode + ".burst",
+                        ServerProperties.getInt("ratelimit.session.burst", 10)));
+        }
+        String gameCode = IngressFields.find(task, "game_code");
+        if (gameCode != null)
+        {
+            double rate = ServerProperties.getDouble("ratelimit.game." + gameCode + ".rate", -1.0);
+            if (rate >= 0.0)
+                return Limit.of(rate, ServerProperties.getInt("ratelimit.game." + gameCode + ".burst",
+                        ServerProperties.getInt("ratelimit.session.burst", 10)));
+        }
+        return sessionLimit;
+    }
+
+    private static void evictIdle(final long idleNanos)
+    {
+        long now = System.nanoTime();
+        for (Map<String, Bucket> buckets : List.of(sessionBuckets, clientBuckets))
+        {
+            buckets.values().removeIf(bucket ->
+            {
+                boolean idle = bucket.isIdle(now, idleNanos);
+                if (idle)
+                    evicted.increment();
+                return idle;
+            });
+        }
+    }
+
+    /**
+     * Return the counters of the rate limiter.
+     * @return the counters
+     */
+    public static Statistics getStatistics()
+    {
+        return new Statistics(allowed.sum(), rejectedSession.sum(), rejectedClient.sum(), sessionBuckets.size(),
+                clientBuckets.size(), evicted.sum());
+    }
+
+    /**
+     * Counters of the rate limiter.
+     * @param allowed the number of allowed messages
+     * @param rejectedSession the number of messages rejected because of the session limit
+     * @param rejectedClient the number of requests rejected because of the client limit
+     * @param sessionBuckets the current number of session buckets
+     * @param clientBuckets the current number of client buckets
+     * @param evicted the number of evicted idle buckets
+     */
+    public record Statistics(long allowed, long rejectedSession, long rejectedClient, int sessionBuckets, int clientBuckets,
+            long evicted)
+    {
+    }
+
+    /**
+     * A limit with the emission interval (nanoseconds between messages at the sustained rate) and the burst size.
+     * @param intervalNanos the time between two messages at the sustained rate
+     * @param burst the number of messages that can be sent at once
+     */
+    record Limit(long intervalNanos, int burst)
+    {
+        static final Limit NONE = new Limit(0, 0);
+
+        static Limit of(final double rate, final int burst)
+        {
+            if (rate <= 0.0)
+                return NONE;
+            return new Limit((long) (1.0E9 / rate), Math.max(1, burst));
+        }
+    }
+
+    /**
+     * Token bucket for one key, using the theoretical arrival time (TAT) of the generic cell rate algorithm. A message is allowed
+     * when the TAT after adding the message is not more than burst intervals ahead of the current time.
+     */
+    static final class Bucket
+    {
+        private final AtomicLong tat;
+
+        private final long intervalNanos;
+
+        private final long toleranceNanos;
+
+        Bucket(final Limit limit)
+        {
+            this.intervalNanos = limit.intervalNanos();
+            this.toleranceNanos = limit.intervalNanos() * limit.burst();
+            this.tat = new AtomicLong(System.nanoTime());
+        }
+
+        boolean tryAcquire(final long now)
+        {
+            if (this.intervalNanos == 0)
+                return true;
+            while (true)
+            {
+                long current = this.tat.get();
+                long newTat = Math.max(current, now) + this.intervalNanos;
+                if (newTat - now > this.toleranceNanos)
+                    return false;
+                if (this.tat.compareAndSet(current, newTat))
+                    return true;
+            }
+        }
+
+        boolean isIdle(final long now, final long idleNanos)
+        {
+            return now - this.tat.get() > idleNanos;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package nl.gamedata.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONObject;
+
+/**
+ * ReplayTool feeds the requests of capture files of the TrafficCapture into the storage pipeline of this build, and reports
+ * the throughput, the lag and the errors. The requests are replayed at the original rate, at a multiple of that rate, or as
+ * fast as possible, and are stored in the database of the <code>gamedata.properties</code> in the folder given with
+ * <code>--config</code>, which should be a local copy of the database; the settings of the server in the home directory are
+ * not used. The tasks are added directly to the RequestQueueManager, so the rate limits, the duplicate filter and the cluster
+ * routing are not part of the replay. The cluster mode, the archiving of game sessions and the spilling of the queue to disk
+ * are switched off for the replay, whatever the file says. At most <code>--window</code> tasks (default 10000) are queued or
+ * being stored at a time; the replay waits for a task to finish before it adds the next one, so a fast replay of a large
+ * capture does not queue the whole capture in memory.
+ * <p>
+ * Usage: <code>java nl.gamedata.server.ReplayTool --config folder [--speed factor | --max] [--window n] [--report file]
+ * [--compare file] capture...</code> where a capture is a capture file or a folder with capture files. With
+ * <code>--report</code>, the results are written as JSON; with <code>--compare</code>, the results are compared with the report
+ * of an earlier run, e.g., of the previous build.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class ReplayTool
+{
+    /** the folder with the gamedata.properties of the replay. */
+    private String configDir = null;
+
+    /** the speed factor; 0 means as fast as possible. */
+    private double speed = 1.0;
+
+    /** the maximum number of tasks that are queued or being stored at a time. */
+    private int window = 10_000;
+
+    /** the permits of the window; a permit is taken when a task is submitted, and returned when it is finished. */
+    private Semaphore inFlight = null;
+
+    private Path reportFile = null;
+
+    private Path compareFile = null;
+
+    private final List<Path> captures = new ArrayList<>();
+
+    private final AtomicInteger submitted = new AtomicInteger();
+
+    private final AtomicInteger completed = new AtomicInteger();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final LongAdder queueFullWaits = new LongAdder();
+
+    /** the time from the scheduled replay time to the end of the processing per task in ns, in order of completion. */
+    private final List<Long> lags = new ArrayList<>();
+
+    /** the number of errors per category. */
+    private final Map<String, Integer> errorCategories = new ConcurrentHashMap<>();
+
+    /** the largest delay of the replay itself behind the schedule in ns. */
+    private long maxScheduleDelay = 0;
+
+    private ReplayTool()
+    {
+        // created by main
+    }
+
+    /**
+     * Replay capture files.
+     * @param args the options and capture files
+     */
+    public static void main(final String[] args)
+    {
+        ReplayTool tool = new ReplayTool();
+        if (!tool.parseArgs(args))
+        {
+            System.err.println(
+                    "Usage: ReplayTool --config folder [--speed factor | --max] [--window n] [--report file] [--compare file] "
+                            + "capture...");
+            System.exit(2);
+        }
+        int status;
+        try
+        {
+            status = tool.run();
+        }
+        catch (IOException e)
+        {
+            System.err.println("ReplayTool: " + e.getMessage());
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    private boolean parseArgs(final String[] args)
+    {
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--config" -> this.configDir = args[++i];
+                    case "--speed" -> this.speed = Double.parseDouble(args[++i]);
+                    case "--max" -> this.speed = 0.0;
+                    case "--window" -> this.window = Integer.parseInt(args[++i]);
+                    case "--report" -> this.reportFile = Paths.get(args[++i]);
+                    case "--compare" -> this.compareFile = Paths.get(args[++i]);
+                    default -> this.captures.add(Paths.get(args[i]));
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException | NumberFormatException e)
+        {
+            return false;
+        }
+        return this.configDir != null && !this.captures.isEmpty() && this.speed >= 0.0 && this.window >= 1;
+    }
+
+    private int run() throws IOException
+    {
+        List<Path> files = captureFiles();
+        if (files.isEmpty())
+            throw new IOException("no capture files found in " + this.captures);
+        if (!Files.isReadable(Paths.get(this.configDir, "gamedata.properties")))
+            throw new IOException("no gamedata.properties in " + this.configDir);
+
+        // only the storage pipeline takes part in the replay, on the database of the replay
+        ServerProperties.useConfigDir(this.configDir);
+        ServerProperties.override("cluster.enabled", "false");
+        ServerProperties.override("archive.enabled", "false");
+        ServerProperties.override("queue.spill.enabled", "false");
+        this.inFlight = new Semaphore(this.window);
+        Log.start();
+        TaskProcessor.startProcessing();
+        if (!TaskProcessor.getServletError().isEmpty())
+            throw new IOException("storage could not be started: " + TaskProcessor.getServletError());
+
+        long start = System.nanoTime();
+        long firstMillis = -1;
+        for (Path file : files)
+        {
+            System.out.println("ReplayTool: replaying " + file);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new GZIPInputStream(Files.newInputStream(file), 65536), StandardCharsets.UTF_8)))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (line.isBlank())
+                        continue;
+                    JSONObject captured = new JSONObject(line);
+                    long t = captured.getLong("t");
+                    if (firstMillis < 0)
+                        firstMillis = t;
+                    long scheduled = this.speed == 0.0 ? System.nanoTime()
+                            : start + (long) ((t - firstMillis) * 1_000_000.0 / this.speed);
+                    waitUntil(scheduled);
+                    submit(captured, scheduled);
+                }
+            }
+        }
+        awaitCompletion();
+        long duration = System.nanoTime() - start;
+        TaskProcessor.stopProcessing();
+        Log.stop();
+
+        JSONObject report = report(duration);
+        System.out.println(report.toString(2));
+        if (this.reportFile != null)
+            Files.writeString(this.reportFile, report.toString(2), StandardCharsets.UTF_8);
+        if (this.compareFile != null)
+            compare(new JSONObject(Files.readString(this.compareFile, StandardCharsets.UTF_8)), report);
+        return 0;
+    }
+
+    /**
+     * Return the capture files, with the files in the folders in order of their names.
+     * @return the capture files
+     * @throws IOException when a folder cannot be read
+     */
+    private List<Path> captureFiles() throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        for (Path capture : this.captures)
+        {
+            if (Files.isDirectory(capture))
+            {
+                try (Stream<Path> list = Files.list(capture))
+                {
+                    files.addAll(new TreeSet<>(
+                            list.filter(f -> f.getFileName().toString().endsWith(".ndjson.gz")).toList()));
+                }
+            }
+            else
+                files.add(capture);
+        }
+        return files;
+    }
+
+    private void waitUntil(final long scheduled)
+    {
+        long delay;
+        while ((delay = scheduled - System.nanoTime()) > 0)
+            LockSupport.parkNanos(delay);
+        this.maxScheduleDelay = Math.max(this.maxScheduleDelay, -delay);
+    }
+
+    /**
+     * Add a captured request to the queue, and wait while the window or the queue is full.
+     * @param captured the captured request
+     * @param scheduled the time at which the request is replayed, from System.nanoTime()
+     */
+    private void submit(final JSONObject captured, final long scheduled)
+    {
+        String body = captured.optString("body", null);
+        StorageRequestTask task = new StorageRequestTask(captured.getString("requestType"), captured.getString("contentType"),
+                captured.optString("payload", null), body == null ? null : Base64.getDecoder().decode(body), null,
+                (t, error) -> finished(scheduled, error), LocalDateTime.parse(captured.getString("timestamp")));
+        if (!this.inFlight.tryAcquire())
+        {
+            this.queueFullWaits.increment();
+            this.inFlight.acquireUninterruptibly();
+        }
+        this.submitted.incrementAndGet();
+        while (!RequestQueueManager.addTask(task))
+        {
+            this.queueFullWaits.increment();
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    private void finished(final long scheduled, final String error)
+    {
+        this.inFlight.release();
+        long lag = System.nanoTime() - scheduled;
+        synchronized (this.lags)
+        {
+            this.lags.add(lag);
+        }
+        if (error != null)
+        {
+            this.errors.increment();
+            this.errorCategories.merge(category(error), 1, Integer::sum);
+        }
+        this.completed.incrementAndGet();
+    }
+
+    /**
+     * Return the category of an error: the first words, which do not contain the codes and values of the message.
+     * @param error the error
+     * @return the category
+     */
+    private static String category(final String error)
+    {
+        String[] words = error.split("\\s+");
+        return String.join(" ", Arrays.copyOf(words, Math.min(words.length, 5)));
+    }
+
+    /** Wait until all tasks have been processed, or until no task has been processed for a minute. */
+    private void awaitCompletion()
+    {
+        int last = -1;
+        long lastProgress = System.nanoTime();
+        while (this.completed.get() < this.submitted.get())
+        {
+            int done = this.completed.get();
+            if (done != last)
+            {
+                last = done;
+                lastProgress = System.nanoTime();
+            }
+            else if (System.nanoTime() - lastProgress > 60_000_000_000L)
+            {
+                System.err.println("ReplayTool: no progress for a minute, " + (this.submitted.get() - done)
+                        + " tasks not processed");
+                return;
+            }
+            LockSupport.parkNanos(10_000_000L);
+        }
+    }
+
+    private JSONObject report(final long durationNanos)
+    {
+        long[] sorted;
+        synchronized (this.lags)
+        {
+            sorted = this.lags.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+        JSONObject report = new JSONObject();
+        report.put("speed", this.speed == 0.0 ? "max" : Double.toString(this.speed));
+        report.put("submitted", this.submitted.get());
+        report.put("completed", this.completed.get());
+        report.put("errors", this.errors.sum());
+        report.put("durationSeconds", durationNanos / 1.0E9);
+        report.put("throughputPerSecond", this.completed.get() / Math.max(1.0E-9, durationNanos / 1.0E9));
+        report.put("lagP50Millis", percentile(sorted, 0.50));
+        report.put("lagP95Millis", percentile(sorted, 0.95));
+        report.put("lagP99Millis", percentile(sorted, 0.99));
+        report.put("lagMaxMillis", sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1.0E6);
+        report.put("maxScheduleDelayMillis", this.maxScheduleDelay / 1.0E6);
+        report.put("queueFullWaits", this.queueFullWaits.sum());
+        report.put("errorCategories", new JSONObject(new TreeMap<>(this.errorCategories)));
+        return report;
+    }
+
+    private static double percentile(final long[] sorted, final double fraction)
+    {
+        if (sorted.length == 0)
+            return 0.0;
+        return sorted[(int) Math.ceil(sorted.length * fraction) - 1] / 1.0E6;
+    }
+
+    /**
+     * Print the differences between the report of an earlier run and this run.
+     * @param before the report of the earlier run
+     * @param after the report of this run
+     */
+    private static void compare(final JSONObject before, final JSONObject after)
+    {
+        System.out.println("ReplayTool: comparison with the earlier run (before -> after)");
+        for (String key : List.of("completed", "errors", "throughputPerSecond", "lagP50Millis", "lagP95Millis", "lagP99Millis",
+                "lagMaxMillis", "queueFullWaits"))
+        {
+            double b = before.optDouble(key, 0.0);
+            double a = after.optDouble(key, 0.0);
+            String change = b == 0.0 ? "" : String.format(" (%+.1f%%)", (a - b) * 100.0 / b);
+            System.out.println(String.format("  %-20s %12.2f -> %12.2f%s", key, b, a, change));
+        }
+        JSONObject beforeErrors = before.optJSONObject("errorCategories", new JSONObject());
+        JSONObject afterErrors = after.getJSONObject("errorCategories");
+        TreeSet<String> categories = new TreeSet<>(beforeErrors.keySet());
+        categories.addAll(afterErrors.keySet());
+        for (String category : categories)
+        {
+            int b = beforeErrors.optInt(category, 0);
+            int a = afterErrors.optInt(category, 0);
+            if (a != b)
+                System.out.println(String.format("  error \"%s\": %d -> %d", category, b, a));
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package nl.gamedata.server;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * RequestBodies opens the body of a request as a stream, decompressing it when the request has a
+ * <code>Content-Encoding: gzip</code> or <code>deflate</code> header. The body is decompressed while it is read, and reading
+ * stops with a PayloadTooLargeException when the decompressed size passes the limit, to guard against decompression bombs.
+ * The limit is set with <code>request.maxBytes</code> in gamedata.properties (default 1 MB for compressed bodies); uncompressed
+ * bodies have no limit unless <code>request.maxBytes</code> is set. A compressed body that ends before its compressed data
+ * ends gives a ZipException, like a body that cannot be decompressed.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class RequestBodies
+{
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private static final LongAdder compressedRequests = new LongAdder();
+
+    private static final LongAdder compressedBytes = new LongAdder();
+
+    private static final LongAdder decompressedBytes = new LongAdder();
+
+    private static final LongAdder decodeCpuNanos = new LongAdder();
+
+    private static final LongAdder tooLarge = new LongAdder();
+
+    private RequestBodies()
+    {
+        // utility class
+    }
+
+    /**
+     * Open the body of the request as a stream, decompressing it when needed.
+     * @param request the request
+     * @param maxBytes the maximum number of (decompressed) bytes that may be read
+     * @return the stream with the (decompressed) body
+     * @throws UnsupportedEncodingException when the Content-Encoding is not supported
+     * @throws IOException on error opening the stream
+     */
+    public static InputStream open(final HttpServletRequest request, final long maxBytes) throws IOException
+    {
+        return open(request, maxBytes, maxBytes);
+    }
+
+    /**
+     * Open the body of the request as a stream, decompressing it when needed, with another limit for uncompressed bodies.
+     * @param request the request
+     * @param maxBytes the maximum number of decompressed bytes that may be read from a compressed body
+     * @param maxIdentityBytes the maximum number of bytes that may be read from an uncompressed body
+     * @return the stream with the (decompressed) body
+     * @throws UnsupportedEncodingException when the Content-Encoding is not supported
+     * @throws IOException on error opening the stream
+     */
+    public static InputStream open(final HttpServletRequest request, final long maxBytes, final long maxIdentityBytes)
+            throws IOException
+    {
+        String encoding = request.getHeader("Content-Encoding");
+        InputStream raw = request.getInputStream();
+        if (encoding == null || encoding.isBlank() || "identity".equalsIgnoreCase(encoding.strip()))
+            return new LimitedInputStream(raw, maxIdentityBytes, null);
+        CountingInputStream counting = new CountingInputStream(raw);
+        InputStream decompressed;
+        try
+        {
+            decompressed = switch (encoding.strip().toLowerCase())
+            {
+                // the GZIPInputStream reads the gzip header here
+                case "gzip", "x-gzip" -> new GZIPInputStream(counting, 8192);
+                // most clients send zlib-wrapped deflate; raw deflate is not supported
+                case "deflate" -> new InflaterInputStream(counting, new Inflater(), 8192);
+                default -> throw new UnsupportedEncodingException("Unsupported Content-Encoding: " + encoding);
+            };
+        }
+        catch (EOFException e)
+        {
+            throw truncated(e);
+        }
+        compressedRequests.increment();
+        return new LimitedInputStream(decompressed, maxBytes, counting);
+    }
+
+    /**
+     * Return the maximum body size from the properties. Without <code>request.maxBytes</code>, compressed bodies are limited to
+     * 1 MB after decompression, and uncompressed bodies have no limit.
+     * @param compressed whether the limit is for a compressed body
+     * @return the maximum number of (decompressed) bytes in a request body
+     */
+    public static long maxBytes(final boolean compressed)
+    {
+        long maxBytes = ServerProperties.getLong("request.maxBytes", compressed ? 1_048_576L : 0L);
+        return maxBytes <= 0 ? Long.MAX_VALUE : maxBytes;
+    }
+
+    /**
+     * Return the exception for a compressed body that ends too early.
+     * @param e the exception of the decompressing stream
+     * @return a ZipException with the EOFException as its cause
+     */
+    private static ZipException truncated(final EOFException e)
+    {
+        ZipException truncated = new ZipException(
+                "compressed body is incomplete" + (e.getMessage() == null ? "" : " (" + e.getMessage() + ")"));
+        truncated.initCause(e);
+        return truncated;
+    }
+
+    /**
+     * Return the counters of the compressed requests.
+     * @return the counters
+     */
+    public static Statistics getStatistics()
+    {
+        long in = compressedBytes.sum();
+        long out = decompressedBytes.sum();
+        return new Statistics(compressedRequests.sum(), in, out, in == 0 ? 0.0 : (double) out / in,
+                decodeCpuNanos.sum() / 1.0E6, tooLarge.sum());
+    }
+
+    /**
+     * Counters of the compressed requests.
+     * @param requests the number of compressed requests
+     * @param compressedBytes the number of bytes received in compressed form
+     * @param decompressedBytes the number of bytes after decompression
+     * @param ratio the compression ratio (decompressed / compressed)
+     * @param decodeCpuMs the CPU time spent on reading and decompressing in ms
+     * @param tooLarge the number of bodies that were rejected because they were too large
+     */
+    public record Statistics(long requests, long compressedBytes, long decompressedBytes, double ratio, double decodeCpuMs,
+            long tooLarge)
+    {
+    }
+
+    /** Exception for a Content-Encoding that is not supported. */
+    public static class UnsupportedEncodingException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedEncodingException(final String message)
+        {
+            super(message);
+        }
+    }
+
+    /** Exception for a body that is larger than the limit after decompression. */
+    public static class PayloadTooLargeException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public PayloadTooLargeException(final String message)
+        {
+            super(message);
+        }
+    }
+
+    /** Stream that counts the bytes that are read from the network. */
+    private static class CountingInputStream extends FilterInputStream
+    {
+        long count = 0;
+
+        CountingInputStream(final InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+                this.count++;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                this.count += n;
+            return n;
+        }
+    }
+
+    /**
+     * Stream that throws a PayloadTooLargeException when more than the maximum number of bytes is read. For compressed bodies,
+     * the compression statistics and the CPU time for reading are registered when the stream is closed, and the EOFException
+     * of a body that is cut off is turned into a ZipException.
+     */
+    private static class LimitedInputStream extends FilterInputStream
+    {
+        private final long maxBytes;
+
+        private final CountingInputStream compressed;
+
+        private final long startCpuNanos;
+
+        private long count = 0;
+
+        private boolean closed = false;
+
+        LimitedInputStream(final InputStream in, final long maxBytes, final CountingInputStream compressed)
+        {
+            super(in);
+            this.maxBytes = maxBytes;
+            this.compressed = compressed;
+            this.startCpuNanos = compressed != null && threadBean.isCurrentThreadCpuTimeSupported()
+                    ? threadBean.getCurrentThreadCpuTime() : 0L;
+        }
+
+        private void add(final long n) throws PayloadTooLargeException
+        {
+            this.count += n;
+            if (this.count > this.maxBytes)
+            {
+                tooLarge.increment();
+                throw new PayloadTooLargeException("Request body larger than " + this.maxBytes + " bytes");
+            }
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b;
+            try
+            {
+                b = super.read();
+            }
+            catch (EOFException e)
+            {
+                throw this.compressed == null ? e : truncated(e);
+            }
+            if (b >= 0)
+                add(1);
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            int n;
+            try
+            {
+                // read one byte more than the limit, so a body of exactly maxBytes passes
+                long remaining = this.maxBytes - this.count;
+                n = super.read(b, off, remaining < len ? (int) remaining + 1 : len);
+            }
+            catch (EOFException e)
+            {
+                throw this.compressed == null ? e : truncated(e);
+            }
+            if (n > 0)
+                add(n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!this.closed && this.compressed != null)
+            {
+                this.closed = true;
+                compressedBytes.add(this.compressed.count);
+                decompressedBytes.add(this.count);
+                if (this.startCpuNanos > 0)
+                    decodeCpuNanos.add(threadBean.getCurrentThreadCpuTime() - this.startCpuNanos);
+            }
+            super.close();
+        }
+    }
+}
@@ -1,34 +1,712 @@
 package nl.gamedata.server;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 /**
- * RequestQueueManager.java.
+ * RequestQueueManager.java. The queue keeps a FIFO queue per tenant (the organization_code of the message), and hands out the
+ * tasks using deficit round-robin over the tenants that have tasks waiting. A tenant with weight w can take w tasks per round,
+ * so one large session cannot delay the messages of other organizations. Weights are set in gamedata.properties with
+ * <code>queue.weight.&lt;tenant&gt;=w</code> and <code>queue.weight.default=w</code>.
+ * <p>
+ * The number of tenant queues is bounded by <code>queue.maxTenants</code>, since the organization_code is sent by the client.
+ * Messages without organization_code, and messages of a new tenant when all tenant queues are in use, go to one shared queue
+ * with weight <code>queue.weight.shared</code>. When a new tenant arrives and the limit has been reached, the tenant that has
+ * been idle the longest is removed, with its statistics.
+ * </p>
+ * <p>
+ * The queue has two tiers. When <code>queue.maxSize</code> tasks are waiting in memory, new tasks are appended to a SpillQueue
+ * on disk, up to <code>queue.spill.maxBytes</code>. As long as there are spilled tasks, new tasks are spilled as well, so the
+ * arrival order is kept; the spilled tasks are read back into memory when the storage thread has caught up. Tasks with a
+ * listener (from a stream, or a request that waits for a stored acknowledgement) cannot be written to disk, since the listener
+ * would be lost; they are rejected when the memory queue is full or tasks are spilled, so they are bounded by
+ * <code>queue.maxSize</code> as well, and do not overtake the spilled tasks of their session.
+ * </p>
+ * <p>
+ * The disk I/O of the spill queue is done outside the lock of the queue, so the workers and the other requests do not wait
+ * for the disk. A request decides under the lock that its task is spilled, and appends it afterwards; with
+ * <code>queue.spill.sync=true</code>, addTask() returns when the task has been forced to disk, so a task that was
+ * acknowledged with 202 survives a crash. The thread <code>spill-reader</code> reads the spilled tasks back in batches, and
+ * adds them to the memory queue under the lock. While tasks are being appended or read, new tasks are spilled as well.
+ * </p>
+ * <p>
+ * The game sessions are hashed into stripes, and the queue hands out at most one task per stripe at a time: a stripe is busy
+ * from the moment its task is taken until the worker calls release(). The tasks of a session are therefore stored one after
+ * the other in the order of arrival, and a worker never waits for a session that another worker is storing. Within a tenant,
+ * the stripes with waiting tasks take turns. Tasks that were taken and could not be stored yet, such as the messages that are
+ * held back while their tenant moves to another shard, are put back in front of their stripe with putBack().
+ * </p>
  * @author <a href="https://www.tudelft.nl/averbraeck">Alexander Verbraeck</a>
  */
 
 public class RequestQueueManager
 {
-    private static final BlockingQueue<StorageRequestTask> queue = new LinkedBlockingQueue<>();
+    /** the name of the shared queue in the statistics. */
+    private static final String SHARED = "(shared)";
 
-    public static void addTask(final StorageRequestTask task)
+    /** the number of session stripes. */
+    private static final int STRIPES = 256;
+
+    /** the stripes of which a task is being stored; only accessed while holding the lock. */
+    private static final boolean[] busy = new boolean[STRIPES];
+
+    private static final Object lock = new Object();
+
+    /** the queues per tenant; only accessed while holding the lock. */
+    private static final Map<String, TenantQueue> tenantQueues = new HashMap<>();
+
+    /** the tenants without waiting tasks, in the order in which they became idle; only accessed while holding the lock. */
+    private static final LinkedHashSet<TenantQueue> idleTenants = new LinkedHashSet<>();
+
+    /** the queue of the messages without tenant, and of the tenants beyond maxTenants. */
+    private static final TenantQueue sharedQueue = new TenantQueue(SHARED);
+
+    /** the round-robin ring of tenants with waiting tasks; only accessed while holding the lock. */
+    private static final ArrayDeque<TenantQueue> activeTenants = new ArrayDeque<>();
+
+    private static int size = 0;
+
+    private static long rejected = 0;
+
+    /** the maximum number of tasks in memory, to bound the memory while the database is slow or unavailable. */
+    private static final int maxSize = ServerProperties.getInt("queue.maxSize", 100_000);
+
+    /** the maximum number of tenant queues besides the shared queue. */
+    private static final int maxTenants = Math.max(0, ServerProperties.getInt("queue.maxTenants", 1000));
+
+    /** the spilled tasks on disk, or null when spilling is disabled; only accessed while holding the lock. */
+    private static SpillQueue spillQueue = null;
+
+    /** the number of tasks that are being appended to the spill queue; only accessed while holding the lock. */
+    private static int spilling = 0;
+
+    /** whether the spill reader is taking tasks from disk that it did not add yet; only accessed while holding the lock. */
+    private static boolean reading = false;
+
+    /** the maximum number of tasks the spill reader reads from disk at a time. */
+    private static final int SPILL_BATCH = 1000;
+
+    /** the monitor on which the spill reader waits for room in the memory queue. */
+    private static final Object spillSignal = new Object();
+
+    private static Thread spillReader = null;
+
+    private static volatile boolean spillReading = false;
+
+    /**
+     * Add a task to the queue of its tenant.
+     * @param task the task to add
+     * @return whether the task was added; false when the queue has reached its maximum size and the task cannot be spilled
+     */
+    public static boolean addTask(final StorageRequestTask task)
     {
-        queue.offer(task);
+        String tenant = IngressFields.tenant(task);
+        long now = System.nanoTime();
+        SpillQueue spill;
+        synchronized (lock)
+        {
+            spill = spillQueue;
+            if (size < maxSize && !spillActive())
+            {
+                Tracer.mark(task.trace(), Tracer.Stage.QUEUED);
+                enqueue(tenant, task, now);
+                lock.notify();
+                return true;
+            }
+            // a task with a listener is not spilled, since the listener cannot be restored from disk
+            if (spill == null || task.listener() != null)
+            {
+                rejected++;
+                return false;
+            }
+            spilling++;
+        }
+        // the task is written to disk outside the lock
+        boolean appended = spill.append(task, ServerProperties.getLong("queue.spill.maxBytes", 1_073_741_824L),
+                ServerProperties.getBoolean("queue.spill.sync", true));
+        synchronized (lock)
+        {
+            spilling--;
+            if (!appended)
+                rejected++;
+        }
+        if (appended)
+            signalSpillReader();
+        return appended;
     }
 
+    /**
+     * Return whether tasks are on disk, or are being appended or read, while holding the lock. New tasks are then spilled as
+     * well, so they do not overtake the spilled tasks.
+     * @return whether the spill queue is in use
+     */
+    private static boolean spillActive()
+    {
+        return spilling > 0 || reading || (spillQueue != null && spillQueue.waiting() > 0);
+    }
+
+    /**
+     * Add a task to the in-memory queue of its tenant, while holding the lock.
+     * @param tenant the tenant of the task, or null for the shared queue
+     * @param task the task
+     * @param enqueueNanos the time the task was received
+     */
+    private static void enqueue(final String tenant, final StorageRequestTask task, final long enqueueNanos)
+    {
+        TenantQueue tenantQueue = tenantQueue(tenant);
+        int stripe = stripe(task);
+        tenantQueue.stripes.computeIfAbsent(stripe, s -> new ArrayDeque<>())
+                .add(new QueuedTask(task, enqueueNanos, stripe, 1, false));
+        added(tenantQueue, 1);
+    }
+
+    /**
+     * Return the queue of a tenant, and create it when needed, while holding the lock.
+     * @param tenant the tenant, or null for the shared queue
+     * @return the queue of the tenant, or the shared queue when all tenant queues are in use
+     */
+    private static TenantQueue tenantQueue(final String tenant)
+    {
+        TenantQueue tenantQueue = tenant == null ? sharedQueue : tenantQueues.get(tenant);
+        if (tenantQueue == null)
+        {
+            if (tenantQueues.size() >= maxTenants && !idleTenants.isEmpty())
+            {
+                // the tenant that has been idle the longest makes room, with its statistics
+                TenantQueue evicted = idleTenants.iterator().next();
+                idleTenants.remove(evicted);
+                tenantQueues.remove(evicted.tenant);
+            }
+            if (tenantQueues.size() < maxTenants)
+            {
+                tenantQueue = new TenantQueue(tenant);
+                tenantQueues.put(tenant, tenantQueue);
+            }
+            else
+                tenantQueue = sharedQueue;
+        }
+        return tenantQueue;
+    }
+
+    /**
+     * Count tasks that were added to the queue of a tenant, and let the tenant take turns, while holding the lock.
+     * @param tenantQueue the queue of the tenant
+     * @param count the number of added tasks
+     */
+    private static void added(final TenantQueue tenantQueue, final int count)
+    {
+        tenantQueue.size += count;
+        tenantQueue.enqueued += count;
+        if (!tenantQueue.active)
+        {
+            tenantQueue.active = true;
+            idleTenants.remove(tenantQueue);
+            activeTenants.addLast(tenantQueue);
+        }
+        size += count;
+    }
+
+    /**
+     * Put tasks that were taken from the queue before, e.g., the messages that were held back during the move of their tenant
+     * to another shard, back in front of the waiting tasks of their stripe, so newer messages of the session do not overtake
+     * them. Tasks that were put back earlier and are still waiting stay in front, since they are older. The tasks keep their
+     * order and the number of their attempt. They are not counted against <code>queue.maxSize</code> and are not spilled,
+     * since they have been accepted already.
+     * @param tasks the tasks in the order in which they arrived, with the number of the attempt that is tried next
+     */
+    public static void putBack(final List<RetryManager.RetryTask> tasks)
+    {
+        long now = System.nanoTime();
+        synchronized (lock)
+        {
+            // group the tasks per stripe of a tenant queue, in their order
+            Map<TenantQueue, Map<Integer, List<QueuedTask>>> returned = new LinkedHashMap<>();
+            for (RetryManager.RetryTask task : tasks)
+            {
+                TenantQueue tenantQueue = tenantQueue(IngressFields.tenant(task.task()));
+                int stripe = stripe(task.task());
+                returned.computeIfAbsent(tenantQueue, t -> new LinkedHashMap<>())
+                        .computeIfAbsent(stripe, s -> new ArrayList<>())
+                        .add(new QueuedTask(task.task(), now, stripe, task.attempt(), true));
+            }
+            for (Map.Entry<TenantQueue, Map<Integer, List<QueuedTask>>> entry : returned.entrySet())
+            {
+                TenantQueue tenantQueue = entry.getKey();
+                for (Map.Entry<Integer, List<QueuedTask>> stripeTasks : entry.getValue().entrySet())
+                {
+                    ArrayDeque<QueuedTask> queue =
+                            tenantQueue.stripes.computeIfAbsent(stripeTasks.getKey(), s -> new ArrayDeque<>());
+                    List<QueuedTask> earlier = new ArrayList<>();
+                    while (!queue.isEmpty() && queue.peekFirst().returned())
+                        earlier.add(queue.pollFirst());
+                    List<QueuedTask> front = stripeTasks.getValue();
+                    for (int i = front.size() - 1; i >= 0; i--)
+                        queue.addFirst(front.get(i));
+                    for (int i = earlier.size() - 1; i >= 0; i--)
+                        queue.addFirst(earlier.get(i));
+                    added(tenantQueue, front.size());
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private static void signalSpillReader()
+    {
+        synchronized (spillSignal)
+        {
+            spillSignal.notify();
+        }
+    }
+
+    /**
+     * The loop of the spill reader: move spilled tasks back into memory when at most half of the memory queue is used. The
+     * tasks are read from disk outside the lock, and added under the lock. The tasks keep the time at which they were spilled
+     * for the wait statistics. The thread is not interrupted to stop it, since an interrupt closes the file channels.
+     */
+    private static void readSpilled()
+    {
+        List<SpillQueue.SpilledTask> batch = new ArrayList<>(SPILL_BATCH);
+        while (spillReading)
+        {
+            SpillQueue spill;
+            int room;
+            synchronized (lock)
+            {
+                spill = spillQueue;
+                room = spill == null || spill.waiting() == 0 || size > maxSize / 2 ? 0
+                        : Math.min(SPILL_BATCH, maxSize - size);
+                reading = room > 0;
+            }
+            if (room == 0)
+            {
+                synchronized (spillSignal)
+                {
+                    try
+                    {
+                        spillSignal.wait(100L);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                continue;
+            }
+            batch.clear();
+            try
+            {
+                spill.poll(room, batch);
+            }
+            finally
+            {
+                long nowNanos = System.nanoTime();
+                long nowMillis = System.currentTimeMillis();
+                synchronized (lock)
+                {
+                    for (SpillQueue.SpilledTask spilled : batch)
+                    {
+                        long waitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, nowMillis - spilled.enqueueMillis()));
+                        enqueue(IngressFields.tenant(spilled.task()), spilled.task(), nowNanos - waitNanos);
+                    }
+                    reading = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Open the spill queue, and start the spill reader, which first reads the tasks that were spilled before a restart. Called
+     * when the TaskProcessor starts.
+     */
+    public static void startSpill()
+    {
+        synchronized (lock)
+        {
+            if (spillQueue != null || !ServerProperties.getBoolean("queue.spill.enabled", true))
+                return;
+            spillQueue = new SpillQueue(SpillQueue.defaultDirectory(),
+                    ServerProperties.getLong("queue.spill.segmentBytes", 67_108_864L));
+            spillReading = true;
+            spillReader = new Thread(RequestQueueManager::readSpilled, "spill-reader");
+            spillReader.setDaemon(true);
+            spillReader.start();
+        }
+    }
+
+    /**
+     * Stop the spill reader and close the spill queue; the tasks that are still on disk are read after the next start. Tasks in
+     * memory are lost, and tasks that arrive afterwards are rejected when the memory queue is full.
+     */
+    public static void stopSpill()
+    {
+        Thread reader;
+        SpillQueue spill;
+        synchronized (lock)
+        {
+            reader = spillReader;
+            spill = spillQueue;
+            spillReader = null;
+            spillQueue = null;
+            spillReading = false;
+        }
+        if (reader != null)
+        {
+            signalSpillReader();
+            try
+            {
+                reader.join(10_000L);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (spill != null)
+            spill.close();
+    }
+
+    /**
+     * Take the next task, and wait until a task is available. The stripe of the task is busy until release() is called.
+     * @return the next task
+     * @throws InterruptedException when the thread is interrupted while waiting
+     */
     public static StorageRequestTask takeTask() throws InterruptedException
     {
-        return queue.take();
+        synchronized (lock)
+        {
+            QueuedTask queuedTask;
+            while ((queuedTask = nextTask()) == null)
+            {
+                lock.wait();
+            }
+            return queuedTask.task();
+        }
+    }
+
+    /**
+     * Take the next task, waiting at most the given time for a task to arrive. The stripe of the task is busy until release()
+     * is called.
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout
+     * @return the next task, or null when no task of a stripe that is not busy arrived within the timeout
+     * @throws InterruptedException when the thread is interrupted while waiting
+     */
+    public static StorageRequestTask pollTask(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        RetryManager.RetryTask task = pollAttempt(timeout, unit);
+        return task == null ? null : task.task();
+    }
+
+    /**
+     * Take the next task as pollTask() does, with the number of its attempt: 1 for a new task, or the attempt with which a
+     * task was put back with putBack().
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout
+     * @return the next task with the number of its attempt, or null when no task of a stripe that is not busy arrived within
+     *         the timeout
+     * @throws InterruptedException when the thread is interrupted while waiting
+     */
+    public static RetryManager.RetryTask pollAttempt(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock)
+        {
+            QueuedTask queuedTask;
+            while ((queuedTask = nextTask()) == null)
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return null;
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return new RetryManager.RetryTask(queuedTask.task(), queuedTask.attempt(), 0L);
+        }
+    }
+
+    /**
+     * Mark the stripe of a task that did not come from this queue, e.g., a retried task, as busy when no other task of the
+     * stripe is being stored.
+     * @param task the task
+     * @return whether the stripe was free and is now busy; when false, the task should not be stored yet
+     */
+    public static boolean claim(final StorageRequestTask task)
+    {
+        int stripe = stripe(task);
+        synchronized (lock)
+        {
+            if (busy[stripe])
+                return false;
+            busy[stripe] = true;
+            return true;
+        }
+    }
+
+    /**
+     * Mark the stripe of a task that was taken or claimed as free again, when the task has been stored, reported, or scheduled
+     * for a retry.
+     * @param task the task
+     */
+    public static void release(final StorageRequestTask task)
+    {
+        int stripe = stripe(task);
+        synchronized (lock)
+        {
+            busy[stripe] = false;
+            lock.notify();
+        }
+    }
+
+    private static int stripe(final StorageRequestTask task)
+    {
+        return Math.floorMod(IngressFields.session(task).hashCode(), STRIPES);
+    }
+
+    /**
+     * Select the next task with deficit round-robin over the tenants with a task of a stripe that is not busy. A tenant
+     * receives its quantum (weight) when its deficit is used up; it keeps its position until its deficit is spent or its queue
+     * is empty. Each task costs 1. The stripe of the task becomes busy.
+     * @return the next task to process, or null when no task of a stripe that is not busy is waiting
+     */
+    private static QueuedTask nextTask()
+    {
+        Iterator<TenantQueue> it = activeTenants.iterator();
+        while (it.hasNext())
+        {
+            TenantQueue tenantQueue = it.next();
+            QueuedTask queuedTask = tenantQueue.poll();
+            if (queuedTask == null)
+                continue;
+            busy[queuedTask.stripe()] = true;
+            if (tenantQueue.deficit < 1)
+                tenantQueue.deficit += tenantQueue.weight;
+            tenantQueue.deficit -= 1;
+            size--;
+            if (size == maxSize / 2 && spillQueue != null && spillQueue.waiting() > 0)
+                signalSpillReader();
+            long wait = System.nanoTime() - queuedTask.enqueueNanos();
+            tenantQueue.dequeued++;
+            tenantQueue.totalWaitNanos += wait;
+            tenantQueue.maxWaitNanos = Math.max(tenantQueue.maxWaitNanos, wait);
+            if (tenantQueue.size == 0)
+            {
+                it.remove();
+                tenantQueue.active = false;
+                tenantQueue.deficit = 0;
+                if (tenantQueue != sharedQueue)
+                    idleTenants.add(tenantQueue);
+            }
+            else if (tenantQueue.deficit < 1)
+            {
+                it.remove();
+                activeTenants.addLast(tenantQueue);
+            }
+            return queuedTask;
+        }
+        return null;
     }
 
     public static boolean isEmpty()
     {
-        return queue.isEmpty();
+        synchronized (lock)
+        {
+            return size == 0 && !spillActive();
+        }
     }
 
+    /**
+     * Return the number of waiting tasks, in memory and on disk.
+     * @return the number of waiting tasks
+     */
     public static int numberOfTasks()
     {
-        return queue.size();
+        synchronized (lock)
+        {
+            return (int) Math.min(Integer.MAX_VALUE, size + spilling + (spillQueue == null ? 0 : spillQueue.waiting()));
+        }
+    }
+
+    /**
+     * Return the maximum number of tasks in memory, <code>queue.maxSize</code>.
+     * @return the maximum number of tasks in memory
+     */
+    public static int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Return the time that the oldest task in the queue has been waiting. Spilled tasks are newer than the tasks in memory, and
+     * are moved to memory as soon as memory has room, so the oldest task is always at the head of one of the tenant queues.
+     * @return the wait time of the oldest task in ms, or 0 when the queue is empty
+     */
+    public static long oldestTaskAgeMillis()
+    {
+        long now = System.nanoTime();
+        long oldest = now;
+        synchronized (lock)
+        {
+            for (TenantQueue tq : activeTenants)
+            {
+                for (ArrayDeque<QueuedTask> queue : tq.stripes.values())
+                {
+                    QueuedTask head = queue.peekFirst();
+                    if (head != null && head.enqueueNanos() < oldest)
+                        oldest = head.enqueueNanos();
+                }
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(now - oldest);
+    }
+
+    /**
+     * Return the statistics of the spill queue.
+     * @return the statistics, with zeroes when spilling is disabled
+     */
+    public static SpillStatistics getSpillStatistics()
+    {
+        synchronized (lock)
+        {
+            if (spillQueue == null)
+                return new SpillStatistics(false, size, 0, 0, 0, 0, 0);
+            return new SpillStatistics(true, size, spillQueue.waiting(), spillQueue.diskBytes(), spillQueue.spilled(),
+                    spillQueue.drained(), spillQueue.lastDrainLagMs());
+        }
+    }
+
+    /**
+     * Statistics of the two tiers of the queue.
+     * @param enabled whether spilling to disk is enabled
+     * @param inMemory the number of tasks in memory
+     * @param onDisk the number of tasks on disk
+     * @param diskBytes the number of bytes of the spill files
+     * @param spilled the total number of tasks written to disk
+     * @param drained the total number of tasks read back from disk
+     * @param drainLagMs the time that the last task read back from disk has been on disk, in ms
+     */
+    public record SpillStatistics(boolean enabled, int inMemory, long onDisk, long diskBytes, long spilled, long drained,
+            long drainLagMs)
+    {
+    }
+
+    /**
+     * Return the number of tasks that were refused because the queue was full.
+     * @return the number of refused tasks
+     */
+    public static long numberOfRejectedTasks()
+    {
+        synchronized (lock)
+        {
+            return rejected;
+        }
+    }
+
+    /**
+     * Return the queue statistics per tenant: number of waiting tasks, number of enqueued and dequeued tasks, and the average and
+     * maximum wait time in the queue in milliseconds. The shared queue is reported as (shared).
+     * @return a sorted map from tenant to statistics
+     */
+    public static Map<String, TenantStatistics> getTenantStatistics()
+    {
+        Map<String, TenantStatistics> statistics = new TreeMap<>();
+        synchronized (lock)
+        {
+            List<TenantQueue> queues = new ArrayList<>(tenantQueues.values());
+            if (sharedQueue.enqueued > 0)
+                queues.add(sharedQueue);
+            for (TenantQueue tq : queues)
+            {
+                double avgWaitMs = tq.dequeued == 0 ? 0.0 : tq.totalWaitNanos / 1.0E6 / tq.dequeued;
+                statistics.put(tq.tenant, new TenantStatistics(tq.size, tq.enqueued, tq.dequeued, tq.weight,
+                        avgWaitMs, tq.maxWaitNanos / 1.0E6));
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Statistics for the queue of one tenant.
+     * @param waiting the number of tasks in the queue
+     * @param enqueued the total number of tasks added to the queue
+     * @param dequeued the total number of tasks taken from the queue
+     * @param weight the weight of the tenant
+     * @param averageWaitMs the average wait time in the queue in ms
+     * @param maxWaitMs the maximum wait time in the queue in ms
+     */
+    public record TenantStatistics(int waiting, long enqueued, long dequeued, int weight, double averageWaitMs,
+            double maxWaitMs)
+    {
+    }
+
+    /**
+     * A task with the time it was added to the queue, the stripe of its session, the number of the attempt that is tried next,
+     * and whether it was put back in front of its stripe.
+     */
+    private record QueuedTask(StorageRequestTask task, long enqueueNanos, int stripe, int attempt, boolean returned)
+    {
+    }
+
+    /** The queue and the scheduling state of one tenant. */
+    private static class TenantQueue
+    {
+        final String tenant;
+
+        final int weight;
+
+        /** the waiting tasks per stripe, in the order in which the stripes take turns. */
+        final Map<Integer, ArrayDeque<QueuedTask>> stripes = new LinkedHashMap<>();
+
+        int size = 0;
+
+        boolean active = false;
+
+        int deficit = 0;
+
+        long enqueued = 0;
+
+        long dequeued = 0;
+
+        long totalWaitNanos = 0;
+
+        long maxWaitNanos = 0;
+
+        TenantQueue(final String tenant)
+        {
+            this.tenant = tenant;
+            String key = SHARED.equals(tenant) ? "queue.weight.shared" : "queue.weight." + tenant;
+            this.weight = Math.max(1, ServerProperties.getInt(key, ServerProperties.getInt("queue.weight.default", 1)));
+        }
+
+        /**
+         * Take the oldest task of the first stripe that is not busy, and let that stripe take its next turn after the other
+         * stripes of the tenant.
+         * @return the task, or null when all stripes with waiting tasks are busy
+         */
+        QueuedTask poll()
+        {
+            Iterator<Map.Entry<Integer, ArrayDeque<QueuedTask>>> it = this.stripes.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<Integer, ArrayDeque<QueuedTask>> entry = it.next();
+                if (busy[entry.getKey()])
+                    continue;
+                QueuedTask queuedTask = entry.getValue().poll();
+                it.remove();
+                if (!entry.getValue().isEmpty())
+                    this.stripes.put(entry.getKey(), entry.getValue());
+                this.size--;
+                return queuedTask;
+            }
+            return null;
+        }
     }
 }
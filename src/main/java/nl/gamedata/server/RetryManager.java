@@ -0,0 +1,229 @@
+package nl.gamedata.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.time.LocalDateTime;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * RetryManager keeps the tasks that failed with a transient database error, such as a lost connection, a lock wait timeout or
+ * an exhausted connection pool. The tasks are retried with exponential backoff and jitter. After the maximum number of
+ * attempts, or when the retry queue is full, the task is written to a dead-letter file, from which it can be replayed later.
+ * <p>
+ * Settings in gamedata.properties: <code>retry.maxAttempts</code> (default 8), <code>retry.baseDelayMs</code> (default 500),
+ * <code>retry.maxDelayMs</code> (default 60000) and <code>retry.maxQueued</code> (default 10000). The dead-letter file is
+ * <code>deadletter/deadletter.ndjson</code> in the gamedata folder.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class RetryManager
+{
+    private static final Log.Logger log = Log.logger("RetryManager");
+
+    private static final DelayQueue<RetryTask> retryQueue = new DelayQueue<>();
+
+    private static final LongAdder scheduled = new LongAdder();
+
+    private static final LongAdder deadLettered = new LongAdder();
+
+    private RetryManager()
+    {
+        // utility class
+    }
+
+    /**
+     * Determine whether an exception is caused by a transient database problem, in which case the task can be retried later.
+     * @param throwable the exception
+     * @return whether one of the causes is a transient database error
+     */
+    public static boolean isTransient(final Throwable throwable)
+    {
+        for (Throwable t = throwable; t != null; t = t.getCause())
+        {
+            if (t instanceof SQLTransientException || t instanceof SQLRecoverableException
+                    || t instanceof SQLNonTransientConnectionException)
+                return true;
+            if (t instanceof SQLException sqlException)
+            {
+                String sqlState = sqlException.getSQLState();
+                if (sqlState != null && (sqlState.startsWith("08") || sqlState.startsWith("40")))
+                    return true;
+                switch (sqlException.getErrorCode())
+                {
+                    case 1040: // too many connections
+                    case 1205: // lock wait timeout
+                    case 1213: // deadlock
+                    case 2002: // cannot connect
+                    case 2003: // cannot connect
+                    case 2006: // server has gone away
+                    case 2013: // lost connection during query
+                        return true;
+                    default:
+                        break;
+                }
+            }
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * Schedule a task that failed with a transient error for a new attempt, or move it to the dead-letter file when the maximum
+     * number of attempts has been reached or the retry queue is full.
+     * @param task the task that failed
+     * @param attempt the number of the attempt that failed (1 for the first processing)
+     * @param cause the exception of the failed attempt
+     * @return true when the task has been scheduled for a retry, false when it has been moved to the dead-letter file
+     */
+    public static boolean scheduleRetry(final StorageRequestTask task, final int attempt, final Throwable cause)
+    {
+        int maxAttempts = ServerProperties.getInt("retry.maxAttempts", 8);
+        if (attempt >= maxAttempts)
+        {
+            deadLetter(task, attempt, "maximum number of attempts reached: " + cause.getMessage());
+            return false;
+        }
+        if (retryQueue.size() >= ServerProperties.getInt("retry.maxQueued", 10_000))
+        {
+            deadLetter(task, attempt, "retry queue full: " + cause.getMessage());
+            return false;
+        }
+        long baseDelay = ServerProperties.getLong("retry.baseDelayMs", 500);
+        long maxDelay = ServerProperties.getLong("retry.maxDelayMs", 60_000);
+        long delay = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 20));
+        // "equal jitter": half of the delay is fixed, the other half is random, to spread the retries of a failure burst
+        long jitteredDelay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        retryQueue.add(new RetryTask(task, attempt + 1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(jitteredDelay)));
+        scheduled.increment();
+        return true;
+    }
+
+    /**
+     * Put a due task back for a short time without counting an attempt, e.g., because another task of its session is being
+     * stored.
+     * @param retryTask the due task
+     */
+    public static void postpone(final RetryTask retryTask)
+    {
+        retryQueue.add(new RetryTask(retryTask.task(), retryTask.attempt(),
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10)));
+    }
+
+    /**
+     * Return a task of which the backoff delay has passed, or null when there is none.
+     * @return a task to retry, or null
+     */
+    public static RetryTask pollDue()
+    {
+        return retryQueue.poll();
+    }
+
+    /**
+     * Return the time until the next retry is due, to limit the time that the storage thread waits for new tasks.
+     * @param maxMillis the maximum time to return
+     * @return the time in milliseconds until the next retry is due, at most maxMillis
+     */
+    public static long millisUntilNextDue(final long maxMillis)
+    {
+        RetryTask next = retryQueue.peek();
+        if (next == null)
+            return maxMillis;
+        return Math.max(0, Math.min(maxMillis, next.getDelay(TimeUnit.MILLISECONDS)));
+    }
+
+    /**
+     * Append a task to the dead-letter file as a single line of JSON.
+     * @param task the task
+     * @param attempts the number of attempts that were made
+     * @param reason the reason why the task could not be stored
+     */
+    public static synchronized void deadLetter(final StorageRequestTask task, final int attempts, final String reason)
+    {
+        deadLettered.increment();
+        JSONObject json = new JSONObject();
+        json.put("requestType", task.requestType());
+        json.put("contentType", task.contentType());
+        json.put("payload", task.payloadText());
+        if (task.context() != null)
+            json.put("context", new JSONObject(task.context()));
+        json.put("timestamp", task.timestamp().toString());
+        json.put("attempts", attempts);
+        json.put("reason", reason);
+        json.put("deadLettered", LocalDateTime.now().toString());
+        Path path = Paths.get(ServerProperties.getConfigDir(), "deadletter", "deadletter.ndjson");
+        try
+        {
+            Files.createDirectories(path.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND))
+            {
+                writer.write(json.toString());
+                writer.newLine();
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("could not write dead-letter file " + path + ": " + e.getMessage() + ", task: " + task);
+        }
+    }
+
+    /**
+     * Return the counters of the retry manager.
+     * @return the counters
+     */
+    public static Statistics getStatistics()
+    {
+        return new Statistics(retryQueue.size(), scheduled.sum(), deadLettered.sum());
+    }
+
+    /**
+     * Counters of the retry manager.
+     * @param queued the number of tasks waiting for a retry
+     * @param scheduled the total number of scheduled retries
+     * @param deadLettered the total number of tasks written to the dead-letter file
+     */
+    public record Statistics(int queued, long scheduled, long deadLettered)
+    {
+    }
+
+    /**
+     * A task waiting for a retry.
+     * @param task the task
+     * @param attempt the number of the next attempt
+     * @param dueNanos the System.nanoTime() at which the task can be retried
+     */
+    public record RetryTask(StorageRequestTask task, int attempt, long dueNanos) implements Delayed
+    {
+        @Override
+        public long getDelay(final TimeUnit unit)
+        {
+            return unit.convert(this.dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other)
+        {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
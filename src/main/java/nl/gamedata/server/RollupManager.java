@@ -0,0 +1,617 @@
+package nl.gamedata.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jooq.DSLContext;
+import org.jooq.impl.DSL;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * RollupManager aggregates high-frequency numeric events over tumbling time windows. Events that match a rollup rule are
+ * summarized per game session, mission, attempt and key into count, min, max, sum and last value, and the summary is written to
+ * the event_rollup table when the window closes. The raw events can be sampled down or skipped completely.
+ * <p>
+ * Rules are defined in gamedata.properties, e.g.:
+ *
+ * <pre>
+ * rollup.1.game=AbcGame
+ * rollup.1.game_version=v1
+ * rollup.1.game_mission=M1
+ * rollup.1.key=sensor_*
+ * rollup.1.window=10
+ * rollup.1.sample=0
+ * </pre>
+ *
+ * The game_version and game_mission are optional; when left out, the rule applies to all versions or missions of the game. The
+ * window is in seconds. The sample value indicates that one in every 'sample' raw events is still stored (1 = store all raw
+ * events, 0 = store no raw events).
+ * </p>
+ * <p>
+ * A value is added to its window after its raw event has been stored, so a message that is retried after a failed insert is
+ * not counted twice. An event for a window before the open window of its series arrived late, and is stored as a raw event
+ * instead of being rolled up. A window is written to the shard of its tenant; when the insert fails, the window is appended
+ * to <code>rollup/pending.ndjson</code> in the config folder, and the flusher writes the pending windows again every
+ * <code>rollup.retrySeconds</code> seconds, also after a restart. Only transient failures, such as a lost connection or a
+ * tenant that is being moved, keep a window pending; a window that the database refuses, e.g., because its session no
+ * longer exists, is appended to <code>rollup/deadletter.ndjson</code> with the reason. The windows that are still open are
+ * only kept in memory, so their values are lost when the server crashes; use <code>sample=1</code> for series of which no
+ * value may be lost.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class RollupManager
+{
+    private static final Log.Logger log = Log.logger("RollupManager");
+
+    private static volatile List<RollupRule> rules = List.of();
+
+    private static final Map<WindowKey, Window> windows = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService flusher = null;
+
+    private static ServerData serverData = null;
+
+    /** serializes the access to the file with the windows that could not be written. */
+    private static final Object pendingLock = new Object();
+
+    private static volatile long nextRetryMillis = 0;
+
+    private static final LongAdder written = new LongAdder();
+
+    private static final LongAdder pending = new LongAdder();
+
+    private static final LongAdder late = new LongAdder();
+
+    private static final LongAdder deadLettered = new LongAdder();
+
+    private RollupManager()
+    {
+        // utility class
+    }
+
+    /**
+     * Read the rollup rules from the properties, and start the flusher that writes idle windows and pending windows to the
+     * database.
+     * @param data the server data with the connection pool to write the summaries
+     */
+    public static synchronized void start(final ServerData data)
+    {
+        serverData = data;
+        List<RollupRule> newRules = new ArrayList<>();
+        for (String key : ServerProperties.keysWithPrefix("rollup."))
+        {
+            if (!key.endsWith(".key"))
+                continue;
+            String prefix = key.substring(0, key.length() - "key".length());
+            String game = ServerProperties.get(prefix + "game", null);
+            if (game == null)
+            {
+                log.warn("Rollup rule " + prefix + " has no game -- rule ignored");
+                continue;
+            }
+            newRules.add(new RollupRule(game, ServerProperties.get(prefix + "game_version", null),
+                    ServerProperties.get(prefix + "game_mission", null), ServerProperties.get(key, ""),
+                    Math.max(1, ServerProperties.getInt(prefix + "window", 60)),
+                    Math.max(0, ServerProperties.getInt(prefix + "sample", 0))));
+        }
+        rules = List.copyOf(newRules);
+        if ((!rules.isEmpty() || Files.exists(pendingFile())) && flusher == null)
+        {
+            flusher = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+                Thread thread = new Thread(r, "rollup-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(() -> flushIdle(false), 1, 1, TimeUnit.SECONDS);
+        }
+        log.info(rules.size() + " rollup rule(s) active");
+    }
+
+    /**
+     * Write all open windows and stop the flusher.
+     */
+    public static synchronized void stop()
+    {
+        if (flusher != null)
+        {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        flushIdle(true);
+    }
+
+    /**
+     * Return whether rollup rules are defined, and the table event_rollup is used.
+     * @return whether rollup rules are defined
+     */
+    public static boolean isEnabled()
+    {
+        return !rules.isEmpty();
+    }
+
+    /**
+     * Find the rollup rule for an event. This method is cheap when no rules are defined.
+     * @param gameCode the code of the game
+     * @param gameVersionCode the code of the game version
+     * @param gameMissionCode the code of the game mission
+     * @param key the key of the event
+     * @return the first matching rule, or null when no rule matches
+     */
+    public static RollupRule findRule(final String gameCode, final String gameVersionCode, final String gameMissionCode,
+            final String key)
+    {
+        if (rules.isEmpty())
+            return null;
+        for (RollupRule rule : rules)
+        {
+            if (rule.matches(gameCode, gameVersionCode, gameMissionCode, key))
+                return rule;
+        }
+        return null;
+    }
+
+    /**
+     * Indicate whether the raw event of a value has to be stored, based on the sample setting of the rule, or because the
+     * value arrived late. The value itself is added with add() after the raw event has been stored.
+     * @param rule the rule found with findRule
+     * @param windowKey the identification of the series of values
+     * @param timestamp the timestamp of the event
+     * @return whether the raw event has to be stored
+     */
+    public static boolean keepRaw(final RollupRule rule, final WindowKey windowKey, final LocalDateTime timestamp)
+    {
+        long windowStart = windowStart(rule, timestamp);
+        Window w = windows.get(windowKey);
+        if (w != null && windowStart < w.start)
+            return true;
+        // the number of the value in its window, counting from 0
+        long index = w == null || windowStart > w.start ? 0 : w.count;
+        return rule.sampleEvery() > 0 && index % rule.sampleEvery() == 0;
+    }
+
+    /**
+     * Add a numeric value to the window of the rule, after its raw event has been stored when keepRaw() asked for it. A value
+     * for a window before the open window of the series is late; it is not added, since its raw event has been stored.
+     * @param rule the rule found with findRule
+     * @param windowKey the identification of the series of values
+     * @param value the numeric value
+     * @param timestamp the timestamp of the event
+     */
+    public static void add(final RollupRule rule, final WindowKey windowKey, final double value,
+            final LocalDateTime timestamp)
+    {
+        long windowStart = windowStart(rule, timestamp);
+        List<Window> closed = new ArrayList<>(1);
+        windows.compute(windowKey, (k, w) ->
+        {
+            if (w != null && windowStart < w.start)
+            {
+                late.increment();
+                return w;
+            }
+            if (w != null && windowStart > w.start)
+            {
+                closed.add(w);
+                w = null;
+            }
+            if (w == null)
+                w = new Window(windowStart, rule.windowSeconds());
+            w.add(value);
+            return w;
+        });
+        for (Window w : closed)
+            write(windowKey, w);
+    }
+
+    private static long windowStart(final RollupRule rule, final LocalDateTime timestamp)
+    {
+        long epochSecond = timestamp.toEpochSecond(ZoneOffset.UTC);
+        return epochSecond - Math.floorMod(epochSecond, rule.windowSeconds());
+    }
+
+    /**
+     * Write the windows that did not receive values for the duration of their window, or all windows when forced.
+     * @param all whether all windows have to be written
+     */
+    private static void flushIdle(final boolean all)
+    {
+        long now = System.nanoTime();
+        for (WindowKey key : windows.keySet())
+        {
+            List<Window> closed = new ArrayList<>(1);
+            windows.computeIfPresent(key, (k, w) ->
+            {
+                if (all || now - w.lastUpdateNanos > TimeUnit.SECONDS.toNanos(w.windowSeconds))
+                {
+                    closed.add(w);
+                    return null;
+                }
+                return w;
+            });
+            for (Window w : closed)
+                write(key, w);
+        }
+        if (all || System.currentTimeMillis() >= nextRetryMillis)
+        {
+            nextRetryMillis =
+                    System.currentTimeMillis() + 1000L * Math.max(1, ServerProperties.getInt("rollup.retrySeconds", 30));
+            retryPending();
+        }
+    }
+
+    /**
+     * Write a closed window, or keep it in the pending file when it cannot be written because of a transient failure.
+     * @param key the identification of the series
+     * @param window the closed window
+     */
+    private static void write(final WindowKey key, final Window window)
+    {
+        if (serverData == null)
+            return;
+        try
+        {
+            insert(key, window);
+        }
+        catch (RuntimeException e)
+        {
+            synchronized (pendingLock)
+            {
+                if (isTransient(e))
+                {
+                    log.warn("could not store rollup for " + key + ", kept as pending: " + e.getMessage());
+                    appendPending(List.of(toJson(key, window)), StandardOpenOption.APPEND);
+                }
+                else
+                    deadLetter(toJson(key, window), e);
+            }
+        }
+    }
+
+    /**
+     * Return whether a window that could not be inserted can be written later: the database or the connection pool is not
+     * available, or the tenant is being moved. Other failures, such as a foreign key or data error, will not go away.
+     * @param e the exception of the insert
+     * @return whether the window has to be kept as pending
+     */
+    private static boolean isTransient(final RuntimeException e)
+    {
+        return e instanceof ShardRouter.TenantMovingException || RetryManager.isTransient(e);
+    }
+
+    /**
+     * Insert a window in the shard of the tenant of the series.
+     * @param key the identification of the series
+     * @param window the window
+     * @throws RuntimeException when the window cannot be inserted, e.g., because the tenant is being moved
+     */
+    private static void insert(final WindowKey key, final Window window)
+    {
+        ShardRouter.Route route = ShardRouter.enter(serverData, key.organizationCode(), key.gameCode());
+        try
+        {
+            DSLContext dsl = route.data().getDSL();
+            dsl.insertInto(DSL.table(DSL.name("event_rollup")), DSL.field(DSL.name("data_type")),
+                    DSL.field(DSL.name("game_session_id")), DSL.field(DSL.name("game_mission_id")),
+                    DSL.field(DSL.name("attempt_id")), DSL.field(DSL.name("key")), DSL.field(DSL.name("window_start")),
+                    DSL.field(DSL.name("window_end")), DSL.field(DSL.name("count")), DSL.field(DSL.name("min")),
+                    DSL.field(DSL.name("max")), DSL.field(DSL.name("sum")), DSL.field(DSL.name("last")))
+                    .values(key.dataType(), key.gameSessionId(), key.gameMissionId(), key.attemptId(), key.key(),
+                            LocalDateTime.ofEpochSecond(window.start, 0, ZoneOffset.UTC),
+                            LocalDateTime.ofEpochSecond(window.start + window.windowSeconds, 0, ZoneOffset.UTC), window.count,
+                            window.min, window.max, window.sum, window.last)
+                    .execute();
+            written.increment();
+        }
+        finally
+        {
+            ShardRouter.exit(route);
+        }
+    }
+
+    private static Path pendingFile()
+    {
+        return Paths.get(ServerProperties.getConfigDir(), "rollup", "pending.ndjson");
+    }
+
+    /**
+     * Write the windows of the pending file again. The windows that still fail with a transient error stay pending, and the
+     * windows that fail otherwise are moved to the dead-letter file. When the database cannot be reached, the remaining
+     * windows are not tried in this round, but a tenant that is being moved does not hold up the windows of other tenants.
+     * Called by the flusher.
+     */
+    private static void retryPending()
+    {
+        synchronized (pendingLock)
+        {
+            Path file = pendingFile();
+            if (serverData == null || !Files.isReadable(file))
+                return;
+            List<String> lines;
+            try
+            {
+                lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            }
+            catch (IOException e)
+            {
+                log.error("pending rollups " + file + " could not be read: " + e.getMessage());
+                return;
+            }
+            List<JSONObject> remaining = new ArrayList<>();
+            boolean unavailable = false;
+            int handled = 0;
+            for (String line : lines)
+            {
+                if (line.isBlank())
+                    continue;
+                JSONObject json;
+                try
+                {
+                    json = new JSONObject(line);
+                }
+                catch (JSONException e)
+                {
+                    handled++;
+                    deadLetter(new JSONObject().put("line", line), e);
+                    continue;
+                }
+                if (unavailable)
+                {
+                    remaining.add(json);
+                    continue;
+                }
+                try
+                {
+                    WindowKey key = new WindowKey(json.getString("dataType"), json.getInt("gameSessionId"),
+                            json.getInt("gameMissionId"), json.has("attemptId") ? json.getInt("attemptId") : null,
+                            json.getString("key"), json.optString("organizationCode", null),
+                            json.optString("gameCode", null));
+                    Window window = new Window(json.getLong("start"), json.getInt("windowSeconds"));
+                    window.count = json.getLong("count");
+                    window.min = json.getDouble("min");
+                    window.max = json.getDouble("max");
+                    window.sum = json.getDouble("sum");
+                    window.last = json.getDouble("last");
+                    insert(key, window);
+                    handled++;
+                }
+                catch (ShardRouter.TenantMovingException e)
+                {
+                    remaining.add(json);
+                }
+                catch (RuntimeException e)
+                {
+                    if (isTransient(e))
+                    {
+                        // the database is still not available, so the other windows are not tried in this round
+                        log.warn("pending rollups still cannot be stored: " + e.getMessage());
+                        unavailable = true;
+                        remaining.add(json);
+                    }
+                    else
+                    {
+                        handled++;
+                        deadLetter(json, e);
+                    }
+                }
+            }
+            if (remaining.isEmpty())
+            {
+                try
+                {
+                    Files.deleteIfExists(file);
+                }
+                catch (IOException e)
+                {
+                    log.error("pending rollups " + file + " could not be deleted: " + e.getMessage());
+                }
+            }
+            else if (handled > 0)
+                appendPending(remaining, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    /**
+     * Append a window that cannot be written to the dead-letter file of the rollups, while holding the pendingLock.
+     * @param json the window as JSON, or the line of the pending file that could not be read
+     * @param cause the reason why the window cannot be written
+     */
+    private static void deadLetter(final JSONObject json, final Exception cause)
+    {
+        deadLettered.increment();
+        log.error("rollup cannot be stored, moved to the dead-letter file: " + cause.getMessage() + ", window: " + json);
+        json.put("reason", String.valueOf(cause.getMessage()));
+        json.put("deadLettered", LocalDateTime.now().toString());
+        Path file = pendingFile().resolveSibling("deadletter.ndjson");
+        try
+        {
+            Files.createDirectories(file.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND))
+            {
+                writer.write(json.toString());
+                writer.newLine();
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("could not write rollup dead-letter file " + file + ": " + e.getMessage() + ", window: " + json);
+        }
+    }
+
+    /**
+     * Write windows to the pending file, while holding the pendingLock. Rewriting goes through a temporary file, so the
+     * pending windows are not lost when the server stops while writing.
+     * @param windowsJson the windows as JSON
+     * @param option APPEND to add the windows, or TRUNCATE_EXISTING to replace the file
+     */
+    private static void appendPending(final List<JSONObject> windowsJson, final StandardOpenOption option)
+    {
+        Path file = pendingFile();
+        try
+        {
+            Files.createDirectories(file.getParent());
+            Path target = option == StandardOpenOption.APPEND ? file : file.resolveSibling("pending.ndjson.tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, option))
+            {
+                for (JSONObject json : windowsJson)
+                {
+                    writer.write(json.toString());
+                    writer.newLine();
+                }
+            }
+            if (target != file)
+                Files.move(target, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (option == StandardOpenOption.APPEND)
+                pending.add(windowsJson.size());
+        }
+        catch (IOException e)
+        {
+            log.error("could not write pending rollups " + file + ": " + e.getMessage() + ", windows: " + windowsJson);
+        }
+    }
+
+    private static JSONObject toJson(final WindowKey key, final Window window)
+    {
+        JSONObject json = new JSONObject();
+        json.put("dataType", key.dataType());
+        json.put("gameSessionId", key.gameSessionId());
+        json.put("gameMissionId", key.gameMissionId());
+        json.putOpt("attemptId", key.attemptId());
+        json.put("key", key.key());
+        json.putOpt("organizationCode", key.organizationCode());
+        json.putOpt("gameCode", key.gameCode());
+        json.put("start", window.start);
+        json.put("windowSeconds", window.windowSeconds);
+        json.put("count", window.count);
+        json.put("min", window.min);
+        json.put("max", window.max);
+        json.put("sum", window.sum);
+        json.put("last", window.last);
+        return json;
+    }
+
+    /**
+     * Return the counters of the rollups.
+     * @return the counters
+     */
+    public static Statistics getStatistics()
+    {
+        return new Statistics(rules.size(), windows.size(), written.sum(), pending.sum(), late.sum(), deadLettered.sum());
+    }
+
+    /**
+     * Counters of the rollups.
+     * @param rules the number of rollup rules
+     * @param open the number of open windows
+     * @param written the number of windows that have been written
+     * @param pending the number of windows that were added to the pending file because they could not be written
+     * @param late the number of values that arrived late, and were stored as raw events
+     * @param deadLettered the number of windows that were moved to the dead-letter file because they cannot be written
+     */
+    public record Statistics(int rules, int open, long written, long pending, long late, long deadLettered)
+    {
+    }
+
+    /**
+     * A rule that indicates which events are rolled up.
+     * @param gameCode the game code
+     * @param gameVersionCode the game version code, or null for all versions
+     * @param gameMissionCode the game mission code, or null for all missions
+     * @param keyPattern the event key, or a prefix of the key followed by '*'
+     * @param windowSeconds the length of the tumbling window in seconds
+     * @param sampleEvery store one raw event for every sampleEvery events (0 = none)
+     */
+    public record RollupRule(String gameCode, String gameVersionCode, String gameMissionCode, String keyPattern,
+            int windowSeconds, int sampleEvery)
+    {
+        boolean matches(final String game, final String gameVersion, final String gameMission, final String key)
+        {
+            if (!this.gameCode.equals(game))
+                return false;
+            if (this.gameVersionCode != null && !this.gameVersionCode.equals(gameVersion))
+                return false;
+            if (this.gameMissionCode != null && !this.gameMissionCode.equals(gameMission))
+                return false;
+            if (this.keyPattern.endsWith("*"))
+                return key.startsWith(this.keyPattern.substring(0, this.keyPattern.length() - 1));
+            return this.keyPattern.equals(key);
+        }
+    }
+
+    /**
+     * The identification of a series of values that is rolled up.
+     * @param dataType mission_event or player_event
+     * @param gameSessionId the id of the game session
+     * @param gameMissionId the id of the game mission
+     * @param attemptId the id of the player attempt, or null for mission events
+     * @param key the event key
+     * @param organizationCode the code of the organization of the game session, to find the shard of the tenant
+     * @param gameCode the code of the game of the game session, to find the shard of the tenant
+     */
+    public record WindowKey(String dataType, Integer gameSessionId, Integer gameMissionId, Integer attemptId, String key,
+            String organizationCode, String gameCode)
+    {
+    }
+
+    /**
+     * The aggregated values for one window. Updates take place inside the compute method of the map.
+     */
+    private static class Window
+    {
+        final long start;
+
+        final int windowSeconds;
+
+        long count = 0;
+
+        double min = Double.POSITIVE_INFINITY;
+
+        double max = Double.NEGATIVE_INFINITY;
+
+        double sum = 0.0;
+
+        double last = Double.NaN;
+
+        long lastUpdateNanos;
+
+        Window(final long start, final int windowSeconds)
+        {
+            this.start = start;
+            this.windowSeconds = windowSeconds;
+        }
+
+        void add(final double value)
+        {
+            this.count++;
+            this.min = Math.min(this.min, value);
+            this.max = Math.max(this.max, value);
+            this.sum += value;
+            this.last = value;
+            this.lastUpdateNanos = System.nanoTime();
+        }
+    }
+}
@@ -1,8 +1,236 @@
 package nl.gamedata.server;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import com.zaxxer.hikari.HikariDataSource;
+
 import nl.gamedata.common.CommonData;
 
+/**
+ * ServerData holds the connection pools of the server. The data source of CommonData is the write pool for the inserts.
+ * Lookups of metadata and identities can be routed to a separate read pool, which may point to a replica; while the replica
+ * lags more than <code>db.read.maxLagSeconds</code> behind, or its state cannot be determined, the lookups go to the write
+ * pool. Errors are written through a separate small pool, so error records do not wait for the connections of the storage.
+ * The server data also holds the StorageSink through which the StorageProcessor stores the data; the connection pools are only
+ * opened when the sink uses the database.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
 public class ServerData extends CommonData
 {
-    // for now, no extra attributes
+    private static final Log.Logger log = Log.logger("ServerData");
+
+    private DataSource readDataSource = null;
+
+    private DataSource errorDataSource = null;
+
+    private volatile boolean replicaUsable = false;
+
+    private volatile long replicaLagSeconds = -1;
+
+    private volatile String replicaState = "not configured";
+
+    private ScheduledExecutorService lagMonitor = null;
+
+    private StorageSink sink = null;
+
+    private final LongAdder replicaLookups = new LongAdder();
+
+    private final LongAdder primaryLookups = new LongAdder();
+
+    private final LongAdder primaryRechecks = new LongAdder();
+
+    /**
+     * Set the read pool, and start checking the replication lag of the read pool.
+     * @param readDataSource the read pool, or null when lookups use the write pool
+     */
+    public void setReadDataSource(final DataSource readDataSource)
+    {
+        this.readDataSource = readDataSource;
+        if (readDataSource == null)
+            return;
+        this.replicaState = "unknown";
+        long interval = Math.max(1, ServerProperties.getLong("db.read.lagCheckSeconds", 5));
+        this.lagMonitor = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "replica-lag-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lagMonitor.scheduleWithFixedDelay(this::checkReplicaLag, 0, interval, TimeUnit.SECONDS);
+    }
+
+    public void setErrorDataSource(final DataSource errorDataSource)
+    {
+        this.errorDataSource = errorDataSource;
+    }
+
+    /**
+     * Return the storage sink of the server, see StorageSink.
+     * @return the storage sink
+     */
+    public StorageSink getSink()
+    {
+        return this.sink;
+    }
+
+    public void setSink(final StorageSink sink)
+    {
+        this.sink = sink;
+    }
+
+    /**
+     * Look up a single record on the read pool while the replica is usable, otherwise on the write pool. A record that is not
+     * found on the read pool may not have been replicated yet, e.g., a player that was created by the previous message, so the
+     * lookup is repeated on the write pool before the caller creates the record or reports it as missing. A record that is
+     * found on the read pool is attached to the write pool, so it can be stored or refreshed as usual.
+     * @param <R> the record type
+     * @param query the query that returns the record or null, executed on the given DSL
+     * @return the record, or null when it does not exist on the write pool either
+     */
+    public <R extends Record> R lookup(final Function<DSLContext, R> query)
+    {
+        if (this.replicaUsable)
+        {
+            this.replicaLookups.increment();
+            R record = query.apply(DSL.using(this.readDataSource, SQLDialect.MYSQL));
+            if (record != null)
+            {
+                record.attach(getDSL().configuration());
+                return record;
+            }
+            this.primaryRechecks.increment();
+        }
+        else
+            this.primaryLookups.increment();
+        return query.apply(getDSL());
+    }
+
+    /**
+     * Return the DSL for writing error records.
+     * @return the DSL on the error pool, or on the write pool when there is no error pool
+     */
+    public DSLContext getErrorDSL()
+    {
+        return this.errorDataSource == null ? getDSL() : DSL.using(this.errorDataSource, SQLDialect.MYSQL);
+    }
+
+    /** Stop checking the replication lag. */
+    public void stop()
+    {
+        if (this.lagMonitor != null)
+            this.lagMonitor.shutdownNow();
+    }
+
+    /** Close the write, read and error pools, e.g., when the storage stops or could not be started. */
+    public void closePools()
+    {
+        for (DataSource dataSource : new DataSource[] {getDataSource(), this.readDataSource, this.errorDataSource})
+        {
+            if (dataSource instanceof HikariDataSource hikari)
+                hikari.close();
+        }
+    }
+
+    /**
+     * Determine the replication lag of the read pool. A server that is not a replica has no lag. When the replication is
+     * stopped, or the status cannot be read, lookups go to the write pool.
+     */
+    private void checkReplicaLag()
+    {
+        long maxLag = ServerProperties.getLong("db.read.maxLagSeconds", 5);
+        try (Connection connection = this.readDataSource.getConnection(); Statement statement = connection.createStatement())
+        {
+            long lag;
+            String column = "Seconds_Behind_Source";
+            ResultSet rs;
+            try
+            {
+                rs = statement.executeQuery("SHOW REPLICA STATUS");
+            }
+            catch (SQLException e)
+            {
+                // MySQL before 8.0.22
+                rs = statement.executeQuery("SHOW SLAVE STATUS");
+                column = "Seconds_Behind_Master";
+            }
+            try (ResultSet status = rs)
+            {
+                if (!status.next())
+                {
+                    lag = 0;
+                    this.replicaState = "not a replica";
+                }
+                else
+                {
+                    lag = status.getLong(column);
+                    if (status.wasNull())
+                    {
+                        lag = -1;
+                        this.replicaState = "replication stopped";
+                    }
+                    else
+                        this.replicaState = "replica";
+                }
+            }
+            this.replicaLagSeconds = lag;
+            boolean usable = lag >= 0 && lag <= maxLag;
+            if (usable != this.replicaUsable)
+                log.info("lookups now go to the " + (usable ? "read" : "write") + " pool (replica lag "
+                        + lag + " s, " + this.replicaState + ")");
+            this.replicaUsable = usable;
+        }
+        catch (Exception e)
+        {
+            if (this.replicaUsable)
+                log.error("replica status could not be read, lookups go to the write pool: "
+                        + e.getMessage());
+            this.replicaState = "error: " + e.getMessage();
+            this.replicaLagSeconds = -1;
+            this.replicaUsable = false;
+        }
+    }
+
+    /**
+     * Return the statistics of the routing of the lookups.
+     * @return the statistics
+     */
+    public RoutingStatistics getRoutingStatistics()
+    {
+        return new RoutingStatistics(this.readDataSource != null, this.replicaUsable, this.replicaState,
+                this.replicaLagSeconds, this.replicaLookups.sum(), this.primaryLookups.sum(), this.primaryRechecks.sum());
+    }
+
+    /**
+     * Statistics of the routing of the lookups.
+     * @param readPool whether a read pool is configured
+     * @param readRouted whether lookups currently go to the read pool
+     * @param replicaState the state of the read pool
+     * @param replicaLagSeconds the last measured replication lag in seconds, or -1 when unknown
+     * @param replicaLookups the number of lookups on the read pool
+     * @param primaryLookups the number of lookups on the write pool
+     * @param primaryRechecks the number of lookups that were repeated on the write pool after a miss on the read pool
+     */
+    public record RoutingStatistics(boolean readPool, boolean readRouted, String replicaState, long replicaLagSeconds,
+            long replicaLookups, long primaryLookups, long primaryRechecks)
+    {
+    }
 }
@@ -0,0 +1,220 @@
+package nl.gamedata.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jakarta.servlet.ServletException;
+
+/**
+ * ServerProperties reads the gamedata.properties file from the gamedata folder in the home directory of the user once, and
+ * gives access to the (optional) settings of the server. The database credentials are read from the same file.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class ServerProperties
+{
+    private static final Log.Logger log = Log.logger("ServerProperties");
+
+    private static volatile Properties properties = null;
+
+    private static String configDir = null;
+
+    /** the settings of a tool that replace the settings of the file, see override(). */
+    private static final Map<String, String> overrides = new ConcurrentHashMap<>();
+
+    private ServerProperties()
+    {
+        // utility class
+    }
+
+    /**
+     * Load the properties when this has not been done before.
+     * @return the properties from the gamedata.properties file
+     * @throws ServletException when the file cannot be found or read
+     */
+    public static synchronized Properties load() throws ServletException
+    {
+        if (properties != null)
+            return properties;
+
+        if (configDir == null)
+        {
+            String homeFolder = System.getProperty("user.home");
+            if (homeFolder == null)
+            {
+                throw new ServletException("Home folder to retrieve database credentials not found");
+            }
+            configDir = homeFolder + File.separator + "gamedata";
+        }
+        File configFile = new File(configDir, "gamedata.properties");
+        Properties gamedataProperties = new Properties();
+        try (InputStream stream = new FileInputStream(configFile))
+        {
+            gamedataProperties.load(stream);
+        }
+        catch (FileNotFoundException fnfe)
+        {
+            throw new ServletException(
+                    "File with database credentials not found at " + configDir + "/" + "gamedata.properties");
+        }
+        catch (IOException ioe)
+        {
+            throw new ServletException("Error when reading database credentials at " + configDir + "/" + "gamedata.properties");
+        }
+        properties = gamedataProperties;
+        return properties;
+    }
+
+    /**
+     * Return the folder in which the gamedata.properties file is stored. Other files of the server, such as logs, are stored
+     * relative to this folder.
+     * @return the gamedata config folder
+     */
+    public static String getConfigDir()
+    {
+        if (configDir == null)
+            configDir = System.getProperty("user.home") + File.separator + "gamedata";
+        return configDir;
+    }
+
+    private static boolean isLoaded()
+    {
+        if (properties == null)
+        {
+            try
+            {
+                load();
+            }
+            catch (ServletException e)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return a property, or the default value when the property is not set or the properties could not be loaded.
+     * @param key the key to look up
+     * @param defaultValue the value to return when the key is not set
+     * @return the property value or the default value
+     */
+    public static String get(final String key, final String defaultValue)
+    {
+        String override = overrides.get(key);
+        if (override != null)
+            return override;
+        if (!isLoaded())
+            return defaultValue;
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : value.strip();
+    }
+
+    /**
+     * Read the gamedata.properties file from another folder than the gamedata folder in the home directory, e.g., for a tool
+     * that must not use the settings and the database of the server. The other files, such as logs, are stored relative to
+     * this folder as well. Has to be called before the settings are used.
+     * @param dir the folder with the gamedata.properties file
+     */
+    static synchronized void useConfigDir(final String dir)
+    {
+        configDir = dir;
+        properties = null;
+    }
+
+    /**
+     * Replace a setting of the gamedata.properties file in this process, e.g., for a tool that runs the storage pipeline. The
+     * database credentials cannot be replaced.
+     * @param key the key of the setting
+     * @param value the value of the setting
+     */
+    static void override(final String key, final String value)
+    {
+        overrides.put(key, value);
+    }
+
+    public static int getInt(final String key, final int defaultValue)
+    {
+        String value = get(key, null);
+        if (value == null)
+            return defaultValue;
+        try
+        {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn("Property " + key + " is not an integer: " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(final String key, final long defaultValue)
+    {
+        String value = get(key, null);
+        if (value == null)
+            return defaultValue;
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn("Property " + key + " is not a long: " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(final String key, final double defaultValue)
+    {
+        String value = get(key, null);
+        if (value == null)
+            return defaultValue;
+        try
+        {
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn("Property " + key + " is not a number: " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(final String key, final boolean defaultValue)
+    {
+        String value = get(key, null);
+        if (value == null)
+            return defaultValue;
+        return "true".equalsIgnoreCase(value) || "1".equals(value);
+    }
+
+    /**
+     * Return all property keys that start with the given prefix.
+     * @param prefix the prefix, e.g., "rollup."
+     * @return the sorted keys that start with the prefix
+     */
+    public static SortedSet<String> keysWithPrefix(final String prefix)
+    {
+        SortedSet<String> keys = new TreeSet<>();
+        if (!isLoaded())
+            return keys;
+        for (String key : properties.stringPropertyNames())
+        {
+            if (key.startsWith(prefix))
+                keys.add(key);
+        }
+        return keys;
+    }
+}
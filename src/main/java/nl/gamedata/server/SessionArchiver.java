@@ -0,0 +1,657 @@
+package nl.gamedata.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.jooq.Condition;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.TableField;
+import org.jooq.impl.DSL;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import nl.gamedata.data.Tables;
+import nl.gamedata.data.tables.records.GameSessionRecord;
+
+/**
+ * SessionArchiver moves the events of archived game sessions (<code>archived=1</code>) from the tables mission_event,
+ * player_event and group_event to gzip-compressed NDJSON files in the folder <code>archive.dir</code>, so the event tables
+ * and their indexes only hold the data of the sessions that are still in use. Every line of a file is a JSON object with the
+ * name of the table in the field <code>table</code>, and the columns of the row. The files are listed in the manifest
+ * <code>manifest.json</code> in the same folder, with the number of rows per table, the size and the SHA-256 checksum. The
+ * archived sessions are found in the main database, and their events are moved from the shard of their tenant.
+ * <p>
+ * A session is archived in four steps: the rows are written to a new file, which is flushed to disk; the file is added to
+ * the manifest as a pending part; the rows are deleted in one transaction, up to the highest id that was written; and the
+ * part is marked as complete. The name of a file holds the time at which it was written, and a file is only created when it
+ * does not exist, so a part never overwrites another part. When the number of deleted rows differs from the number of
+ * written rows, the transaction is rolled back. A pending part, e.g., after a failed deletion or a crash before the part was
+ * marked as complete, is resolved before the session is archived again, and in every run: when its rows are still in the
+ * database, the deletion did not happen, and the part and its file are removed; when its rows are gone, the part is marked
+ * as complete. Pending parts are not exported. Events that arrive for a session after it was archived, e.g., from a client
+ * that was offline or from a retry, are moved to an additional part: every run also looks for sessions in the manifest that
+ * have events in the database again, with one query per database.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class SessionArchiver
+{
+    private static final Log.Logger log = Log.logger("SessionArchiver");
+
+    private static final String MANIFEST = "manifest.json";
+
+    /** the state of a part of which the rows may not have been deleted yet. */
+    private static final String PENDING = "pending";
+
+    /** serializes the archiving and the changes of the manifest. */
+    private static final Object lock = new Object();
+
+    /** the manifest, with an object per archived session; only accessed while holding the lock. */
+    private static JSONObject manifest = new JSONObject().put("sessions", new JSONObject());
+
+    private static volatile ServerData data = null;
+
+    private static ScheduledExecutorService scheduler = null;
+
+    private static volatile long archivedRows = 0;
+
+    private static volatile long lastRun = 0;
+
+    private static volatile String lastError = "";
+
+    private SessionArchiver()
+    {
+        // utility class
+    }
+
+    /**
+     * Read the manifest, and when <code>archive.enabled</code> is true, start archiving the archived sessions every
+     * <code>archive.intervalMinutes</code>.
+     * @param serverData the server data with the connection pool
+     */
+    public static synchronized void start(final ServerData serverData)
+    {
+        data = serverData;
+        readManifest();
+        if (!ServerProperties.getBoolean("archive.enabled", false) || scheduler != null)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "session-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, ServerProperties.getLong("archive.intervalMinutes", 60));
+        scheduler.scheduleWithFixedDelay(SessionArchiver::archiveDue, interval, interval, TimeUnit.MINUTES);
+    }
+
+    public static synchronized void stop()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private static Path archiveDir()
+    {
+        return Paths.get(ServerProperties.get("archive.dir", ServerProperties.getConfigDir() + "/archive"));
+    }
+
+    /**
+     * Resolve the pending parts, and archive at most <code>archive.batchSessions</code> archived sessions: first the sessions
+     * that are not in the manifest yet, then the sessions in the manifest that received events after they were archived.
+     */
+    private static void archiveDue()
+    {
+        lastRun = System.currentTimeMillis();
+        try
+        {
+            List<Integer> due = new ArrayList<>();
+            synchronized (lock)
+            {
+                JSONObject sessions = manifest.getJSONObject("sessions");
+                for (String id : new TreeSet<>(sessions.keySet()))
+                    if (hasPendingPart(sessions.getJSONObject(id)))
+                        due.add(Integer.valueOf(id));
+                int batch = ServerProperties.getInt("archive.batchSessions", 10);
+                List<Integer> archivedBefore = new ArrayList<>();
+                for (Integer id : data.getDSL().select(Tables.GAME_SESSION.ID).from(Tables.GAME_SESSION)
+                        .where(Tables.GAME_SESSION.ARCHIVED.eq((byte) 1)).orderBy(Tables.GAME_SESSION.ID)
+                        .fetch(Tables.GAME_SESSION.ID))
+                {
+                    if (sessions.has(id.toString()))
+                        archivedBefore.add(id);
+                    else if (due.size() < batch)
+                        due.add(id);
+                }
+                if (due.size() < batch)
+                    for (Integer id : sessionsWithEvents(archivedBefore))
+                        if (due.size() < batch && !due.contains(id))
+                            due.add(id);
+            }
+            for (Integer id : due)
+            {
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                archive(id);
+            }
+            lastError = "";
+        }
+        catch (Exception e)
+        {
+            lastError = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            log.error("archiving failed: " + lastError);
+        }
+    }
+
+    /**
+     * Return the sessions that have events in one of the databases, the main database or a shard, with one query per database
+     * for every 1000 sessions.
+     * @param sessionIds the ids of the game sessions
+     * @return the ids of the sessions with events, in ascending order
+     */
+    private static Set<Integer> sessionsWithEvents(final List<Integer> sessionIds)
+    {
+        Set<Integer> result = new TreeSet<>();
+        if (sessionIds.isEmpty())
+            return result;
+        Set<ServerData> databases = Collections.newSetFromMap(new IdentityHashMap<>());
+        databases.add(data);
+        for (String shard : ShardRouter.getStatistics().shards())
+            if (ShardRouter.data(shard) != null)
+                databases.add(ShardRouter.data(shard));
+        for (int from = 0; from < sessionIds.size(); from += 1000)
+        {
+            List<Integer> ids = sessionIds.subList(from, Math.min(sessionIds.size(), from + 1000));
+            for (ServerData database : databases)
+            {
+                DSLContext dsl = database.getDSL();
+                result.addAll(dsl.selectDistinct(Tables.MISSION_EVENT.GAME_SESSION_ID).from(Tables.MISSION_EVENT)
+                        .where(Tables.MISSION_EVENT.GAME_SESSION_ID.in(ids))
+                        .union(DSL.selectDistinct(Tables.PLAYER.GAME_SESSION_ID).from(Tables.PLAYER)
+                                .join(Tables.PLAYER_ATTEMPT).on(Tables.PLAYER_ATTEMPT.PLAYER_ID.eq(Tables.PLAYER.ID))
+                                .join(Tables.PLAYER_EVENT)
+                                .on(Tables.PLAYER_EVENT.PLAYER_ATTEMPT_ID.eq(Tables.PLAYER_ATTEMPT.ID))
+                                .where(Tables.PLAYER.GAME_SESSION_ID.in(ids)))
+                        .union(DSL.selectDistinct(Tables.GROUP.GAME_SESSION_ID).from(Tables.GROUP)
+                                .join(Tables.GROUP_ATTEMPT).on(Tables.GROUP_ATTEMPT.GROUP_ID.eq(Tables.GROUP.ID))
+                                .join(Tables.GROUP_EVENT).on(Tables.GROUP_EVENT.GROUP_ATTEMPT_ID.eq(Tables.GROUP_ATTEMPT.ID))
+                                .where(Tables.GROUP.GAME_SESSION_ID.in(ids)))
+                        .fetch(0, Integer.class));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Move the events of an archived game session to a new part of its archive.
+     * @param sessionId the id of the game session
+     * @return the number of rows that were moved
+     * @throws IOException when the file could not be written; the rows then stay in the database
+     * @throws IllegalStateException when the session does not exist or is not archived, its tenant is being moved to another
+     *             shard, or the deletion did not match the file
+     */
+    public static int archive(final int sessionId) throws IOException
+    {
+        synchronized (lock)
+        {
+            DSLContext dsl = data.getDSL();
+            GameSessionRecord session =
+                    dsl.selectFrom(Tables.GAME_SESSION).where(Tables.GAME_SESSION.ID.eq(sessionId)).fetchAny();
+            if (session == null)
+                throw new IllegalStateException("Game session " + sessionId + " does not exist");
+            if (session.getArchived() == null || session.getArchived() == 0)
+                throw new IllegalStateException("Game session " + sessionId + " is not archived");
+
+            // the events are stored in the shard of the tenant of the game session
+            ShardRouter.Route route;
+            try
+            {
+                route = ShardRouter.enter(data, session);
+            }
+            catch (ShardRouter.TenantMovingException e)
+            {
+                throw new IllegalStateException(e.getMessage());
+            }
+            try
+            {
+                return archive(session, route.data().getDSL());
+            }
+            finally
+            {
+                ShardRouter.exit(route);
+            }
+        }
+    }
+
+    /**
+     * Move the events of an archived game session to a new part of its archive, while holding the lock.
+     * @param session the game session
+     * @param dsl the DSL of the shard of the game session
+     * @return the number of rows that were moved
+     * @throws IOException when the file could not be written; the rows then stay in the database
+     */
+    private static int archive(final GameSessionRecord session, final DSLContext dsl) throws IOException
+    {
+        int sessionId = session.getId();
+        List<Part> parts = List.of(
+                new Part("mission_event", Tables.MISSION_EVENT, Tables.MISSION_EVENT.ID,
+                        Tables.MISSION_EVENT.GAME_SESSION_ID.eq(sessionId)),
+                new Part("player_event", Tables.PLAYER_EVENT, Tables.PLAYER_EVENT.ID,
+                        Tables.PLAYER_EVENT.PLAYER_ATTEMPT_ID.in(DSL.select(Tables.PLAYER_ATTEMPT.ID)
+                                .from(Tables.PLAYER_ATTEMPT).where(Tables.PLAYER_ATTEMPT.PLAYER_ID.in(DSL
+                                        .select(Tables.PLAYER.ID).from(Tables.PLAYER)
+                                        .where(Tables.PLAYER.GAME_SESSION_ID.eq(sessionId)))))),
+                new Part("group_event", Tables.GROUP_EVENT, Tables.GROUP_EVENT.ID,
+                        Tables.GROUP_EVENT.GROUP_ATTEMPT_ID.in(DSL.select(Tables.GROUP_ATTEMPT.ID)
+                                .from(Tables.GROUP_ATTEMPT).where(Tables.GROUP_ATTEMPT.GROUP_ID.in(DSL
+                                        .select(Tables.GROUP.ID).from(Tables.GROUP)
+                                        .where(Tables.GROUP.GAME_SESSION_ID.eq(sessionId)))))));
+
+        JSONObject entry = manifest.getJSONObject("sessions").optJSONObject(Integer.toString(sessionId));
+        if (entry != null)
+            resolvePending(sessionId, entry, parts, dsl);
+        int partNr = entry == null ? 1 : entry.getJSONArray("parts").length() + 1;
+        Files.createDirectories(archiveDir());
+        long archivedAt = System.currentTimeMillis();
+        String fileName = "session-" + sessionId + "-" + partNr + "-" + archivedAt + ".ndjson.gz";
+        Path file = archiveDir().resolve(fileName);
+
+        // 1. write the rows to a new file, and flush the file to disk; an existing file is never overwritten
+        MessageDigest digest = sha256();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try (OutputStream fileStream = Channels.newOutputStream(channel);
+                DigestOutputStream digestStream = new DigestOutputStream(fileStream, digest);
+                GZIPOutputStream gzip = new GZIPOutputStream(digestStream, 65536);
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8)))
+        {
+            for (Part part : parts)
+                part.export(dsl, writer);
+            writer.flush();
+            gzip.finish();
+            channel.force(true);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        int total = parts.stream().mapToInt(p -> p.count).sum();
+        if (total == 0)
+        {
+            Files.deleteIfExists(file);
+            if (entry == null)
+                addToManifest(sessionId, session.getCode(), null);
+            return 0;
+        }
+
+        // 2. register the file in the manifest as a pending part, with the highest written id per table
+        JSONObject rows = new JSONObject();
+        JSONObject maxIds = new JSONObject();
+        for (Part part : parts)
+        {
+            rows.put(part.name, part.count);
+            maxIds.put(part.name, part.maxId);
+        }
+        JSONObject partEntry = new JSONObject();
+        partEntry.put("file", fileName);
+        partEntry.put("archivedAt", archivedAt);
+        partEntry.put("rows", rows);
+        partEntry.put("maxIds", maxIds);
+        partEntry.put("bytes", Files.size(file));
+        partEntry.put("sha256", HexFormat.of().formatHex(digest.digest()));
+        partEntry.put("state", PENDING);
+        try
+        {
+            addToManifest(sessionId, session.getCode(), partEntry);
+        }
+        catch (IOException e)
+        {
+            // the manifest on disk does not list the file, and the rows are still in the database
+            removePart(sessionId, partEntry);
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        // 3. delete the rows that were written, and check that the same number of rows was deleted
+        try
+        {
+            dsl.transaction(configuration ->
+            {
+                for (Part part : parts)
+                {
+                    if (part.count == 0)
+                        continue;
+                    int deleted = DSL.using(configuration).deleteFrom(part.table)
+                            .where(part.condition.and(part.id.le(part.maxId))).execute();
+                    if (deleted != part.count)
+                        throw new IllegalStateException("Archive of game session " + sessionId + ": " + part.count
+                                + " rows of " + part.name + " written, but " + deleted + " rows deleted");
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            // the outcome of the transaction is checked in the database, in case the commit succeeded after all
+            try
+            {
+                resolvePending(sessionId, manifest.getJSONObject("sessions").getJSONObject(Integer.toString(sessionId)),
+                        parts, dsl);
+            }
+            catch (IOException | RuntimeException resolveError)
+            {
+                // the part stays pending, and is resolved in the next run
+                e.addSuppressed(resolveError);
+            }
+            throw e;
+        }
+
+        // 4. mark the part as complete; when this fails, the part is resolved in the next run
+        partEntry.remove("state");
+        writeManifest();
+        archivedRows += total;
+        log.info(total + " rows of game session " + session.getCode() + " (" + sessionId
+                + ") moved to " + fileName);
+        return total;
+    }
+
+    private static boolean hasPendingPart(final JSONObject entry)
+    {
+        JSONArray parts = entry.getJSONArray("parts");
+        for (int i = 0; i < parts.length(); i++)
+            if (PENDING.equals(parts.getJSONObject(i).optString("state")))
+                return true;
+        return false;
+    }
+
+    /**
+     * Resolve the pending parts of a session, while holding the lock. When none of the rows of a pending part is in the
+     * database anymore, the rows were deleted, and the part is complete. When all its rows are still in the database, the
+     * deletion was rolled back, and the part and its file are removed, since the rows will be archived again.
+     * @param sessionId the id of the game session
+     * @param entry the entry of the session in the manifest
+     * @param parts the tables of the session, with the condition for its rows
+     * @param dsl the DSL of the shard of the game session
+     * @throws IOException when the manifest could not be written
+     * @throws IllegalStateException when only some of the rows of a pending part are in the database
+     */
+    private static void resolvePending(final int sessionId, final JSONObject entry, final List<Part> parts,
+            final DSLContext dsl) throws IOException
+    {
+        JSONArray list = entry.getJSONArray("parts");
+        boolean changed = false;
+        for (int i = list.length() - 1; i >= 0; i--)
+        {
+            JSONObject part = list.getJSONObject(i);
+            if (!PENDING.equals(part.optString("state")))
+                continue;
+            JSONObject rows = part.getJSONObject("rows");
+            JSONObject maxIds = part.getJSONObject("maxIds");
+            int written = 0;
+            int inDatabase = 0;
+            for (Part table : parts)
+            {
+                int count = rows.optInt(table.name, 0);
+                written += count;
+                if (count > 0)
+                    inDatabase += dsl.fetchCount(table.table, table.condition.and(table.id.le(maxIds.getInt(table.name))));
+            }
+            String file = part.getString("file");
+            if (inDatabase == 0)
+            {
+                part.remove("state");
+                log.info("pending part " + file + " of game session " + sessionId + " is complete");
+            }
+            else if (inDatabase == written)
+            {
+                list.remove(i);
+                Files.deleteIfExists(archiveDir().resolve(file));
+                log.info("pending part " + file + " of game session " + sessionId + " removed, its rows were not deleted");
+            }
+            else
+                throw new IllegalStateException("Archive of game session " + sessionId + ": pending part " + file + " has "
+                        + written + " rows, of which " + inDatabase + " are still in the database");
+            changed = true;
+        }
+        if (changed)
+            writeManifest();
+    }
+
+    /**
+     * Remove a part from the manifest in memory, while holding the lock.
+     * @param sessionId the id of the game session
+     * @param part the part to remove
+     */
+    private static void removePart(final int sessionId, final JSONObject part)
+    {
+        JSONArray list = manifest.getJSONObject("sessions").getJSONObject(Integer.toString(sessionId)).getJSONArray("parts");
+        for (int i = list.length() - 1; i >= 0; i--)
+            if (list.getJSONObject(i) == part)
+                list.remove(i);
+    }
+
+    /**
+     * Add a session, and optionally a part, to the manifest, and write the manifest, while holding the lock.
+     * @param sessionId the id of the game session
+     * @param code the code of the game session
+     * @param part the part to add, or null to only register the session
+     * @throws IOException when the manifest could not be written
+     */
+    private static void addToManifest(final int sessionId, final String code, final JSONObject part) throws IOException
+    {
+        JSONObject sessions = manifest.getJSONObject("sessions");
+        JSONObject entry = sessions.optJSONObject(Integer.toString(sessionId));
+        if (entry == null)
+        {
+            entry = new JSONObject().put("code", code).put("parts", new JSONArray());
+            sessions.put(Integer.toString(sessionId), entry);
+        }
+        if (part != null)
+            entry.getJSONArray("parts").put(part);
+        writeManifest();
+    }
+
+    /**
+     * Write the manifest, while holding the lock.
+     * @throws IOException when the manifest could not be written
+     */
+    private static void writeManifest() throws IOException
+    {
+        Path temp = archiveDir().resolve(MANIFEST + ".tmp");
+        Files.writeString(temp, manifest.toString(2), StandardCharsets.UTF_8);
+        Files.move(temp, archiveDir().resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void readManifest()
+    {
+        Path file = archiveDir().resolve(MANIFEST);
+        if (!Files.isReadable(file))
+            return;
+        try
+        {
+            JSONObject json = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+            synchronized (lock)
+            {
+                manifest = json;
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            log.error("manifest " + file + " could not be read: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return a copy of the manifest.
+     * @return the manifest
+     */
+    public static JSONObject getManifest()
+    {
+        synchronized (lock)
+        {
+            return new JSONObject(manifest.toString());
+        }
+    }
+
+    /**
+     * Write the archived rows of a game session as NDJSON, decompressed, in the order of the parts.
+     * @param sessionId the id of the game session
+     * @param out the stream to write to
+     * @return whether the session has an archive
+     * @throws IOException on error reading a file or writing the stream
+     */
+    public static boolean export(final int sessionId, final OutputStream out) throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        synchronized (lock)
+        {
+            JSONObject entry = manifest.getJSONObject("sessions").optJSONObject(Integer.toString(sessionId));
+            if (entry == null)
+                return false;
+            JSONArray parts = entry.getJSONArray("parts");
+            for (int i = 0; i < parts.length(); i++)
+                // the rows of a pending part may still be in the database
+                if (!PENDING.equals(parts.getJSONObject(i).optString("state")))
+                    files.add(archiveDir().resolve(parts.getJSONObject(i).getString("file")));
+        }
+        for (Path file : files)
+        {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 65536))
+            {
+                in.transferTo(out);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the statistics of the archiver.
+     * @return the statistics
+     */
+    public static Statistics getStatistics()
+    {
+        int sessions;
+        synchronized (lock)
+        {
+            sessions = manifest.getJSONObject("sessions").length();
+        }
+        return new Statistics(scheduler != null, sessions, archivedRows, lastRun, lastError);
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Statistics of the archiver.
+     * @param enabled whether the archived sessions are archived periodically
+     * @param sessions the number of sessions in the manifest
+     * @param archivedRows the number of rows that were moved to files since the start of the server
+     * @param lastRun the time of the last periodic run in ms since the epoch, or 0 when there was none
+     * @param lastError the error of the last periodic run, or an empty string
+     */
+    public record Statistics(boolean enabled, int sessions, long archivedRows, long lastRun, String lastError)
+    {
+    }
+
+    /** The rows of one table of a game session, with the number of written rows and the highest written id. */
+    private static final class Part
+    {
+        private final String name;
+
+        private final Table<?> table;
+
+        private final TableField<?, Integer> id;
+
+        private final Condition condition;
+
+        private int count = 0;
+
+        private int maxId = 0;
+
+        Part(final String name, final Table<?> table, final TableField<?, Integer> id, final Condition condition)
+        {
+            this.name = name;
+            this.table = table;
+            this.id = id;
+            this.condition = condition;
+        }
+
+        /**
+         * Write the rows as NDJSON. The rows are streamed from the database, so a large session does not fill the memory.
+         * @param dsl the DSL on the write pool
+         * @param writer the writer of the archive file
+         * @throws IOException on error writing the file
+         */
+        void export(final DSLContext dsl, final BufferedWriter writer) throws IOException
+        {
+            // Integer.MIN_VALUE makes MySQL Connector/J stream the rows instead of reading the whole result
+            try (Cursor<? extends Record> cursor =
+                    dsl.selectFrom(this.table).where(this.condition).orderBy(this.id).fetchSize(Integer.MIN_VALUE).fetchLazy())
+            {
+                for (Record record : cursor)
+                {
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    line.put("table", this.name);
+                    for (Field<?> field : record.fields())
+                    {
+                        Object value = record.get(field);
+                        line.put(field.getName(), value == null ? JSONObject.NULL
+                                : value instanceof Number || value instanceof Boolean ? value : value.toString());
+                    }
+                    writer.write(new JSONObject(line).toString());
+                    writer.write('\n');
+                    this.count++;
+                    this.maxId = Math.max(this.maxId, record.get(this.id));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jooq.Record;
+import org.json.JSONObject;
+
+/**
+ * ShardCheck verifies the ShardRouter on the shards of the <code>gamedata.properties</code> of the user that runs it, e.g.,
+ * several schemas on one local MySQL instance (<code>shard.names=s1</code> with
+ * <code>shard.s1.url=jdbc:mysql://localhost:3306/gamedata_s1</code>). These should be test databases, since the tenant is moved
+ * between the shards. The check stores numbered mission events for an existing game session through the storage pipeline, and
+ * counts them per shard: first in the shard of the tenant, then while the tenant is moved to another shard, and after the
+ * tenant has been moved back. Every event has to be stored exactly once, in the shard of the tenant, and the messages that
+ * arrive during the move have to be held back and stored after it without errors. The events of the check have the key
+ * <code>shard_check_&lt;time&gt;</code>, and are deleted at the end.
+ * <p>
+ * Usage: <code>java nl.gamedata.server.ShardCheck --message file --tenant code [--messages n] [--target shard]</code>, where
+ * the file holds the JSON of a valid mission_event message of a game session of the tenant, with its tokens; the key and the
+ * value of the message are replaced by the check. The tenant is the organization code, or the game code when
+ * <code>shard.key=game</code>. The check exits with status 1 when an event is missing, stored twice or stored in another
+ * shard, or when a message failed. Another <code>gamedata.properties</code> can be used by starting the check with
+ * <code>-Duser.home=folder</code>.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class ShardCheck
+{
+    private String messageFile = null;
+
+    private String tenant = null;
+
+    private int messages = 2000;
+
+    private String target = null;
+
+    private final String key = "shard_check_" + System.currentTimeMillis();
+
+    private final AtomicInteger submitted = new AtomicInteger();
+
+    private final AtomicInteger completed = new AtomicInteger();
+
+    private final LongAdder errors = new LongAdder();
+
+    private ShardCheck()
+    {
+        // created by main
+    }
+
+    /**
+     * Run the check.
+     * @param args the options
+     */
+    public static void main(final String[] args)
+    {
+        ShardCheck check = new ShardCheck();
+        if (!check.parseArgs(args))
+        {
+            System.err.println("Usage: ShardCheck --message file --tenant code [--messages n] [--target shard]");
+            System.exit(2);
+        }
+        int status;
+        try
+        {
+            status = check.run();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            System.err.println("ShardCheck: " + e.getMessage());
+            status = 1;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    private boolean parseArgs(final String[] args)
+    {
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--message" -> this.messageFile = args[++i];
+                    case "--tenant" -> this.tenant = args[++i];
+                    case "--messages" -> this.messages = Integer.parseInt(args[++i]);
+                    case "--target" -> this.target = args[++i];
+                    default ->
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException | NumberFormatException e)
+        {
+            return false;
+        }
+        return this.messageFile != null && this.tenant != null && this.messages >= 2;
+    }
+
+    /**
+     * Store the events before, during and after a move of the tenant, and check the counts per shard after every phase.
+     * @return the exit status: 0 when every event was stored once in the shard of the tenant, 1 otherwise
+     * @throws IOException when the message file cannot be read, or the storage cannot be started
+     * @throws InterruptedException when the check is interrupted
+     */
+    private int run() throws IOException, InterruptedException
+    {
+        JSONObject template = new JSONObject(Files.readString(Paths.get(this.messageFile), StandardCharsets.UTF_8));
+        if (!"mission_event".equals(template.optString("data")))
+            throw new IOException("the message in " + this.messageFile + " is not a mission_event");
+
+        // only the storage pipeline and the shards take part in the check
+        ServerProperties.override("cluster.enabled", "false");
+        ServerProperties.override("archive.enabled", "false");
+        ServerProperties.override("queue.spill.enabled", "false");
+        Log.start();
+        TaskProcessor.startProcessing();
+        JSONObject report = new JSONObject();
+        int status = 1;
+        try
+        {
+            if (!TaskProcessor.getServletError().isEmpty())
+                throw new IOException("storage could not be started: " + TaskProcessor.getServletError());
+            ShardRouter.Statistics statistics = ShardRouter.getStatistics();
+            if (!statistics.enabled())
+                throw new IOException("no shards configured in shard.names");
+            String source = statistics.assignments().getOrDefault(this.tenant, statistics.defaultShard());
+            String to = this.target != null ? this.target
+                    : statistics.shards().stream().filter(s -> !s.equals(source)).findFirst().orElseThrow();
+            report.put("tenant", this.tenant);
+            report.put("source", source);
+            report.put("target", to);
+
+            // 1. the first half of the events is stored in the shard of the tenant
+            int half = this.messages / 2;
+            submit(template, 0, half);
+            awaitCompletion();
+            boolean ok = checkCounts(report, "stored", source, half);
+
+            // 2. the second half is sent while the tenant is moved, and has to be held back until the move is finished
+            AtomicReference<String> moveError = new AtomicReference<>();
+            Thread mover = new Thread(() ->
+            {
+                try
+                {
+                    ShardRouter.move(this.tenant, to);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    moveError.set(e.getMessage());
+                }
+            }, "shard-check-move");
+            mover.start();
+            submit(template, half, this.messages);
+            mover.join();
+            awaitCompletion();
+            if (moveError.get() != null)
+            {
+                report.put("moveError", moveError.get());
+                ok = false;
+            }
+            ok &= checkCounts(report, "moved", moveError.get() == null ? to : source, this.messages);
+
+            // 3. the tenant is moved back, with all its events
+            if (moveError.get() == null)
+            {
+                ShardRouter.move(this.tenant, source);
+                ok &= checkCounts(report, "movedBack", source, this.messages);
+            }
+            report.put("errors", this.errors.sum());
+            status = ok && this.errors.sum() == 0 ? 0 : 1;
+        }
+        finally
+        {
+            for (String shard : ShardRouter.getStatistics().shards())
+                ShardRouter.data(shard).getDSL().execute("DELETE FROM mission_event WHERE `key` = ?", this.key);
+            TaskProcessor.stopProcessing();
+            Log.stop();
+        }
+        report.put("result", status == 0 ? "ok" : "failed");
+        System.out.println(report.toString(2));
+        return status;
+    }
+
+    /**
+     * Add the messages with the numbers from first up to last to the queue, and wait while the queue is full.
+     * @param template the message
+     * @param first the number of the first message
+     * @param last the number after the last message
+     */
+    private void submit(final JSONObject template, final int first, final int last)
+    {
+        for (int i = first; i < last; i++)
+        {
+            JSONObject message = new JSONObject(template.toString());
+            message.put("key", this.key);
+            message.put("value", Integer.toString(i));
+            StorageRequestTask task = new StorageRequestTask("POST", "application/json", message.toString(), null, null,
+                    (t, error) -> finished(error), LocalDateTime.now());
+            this.submitted.incrementAndGet();
+            while (!RequestQueueManager.addTask(task))
+                LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    private void finished(final String error)
+    {
+        if (error != null)
+        {
+            this.errors.increment();
+            System.err.println("ShardCheck: " + error);
+        }
+        this.completed.incrementAndGet();
+    }
+
+    /**
+     * Wait until all messages have been processed, or until no message has been processed for a minute.
+     * @throws IOException when the messages are not processed
+     */
+    private void awaitCompletion() throws IOException
+    {
+        int last = -1;
+        long lastProgress = System.nanoTime();
+        while (this.completed.get() < this.submitted.get())
+        {
+            int done = this.completed.get();
+            if (done != last)
+            {
+                last = done;
+                lastProgress = System.nanoTime();
+            }
+            else if (System.nanoTime() - lastProgress > 60_000_000_000L)
+                throw new IOException("no progress for a minute, " + (this.submitted.get() - done) + " messages not processed");
+            LockSupport.parkNanos(10_000_000L);
+        }
+    }
+
+    /**
+     * Count the events of the check per shard, and check that all are in one shard.
+     * @param report the report to add the counts to
+     * @param phase the name of the phase in the report
+     * @param shard the shard that has to hold the events
+     * @param expected the number of events in that shard
+     * @return whether the shard holds exactly the expected events, and the other shards none
+     */
+    private boolean checkCounts(final JSONObject report, final String phase, final String shard, final int expected)
+    {
+        Map<String, Integer> counts = new TreeMap<>();
+        boolean ok = true;
+        for (String name : ShardRouter.getStatistics().shards())
+        {
+            // the values are distinct, so a value that was stored twice shows as a difference of the counts
+            Record r = ShardRouter.data(name).getDSL()
+                    .fetchOne("SELECT COUNT(*), COUNT(DISTINCT `value`) FROM mission_event WHERE `key` = ?", this.key);
+            int rows = r.get(0, Integer.class);
+            counts.put(name, rows);
+            ok &= r.get(1, Integer.class) == rows && rows == (name.equals(shard) ? expected : 0);
+        }
+        report.put(phase, new JSONObject(counts));
+        return ok;
+    }
+}
@@ -0,0 +1,871 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jooq.Condition;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.InsertValuesStepN;
+import org.jooq.Record;
+import org.jooq.Record1;
+import org.jooq.Select;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.json.JSONObject;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import nl.gamedata.data.Tables;
+import nl.gamedata.data.tables.records.GameRecord;
+import nl.gamedata.data.tables.records.GameSessionRecord;
+import nl.gamedata.data.tables.records.GameVersionRecord;
+import nl.gamedata.data.tables.records.OrganizationRecord;
+
+/**
+ * ShardRouter stores the data of a tenant, an organization or a game (<code>shard.key</code>), in one of several databases
+ * with the same schema, so the events of a large tenant do not slow down the inserts and lookups of the others. The main
+ * database of <code>dbUrl</code> is the shard <code>main</code>; the other shards are listed in <code>shard.names</code>, and
+ * every shard has its own write pool. A tenant is stored in the shard of <code>shard.assign.&lt;code&gt;</code>, or in
+ * <code>shard.default</code>; the tenants that were moved while the server runs are kept in <code>shards.json</code> in the
+ * config folder.
+ * <p>
+ * The main database holds the metadata: the game sessions, games, organizations and tokens are always looked up there. The
+ * players, groups, attempts, events, scores and errors of a tenant are written to its shard. Before the first message of a
+ * game session is stored in a shard, the metadata that these rows refer to (the game session, organization, game, game
+ * version, missions, learning goals, objectives and scales) is copied from the main database to the shard. The shards and
+ * the main database interleave their ids with <code>auto_increment_increment</code> and
+ * <code>auto_increment_offset</code>, so the rows of a tenant keep their ids when they are moved to another shard.
+ * </p>
+ * <p>
+ * A tenant is moved in three steps: its new messages are held back until the move is finished, its rows are copied per game
+ * session to the new shard and counted there, and after the assignment has been switched, the rows are deleted from the old
+ * shard. The held messages are not retries: they do not count as attempts, however long the move takes, and when the move
+ * ends they are put back in front of the waiting messages of their session, so they are stored before the messages that
+ * arrived later. Before anything is copied, the move checks that the ids of the rows of the tenant are not in use in the new
+ * shard; rows that were stored in the main database before the shards interleaved their ids can collide there. At most
+ * <code>shard.maxHeldMessages</code> messages are held for all moves together; a message beyond that is retried by the
+ * RetryManager.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class ShardRouter
+{
+    private static final Log.Logger log = Log.logger("ShardRouter");
+
+    /** the name of the shard of the main database. */
+    public static final String MAIN = "main";
+
+    private static final String ASSIGNMENTS = "shards.json";
+
+    /** the number of rows per insert statement when rows are copied to another shard. */
+    private static final int BATCH_ROWS = 500;
+
+    /** serializes the moves and the changes of the assignments file. */
+    private static final Object lock = new Object();
+
+    private static volatile boolean enabled = false;
+
+    private static volatile boolean byGame = false;
+
+    private static volatile String defaultShard = MAIN;
+
+    /** the server data per shard, including the main database. */
+    private static volatile Map<String, ServerData> shards = Map.of();
+
+    /** the shard per tenant code, for the tenants that are not stored in the default shard. */
+    private static final Map<String, String> assignments = new ConcurrentHashMap<>();
+
+    /** the tenants that are being moved, and do not accept new messages. */
+    private static final Set<String> moving = ConcurrentHashMap.newKeySet();
+
+    /** the messages per tenant that arrived while the tenant is being moved, with the number of their next attempt. */
+    private static final Map<String, List<RetryManager.RetryTask>> held = new LinkedHashMap<>();
+
+    /** the number of held messages of all tenants, guarded by held. */
+    private static int heldCount = 0;
+
+    /** the number of messages per tenant that are being stored. */
+    private static final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    /** the shard and game session id of the sessions of which the metadata has been copied to the shard. */
+    private static final Set<String> copiedSessions = ConcurrentHashMap.newKeySet();
+
+    private static final Map<String, LongAdder> routed = new ConcurrentHashMap<>();
+
+    private static volatile long movedRows = 0;
+
+    private ShardRouter()
+    {
+        // utility class
+    }
+
+    /**
+     * Return the SQL that lets the connections of a shard use their own ids, when shards are configured.
+     * @param index the index of the shard: 0 for the main database, and 1 for the first shard of <code>shard.names</code>
+     * @return the SQL for the connections of the pool, or null when there are no shards or the ids are not interleaved
+     */
+    static String idInitSql(final int index)
+    {
+        if (shardNames().isEmpty() || !ServerProperties.getBoolean("shard.interleaveIds", true))
+            return null;
+        int stride = Math.max(2, ServerProperties.getInt("shard.idStride", 16));
+        return "SET SESSION auto_increment_increment = " + stride + ", auto_increment_offset = " + (index + 1);
+    }
+
+    private static List<String> shardNames()
+    {
+        List<String> names = new ArrayList<>();
+        for (String name : ServerProperties.get("shard.names", "").split(","))
+            if (!name.isBlank())
+                names.add(name.strip());
+        return names;
+    }
+
+    /**
+     * Open the pools of the shards of <code>shard.names</code>, and read the assignments of the tenants.
+     * @param mainData the server data of the main database
+     * @throws IllegalArgumentException when a shard is configured without url, or the default shard does not exist
+     */
+    public static void start(final ServerData mainData)
+    {
+        List<String> names = shardNames();
+        Map<String, ServerData> newShards = new LinkedHashMap<>();
+        newShards.put(MAIN, mainData);
+        int stride = Math.max(2, ServerProperties.getInt("shard.idStride", 16));
+        if (names.size() >= stride)
+            throw new IllegalArgumentException("shard.names has more shards than shard.idStride - 1");
+        for (String name : names)
+        {
+            if (MAIN.equals(name) || ServerProperties.get("shard." + name + ".url", "").isBlank()
+                    || names.indexOf(name) != names.lastIndexOf(name))
+                throw new IllegalArgumentException("shard " + name + " is a duplicate, or has no shard." + name + ".url");
+        }
+        String newDefault = ServerProperties.get("shard.default", MAIN);
+        if (!MAIN.equals(newDefault) && !names.contains(newDefault))
+            throw new IllegalArgumentException("shard.default " + newDefault + " is not a shard");
+        for (int i = 0; i < names.size(); i++)
+        {
+            String name = names.get(i);
+            HikariConfig config = TaskProcessor.poolConfig("gamedata-shard-" + name,
+                    ServerProperties.get("shard." + name + ".url", ""),
+                    ServerProperties.get("shard." + name + ".user", ServerProperties.get("dbUser", null)),
+                    ServerProperties.get("shard." + name + ".password", ServerProperties.get("dbPassword", null)),
+                    ServerProperties.getInt("shard." + name + ".poolSize", ServerProperties.getInt("db.poolSize", 2)));
+            config.setConnectionInitSql(idInitSql(i + 1));
+            ServerData shardData = new ServerData();
+            shardData.setDataSource(new HikariDataSource(config));
+            shardData.setSink(new JooqSink(shardData));
+            newShards.put(name, shardData);
+        }
+        byGame = "game".equalsIgnoreCase(ServerProperties.get("shard.key", "organization"));
+        defaultShard = newDefault;
+        shards = newShards;
+        assignments.clear();
+        for (String key : ServerProperties.keysWithPrefix("shard.assign."))
+            assignments.put(key.substring("shard.assign.".length()), ServerProperties.get(key, newDefault));
+        readAssignments();
+        assignments.values().removeIf(shard -> !newShards.containsKey(shard));
+        enabled = newShards.size() > 1;
+        if (enabled)
+            log.info(names.size() + " shard(s) besides main, tenants by " + (byGame ? "game" : "organization"));
+    }
+
+    /** Close the pools of the shards; the pool of the main database is closed by the TaskProcessor. */
+    public static void stop()
+    {
+        enabled = false;
+        for (Map.Entry<String, ServerData> entry : shards.entrySet())
+        {
+            if (!MAIN.equals(entry.getKey()) && entry.getValue().getDataSource() instanceof HikariDataSource hikari)
+                hikari.close();
+        }
+        shards = Map.of();
+        copiedSessions.clear();
+        synchronized (held)
+        {
+            // the held messages can be replayed from the dead-letter file
+            for (List<RetryManager.RetryTask> tasks : held.values())
+                for (RetryManager.RetryTask task : tasks)
+                    RetryManager.deadLetter(task.task(), task.attempt(), "server stopped during the move of the tenant");
+            held.clear();
+            heldCount = 0;
+        }
+    }
+
+    private static Path assignmentsFile()
+    {
+        return Paths.get(ServerProperties.getConfigDir(), ASSIGNMENTS);
+    }
+
+    private static void readAssignments()
+    {
+        Path file = assignmentsFile();
+        if (!Files.isReadable(file))
+            return;
+        try
+        {
+            JSONObject json = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+            JSONObject tenants = json.optJSONObject(byGame ? "game" : "organization");
+            if (tenants != null)
+                for (String tenant : tenants.keySet())
+                    assignments.put(tenant, tenants.getString(tenant));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            log.error("assignments " + file + " could not be read: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the assignments of the tenants, while holding the lock. The assignments of the other shard key are kept.
+     * @throws IOException when the file could not be written
+     */
+    private static void writeAssignments() throws IOException
+    {
+        Path file = assignmentsFile();
+        JSONObject json = Files.isReadable(file) ? new JSONObject(Files.readString(file, StandardCharsets.UTF_8))
+                : new JSONObject();
+        json.put(byGame ? "game" : "organization", new JSONObject(new TreeMap<>(assignments)));
+        Path temp = file.resolveSibling(ASSIGNMENTS + ".tmp");
+        Files.writeString(temp, json.toString(2), StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String shardOf(final String tenant)
+    {
+        return assignments.getOrDefault(tenant, defaultShard);
+    }
+
+    /**
+     * Return the shard in which the data of a game session is stored, e.g., for the BulkImporter.
+     * @param organizationCode the code of the organization of the game session
+     * @param gameCode the code of the game of the game session
+     * @return the name of the shard, main when no shards are configured
+     */
+    public static String shardOf(final String organizationCode, final String gameCode)
+    {
+        return enabled ? shardOf(byGame ? gameCode : organizationCode) : MAIN;
+    }
+
+    /**
+     * Start storing a message of a game session, and return the shard of its tenant. The metadata of the game session is copied
+     * to the shard when needed. Every route must be ended with exit(), also when the storage fails.
+     * @param data the server data of the main database
+     * @param organizationCode the code of the organization of the game session
+     * @param gameCode the code of the game of the game session
+     * @param session the game session, or null when its metadata is already in the shard
+     * @return the route with the server data of the shard
+     * @throws TenantMovingException when the tenant is being moved; the message has to be stored again later
+     */
+    public static Route enter(final ServerData data, final String organizationCode, final String gameCode,
+            final GameSessionRecord session)
+    {
+        if (!enabled)
+            return new Route(MAIN, data, null);
+        String tenant = byGame ? gameCode : organizationCode;
+        AtomicInteger count = inFlight.computeIfAbsent(tenant, t -> new AtomicInteger());
+        count.incrementAndGet();
+        try
+        {
+            // a move marks the tenant before it waits for the messages in progress, so no message slips through
+            if (moving.contains(tenant))
+                throw new TenantMovingException(tenant);
+            String shard = shardOf(tenant);
+            ServerData shardData = shards.get(shard);
+            if (session != null && !MAIN.equals(shard) && !copiedSessions.contains(shard + "|" + session.getId()))
+            {
+                copyMetadata(shards.get(MAIN).getDSL(), shardData.getDSL(), session.getId());
+                copiedSessions.add(shard + "|" + session.getId());
+            }
+            routed.computeIfAbsent(shard, s -> new LongAdder()).increment();
+            return new Route(shard, shardData, tenant);
+        }
+        catch (RuntimeException e)
+        {
+            count.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Start writing rows of a tenant that refer to metadata that is already in its shard, e.g., the rollups of a game session
+     * of which events have been stored. Every route must be ended with exit().
+     * @param data the server data of the main database
+     * @param organizationCode the code of the organization of the game session
+     * @param gameCode the code of the game of the game session
+     * @return the route with the server data of the shard
+     * @throws TenantMovingException when the tenant is being moved; the rows have to be written again later
+     */
+    public static Route enter(final ServerData data, final String organizationCode, final String gameCode)
+    {
+        return enter(data, organizationCode, gameCode, null);
+    }
+
+    /**
+     * Start working on the rows of a game session in the shard of its tenant, e.g., to archive them, when the codes of the
+     * organization and game are not known. The metadata of the game session is copied to the shard when needed. Every
+     * route must be ended with exit().
+     * @param data the server data of the main database
+     * @param session the game session
+     * @return the route with the server data of the shard
+     * @throws TenantMovingException when the tenant is being moved
+     */
+    public static Route enter(final ServerData data, final GameSessionRecord session)
+    {
+        if (!enabled)
+            return new Route(MAIN, data, null);
+        DSLContext main = data.getDSL();
+        String organizationCode = main.select(Tables.ORGANIZATION.CODE).from(Tables.ORGANIZATION)
+                .where(Tables.ORGANIZATION.ID.eq(session.getOrganizationId())).fetchOne(Tables.ORGANIZATION.CODE);
+        String gameCode = main.select(Tables.GAME.CODE).from(Tables.GAME).join(Tables.GAME_VERSION)
+                .on(Tables.GAME_VERSION.GAME_ID.eq(Tables.GAME.ID))
+                .where(Tables.GAME_VERSION.ID.eq(session.getGameVersionId())).fetchOne(Tables.GAME.CODE);
+        return enter(data, organizationCode, gameCode, session);
+    }
+
+    /**
+     * Copy the metadata of a game session to the shard of a route again. The metadata is copied once per session, so rows that
+     * were added to the main database later, such as a new mission or objective, are missing in the shard, and an insert that
+     * refers to them fails on a foreign key. The rows that the shard already has are kept.
+     * @param route the route of the message
+     * @param session the game session
+     */
+    public static void refreshMetadata(final Route route, final GameSessionRecord session)
+    {
+        if (MAIN.equals(route.shard()))
+            return;
+        copyMetadata(shards.get(MAIN).getDSL(), route.data().getDSL(), session.getId());
+        copiedSessions.add(route.shard() + "|" + session.getId());
+        log.info("metadata of game session " + session.getId() + " copied to shard " + route.shard() + " again");
+    }
+
+    /**
+     * Return whether an insert failed because a row it refers to does not exist, which in a shard means that the metadata has
+     * to be copied again.
+     * @param throwable the exception of the insert
+     * @return whether one of the causes is a foreign key error of MySQL (1452)
+     */
+    public static boolean isMissingReference(final Throwable throwable)
+    {
+        for (Throwable t = throwable; t != null; t = t.getCause())
+        {
+            if (t instanceof SQLException sqlException && sqlException.getErrorCode() == 1452)
+                return true;
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * Return the server data of a shard, e.g., for the ShardCheck.
+     * @param shard the name of the shard
+     * @return the server data of the shard, or null when the shard does not exist
+     */
+    static ServerData data(final String shard)
+    {
+        return shards.get(shard);
+    }
+
+    /**
+     * End storing a message that was started with enter().
+     * @param route the route of the message
+     */
+    public static void exit(final Route route)
+    {
+        if (route.tenant() != null)
+            inFlight.get(route.tenant()).decrementAndGet();
+    }
+
+    /**
+     * Copy the metadata of a game session to a shard, and skip the rows that the shard already has.
+     * @param from the DSL of the main database
+     * @param to the DSL of the shard
+     * @param sessionId the id of the game session
+     */
+    private static void copyMetadata(final DSLContext from, final DSLContext to, final int sessionId)
+    {
+        GameSessionRecord session =
+                from.selectFrom(Tables.GAME_SESSION).where(Tables.GAME_SESSION.ID.eq(sessionId)).fetchOne();
+        if (session == null)
+            throw new IllegalStateException("Game session " + sessionId + " does not exist in the main database");
+        GameVersionRecord version =
+                from.selectFrom(Tables.GAME_VERSION).where(Tables.GAME_VERSION.ID.eq(session.getGameVersionId())).fetchOne();
+        Select<Record1<Integer>> missionIds = DSL.select(Tables.GAME_MISSION.ID).from(Tables.GAME_MISSION)
+                .where(Tables.GAME_MISSION.GAME_VERSION_ID.eq(version.getId()));
+        Select<Record1<Integer>> goalIds = DSL.select(Tables.LEARNING_GOAL.ID).from(Tables.LEARNING_GOAL)
+                .where(Tables.LEARNING_GOAL.GAME_MISSION_ID.in(missionIds));
+        // in the order of the foreign keys
+        copyRows(from, to, Tables.ORGANIZATION, Tables.ORGANIZATION.ID.eq(session.getOrganizationId()), true);
+        copyRows(from, to, Tables.GAME, Tables.GAME.ID.eq(version.getGameId()), true);
+        copyRows(from, to, Tables.GAME_VERSION, Tables.GAME_VERSION.ID.eq(version.getId()), true);
+        copyRows(from, to, Tables.ORGANIZATION_GAME, Tables.ORGANIZATION_GAME.ORGANIZATION_ID
+                .eq(session.getOrganizationId()).and(Tables.ORGANIZATION_GAME.GAME_ID.eq(version.getGameId())), true);
+        copyRows(from, to, Tables.SCALE, Tables.SCALE.GAME_ID.eq(version.getGameId()), true);
+        copyRows(from, to, Tables.GAME_MISSION, Tables.GAME_MISSION.GAME_VERSION_ID.eq(version.getId()), true);
+        copyRows(from, to, Tables.LEARNING_GOAL, Tables.LEARNING_GOAL.GAME_MISSION_ID.in(missionIds), true);
+        copyRows(from, to, Tables.PLAYER_OBJECTIVE, Tables.PLAYER_OBJECTIVE.LEARNING_GOAL_ID.in(goalIds), true);
+        copyRows(from, to, Tables.GROUP_OBJECTIVE, Tables.GROUP_OBJECTIVE.LEARNING_GOAL_ID.in(goalIds), true);
+        copyRows(from, to, Tables.GAME_SESSION, Tables.GAME_SESSION.ID.eq(sessionId), true);
+    }
+
+    /**
+     * Copy rows to another database with their ids. The rows are streamed from the source, and inserted in statements of
+     * BATCH_ROWS rows.
+     * @param <R> the record type
+     * @param from the DSL of the source
+     * @param to the DSL of the target
+     * @param table the table
+     * @param condition the rows to copy
+     * @param ignoreExisting whether rows of which the id already exists are skipped, or fail the copy
+     * @return the number of copied rows
+     */
+    private static <R extends Record> int copyRows(final DSLContext from, final DSLContext to, final Table<R> table,
+            final Condition condition, final boolean ignoreExisting)
+    {
+        int count = 0;
+        List<R> batch = new ArrayList<>(BATCH_ROWS);
+        // Integer.MIN_VALUE makes MySQL Connector/J stream the rows instead of reading the whole result
+        try (Cursor<R> cursor = from.selectFrom(table).where(condition).fetchSize(Integer.MIN_VALUE).fetchLazy())
+        {
+            for (R record : cursor)
+            {
+                batch.add(record);
+                if (batch.size() == BATCH_ROWS)
+                {
+                    insertRows(to, table, batch, ignoreExisting);
+                    count += batch.size();
+                    batch.clear();
+                }
+            }
+        }
+        insertRows(to, table, batch, ignoreExisting);
+        return count + batch.size();
+    }
+
+    private static <R extends Record> void insertRows(final DSLContext to, final Table<R> table, final List<R> rows,
+            final boolean ignoreExisting)
+    {
+        if (rows.isEmpty())
+            return;
+        // a table without generated classes, such as event_rollup, only knows its fields from the rows
+        InsertValuesStepN<R> insert = to.insertInto(table, table.fields().length > 0 ? table.fields() : rows.get(0).fields());
+        for (R row : rows)
+            insert = insert.values(row.intoArray());
+        if (ignoreExisting)
+            insert.onDuplicateKeyIgnore().execute();
+        else
+            insert.execute();
+    }
+
+    /**
+     * Return the rows of a game session that belong to the tenant, in the order of the foreign keys.
+     * @param sessionId the id of the game session
+     * @return the tables with the condition for the rows of the game session
+     */
+    private static List<Part> parts(final int sessionId)
+    {
+        Select<Record1<Integer>> players =
+                DSL.select(Tables.PLAYER.ID).from(Tables.PLAYER).where(Tables.PLAYER.GAME_SESSION_ID.eq(sessionId));
+        Select<Record1<Integer>> groups =
+                DSL.select(Tables.GROUP.ID).from(Tables.GROUP).where(Tables.GROUP.GAME_SESSION_ID.eq(sessionId));
+        Select<Record1<Integer>> playerAttempts = DSL.select(Tables.PLAYER_ATTEMPT.ID).from(Tables.PLAYER_ATTEMPT)
+                .where(Tables.PLAYER_ATTEMPT.PLAYER_ID.in(players));
+        Select<Record1<Integer>> groupAttempts = DSL.select(Tables.GROUP_ATTEMPT.ID).from(Tables.GROUP_ATTEMPT)
+                .where(Tables.GROUP_ATTEMPT.GROUP_ID.in(groups));
+        List<Part> parts = List.of(new Part(Tables.PLAYER, Tables.PLAYER.GAME_SESSION_ID.eq(sessionId)),
+                new Part(Tables.GROUP, Tables.GROUP.GAME_SESSION_ID.eq(sessionId)),
+                new Part(Tables.GROUP_ROLE, Tables.GROUP_ROLE.GROUP_ID.in(groups)),
+                new Part(Tables.PLAYER_ATTEMPT, Tables.PLAYER_ATTEMPT.PLAYER_ID.in(players)),
+                new Part(Tables.GROUP_ATTEMPT, Tables.GROUP_ATTEMPT.GROUP_ID.in(groups)),
+                new Part(Tables.MISSION_EVENT, Tables.MISSION_EVENT.GAME_SESSION_ID.eq(sessionId)),
+                new Part(Tables.PLAYER_EVENT, Tables.PLAYER_EVENT.PLAYER_ATTEMPT_ID.in(playerAttempts)),
+                new Part(Tables.GROUP_EVENT, Tables.GROUP_EVENT.GROUP_ATTEMPT_ID.in(groupAttempts)),
+                new Part(Tables.PLAYER_SCORE, Tables.PLAYER_SCORE.PLAYER_ATTEMPT_ID.in(playerAttempts)),
+                new Part(Tables.GROUP_SCORE, Tables.GROUP_SCORE.GROUP_ATTEMPT_ID.in(groupAttempts)));
+        if (!RollupManager.isEnabled())
+            return parts;
+        // the rollups refer to the game session, the mission and the attempt without foreign keys
+        List<Part> withRollups = new ArrayList<>(parts);
+        withRollups.add(new Part(DSL.table(DSL.name("event_rollup")),
+                DSL.field(DSL.name("game_session_id"), Integer.class).eq(sessionId)));
+        return withRollups;
+    }
+
+    /**
+     * Delete the rows of a game session in one transaction, in the reverse order of the foreign keys.
+     * @param dsl the DSL of the shard
+     * @param parts the rows of the game session
+     * @return the number of deleted rows
+     */
+    private static int deleteParts(final DSLContext dsl, final List<Part> parts)
+    {
+        return dsl.transactionResult(configuration ->
+        {
+            int deleted = 0;
+            for (int i = parts.size() - 1; i >= 0; i--)
+                deleted += DSL.using(configuration).deleteFrom(parts.get(i).table()).where(parts.get(i).condition()).execute();
+            return deleted;
+        });
+    }
+
+    /**
+     * Move the rows of a tenant to another shard. The new messages of the tenant are held back until the move is finished. When
+     * the rows cannot be copied, the tenant stays in its shard; rows that were copied already are removed again by the next
+     * move to that shard.
+     * @param tenant the code of the organization or game
+     * @param target the name of the new shard
+     * @return the result of the move
+     * @throws IllegalArgumentException when the tenant or the shard does not exist
+     * @throws IllegalStateException when sharding is not enabled, the tenant is already in the shard or being moved, or the
+     *             messages in progress did not finish in <code>shard.moveWaitSeconds</code>
+     * @throws IOException when the assignments could not be written; the tenant then stays in its shard
+     */
+    public static MoveResult move(final String tenant, final String target) throws IOException
+    {
+        if (!enabled)
+            throw new IllegalStateException("No shards configured in shard.names");
+        ServerData targetData = shards.get(target);
+        if (targetData == null)
+            throw new IllegalArgumentException("Unknown shard " + target);
+        synchronized (lock)
+        {
+            String source = shardOf(tenant);
+            if (source.equals(target))
+                throw new IllegalStateException("Tenant " + tenant + " is already stored in shard " + target);
+            DSLContext main = shards.get(MAIN).getDSL();
+            List<Integer> sessions = tenantSessions(main, tenant);
+            long start = System.currentTimeMillis();
+            long rows = 0;
+            moving.add(tenant);
+            try
+            {
+                awaitIdle(tenant);
+                DSLContext from = shards.get(source).getDSL();
+                DSLContext to = targetData.getDSL();
+                for (int sessionId : sessions)
+                    checkIds(from, to, tenant, target, sessionId);
+                for (int sessionId : sessions)
+                {
+                    List<Part> parts = parts(sessionId);
+                    copyMetadata(main, to, sessionId);
+                    copiedSessions.add(target + "|" + sessionId);
+                    // the tenant is not stored in the target, so its rows there are left over from a move that failed
+                    deleteParts(to, parts);
+                    for (Part part : parts)
+                    {
+                        int copied = copyRows(from, to, part.table(), part.condition(), false);
+                        int counted = to.fetchCount(part.table(), part.condition());
+                        if (counted != copied)
+                            throw new IllegalStateException("Move of " + tenant + ": " + copied + " rows of "
+                                    + part.table().getName() + " copied, but " + counted + " rows in shard " + target);
+                        rows += copied;
+                    }
+                }
+                if (defaultShard.equals(target))
+                    assignments.remove(tenant);
+                else
+                    assignments.put(tenant, target);
+                try
+                {
+                    writeAssignments();
+                }
+                catch (IOException e)
+                {
+                    assignments.put(tenant, source);
+                    throw e;
+                }
+            }
+            finally
+            {
+                release(tenant);
+            }
+
+            // the tenant is stored in the target now; the rows in the source are no longer used
+            String cleanupError = "";
+            DSLContext from = shards.get(source).getDSL();
+            for (int sessionId : sessions)
+            {
+                try
+                {
+                    deleteParts(from, parts(sessionId));
+                }
+                catch (RuntimeException e)
+                {
+                    cleanupError = "rows of game session " + sessionId + " not deleted from " + source + ": " + e.getMessage();
+                    log.error("move of " + tenant + ": " + cleanupError);
+                }
+            }
+            movedRows += rows;
+            long millis = System.currentTimeMillis() - start;
+            log.info("tenant " + tenant + " moved from " + source + " to " + target + ": " + sessions.size()
+                    + " game sessions, " + rows + " rows in " + millis + " ms");
+            return new MoveResult(tenant, source, target, sessions.size(), rows, millis, cleanupError);
+        }
+    }
+
+    /**
+     * Check that the ids of the rows of a game session are free in the target shard, before anything is copied. The rows that
+     * were stored in the main database before the shards interleaved their ids can have the id of a row of another game
+     * session in the target, and the copy would then stop halfway on a duplicate key. Rows in the target that belong to the
+     * game session itself are left over from a move that failed, and are deleted before the copy.
+     * @param from the DSL of the source shard
+     * @param to the DSL of the target shard
+     * @param tenant the code of the organization or game
+     * @param target the name of the target shard
+     * @param sessionId the id of the game session
+     * @throws IllegalStateException when an id of a row of the game session is used by another row in the target
+     */
+    private static void checkIds(final DSLContext from, final DSLContext to, final String tenant, final String target,
+            final int sessionId)
+    {
+        Field<Integer> id = DSL.field(DSL.name("id"), Integer.class);
+        for (Part part : parts(sessionId))
+        {
+            List<Integer> batch = new ArrayList<>(BATCH_ROWS);
+            try (Cursor<Record1<Integer>> cursor =
+                    from.select(id).from(part.table()).where(part.condition()).fetchSize(Integer.MIN_VALUE).fetchLazy())
+            {
+                for (Record1<Integer> record : cursor)
+                {
+                    batch.add(record.value1());
+                    if (batch.size() == BATCH_ROWS)
+                    {
+                        checkIds(to, part, id, batch, tenant, target);
+                        batch.clear();
+                    }
+                }
+            }
+            checkIds(to, part, id, batch, tenant, target);
+        }
+    }
+
+    private static void checkIds(final DSLContext to, final Part part, final Field<Integer> id, final List<Integer> ids,
+            final String tenant, final String target)
+    {
+        if (ids.isEmpty())
+            return;
+        Set<Integer> used = to.select(id).from(part.table()).where(id.in(ids)).fetchSet(id);
+        if (used.isEmpty())
+            return;
+        // the rows of the game session itself are not in the way
+        used.removeAll(to.select(id).from(part.table()).where(id.in(used)).and(part.condition()).fetchSet(id));
+        if (!used.isEmpty())
+            throw new IllegalStateException("Move of " + tenant + ": ids " + new TreeSet<>(used) + " of "
+                    + part.table().getName() + " are used by other rows in shard " + target
+                    + "; the tenant stays in its shard");
+    }
+
+    /**
+     * Hold back a message of a tenant that is being moved, until the move is finished. When the move finished in the meantime,
+     * the message is put back in front of the waiting messages of its session right away.
+     * @param tenant the tenant of the TenantMovingException
+     * @param task the message
+     * @param attempt the number of the attempt that found the tenant moving, which is tried again
+     * @return true when the message is held or handed back, false when <code>shard.maxHeldMessages</code> messages are held
+     *         already, and the message has to be retried otherwise
+     */
+    public static boolean holdBack(final String tenant, final StorageRequestTask task, final int attempt)
+    {
+        synchronized (held)
+        {
+            if (moving.contains(tenant))
+            {
+                if (heldCount >= Math.max(0, ServerProperties.getInt("shard.maxHeldMessages", 100_000)))
+                    return false;
+                held.computeIfAbsent(tenant, t -> new ArrayList<>()).add(new RetryManager.RetryTask(task, attempt, 0L));
+                heldCount++;
+                return true;
+            }
+        }
+        RequestQueueManager.putBack(List.of(new RetryManager.RetryTask(task, attempt, 0L)));
+        return true;
+    }
+
+    /**
+     * End the move of a tenant, and put its held messages back in front of the waiting messages of their sessions in the
+     * RequestQueueManager, in the order in which they arrived. They are put back before the tenant accepts messages again, so
+     * a newer message of a session that a worker takes afterwards waits for them.
+     * @param tenant the code of the organization or game
+     */
+    private static void release(final String tenant)
+    {
+        List<RetryManager.RetryTask> tasks;
+        synchronized (held)
+        {
+            tasks = held.remove(tenant);
+            if (tasks != null)
+            {
+                heldCount -= tasks.size();
+                RequestQueueManager.putBack(tasks);
+            }
+            moving.remove(tenant);
+        }
+        if (tasks != null)
+            log.info("move of " + tenant + " ended: " + tasks.size() + " held messages put back");
+    }
+
+    /**
+     * Return the ids of the game sessions of a tenant in the main database.
+     * @param main the DSL of the main database
+     * @param tenant the code of the organization or game
+     * @return the ids of the game sessions
+     * @throws IllegalArgumentException when the tenant does not exist
+     */
+    private static List<Integer> tenantSessions(final DSLContext main, final String tenant)
+    {
+        Condition condition;
+        if (byGame)
+        {
+            GameRecord game = main.selectFrom(Tables.GAME).where(Tables.GAME.CODE.eq(tenant)).fetchAny();
+            if (game == null)
+                throw new IllegalArgumentException("Unknown game " + tenant);
+            condition = Tables.GAME_SESSION.GAME_VERSION_ID.in(DSL.select(Tables.GAME_VERSION.ID)
+                    .from(Tables.GAME_VERSION).where(Tables.GAME_VERSION.GAME_ID.eq(game.getId())));
+        }
+        else
+        {
+            OrganizationRecord organization =
+                    main.selectFrom(Tables.ORGANIZATION).where(Tables.ORGANIZATION.CODE.eq(tenant)).fetchAny();
+            if (organization == null)
+                throw new IllegalArgumentException("Unknown organization " + tenant);
+            condition = Tables.GAME_SESSION.ORGANIZATION_ID.eq(organization.getId());
+        }
+        return main.select(Tables.GAME_SESSION.ID).from(Tables.GAME_SESSION).where(condition)
+                .orderBy(Tables.GAME_SESSION.ID).fetch(Tables.GAME_SESSION.ID);
+    }
+
+    /**
+     * Wait until the messages of a tenant that are being stored are finished.
+     * @param tenant the code of the organization or game
+     * @throws IllegalStateException when the messages do not finish within <code>shard.moveWaitSeconds</code>
+     */
+    private static void awaitIdle(final String tenant)
+    {
+        AtomicInteger count = inFlight.computeIfAbsent(tenant, t -> new AtomicInteger());
+        long deadline = System.currentTimeMillis() + 1000L * Math.max(1, ServerProperties.getInt("shard.moveWaitSeconds", 30));
+        try
+        {
+            while (count.get() > 0)
+            {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IllegalStateException("Tenant " + tenant + " still has messages in progress");
+                Thread.sleep(10);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Move of " + tenant + " interrupted");
+        }
+    }
+
+    /**
+     * Return the statistics of the router.
+     * @return the statistics
+     */
+    public static Statistics getStatistics()
+    {
+        Map<String, Long> messages = new TreeMap<>();
+        routed.forEach((shard, count) -> messages.put(shard, count.sum()));
+        int heldMessages;
+        synchronized (held)
+        {
+            heldMessages = heldCount;
+        }
+        return new Statistics(enabled, byGame ? "game" : "organization", defaultShard, List.copyOf(shards.keySet()),
+                new TreeMap<>(assignments), new TreeSet<>(moving), heldMessages, messages, movedRows);
+    }
+
+    /**
+     * The shard of a message that is being stored.
+     * @param shard the name of the shard
+     * @param data the server data of the shard, with its own pool and sink
+     * @param tenant the code of the organization or game, or null when there are no shards
+     */
+    public record Route(String shard, ServerData data, String tenant)
+    {
+    }
+
+    /**
+     * The result of a move.
+     * @param tenant the code of the organization or game
+     * @param from the old shard
+     * @param to the new shard
+     * @param sessions the number of game sessions of the tenant
+     * @param rows the number of rows that were moved
+     * @param millis the duration of the move in ms
+     * @param cleanupError an empty string, or the error when rows could not be deleted from the old shard
+     */
+    public record MoveResult(String tenant, String from, String to, int sessions, long rows, long millis,
+            String cleanupError)
+    {
+    }
+
+    /**
+     * Statistics of the router.
+     * @param enabled whether shards are configured
+     * @param key organization or game
+     * @param defaultShard the shard of the tenants without assignment
+     * @param shards the names of the shards, starting with main
+     * @param assignments the shard per tenant, for the tenants that are not in the default shard
+     * @param moving the tenants that are being moved
+     * @param held the number of messages that are held back until the move of their tenant is finished
+     * @param routed the number of messages per shard since the start of the server
+     * @param movedRows the number of rows that were moved since the start of the server
+     */
+    public record Statistics(boolean enabled, String key, String defaultShard, List<String> shards,
+            Map<String, String> assignments, Set<String> moving, int held, Map<String, Long> routed, long movedRows)
+    {
+    }
+
+    /** The rows of one table of a game session. */
+    private record Part(Table<?> table, Condition condition)
+    {
+    }
+
+    /** Thrown when a message arrives for a tenant that is being moved; the message is held back until the move is finished. */
+    public static final class TenantMovingException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String tenant;
+
+        TenantMovingException(final String tenant)
+        {
+            super("Tenant " + tenant + " is being moved to another shard");
+            this.tenant = tenant;
+        }
+
+        /**
+         * Return the tenant that is being moved.
+         * @return the code of the organization or game
+         */
+        public String getTenant()
+        {
+            return this.tenant;
+        }
+    }
+}
@@ -0,0 +1,591 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SpillQueue is the second tier of the RequestQueueManager: a FIFO queue of tasks in append-only files, used when the in-memory
+ * queue is full during a burst. Tasks are appended to the current segment file through a large write buffer, and are read back
+ * in order when the storage thread has caught up. A segment file is deleted when all its tasks have been read. Segments that
+ * are left after a restart are read first, so spilled tasks are not lost when the server stops.
+ * <p>
+ * When the queue syncs, append() returns after the task has been written and forced to disk, so a task that has been
+ * acknowledged survives a crash of the server or the machine. The appends of concurrent requests share one force: a thread
+ * that finds its task forced by another thread returns at once. Without syncing, the tasks in the write buffer and the page
+ * cache are lost on a crash.
+ * </p>
+ * <p>
+ * The SpillQueue is thread-safe, and does its disk I/O while holding its own monitor; the RequestQueueManager calls it outside
+ * its lock. The counters can be read without the monitor.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+final class SpillQueue
+{
+    private static final Log.Logger log = Log.logger("SpillQueue");
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** record header: length of the task bytes, and the enqueue time in epoch ms. */
+    private static final int HEADER_SIZE = 12;
+
+    /** the file with the number of the oldest segment and the position of the first unread task in it. */
+    private static final String OFFSET_FILE = "spill.offset";
+
+    private final Path directory;
+
+    private final long segmentBytes;
+
+    /** the segments that still have tasks to read, oldest first; the last one is the segment that is written. */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+
+    private FileChannel writeChannel = null;
+
+    private FileChannel readChannel = null;
+
+    private long nextSegmentNr = 0;
+
+    /** the number of the last appended task, and of the last task that was forced to disk. */
+    private long appended = 0;
+
+    private long synced = 0;
+
+    private boolean closed = false;
+
+    private volatile long waiting = 0;
+
+    private volatile long diskBytes = 0;
+
+    private volatile long spilled = 0;
+
+    private volatile long drained = 0;
+
+    private volatile long lastDrainLagMs = 0;
+
+    /**
+     * Open the spill queue in the directory, and register the tasks in the segments of a previous run.
+     * @param directory the directory for the segment files
+     * @param segmentBytes the maximum size of a segment file
+     */
+    SpillQueue(final Path directory, final long segmentBytes)
+    {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        try
+        {
+            Files.createDirectories(directory);
+            List<Path> existing = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "spill-*.dat"))
+            {
+                stream.forEach(existing::add);
+            }
+            Collections.sort(existing);
+            long offsetSegment = -1;
+            long offset = 0;
+            Path offsetFile = directory.resolve(OFFSET_FILE);
+            if (Files.exists(offsetFile))
+            {
+                String[] parts = Files.readString(offsetFile).strip().split(" ");
+                offsetSegment = Long.parseLong(parts[0]);
+                offset = Long.parseLong(parts[1]);
+                Files.delete(offsetFile);
+            }
+            for (Path path : existing)
+            {
+                Segment segment = scan(path, segmentNr(path) == offsetSegment ? offset : 0);
+                this.nextSegmentNr = Math.max(this.nextSegmentNr, segment.nr + 1);
+                if (segment.records == 0)
+                    Files.deleteIfExists(path);
+                else
+                {
+                    this.segments.addLast(segment);
+                    this.waiting += segment.records;
+                    this.diskBytes += segment.bytes;
+                }
+            }
+            if (this.waiting > 0)
+                log.info(this.waiting + " tasks from a previous run found in " + directory);
+        }
+        catch (IOException e)
+        {
+            log.error("could not read spill directory " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Append a task to the end of the queue, and wait until it has been forced to disk when asked.
+     * @param task the task
+     * @param maxDiskBytes the maximum number of bytes on disk
+     * @param sync whether the task has to be forced to disk before the method returns
+     * @return whether the task was appended (and forced); false when the disk limit is reached, the queue has been closed, or
+     *         the task could not be written
+     */
+    boolean append(final StorageRequestTask task, final long maxDiskBytes, final boolean sync)
+    {
+        byte[] bytes = encode(task);
+        long seq;
+        synchronized (this)
+        {
+            if (!write(bytes, maxDiskBytes))
+                return false;
+            seq = ++this.appended;
+        }
+        return !sync || sync(seq);
+    }
+
+    /**
+     * Force the appended tasks to disk, unless another thread already forced the task with the given number.
+     * @param seq the number of the task
+     * @return whether the task is on disk
+     */
+    private synchronized boolean sync(final long seq)
+    {
+        if (this.synced >= seq)
+            return true;
+        try
+        {
+            if (this.writeChannel != null)
+            {
+                flush();
+                this.writeChannel.force(false);
+            }
+            this.synced = this.appended;
+            return true;
+        }
+        catch (IOException e)
+        {
+            log.error("could not force spill file to disk: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Write a record to the write buffer of the current segment, while holding the monitor.
+     * @param bytes the encoded task
+     * @param maxDiskBytes the maximum number of bytes on disk
+     * @return whether the record was written
+     */
+    private boolean write(final byte[] bytes, final long maxDiskBytes)
+    {
+        int recordSize = HEADER_SIZE + bytes.length;
+        if (this.closed || this.diskBytes + recordSize > maxDiskBytes)
+            return false;
+        try
+        {
+            Segment segment = this.segments.peekLast();
+            if (this.writeChannel == null || segment == null || segment.bytes + recordSize > this.segmentBytes)
+                segment = newSegment();
+            if (this.writeBuffer.remaining() < recordSize)
+                flush();
+            if (recordSize > this.writeBuffer.capacity())
+            {
+                ByteBuffer large = ByteBuffer.allocate(recordSize);
+                large.putInt(bytes.length).putLong(System.currentTimeMillis()).put(bytes).flip();
+                while (large.hasRemaining())
+                    this.writeChannel.write(large);
+            }
+            else
+                this.writeBuffer.putInt(bytes.length).putLong(System.currentTimeMillis()).put(bytes);
+            segment.records++;
+            segment.bytes += recordSize;
+            this.diskBytes += recordSize;
+            this.waiting++;
+            this.spilled++;
+            return true;
+        }
+        catch (IOException e)
+        {
+            log.error("could not write to spill file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Take the oldest tasks from the queue.
+     * @param max the maximum number of tasks
+     * @param into the list to add the tasks and their enqueue times to
+     * @return the number of tasks that were taken
+     */
+    synchronized int poll(final int max, final List<SpilledTask> into)
+    {
+        int count = 0;
+        SpilledTask spilledTask;
+        while (count < max && !this.closed && (spilledTask = poll()) != null)
+        {
+            into.add(spilledTask);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Take the oldest task from the queue, while holding the monitor.
+     * @return the task and its enqueue time, or null when the queue is empty or cannot be read
+     */
+    private SpilledTask poll()
+    {
+        while (this.waiting > 0)
+        {
+            Segment segment = this.segments.peekFirst();
+            if (segment.records == 0)
+            {
+                removeHead();
+                continue;
+            }
+            try
+            {
+                if (segment == this.segments.peekLast() && this.writeBuffer.position() > 0)
+                    flush();
+                if (this.readChannel == null)
+                {
+                    this.readChannel = FileChannel.open(segment.path, StandardOpenOption.READ);
+                    this.readChannel.position(segment.startOffset);
+                    this.readBuffer.clear().flip();
+                }
+                if (fill(HEADER_SIZE))
+                {
+                    int length = this.readBuffer.getInt();
+                    long enqueueMillis = this.readBuffer.getLong();
+                    if (fill(length))
+                    {
+                        byte[] bytes = new byte[length];
+                        this.readBuffer.get(bytes);
+                        segment.records--;
+                        this.waiting--;
+                        this.drained++;
+                        this.lastDrainLagMs = System.currentTimeMillis() - enqueueMillis;
+                        if (segment.records == 0 && segment != this.segments.peekLast())
+                            removeHead();
+                        return new SpilledTask(decode(bytes), enqueueMillis);
+                    }
+                }
+                // end of the file before all records were read (e.g., after a crash): skip the rest of the segment
+                log.error(segment.records + " tasks could not be read from " + segment.path);
+                this.waiting -= segment.records;
+                segment.records = 0;
+                removeHead();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                log.error("error reading " + segment.path + ", " + segment.records
+                        + " tasks skipped: " + e.getMessage());
+                this.waiting -= segment.records;
+                segment.records = 0;
+                removeHead();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close the files; the segments stay on disk, and are read again after a restart. The read position in the oldest segment is
+     * saved, so the tasks that were already read are not read again. No tasks are appended or read after the queue has been
+     * closed.
+     */
+    synchronized void close()
+    {
+        this.closed = true;
+        try
+        {
+            if (this.writeChannel != null)
+            {
+                flush();
+                this.writeChannel.force(false);
+                this.writeChannel.close();
+                this.writeChannel = null;
+            }
+            Path offsetFile = this.directory.resolve(OFFSET_FILE);
+            Segment head = this.segments.peekFirst();
+            if (this.readChannel != null && head != null)
+            {
+                long offset = this.readChannel.position() - this.readBuffer.remaining();
+                Files.writeString(offsetFile, head.nr + " " + offset);
+            }
+            else
+                Files.deleteIfExists(offsetFile);
+            if (this.readChannel != null)
+            {
+                this.readChannel.close();
+                this.readChannel = null;
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("error closing spill files: " + e.getMessage());
+        }
+    }
+
+    long waiting()
+    {
+        return this.waiting;
+    }
+
+    long diskBytes()
+    {
+        return this.diskBytes;
+    }
+
+    long spilled()
+    {
+        return this.spilled;
+    }
+
+    long drained()
+    {
+        return this.drained;
+    }
+
+    long lastDrainLagMs()
+    {
+        return this.lastDrainLagMs;
+    }
+
+    private Segment newSegment() throws IOException
+    {
+        if (this.writeChannel != null)
+        {
+            // the tasks of the previous segment are forced now, since sync() only forces the current segment
+            flush();
+            this.writeChannel.force(false);
+            this.writeChannel.close();
+            this.writeChannel = null;
+        }
+        // the previous segment can be removed when all its tasks have been read already
+        Segment last = this.segments.peekLast();
+        if (last != null && last.records == 0 && last == this.segments.peekFirst())
+            removeHead();
+        Path path = this.directory.resolve(String.format("spill-%012d.dat", this.nextSegmentNr));
+        Segment segment = new Segment(this.nextSegmentNr++, path);
+        this.writeChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.segments.addLast(segment);
+        return segment;
+    }
+
+    private void flush() throws IOException
+    {
+        this.writeBuffer.flip();
+        while (this.writeBuffer.hasRemaining())
+            this.writeChannel.write(this.writeBuffer);
+        this.writeBuffer.clear();
+    }
+
+    /** Make sure that n bytes can be read from the read buffer; return false at the end of the file. */
+    private boolean fill(final int n) throws IOException
+    {
+        if (n > this.readBuffer.capacity())
+        {
+            ByteBuffer larger = ByteBuffer.allocate(n);
+            larger.put(this.readBuffer).flip();
+            this.readBuffer = larger;
+        }
+        while (this.readBuffer.remaining() < n)
+        {
+            this.readBuffer.compact();
+            int read = this.readChannel.read(this.readBuffer);
+            this.readBuffer.flip();
+            if (read <= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void removeHead()
+    {
+        Segment segment = this.segments.pollFirst();
+        try
+        {
+            if (this.readChannel != null)
+                this.readChannel.close();
+            this.readChannel = null;
+            if (segment == null)
+                return;
+            if (this.writeChannel != null && this.segments.isEmpty())
+            {
+                this.writeChannel.close();
+                this.writeChannel = null;
+                this.writeBuffer.clear();
+            }
+            this.diskBytes -= segment.bytes;
+            Files.deleteIfExists(segment.path);
+        }
+        catch (IOException e)
+        {
+            log.error("could not delete " + (segment == null ? "segment" : segment.path) + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /** Count the complete records in a segment of a previous run. */
+    private static Segment scan(final Path path, final long startOffset) throws IOException
+    {
+        Segment segment = new Segment(segmentNr(path), path);
+        segment.startOffset = startOffset;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long position = startOffset;
+            while (position + HEADER_SIZE <= size)
+            {
+                header.clear();
+                channel.read(header, position);
+                header.flip();
+                int length = header.getInt();
+                if (length < 0 || position + HEADER_SIZE + length > size)
+                    break;
+                position += HEADER_SIZE + length;
+                segment.records++;
+            }
+            segment.bytes = size;
+        }
+        return segment;
+    }
+
+    private static long segmentNr(final Path path)
+    {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(6, name.length() - 4));
+    }
+
+    /** Encode a task; the listener is not stored, tasks with a listener are never spilled. */
+    static byte[] encode(final StorageRequestTask task)
+    {
+        byte[][] parts = new byte[5][];
+        parts[0] = bytes(task.requestType());
+        parts[1] = bytes(task.contentType());
+        parts[2] = bytes(task.payload());
+        parts[3] = task.body();
+        parts[4] = bytes(task.timestamp().toString());
+        int size = 4;
+        for (byte[] part : parts)
+            size += 4 + (part == null ? 0 : part.length);
+        List<byte[]> context = new ArrayList<>();
+        if (task.context() != null)
+        {
+            for (Map.Entry<String, String> entry : task.context().entrySet())
+            {
+                context.add(bytes(entry.getKey()));
+                context.add(bytes(entry.getValue()));
+            }
+        }
+        for (byte[] part : context)
+            size += 4 + part.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] part : parts)
+            put(buffer, part);
+        buffer.putInt(task.context() == null ? -1 : context.size() / 2);
+        for (byte[] part : context)
+            put(buffer, part);
+        return buffer.array();
+    }
+
+    static StorageRequestTask decode(final byte[] bytes)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        String requestType = string(get(buffer));
+        String contentType = string(get(buffer));
+        String payload = string(get(buffer));
+        byte[] body = get(buffer);
+        LocalDateTime timestamp = LocalDateTime.parse(string(get(buffer)));
+        int contextSize = buffer.getInt();
+        Map<String, String> context = null;
+        if (contextSize >= 0)
+        {
+            context = new HashMap<>();
+            for (int i = 0; i < contextSize; i++)
+                context.put(string(get(buffer)), string(get(buffer)));
+            context = Collections.unmodifiableMap(context);
+        }
+        return new StorageRequestTask(requestType, contentType, payload, body, context, null, timestamp);
+    }
+
+    private static byte[] bytes(final String s)
+    {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(final byte[] bytes)
+    {
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void put(final ByteBuffer buffer, final byte[] bytes)
+    {
+        if (bytes == null)
+            buffer.putInt(-1);
+        else
+            buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static byte[] get(final ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Return the default spill directory in the gamedata folder.
+     * @return the spill directory
+     */
+    static Path defaultDirectory()
+    {
+        return Paths.get(ServerProperties.getConfigDir(), "spill");
+    }
+
+    /**
+     * A task that was read back from disk.
+     * @param task the task
+     * @param enqueueMillis the time the task was spilled, in epoch ms
+     */
+    record SpilledTask(StorageRequestTask task, long enqueueMillis)
+    {
+    }
+
+    /** A segment file with the number of tasks that have not been read yet. */
+    private static class Segment
+    {
+        final long nr;
+
+        final Path path;
+
+        int records = 0;
+
+        long bytes = 0;
+
+        /** the position of the first unread task, when the segment was partly read before a restart. */
+        long startOffset = 0;
+
+        Segment(final long nr, final Path path)
+        {
+            this.nr = nr;
+            this.path = path;
+        }
+    }
+}
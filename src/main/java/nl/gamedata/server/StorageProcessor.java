@@ -4,9 +4,8 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.Map;
 
-import org.jooq.DSLContext;
+import org.jooq.UpdatableRecord;
 
-import nl.gamedata.common.SqlUtils;
 import nl.gamedata.common.StringUtils;
 import nl.gamedata.data.Tables;
 import nl.gamedata.data.tables.records.GameMissionRecord;
@@ -29,9 +28,11 @@ import nl.gamedata.data.tables.records.PlayerObjectiveRecord;
 import nl.gamedata.data.tables.records.PlayerRecord;
 import nl.gamedata.data.tables.records.PlayerScoreRecord;
 import nl.gamedata.data.tables.records.ScaleRecord;
+import nl.gamedata.server.StorageSink.Lookup;
 
 /**
- * StorageProcessor takes care of storing the data.
+ * StorageProcessor takes care of storing the data through the StorageSink of the server. The metadata is looked up in the main
+ * database, and the identities, events, scores and errors are stored in the shard of the tenant, see ShardRouter.
  * <p>
  * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
  * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
@@ -40,8 +41,82 @@ import nl.gamedata.data.tables.records.ScaleRecord;
  */
 public class StorageProcessor
 {
+    /** the fields of a mission event, apart from the game session and mission. */
+    private static final FieldMapper<MissionEventRecord> MISSION_EVENT_FIELDS = FieldMapper.<MissionEventRecord> builder()
+            .string("type", false, "string", MissionEventRecord::setType)
+            .string("key", true, null, MissionEventRecord::setKey)
+            .string("value", true, null, MissionEventRecord::setValue)
+            .dateTime("timestamp", MissionEventRecord::setTimestamp)
+            .string("status", false, null, MissionEventRecord::setStatus)
+            .string("round", false, null, MissionEventRecord::setRound)
+            .string("game_time", false, null, MissionEventRecord::setGameTime)
+            .string("grouping_code", false, null, MissionEventRecord::setGroupingCode)
+            .bool("facilitator_initiated", (byte) 0, MissionEventRecord::setFacilitatorInitiated).build();
+
+    /** the fields of a player event, apart from the player attempt. */
+    private static final FieldMapper<PlayerEventRecord> PLAYER_EVENT_FIELDS = FieldMapper.<PlayerEventRecord> builder()
+            .string("type", false, "string", PlayerEventRecord::setType)
+            .string("key", true, null, PlayerEventRecord::setKey)
+            .string("value", true, null, PlayerEventRecord::setValue)
+            .dateTime("timestamp", PlayerEventRecord::setTimestamp)
+            .string("status", false, null, PlayerEventRecord::setStatus)
+            .string("round", false, null, PlayerEventRecord::setRound)
+            .string("game_time", false, null, PlayerEventRecord::setGameTime)
+            .string("grouping_code", false, null, PlayerEventRecord::setGroupingCode)
+            .bool("player_initiated", (byte) 0, PlayerEventRecord::setPlayerInitiated).build();
+
+    /** the fields of a group event, apart from the group attempt. */
+    private static final FieldMapper<GroupEventRecord> GROUP_EVENT_FIELDS = FieldMapper.<GroupEventRecord> builder()
+            .string("type", false, "string", GroupEventRecord::setType)
+            .string("key", true, null, GroupEventRecord::setKey)
+            .string("value", true, null, GroupEventRecord::setValue)
+            .dateTime("timestamp", GroupEventRecord::setTimestamp)
+            .string("status", false, null, GroupEventRecord::setStatus)
+            .string("round", false, null, GroupEventRecord::setRound)
+            .string("game_time", false, null, GroupEventRecord::setGameTime)
+            .string("grouping_code", false, null, GroupEventRecord::setGroupingCode)
+            .bool("group_initiated", (byte) 0, GroupEventRecord::setGroupInitiated).build();
+
+    /** the fields of a player score, apart from the player attempt, objective and scale. */
+    private static final FieldMapper<PlayerScoreRecord> PLAYER_SCORE_FIELDS = FieldMapper.<PlayerScoreRecord> builder()
+            .string("score_type", true, null, PlayerScoreRecord::setScoreType)
+            .number("delta", PlayerScoreRecord::setDelta)
+            .number("new_score_number", PlayerScoreRecord::setNewScoreNumber)
+            .string("new_score_string", false, null, PlayerScoreRecord::setNewScoreString)
+            .dateTime("timestamp", PlayerScoreRecord::setTimestamp)
+            .bool("final_score", (byte) 0, PlayerScoreRecord::setFinalScore)
+            .string("status", false, null, PlayerScoreRecord::setStatus)
+            .string("round", false, null, PlayerScoreRecord::setRound)
+            .string("game_time", false, null, PlayerScoreRecord::setGameTime)
+            .string("grouping_code", false, null, PlayerScoreRecord::setGroupingCode).build();
+
+    /** the fields of a group score, apart from the group attempt, objective and scale. */
+    private static final FieldMapper<GroupScoreRecord> GROUP_SCORE_FIELDS = FieldMapper.<GroupScoreRecord> builder()
+            .string("score_type", true, null, GroupScoreRecord::setScoreType)
+            .number("delta", GroupScoreRecord::setDelta)
+            .number("new_score_number", GroupScoreRecord::setNewScoreNumber)
+            .string("new_score_string", false, null, GroupScoreRecord::setNewScoreString)
+            .dateTime("timestamp", GroupScoreRecord::setTimestamp)
+            .bool("final_score", (byte) 0, GroupScoreRecord::setFinalScore)
+            .string("status", false, null, GroupScoreRecord::setStatus)
+            .string("round", false, null, GroupScoreRecord::setRound)
+            .string("game_time", false, null, GroupScoreRecord::setGameTime)
+            .string("grouping_code", false, null, GroupScoreRecord::setGroupingCode).build();
+
     private final ServerData data;
 
+    /** the sink of the main database, for the metadata. */
+    private final StorageSink sink;
+
+    /** the server data of the shard of the tenant, see ShardRouter; the main server data until the game session is known. */
+    private ServerData shardData;
+
+    /** the sink of the shard of the tenant, for the identities, events, scores and errors. */
+    private StorageSink shardSink;
+
+    /** the route to the shard of an import, from resolveSession() until exitShard(); null otherwise. */
+    private ShardRouter.Route route = null;
+
     private final StorageRequestTask task;
 
     private final Map<String, String> requestMap;
@@ -68,10 +143,35 @@ public class StorageProcessor
 
     private GroupRoleRecord groupRole;
 
+    /** the first error for this message, or null. */
+    private String error = null;
+
+    /** reports missing and invalid fields of the field mappers as an error or warning for this message. */
+    private final FieldMapper.Reporter reporter = new FieldMapper.Reporter()
+    {
+        @Override
+        public void missing(final String key)
+        {
+            error("No tag " + key + " found for game session " + StorageProcessor.this.gameSession.getCode() + " for game "
+                    + StorageProcessor.this.game.getCode());
+        }
+
+        @Override
+        public void invalid(final String typeName, final String key, final String value)
+        {
+            warning(typeName + " " + value + " for key " + key + " not valid for game session "
+                    + StorageProcessor.this.gameSession.getCode() + " for game " + StorageProcessor.this.game.getCode()
+                    + ("DateTime".equals(typeName) ? " -- format is ISO-8601, e.g., 2024-12-03T10:15:30" : ""));
+        }
+    };
+
     public StorageProcessor(final ServerData data, final StorageRequestTask task, final Map<String, String> requestMap)
     {
         super();
         this.data = data;
+        this.sink = data.getSink();
+        this.shardData = data;
+        this.shardSink = this.sink;
         this.task = task;
         this.requestMap = requestMap;
     }
@@ -85,10 +185,44 @@ public class StorageProcessor
 
         if (!retrieveGameSession())
             return;
+        Tracer.mark(this.task.trace(), Tracer.Stage.SESSION);
+        ShardRouter.Route route =
+                ShardRouter.enter(this.data, this.organization.getCode(), this.game.getCode(), this.gameSession);
+        try
+        {
+            this.shardData = route.data();
+            this.shardSink = route.data().getSink();
+            try
+            {
+                storeInShard(messageData);
+            }
+            catch (RuntimeException e)
+            {
+                if (!ShardRouter.isMissingReference(e) || ShardRouter.MAIN.equals(route.shard()))
+                    throw e;
+                // metadata that was added to the main database after it was copied is missing in the shard
+                ShardRouter.refreshMetadata(route, this.gameSession);
+                storeInShard(messageData);
+            }
+        }
+        finally
+        {
+            ShardRouter.exit(route);
+        }
+    }
+
+    /**
+     * Check the tokens and the mission, and store the message in the shard of the tenant.
+     * @param messageData the data type of the message
+     */
+    private void storeInShard(final String messageData)
+    {
         if (!checkTokens())
             return;
+        Tracer.mark(this.task.trace(), Tracer.Stage.TOKENS);
         if (!checkMission())
             return;
+        Tracer.mark(this.task.trace(), Tracer.Stage.MISSION);
 
         switch (messageData)
         {
@@ -103,80 +237,46 @@ public class StorageProcessor
 
     private void handleMissionEvent()
     {
-        MissionEventRecord missionEvent = this.data.getDSL().newRecord(Tables.MISSION_EVENT);
+        MissionEventRecord missionEvent = this.shardSink.newRecord(Tables.MISSION_EVENT);
         missionEvent.setGameSessionId(this.gameSession.getId());
         missionEvent.setGameMissionId(this.gameMission.getId());
-        missionEvent.setType(parseString("type", false, "string"));
-        String key = parseString("key", true);
-        if (key == null)
+        if (!MISSION_EVENT_FIELDS.apply(missionEvent, this.requestMap, this.task.timestamp(), this.reporter))
             return;
-        missionEvent.setKey(key);
-        String value = parseString("value", true);
-        if (value == null)
-            return;
-        missionEvent.setValue(value);
-        missionEvent.setTimestamp(parseDateTime("timestamp", false, this.task.timestamp()));
-        missionEvent.setStatus(parseString("status", false, null));
-        missionEvent.setRound(parseString("round", false, null));
-        missionEvent.setGameTime(parseString("game_time", false, null));
-        missionEvent.setGroupingCode(parseString("grouping_code", false, null));
-        missionEvent.setFacilitatorInitiated(parseBoolean("facilitator_initiated", false, (byte) 0));
-        missionEvent.store();
+        writeEvent(missionEvent, "mission_event", null, missionEvent.getKey(), missionEvent.getValue(),
+                missionEvent.getTimestamp());
     }
 
     private void handlePlayerEvent()
     {
         if (!retrievePlayer())
             return;
-        PlayerEventRecord playerEvent = this.data.getDSL().newRecord(Tables.PLAYER_EVENT);
+        Tracer.mark(this.task.trace(), Tracer.Stage.IDENTITY);
+        PlayerEventRecord playerEvent = this.shardSink.newRecord(Tables.PLAYER_EVENT);
         playerEvent.setPlayerAttemptId(this.playerAttempt.getId());
-        playerEvent.setType(parseString("type", false, "string"));
-        String key = parseString("key", true);
-        if (key == null)
-            return;
-        playerEvent.setKey(key);
-        String value = parseString("value", true);
-        if (value == null)
+        if (!PLAYER_EVENT_FIELDS.apply(playerEvent, this.requestMap, this.task.timestamp(), this.reporter))
             return;
-        playerEvent.setValue(value);
-        playerEvent.setTimestamp(parseDateTime("timestamp", false, this.task.timestamp()));
-        playerEvent.setStatus(parseString("status", false, null));
-        playerEvent.setRound(parseString("round", false, null));
-        playerEvent.setGameTime(parseString("game_time", false, null));
-        playerEvent.setGroupingCode(parseString("grouping_code", false, null));
-        playerEvent.setPlayerInitiated(parseBoolean("player_initiated", false, (byte) 0));
-        playerEvent.store();
+        writeEvent(playerEvent, "player_event", this.playerAttempt.getId(), playerEvent.getKey(), playerEvent.getValue(),
+                playerEvent.getTimestamp());
     }
 
     private void handleGroupEvent()
     {
         if (!retrieveGroup())
             return;
-        GroupEventRecord groupEvent = this.data.getDSL().newRecord(Tables.GROUP_EVENT);
+        Tracer.mark(this.task.trace(), Tracer.Stage.IDENTITY);
+        GroupEventRecord groupEvent = this.shardSink.newRecord(Tables.GROUP_EVENT);
         groupEvent.setGroupAttemptId(this.groupAttempt.getId());
-        groupEvent.setType(parseString("type", false, "string"));
-        String key = parseString("key", true);
-        if (key == null)
-            return;
-        groupEvent.setKey(key);
-        String value = parseString("value", true);
-        if (value == null)
+        if (!GROUP_EVENT_FIELDS.apply(groupEvent, this.requestMap, this.task.timestamp(), this.reporter))
             return;
-        groupEvent.setValue(value);
-        groupEvent.setTimestamp(parseDateTime("timestamp", false, this.task.timestamp()));
-        groupEvent.setStatus(parseString("status", false, null));
-        groupEvent.setRound(parseString("round", false, null));
-        groupEvent.setGameTime(parseString("game_time", false, null));
-        groupEvent.setGroupingCode(parseString("grouping_code", false, null));
-        groupEvent.setGroupInitiated(parseBoolean("group_initiated", false, (byte) 0));
-        groupEvent.store();
+        this.shardSink.writeEvent(groupEvent);
     }
 
     private void handlePlayerScore()
     {
         if (!retrievePlayer())
             return;
-        PlayerScoreRecord playerScore = this.data.getDSL().newRecord(Tables.PLAYER_SCORE);
+        Tracer.mark(this.task.trace(), Tracer.Stage.IDENTITY);
+        PlayerScoreRecord playerScore = this.shardSink.newRecord(Tables.PLAYER_SCORE);
         RecordId playerObjectiveId = retrievePlayerObjectiveId(false);
         if (!playerObjectiveId.ok())
             return;
@@ -186,33 +286,17 @@ public class StorageProcessor
             return;
         playerScore.setScaleId(scaleId.id());
         playerScore.setPlayerAttemptId(this.playerAttempt.getId());
-        String scoreType = parseString("score_type", true);
-        if (scoreType == null)
+        if (!PLAYER_SCORE_FIELDS.apply(playerScore, this.requestMap, this.task.timestamp(), this.reporter))
             return;
-        playerScore.setScoreType(scoreType);
-        Double delta = parseDouble("delta", false, Double.NaN);
-        if (delta == null)
-            return;
-        playerScore.setDelta(delta.isNaN() ? null : delta);
-        Double newScoreNumber = parseDouble("new_score_number", false, Double.NaN);
-        if (newScoreNumber == null)
-            return;
-        playerScore.setNewScoreNumber(newScoreNumber.isNaN() ? null : newScoreNumber);
-        playerScore.setNewScoreString(parseString("new_score_string", false, null));
-        playerScore.setTimestamp(parseDateTime("timestamp", false, this.task.timestamp()));
-        playerScore.setFinalScore(parseBoolean("final_score", false, (byte) 0));
-        playerScore.setStatus(parseString("status", false, null));
-        playerScore.setRound(parseString("round", false, null));
-        playerScore.setGameTime(parseString("game_time", false, null));
-        playerScore.setGroupingCode(parseString("grouping_code", false, null));
-        playerScore.store();
+        this.shardSink.writeScore(playerScore);
     }
 
     private void handleGroupScore()
     {
         if (!retrieveGroup())
             return;
-        GroupScoreRecord groupScore = this.data.getDSL().newRecord(Tables.GROUP_SCORE);
+        Tracer.mark(this.task.trace(), Tracer.Stage.IDENTITY);
+        GroupScoreRecord groupScore = this.shardSink.newRecord(Tables.GROUP_SCORE);
         RecordId groupObjectiveId = retrieveGroupObjectiveId(false);
         if (!groupObjectiveId.ok())
             return;
@@ -222,47 +306,191 @@ public class StorageProcessor
             return;
         groupScore.setScaleId(scaleId.id());
         groupScore.setGroupAttemptId(this.groupAttempt.getId());
-        String scoreType = parseString("score_type", true);
-        if (scoreType == null)
-            return;
-        groupScore.setScoreType(scoreType);
-        Double delta = parseDouble("delta", false, Double.NaN);
-        if (delta == null)
+        if (!GROUP_SCORE_FIELDS.apply(groupScore, this.requestMap, this.task.timestamp(), this.reporter))
             return;
-        groupScore.setDelta(delta.isNaN() ? null : delta);
-        Double newScoreNumber = parseDouble("new_score_number", false, Double.NaN);
-        if (newScoreNumber == null)
+        this.shardSink.writeScore(groupScore);
+    }
+
+    /**
+     * Resolve the game session, check the tokens, and enter the shard of the tenant, without storing a message. Used by the
+     * BulkImporter, which resolves the identities of an import once and stores the rows itself in the shard of getShardData().
+     * The BulkImporter changes the fields of the request map between the calls to resolve the missions, players and groups of
+     * the rows, and ends the import with exitShard(), so the tenant is not moved during the import.
+     * @return whether the game session was found and the tokens are valid; when not, an error has been stored
+     */
+    boolean resolveSession()
+    {
+        if (!retrieveGameSession() || !checkTokens())
+            return false;
+        try
+        {
+            this.route = ShardRouter.enter(this.data, this.organization.getCode(), this.game.getCode(), this.gameSession);
+        }
+        catch (ShardRouter.TenantMovingException e)
+        {
+            error("Import of game session " + this.gameSession.getCode() + " not possible: " + e.getMessage());
+            return false;
+        }
+        this.shardData = this.route.data();
+        this.shardSink = this.shardData.getSink();
+        return true;
+    }
+
+    /**
+     * Copy the metadata of the game session of an import to its shard again, after an insert failed on a missing foreign key.
+     * @return whether the metadata was copied, false when the import is stored in the main database
+     */
+    boolean refreshMetadata()
+    {
+        if (this.route == null || ShardRouter.MAIN.equals(this.route.shard()))
+            return false;
+        ShardRouter.refreshMetadata(this.route, this.gameSession);
+        return true;
+    }
+
+    /** End the route to the shard of an import that was entered with resolveSession(). */
+    void exitShard()
+    {
+        if (this.route != null)
+        {
+            ShardRouter.exit(this.route);
+            this.route = null;
+        }
+    }
+
+    /**
+     * Return the server data of the shard of the tenant, which is the main server data until the game session is known.
+     * @return the server data of the shard
+     */
+    ServerData getShardData()
+    {
+        return this.shardData;
+    }
+
+    /**
+     * Resolve the game mission of the field game_mission in the request map.
+     * @return the id of the mission, or null when not found (an error has been stored)
+     */
+    Integer resolveMission()
+    {
+        return checkMission() ? this.gameMission.getId() : null;
+    }
+
+    /**
+     * Resolve (and create when needed) the player and player attempt for the player fields in the request map, for the mission
+     * that was resolved last.
+     * @return the id of the player attempt, or null when the fields are not valid (an error has been stored)
+     */
+    Integer resolvePlayerAttempt()
+    {
+        return retrievePlayer() ? this.playerAttempt.getId() : null;
+    }
+
+    /**
+     * Resolve (and create when needed) the group and group attempt for the group fields in the request map, for the mission
+     * that was resolved last.
+     * @return the id of the group attempt, or null when the fields are not valid (an error has been stored)
+     */
+    Integer resolveGroupAttempt()
+    {
+        return retrieveGroup() ? this.groupAttempt.getId() : null;
+    }
+
+    Integer getGameSessionId()
+    {
+        return this.gameSession.getId();
+    }
+
+    /**
+     * Return the code of the game session of the message, e.g., to identify the message in a trace.
+     * @return the code of the game session, or null when the game session was not found
+     */
+    String getGameSessionCode()
+    {
+        return this.gameSession == null ? null : this.gameSession.getCode();
+    }
+
+    /**
+     * Return the code of the organization of the message, e.g., to count the messages per organization.
+     * @return the code of the organization, or null when the organization was not found
+     */
+    String getOrganizationCode()
+    {
+        return this.organization == null ? null : this.organization.getCode();
+    }
+
+    /**
+     * Store an event, and offer its value to the RollupManager when a rollup rule exists for the event. The raw event is only
+     * stored when the rule samples it or the value arrived late, and the value is rolled up after the raw event has been
+     * stored, so a message that is retried after a failed insert is not counted twice.
+     * @param event the event record
+     * @param dataType mission_event or player_event
+     * @param attemptId the player attempt id, or null for a mission event
+     * @param key the key of the event
+     * @param value the value of the event
+     * @param timestamp the timestamp of the event
+     */
+    private void writeEvent(final UpdatableRecord<?> event, final String dataType, final Integer attemptId, final String key,
+            final String value, final LocalDateTime timestamp)
+    {
+        RollupManager.RollupRule rule =
+                RollupManager.findRule(this.game.getCode(), this.gameVersion.getCode(), this.gameMission.getCode(), key);
+        double number;
+        try
+        {
+            number = rule == null ? Double.NaN : Double.parseDouble(value);
+        }
+        catch (NumberFormatException e)
+        {
+            rule = null; // non-numeric values are always stored
+            number = Double.NaN;
+        }
+        if (rule == null)
+        {
+            this.shardSink.writeEvent(event);
             return;
-        groupScore.setNewScoreNumber(newScoreNumber.isNaN() ? null : newScoreNumber);
-        groupScore.setNewScoreString(parseString("new_score_string", false, null));
-        groupScore.setTimestamp(parseDateTime("timestamp", false, this.task.timestamp()));
-        groupScore.setFinalScore(parseBoolean("final_score", false, (byte) 0));
-        groupScore.setStatus(parseString("status", false, null));
-        groupScore.setRound(parseString("round", false, null));
-        groupScore.setGameTime(parseString("game_time", false, null));
-        groupScore.setGroupingCode(parseString("grouping_code", false, null));
-        groupScore.store();
+        }
+        RollupManager.WindowKey windowKey = new RollupManager.WindowKey(dataType, this.gameSession.getId(),
+                this.gameMission.getId(), attemptId, key, this.organization.getCode(), this.game.getCode());
+        if (RollupManager.keepRaw(rule, windowKey, timestamp))
+            this.shardSink.writeEvent(event);
+        RollupManager.add(rule, windowKey, number, timestamp);
+    }
+
+    /**
+     * Look up a metadata record in the MetadataCache, and when it is not cached, in the sink.
+     * @param <R> the record type
+     * @param key the key of the record in the cache
+     * @param lookup the lookup of the record in the sink
+     * @return the record, or null when it does not exist
+     */
+    private <R extends UpdatableRecord<R>> R cached(final String key, final Lookup<R> lookup)
+    {
+        return MetadataCache.get(key, () -> this.sink.resolveSession(lookup));
     }
 
     private boolean retrieveGameSession()
     {
-        DSLContext dsl = this.data.getDSL();
         if (this.requestMap.containsKey("session_token"))
         {
             String sessionToken = this.requestMap.get("session_token");
-            this.gameSession =
-                    dsl.selectFrom(Tables.GAME_SESSION).where(Tables.GAME_SESSION.SESSION_TOKEN.eq(sessionToken)).fetchAny();
+            this.gameSession = cached(MetadataCache.key("game_session_token", sessionToken),
+                    Lookup.of(Tables.GAME_SESSION, Tables.GAME_SESSION.SESSION_TOKEN, sessionToken));
             if (this.gameSession == null)
             {
                 error("session_token in data not found in database: " + sessionToken);
                 return false;
             }
-            this.gameVersion = SqlUtils.readRecordFromId(this.data, Tables.GAME_VERSION, this.gameSession.getGameVersionId());
-            this.game = SqlUtils.readRecordFromId(this.data, Tables.GAME, this.gameVersion.getGameId());
-            this.organization = SqlUtils.readRecordFromId(this.data, Tables.ORGANIZATION, this.gameSession.getOrganizationId());
-            this.organizationGame =
-                    dsl.selectFrom(Tables.ORGANIZATION_GAME).where(Tables.ORGANIZATION_GAME.GAME_ID.eq(this.game.getId())
-                            .and(Tables.ORGANIZATION_GAME.ORGANIZATION_ID.eq(this.organization.getId()))).fetchAny();
+            this.gameVersion = cached(MetadataCache.key("game_version", this.gameSession.getGameVersionId()),
+                    Lookup.of(Tables.GAME_VERSION, Tables.GAME_VERSION.ID, this.gameSession.getGameVersionId()));
+            this.game = cached(MetadataCache.key("game", this.gameVersion.getGameId()),
+                    Lookup.of(Tables.GAME, Tables.GAME.ID, this.gameVersion.getGameId()));
+            this.organization = cached(MetadataCache.key("organization", this.gameSession.getOrganizationId()),
+                    Lookup.of(Tables.ORGANIZATION, Tables.ORGANIZATION.ID, this.gameSession.getOrganizationId()));
+            this.organizationGame = cached(
+                    MetadataCache.key("organization_game", this.game.getId(), this.organization.getId()),
+                    Lookup.of(Tables.ORGANIZATION_GAME, Tables.ORGANIZATION_GAME.GAME_ID, this.game.getId(),
+                            Tables.ORGANIZATION_GAME.ORGANIZATION_ID, this.organization.getId()));
             if (this.organizationGame == null)
             {
                 error("No access record found for organization " + this.organization.getCode() + " for game "
@@ -279,41 +507,43 @@ public class StorageProcessor
             String gameCode = this.requestMap.get("game_code");
             String gameVersionCode = this.requestMap.get("game_version_code");
             String organizationCode = this.requestMap.get("organization_code");
-            this.game = dsl.selectFrom(Tables.GAME).where(Tables.GAME.CODE.eq(gameCode)).fetchAny();
+            this.game = cached(MetadataCache.key("game_code", gameCode), Lookup.of(Tables.GAME, Tables.GAME.CODE, gameCode));
             if (this.game == null)
             {
                 error("No record found for game " + gameCode);
                 return false;
             }
-            this.gameVersion = dsl.selectFrom(Tables.GAME_VERSION)
-                    .where(Tables.GAME_VERSION.CODE.eq(gameVersionCode).and(Tables.GAME_VERSION.GAME_ID.eq(this.game.getId())))
-                    .fetchAny();
+            this.gameVersion = cached(MetadataCache.key("game_version_code", this.game.getId(), gameVersionCode),
+                    Lookup.of(Tables.GAME_VERSION, Tables.GAME_VERSION.CODE, gameVersionCode, Tables.GAME_VERSION.GAME_ID,
+                            this.game.getId()));
             if (this.gameVersion == null)
             {
                 error("No record found for gameVersion " + gameVersionCode + " for game " + gameCode);
                 return false;
             }
-            this.organization =
-                    dsl.selectFrom(Tables.ORGANIZATION).where(Tables.ORGANIZATION.CODE.eq(organizationCode)).fetchAny();
+            this.organization = cached(MetadataCache.key("organization_code", organizationCode),
+                    Lookup.of(Tables.ORGANIZATION, Tables.ORGANIZATION.CODE, organizationCode));
             if (this.organization == null)
             {
                 error("No record found for organization " + organizationCode);
                 return false;
             }
-            this.organizationGame =
-                    dsl.selectFrom(Tables.ORGANIZATION_GAME).where(Tables.ORGANIZATION_GAME.GAME_ID.eq(this.game.getId())
-                            .and(Tables.ORGANIZATION_GAME.ORGANIZATION_ID.eq(this.organization.getId()))).fetchAny();
+            this.organizationGame = cached(
+                    MetadataCache.key("organization_game", this.game.getId(), this.organization.getId()),
+                    Lookup.of(Tables.ORGANIZATION_GAME, Tables.ORGANIZATION_GAME.GAME_ID, this.game.getId(),
+                            Tables.ORGANIZATION_GAME.ORGANIZATION_ID, this.organization.getId()));
             if (this.organizationGame == null)
             {
                 error("No access record found for organization " + this.organization.getCode() + " for game "
                         + this.game.getCode());
                 return false;
             }
-            this.gameSession = dsl.selectFrom(Tables.GAME_SESSION)
-                    .where(Tables.GAME_SESSION.CODE.eq(gameSessionCode)
-                            .and(Tables.GAME_SESSION.GAME_VERSION_ID.eq(this.gameVersion.getId()))
-                            .and(Tables.GAME_SESSION.ORGANIZATION_ID.eq(this.organization.getId())))
-                    .fetchAny();
+            String sessionKey = MetadataCache.key("game_session_code", this.gameVersion.getId(), this.organization.getId(),
+                    gameSessionCode);
+            Lookup<GameSessionRecord> sessionLookup = Lookup.of(Tables.GAME_SESSION, Tables.GAME_SESSION.CODE, gameSessionCode,
+                    Tables.GAME_SESSION.GAME_VERSION_ID, this.gameVersion.getId(), Tables.GAME_SESSION.ORGANIZATION_ID,
+                    this.organization.getId());
+            this.gameSession = cached(sessionKey, sessionLookup);
             if (this.gameSession != null && this.gameSession.getTokenForced() != 0)
             {
                 error("Anonymous access without token for Game Session " + gameSessionCode + " for game " + this.game.getCode()
@@ -328,19 +558,20 @@ public class StorageProcessor
             }
             if (this.gameSession == null)
             {
-                this.gameSession = this.data.getDSL().newRecord(Tables.GAME_SESSION);
-                this.gameSession.setOrganizationId(this.organization.getId());
-                this.gameSession.setGameVersionId(this.gameVersion.getId());
-                this.gameSession.setCode(gameSessionCode);
-                this.gameSession.setName(gameSessionCode);
-                this.gameSession.setDescription("Autogenerated");
-                this.gameSession.setSessionToken("");
-                this.gameSession.setTokenForced((byte) 0);
-                this.gameSession.setArchived((byte) 0);
-                this.gameSession.setValid((byte) 1);
-                this.gameSession.setPlayDate(LocalDate.now());
-                this.gameSession.setSessionStatus("");
-                this.gameSession.store();
+                this.gameSession = this.sink.resolveIdentity(sessionLookup, gs ->
+                {
+                    gs.setOrganizationId(this.organization.getId());
+                    gs.setGameVersionId(this.gameVersion.getId());
+                    gs.setCode(gameSessionCode);
+                    gs.setName(gameSessionCode);
+                    gs.setDescription("Autogenerated");
+                    gs.setSessionToken("");
+                    gs.setTokenForced((byte) 0);
+                    gs.setArchived((byte) 0);
+                    gs.setValid((byte) 1);
+                    gs.setPlayDate(LocalDate.now());
+                    gs.setSessionStatus("");
+                });
             }
         }
 
@@ -351,7 +582,6 @@ public class StorageProcessor
 
     private boolean checkTokens()
     {
-        DSLContext dsl = this.data.getDSL();
         if (this.game.getTokenForced() != 0)
         {
             if (!this.requestMap.containsKey("game_token"))
@@ -361,9 +591,8 @@ public class StorageProcessor
                 return false;
             }
             String gameToken = this.requestMap.get("game_token");
-            var gt = dsl.selectFrom(Tables.GAME_TOKEN)
-                    .where(Tables.GAME_TOKEN.GAME_ID.eq(this.game.getId()).and(Tables.GAME_TOKEN.VALUE.eq(gameToken)))
-                    .fetchAny();
+            var gt = cached(MetadataCache.key("game_token", this.game.getId(), gameToken), Lookup.of(Tables.GAME_TOKEN,
+                    Tables.GAME_TOKEN.GAME_ID, this.game.getId(), Tables.GAME_TOKEN.VALUE, gameToken));
             if (gt == null)
             {
                 error("Field game_token does not exist in database. Game Session " + this.gameSession.getCode() + " for game "
@@ -387,10 +616,9 @@ public class StorageProcessor
                 return false;
             }
             String orgGameToken = this.requestMap.get("organization_game_token");
-            var ogt = dsl
-                    .selectFrom(Tables.ORGANIZATION_GAME_TOKEN).where(Tables.ORGANIZATION_GAME_TOKEN.ORGANIZATION_GAME_ID
-                            .eq(this.organizationGame.getId()).and(Tables.ORGANIZATION_GAME_TOKEN.VALUE.eq(orgGameToken)))
-                    .fetchAny();
+            var ogt = cached(MetadataCache.key("organization_game_token", this.organizationGame.getId(), orgGameToken),
+                    Lookup.of(Tables.ORGANIZATION_GAME_TOKEN, Tables.ORGANIZATION_GAME_TOKEN.ORGANIZATION_GAME_ID,
+                            this.organizationGame.getId(), Tables.ORGANIZATION_GAME_TOKEN.VALUE, orgGameToken));
             if (ogt == null)
             {
                 error("Field organization_game_token does not exist in database. Game Session " + this.gameSession.getCode()
@@ -409,7 +637,6 @@ public class StorageProcessor
 
     private boolean checkMission()
     {
-        DSLContext dsl = this.data.getDSL();
         if (!this.requestMap.containsKey("game_mission"))
         {
             error("No 'game_mission' tag found for game session " + this.gameSession.getCode() + " for game "
@@ -417,8 +644,9 @@ public class StorageProcessor
             return false;
         }
         String gameMissionCode = this.requestMap.get("game_mission");
-        this.gameMission = dsl.selectFrom(Tables.GAME_MISSION).where(Tables.GAME_MISSION.CODE.eq(gameMissionCode)
-                .and(Tables.GAME_MISSION.GAME_VERSION_ID.eq(this.gameVersion.getId()))).fetchAny();
+        this.gameMission = cached(MetadataCache.key("game_mission", this.gameVersion.getId(), gameMissionCode),
+                Lookup.of(Tables.GAME_MISSION, Tables.GAME_MISSION.CODE, gameMissionCode, Tables.GAME_MISSION.GAME_VERSION_ID,
+                        this.gameVersion.getId()));
         if (this.gameMission == null)
         {
             error("No record found for gameMission " + gameMissionCode + " for game " + this.game.getCode());
@@ -429,8 +657,6 @@ public class StorageProcessor
 
     private boolean retrievePlayer()
     {
-        DSLContext dsl = this.data.getDSL();
-
         // 1. Player
         if (!this.requestMap.containsKey("player_name"))
         {
@@ -439,70 +665,46 @@ public class StorageProcessor
             return false;
         }
         String playerName = this.requestMap.get("player_name");
-        this.player = dsl.selectFrom(Tables.PLAYER)
-                .where(Tables.PLAYER.NAME.eq(playerName).and(Tables.PLAYER.GAME_SESSION_ID.eq(this.gameSession.getId())))
-                .fetchAny();
-        if (this.player == null)
-        {
-            this.player = this.data.getDSL().newRecord(Tables.PLAYER);
-            this.player.setName(playerName);
-            this.player.setDisplayName(parseString("player_display_name", false, StringUtils.substring(playerName, 45)));
-            this.player.setGameSessionId(this.gameSession.getId());
-            this.player.store();
-        }
+        this.player = this.shardSink.resolveIdentity(Lookup.of(Tables.PLAYER, Tables.PLAYER.NAME, playerName,
+                Tables.PLAYER.GAME_SESSION_ID, this.gameSession.getId()), p ->
+                {
+                    p.setName(playerName);
+                    p.setDisplayName(parseString("player_display_name", false, StringUtils.substring(playerName, 45)));
+                    p.setGameSessionId(this.gameSession.getId());
+                });
 
         // 2. PlayerAttempt
         Integer playerAttemptNr = parseInt("player_attempt_nr", false, 1);
-        this.playerAttempt = dsl.selectFrom(Tables.PLAYER_ATTEMPT)
-                .where(Tables.PLAYER_ATTEMPT.PLAYER_ID.eq(this.player.getId())
-                        .and(Tables.PLAYER_ATTEMPT.GAME_MISSION_ID.eq(this.gameMission.getId()))
-                        .and(Tables.PLAYER_ATTEMPT.ATTEMPT_NR.eq(playerAttemptNr)))
-                .fetchAny();
-        if (this.playerAttempt == null)
-        {
-            this.playerAttempt = this.data.getDSL().newRecord(Tables.PLAYER_ATTEMPT);
-            this.playerAttempt.setAttemptNr(playerAttemptNr);
-            this.playerAttempt.setStatus(parseString("player_attempt_status", false, ""));
-            this.playerAttempt.setGameMissionId(this.gameMission.getId());
-            this.playerAttempt.setPlayerId(this.player.getId());
-            this.playerAttempt.store();
-        }
+        this.playerAttempt = this.shardSink.resolveIdentity(Lookup.of(Tables.PLAYER_ATTEMPT,
+                Tables.PLAYER_ATTEMPT.PLAYER_ID, this.player.getId(), Tables.PLAYER_ATTEMPT.GAME_MISSION_ID,
+                this.gameMission.getId(), Tables.PLAYER_ATTEMPT.ATTEMPT_NR, playerAttemptNr), pa ->
+                {
+                    pa.setAttemptNr(playerAttemptNr);
+                    pa.setStatus(parseString("player_attempt_status", false, ""));
+                    pa.setGameMissionId(this.gameMission.getId());
+                    pa.setPlayerId(this.player.getId());
+                });
 
         // 3. Group and GroupRole
         String groupName = parseString("group_name", false, null);
         if (groupName != null)
         {
             String groupRoleName = parseString("group_role", false, "MEMBER");
-            this.group = dsl.selectFrom(Tables.GROUP)
-                    .where(Tables.GROUP.NAME.eq(groupName).and(Tables.GROUP.GAME_SESSION_ID.eq(this.gameSession.getId())))
-                    .fetchAny();
-            if (this.group == null)
-            {
-                this.group = this.data.getDSL().newRecord(Tables.GROUP);
-                this.group.setName(groupName);
-                this.group.setGameSessionId(this.gameSession.getId());
-                this.group.store();
-            }
-            this.groupRole = dsl.selectFrom(Tables.GROUP_ROLE)
-                    .where(Tables.GROUP_ROLE.NAME.eq(groupRoleName).and(Tables.GROUP_ROLE.PLAYER_ID.eq(this.player.getId()))
-                            .and(Tables.GROUP_ROLE.GROUP_ID.eq(this.group.getId())))
-                    .fetchAny();
-            if (this.groupRole == null)
-            {
-                this.groupRole = this.data.getDSL().newRecord(Tables.GROUP_ROLE);
-                this.groupRole.setName(groupRoleName);
-                this.groupRole.setPlayerId(this.player.getId());
-                this.groupRole.setGroupId(this.group.getId());
-                this.groupRole.store();
-            }
+            this.group = resolveGroup(groupName);
+            this.groupRole = this.shardSink.resolveIdentity(Lookup.of(Tables.GROUP_ROLE, Tables.GROUP_ROLE.NAME,
+                    groupRoleName, Tables.GROUP_ROLE.PLAYER_ID, this.player.getId(), Tables.GROUP_ROLE.GROUP_ID,
+                    this.group.getId()), gr ->
+                    {
+                        gr.setName(groupRoleName);
+                        gr.setPlayerId(this.player.getId());
+                        gr.setGroupId(this.group.getId());
+                    });
         }
         return true;
     }
 
     private boolean retrieveGroup()
     {
-        DSLContext dsl = this.data.getDSL();
-
         // 1. Group
         if (!this.requestMap.containsKey("group_name"))
         {
@@ -510,41 +712,34 @@ public class StorageProcessor
                     + this.game.getCode());
             return false;
         }
-        String groupName = this.requestMap.get("group_name");
-        this.group = dsl.selectFrom(Tables.GROUP)
-                .where(Tables.GROUP.NAME.eq(groupName).and(Tables.GROUP.GAME_SESSION_ID.eq(this.gameSession.getId())))
-                .fetchAny();
-        if (this.group == null)
-        {
-            this.group = this.data.getDSL().newRecord(Tables.GROUP);
-            this.group.setName(groupName);
-            this.group.setGameSessionId(this.gameSession.getId());
-            this.group.store();
-        }
+        this.group = resolveGroup(this.requestMap.get("group_name"));
 
         // 2. GroupAttempt
         Integer groupAttemptNr = parseInt("group_attempt_nr", false, 1);
-        this.groupAttempt = dsl.selectFrom(Tables.GROUP_ATTEMPT)
-                .where(Tables.GROUP_ATTEMPT.GROUP_ID.eq(this.group.getId())
-                        .and(Tables.GROUP_ATTEMPT.GAME_MISSION_ID.eq(this.gameMission.getId()))
-                        .and(Tables.GROUP_ATTEMPT.ATTEMPT_NR.eq(groupAttemptNr)))
-                .fetchAny();
-        if (this.groupAttempt == null)
-        {
-            this.groupAttempt = this.data.getDSL().newRecord(Tables.GROUP_ATTEMPT);
-            this.groupAttempt.setAttemptNr(groupAttemptNr);
-            this.groupAttempt.setStatus(parseString("group_attempt_status", false, ""));
-            this.groupAttempt.setGameMissionId(this.gameMission.getId());
-            this.groupAttempt.setGroupId(this.group.getId());
-            this.groupAttempt.store();
-        }
+        this.groupAttempt = this.shardSink.resolveIdentity(Lookup.of(Tables.GROUP_ATTEMPT,
+                Tables.GROUP_ATTEMPT.GROUP_ID, this.group.getId(), Tables.GROUP_ATTEMPT.GAME_MISSION_ID,
+                this.gameMission.getId(), Tables.GROUP_ATTEMPT.ATTEMPT_NR, groupAttemptNr), ga ->
+                {
+                    ga.setAttemptNr(groupAttemptNr);
+                    ga.setStatus(parseString("group_attempt_status", false, ""));
+                    ga.setGameMissionId(this.gameMission.getId());
+                    ga.setGroupId(this.group.getId());
+                });
         return true;
     }
 
-    private RecordId retrievePlayerObjectiveId(final boolean required)
+    private GroupRecord resolveGroup(final String groupName)
     {
-        DSLContext dsl = this.data.getDSL();
+        return this.shardSink.resolveIdentity(Lookup.of(Tables.GROUP, Tables.GROUP.NAME, groupName,
+                Tables.GROUP.GAME_SESSION_ID, this.gameSession.getId()), g ->
+                {
+                    g.setName(groupName);
+                    g.setGameSessionId(this.gameSession.getId());
+                });
+    }
 
+    private RecordId retrievePlayerObjectiveId(final boolean required)
+    {
         // Step 1. check that conditions are fulfilled
         boolean bpo = this.requestMap.containsKey("player_objective");
         boolean blg = this.requestMap.containsKey("learning_goal");
@@ -571,9 +766,9 @@ public class StorageProcessor
 
         // Step 2. Retrieve learning goal for the game mission
         String lg = this.requestMap.get("learning_goal");
-        LearningGoalRecord learningGoal = dsl.selectFrom(Tables.LEARNING_GOAL)
-                .where(Tables.LEARNING_GOAL.GAME_MISSION_ID.eq(this.gameMission.getId()).and(Tables.LEARNING_GOAL.CODE.eq(lg)))
-                .fetchAny();
+        LearningGoalRecord learningGoal = cached(MetadataCache.key("learning_goal", this.gameMission.getId(), lg),
+                Lookup.of(Tables.LEARNING_GOAL, Tables.LEARNING_GOAL.GAME_MISSION_ID, this.gameMission.getId(),
+                        Tables.LEARNING_GOAL.CODE, lg));
         if (learningGoal == null)
         {
             error("No record found for learning goal " + lg + " that belongs to game mission " + this.gameMission.getCode()
@@ -583,9 +778,9 @@ public class StorageProcessor
 
         // Step 3. Retrieve the player objective for learning goal
         String po = this.requestMap.get("player_objective");
-        PlayerObjectiveRecord playerObjective = dsl.selectFrom(Tables.PLAYER_OBJECTIVE).where(
-                Tables.PLAYER_OBJECTIVE.LEARNING_GOAL_ID.eq(learningGoal.getId()).and(Tables.PLAYER_OBJECTIVE.CODE.eq(po)))
-                .fetchAny();
+        PlayerObjectiveRecord playerObjective = cached(MetadataCache.key("player_objective", learningGoal.getId(), po),
+                Lookup.of(Tables.PLAYER_OBJECTIVE, Tables.PLAYER_OBJECTIVE.LEARNING_GOAL_ID, learningGoal.getId(),
+                        Tables.PLAYER_OBJECTIVE.CODE, po));
         if (playerObjective == null)
         {
             error("No record found for player objective " + po + " that belongs to learning goal " + lg + " for game "
@@ -598,8 +793,6 @@ public class StorageProcessor
 
     private RecordId retrieveGroupObjectiveId(final boolean required)
     {
-        DSLContext dsl = this.data.getDSL();
-
         // Step 1. check that conditions are fulfilled
         boolean bgo = this.requestMap.containsKey("group_objective");
         boolean blg = this.requestMap.containsKey("learning_goal");
@@ -626,9 +819,9 @@ public class StorageProcessor
 
         // Step 2. Retrieve learning goal for the game mission
         String lg = this.requestMap.get("learning_goal");
-        LearningGoalRecord learningGoal = dsl.selectFrom(Tables.LEARNING_GOAL)
-                .where(Tables.LEARNING_GOAL.GAME_MISSION_ID.eq(this.gameMission.getId()).and(Tables.LEARNING_GOAL.CODE.eq(lg)))
-                .fetchAny();
+        LearningGoalRecord learningGoal = cached(MetadataCache.key("learning_goal", this.gameMission.getId(), lg),
+                Lookup.of(Tables.LEARNING_GOAL, Tables.LEARNING_GOAL.GAME_MISSION_ID, this.gameMission.getId(),
+                        Tables.LEARNING_GOAL.CODE, lg));
         if (learningGoal == null)
         {
             error("No record found for learning goal " + lg + " that belongs to game mission " + this.gameMission.getCode()
@@ -638,9 +831,9 @@ public class StorageProcessor
 
         // Step 3. Retrieve the group objective for learning goal
         String go = this.requestMap.get("group_objective");
-        GroupObjectiveRecord groupObjective = dsl.selectFrom(Tables.GROUP_OBJECTIVE)
-                .where(Tables.GROUP_OBJECTIVE.LEARNING_GOAL_ID.eq(learningGoal.getId()).and(Tables.GROUP_OBJECTIVE.CODE.eq(go)))
-                .fetchAny();
+        GroupObjectiveRecord groupObjective = cached(MetadataCache.key("group_objective", learningGoal.getId(), go),
+                Lookup.of(Tables.GROUP_OBJECTIVE, Tables.GROUP_OBJECTIVE.LEARNING_GOAL_ID, learningGoal.getId(),
+                        Tables.GROUP_OBJECTIVE.CODE, go));
         if (groupObjective == null)
         {
             error("No record found for group objective " + go + " that belongs to learning goal " + lg + " for game "
@@ -653,8 +846,6 @@ public class StorageProcessor
 
     private RecordId retrieveScaleId(final boolean required)
     {
-        DSLContext dsl = this.data.getDSL();
-
         // Step 1. check that conditions are fulfilled
         boolean bs = this.requestMap.containsKey("scale_type");
         if (!required && !bs)
@@ -667,8 +858,8 @@ public class StorageProcessor
 
         // Step 2. Retrieve scale for the game
         String scaleType = this.requestMap.get("scale_type");
-        ScaleRecord scale = dsl.selectFrom(Tables.SCALE)
-                .where(Tables.SCALE.GAME_ID.eq(this.game.getId()).and(Tables.SCALE.TYPE.eq(scaleType))).fetchAny();
+        ScaleRecord scale = cached(MetadataCache.key("scale", this.game.getId(), scaleType),
+                Lookup.of(Tables.SCALE, Tables.SCALE.GAME_ID, this.game.getId(), Tables.SCALE.TYPE, scaleType));
         if (scale == null)
         {
             error("No record found for scale " + scaleType + " that belongs to game " + this.game.getCode());
@@ -678,11 +869,6 @@ public class StorageProcessor
         return new RecordId(scale.getId(), true);
     }
 
-    private String parseString(final String key, final boolean required)
-    {
-        return parseString(key, required, null);
-    }
-
     private String parseString(final String key, final boolean required, final String defaultValue)
     {
         if (!this.requestMap.containsKey(key))
@@ -698,58 +884,6 @@ public class StorageProcessor
         return this.requestMap.get(key);
     }
 
-    private LocalDateTime parseDateTime(final String key, final boolean required, final LocalDateTime defaultValue)
-    {
-        if (!this.requestMap.containsKey(key))
-        {
-            if (required)
-            {
-                error("No tag " + key + " found for game session " + this.gameSession.getCode() + " for game "
-                        + this.game.getCode());
-                return null;
-            }
-            return defaultValue;
-        }
-        String dtString = this.requestMap.get(key);
-        try
-        {
-            LocalDateTime dt = LocalDateTime.parse(dtString);
-            return dt;
-        }
-        catch (Exception e)
-        {
-            warning("DateTime " + dtString + " for key " + key + " not valid for game session " + this.gameSession.getCode()
-                    + " for game " + this.game.getCode() + " -- format is ISO-8601, e.g., 2024-12-03T10:15:30");
-            return defaultValue;
-        }
-    }
-
-    private Byte parseBoolean(final String key, final boolean required, final Byte defaultValue)
-    {
-        if (!this.requestMap.containsKey(key))
-        {
-            if (required)
-            {
-                error("No tag " + key + " found for game session " + this.gameSession.getCode() + " for game "
-                        + this.game.getCode());
-                return null;
-            }
-            return defaultValue;
-        }
-        String bString = this.requestMap.get(key);
-        try
-        {
-            Integer b = Integer.parseInt(bString);
-            return b == 0 ? (byte) 0 : (byte) 1;
-        }
-        catch (Exception e)
-        {
-            warning("Byte " + bString + " for key " + key + " not valid for game session " + this.gameSession.getCode()
-                    + " for game " + this.game.getCode());
-            return defaultValue;
-        }
-    }
-
     private Integer parseInt(final String key, final boolean required, final Integer defaultValue)
     {
         if (!this.requestMap.containsKey(key))
@@ -775,39 +909,25 @@ public class StorageProcessor
         }
     }
 
-    private Double parseDouble(final String key, final boolean required, final Double defaultValue)
+    private void error(final String message)
     {
-        if (!this.requestMap.containsKey(key))
-        {
-            if (required)
-            {
-                error("No tag " + key + " found for game session " + this.gameSession.getCode() + " for game "
-                        + this.game.getCode());
-                return null;
-            }
-            return defaultValue;
-        }
-        String dString = this.requestMap.get(key);
-        try
-        {
-            return Double.parseDouble(dString);
-        }
-        catch (Exception e)
-        {
-            warning("Double " + dString + " for key " + key + " not valid for game session " + this.gameSession.getCode()
-                    + " for game " + this.game.getCode());
-            return defaultValue;
-        }
+        if (this.error == null)
+            this.error = message;
+        ErrorHandler.storeError(this.shardData, this.task, this.requestMap, message);
     }
 
-    private void error(final String message)
+    /**
+     * Return the first error that was found while storing the data.
+     * @return the first error, or null when the data was stored without errors
+     */
+    public String getError()
     {
-        ErrorHandler.storeError(this.data, this.task, this.requestMap, message);
+        return this.error;
     }
 
     private void warning(final String message)
     {
-        ErrorHandler.storeWarning(this.data, this.task, this.requestMap, message);
+        ErrorHandler.storeWarning(this.shardData, this.task, this.requestMap, message);
     }
 
     record RecordId(Integer id, boolean ok)
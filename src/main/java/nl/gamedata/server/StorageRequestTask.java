@@ -1,19 +1,89 @@
 package nl.gamedata.server;
 
 import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.Map;
 
 /**
  * A StorageRequestTask holds the payload of the event or score and is handled here.
  * @author <a href="https://www.tudelft.nl/averbraeck">Alexander Verbraeck</a>
- * @param requestType containing GET or POST
+ * @param requestType containing GET or POST, or STREAM for a message from a streaming connection
  * @param contentType the Content-Type string in a POST request
- * @param payload the unaltered payload that has still to be parsed
+ * @param payload the unaltered payload that has still to be parsed, or null for a binary message
+ * @param body the bytes of a binary message, or null for a text message
+ * @param context the fields that apply to all messages of a streaming connection, or null
+ * @param listener the listener that is notified when the task has been processed, or null
  * @param timestamp the timestamp of the request
+ * @param trace the trace of the stages of the task, or null when the task is not sampled by the Tracer
  */
-public record StorageRequestTask(String requestType, String contentType, String payload, LocalDateTime timestamp)
+public record StorageRequestTask(String requestType, String contentType, String payload, byte[] body,
+        Map<String, String> context, TaskListener listener, LocalDateTime timestamp, Tracer.Trace trace)
 {
+    public StorageRequestTask(final String requestType, final String contentType, final String payload, final byte[] body,
+            final Map<String, String> context, final TaskListener listener, final LocalDateTime timestamp)
+    {
+        this(requestType, contentType, payload, body, context, listener, timestamp, null);
+    }
+
     public StorageRequestTask(final String requestType, final String contentType, final String payload)
     {
-        this(requestType, contentType, payload, LocalDateTime.now());
+        this(requestType, contentType, payload, null, null, null, LocalDateTime.now());
+    }
+
+    public StorageRequestTask(final String requestType, final String contentType, final byte[] body)
+    {
+        this(requestType, contentType, null, body, null, null, LocalDateTime.now());
+    }
+
+    /**
+     * Return a copy of this task with a listener.
+     * @param taskListener the listener that is notified when the task has been processed
+     * @return a copy of this task with the listener
+     */
+    public StorageRequestTask withListener(final TaskListener taskListener)
+    {
+        return new StorageRequestTask(this.requestType, this.contentType, this.payload, this.body, this.context, taskListener,
+                this.timestamp, this.trace);
+    }
+
+    /**
+     * Return a copy of this task with a trace, or this task when the task is not sampled.
+     * @param taskTrace the trace of the task, or null when the task is not sampled
+     * @return a copy of this task with the trace, or this task when the trace is null
+     */
+    public StorageRequestTask withTrace(final Tracer.Trace taskTrace)
+    {
+        if (taskTrace == null)
+            return this;
+        return new StorageRequestTask(this.requestType, this.contentType, this.payload, this.body, this.context, this.listener,
+                this.timestamp, taskTrace);
+    }
+
+    /**
+     * Notify the listener, when present, that the processing of the task has finished.
+     * @param error the first error that prevented the storage of the data, or null when the data has been stored
+     */
+    public void completed(final String error)
+    {
+        if (this.listener != null)
+            this.listener.taskCompleted(this, error);
+    }
+
+    /**
+     * Return the payload as text, e.g., to store it in the error table. A binary message is returned in Base64 encoding.
+     * @return the payload as text
+     */
+    public String payloadText()
+    {
+        if (this.payload != null || this.body == null)
+            return this.payload;
+        return "base64:" + Base64.getEncoder().encodeToString(this.body);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "StorageRequestTask[requestType=" + this.requestType + ", contentType=" + this.contentType + ", payload="
+                + payloadText() + (this.context == null ? "" : ", context=" + this.context) + ", timestamp=" + this.timestamp + "]";
     }
 }
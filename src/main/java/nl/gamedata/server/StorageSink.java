@@ -0,0 +1,194 @@
+package nl.gamedata.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import org.jooq.Condition;
+import org.jooq.Table;
+import org.jooq.TableField;
+import org.jooq.UpdatableRecord;
+import org.jooq.impl.DSL;
+
+import nl.gamedata.data.tables.records.ErrorRecord;
+
+/**
+ * StorageSink is the storage behind the StorageProcessor: it resolves the metadata of a game session, resolves or creates the
+ * players, groups and attempts, and writes the events, scores and errors. The jOOQ records of the generated data model are
+ * used as the data of the sink, also by the sinks that do not use a database. The sink is chosen with the property
+ * <code>storage.sink</code>:
+ * <ul>
+ * <li><code>jooq</code> (default): the MySQL database, see JooqSink;</li>
+ * <li><code>memory</code>: an in-memory store for tests and benchmarks, see MemorySink;</li>
+ * <li><code>file</code>: an append-only file, e.g., while the database is not available, see FileSink.</li>
+ * </ul>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public interface StorageSink
+{
+    /**
+     * Create the sink of the property <code>storage.sink</code>.
+     * @param data the server data with the connection pools, which are only opened for the jooq sink
+     * @return the sink
+     * @throws IllegalArgumentException when the property holds an unknown sink
+     */
+    static StorageSink create(final ServerData data)
+    {
+        String name = sinkName();
+        return switch (name)
+        {
+            case "jooq" -> new JooqSink(data);
+            case "memory" -> new MemorySink();
+            case "file" -> new FileSink();
+            default -> throw new IllegalArgumentException("Unknown storage.sink " + name + ", use jooq, memory or file");
+        };
+    }
+
+    /**
+     * Return the name of the configured sink.
+     * @return the value of the property <code>storage.sink</code>, default jooq
+     */
+    static String sinkName()
+    {
+        return ServerProperties.get("storage.sink", "jooq").toLowerCase();
+    }
+
+    /**
+     * Return the name of the sink, as in the property <code>storage.sink</code>.
+     * @return the name of the sink
+     */
+    String name();
+
+    /**
+     * Return whether the sink stores the data in the database; other parts of the server that use the database directly, such
+     * as the imports, the rollups, the cluster mode and the archiver, are only available for such a sink.
+     * @return whether the sink uses the database
+     */
+    boolean usesDatabase();
+
+    /**
+     * Create an empty record of a table, to fill and write with this sink.
+     * @param <R> the record type
+     * @param table the table
+     * @return a new record
+     */
+    <R extends UpdatableRecord<R>> R newRecord(Table<R> table);
+
+    /**
+     * Find a metadata record of a game session: the session, game, version, organization, mission, learning goal, objective,
+     * scale or token. Metadata is never created by the server.
+     * @param <R> the record type
+     * @param lookup the table and the field values of the record
+     * @return the record, or null when it does not exist
+     */
+    <R extends UpdatableRecord<R>> R resolveSession(Lookup<R> lookup);
+
+    /**
+     * Find a player, group, group role or attempt, and create it when it does not exist. Also used for the game sessions that
+     * are created for anonymous access.
+     * @param <R> the record type
+     * @param lookup the table and the field values of the record
+     * @param initializer sets the other fields of a new record; the fields of the lookup are set by the initializer as well
+     * @return the existing or new record
+     */
+    <R extends UpdatableRecord<R>> R resolveIdentity(Lookup<R> lookup, Consumer<R> initializer);
+
+    /**
+     * Write a mission event, player event or group event.
+     * @param event the event
+     */
+    void writeEvent(UpdatableRecord<?> event);
+
+    /**
+     * Write a player score or group score.
+     * @param score the score
+     */
+    void writeScore(UpdatableRecord<?> score);
+
+    /**
+     * Write an error or warning.
+     * @param error the error record
+     */
+    void writeError(ErrorRecord error);
+
+    /**
+     * Return the number of written and created records per table since the start.
+     * @return the number of records per table name; empty when the sink does not count
+     */
+    Map<String, Long> counts();
+
+    /** Release the resources of the sink, e.g., close a file. */
+    void close();
+
+    /**
+     * A lookup of one record of a table on the values of one to three fields.
+     * @param <R> the record type
+     * @param table the table
+     * @param fields the fields of the lookup
+     * @param values the values of the fields, in the same order
+     */
+    record Lookup<R extends UpdatableRecord<R>>(Table<R> table, List<TableField<R, ?>> fields, List<Object> values)
+    {
+        public static <R extends UpdatableRecord<R>, T> Lookup<R> of(final Table<R> table, final TableField<R, T> field,
+                final T value)
+        {
+            return new Lookup<>(table, List.of(field), List.of(value));
+        }
+
+        public static <R extends UpdatableRecord<R>, T1, T2> Lookup<R> of(final Table<R> table,
+                final TableField<R, T1> field1, final T1 value1, final TableField<R, T2> field2, final T2 value2)
+        {
+            return new Lookup<>(table, List.of(field1, field2), List.of(value1, value2));
+        }
+
+        public static <R extends UpdatableRecord<R>, T1, T2, T3> Lookup<R> of(final Table<R> table,
+                final TableField<R, T1> field1, final T1 value1, final TableField<R, T2> field2, final T2 value2,
+                final TableField<R, T3> field3, final T3 value3)
+        {
+            return new Lookup<>(table, List.of(field1, field2, field3), List.of(value1, value2, value3));
+        }
+
+        /**
+         * Return the condition of the lookup for a query.
+         * @return the condition that all fields have their value
+         */
+        @SuppressWarnings("unchecked")
+        public Condition condition()
+        {
+            Condition condition = DSL.noCondition();
+            for (int i = 0; i < this.fields.size(); i++)
+                condition = condition.and(((TableField<R, Object>) this.fields.get(i)).eq(this.values.get(i)));
+            return condition;
+        }
+
+        /**
+         * Return whether a record has the values of the lookup.
+         * @param record the record
+         * @return whether all fields of the record have their value
+         */
+        public boolean matches(final R record)
+        {
+            for (int i = 0; i < this.fields.size(); i++)
+                if (!Objects.equals(record.get(this.fields.get(i)), this.values.get(i)))
+                    return false;
+            return true;
+        }
+
+        /**
+         * Return a key that identifies the lookup, e.g., for an index.
+         * @return the table name, and the names and values of the fields
+         */
+        public String key()
+        {
+            StringBuilder key = new StringBuilder(this.table.getName());
+            for (int i = 0; i < this.fields.size(); i++)
+                key.append('|').append(this.fields.get(i).getName()).append('=').append(this.values.get(i));
+            return key.toString();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package nl.gamedata.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * StoredAck lets a client wait until a message has actually been stored, e.g., for a final score. The client asks for it with
+ * the header <code>X-Gamedata-Ack: stored</code>, or with the field <code>ack=stored</code> in the message. The request is
+ * then put in asynchronous mode, so no request thread waits, and the response is written when the storage thread reports the
+ * outcome of the task through a CompletableFuture, or when <code>ack.timeoutMillis</code> has passed. Messages without the
+ * flag are answered with 202 at once, as before.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+final class StoredAck implements TaskListener
+{
+    /** the header with which a client asks for a stored acknowledgement. */
+    static final String HEADER = "X-Gamedata-Ack";
+
+    private static final LongAdder stored = new LongAdder();
+
+    private static final LongAdder rejected = new LongAdder();
+
+    private static final LongAdder timedOut = new LongAdder();
+
+    /** completed by the storage thread with the first error, or with an empty string when the data has been stored. */
+    private final CompletableFuture<String> outcome = new CompletableFuture<>();
+
+    /**
+     * Return whether the client asks for a stored acknowledgement.
+     * @param request the request
+     * @param task the task with the message
+     * @return whether the response should wait until the message has been stored
+     */
+    static boolean requested(final HttpServletRequest request, final StorageRequestTask task)
+    {
+        return "stored".equalsIgnoreCase(request.getHeader(HEADER)) || "stored".equalsIgnoreCase(IngressFields.find(task, "ack"));
+    }
+
+    @Override
+    public void taskCompleted(final StorageRequestTask task, final String error)
+    {
+        this.outcome.complete(error == null ? "" : error);
+    }
+
+    /**
+     * Put the request in asynchronous mode, and write the response when the outcome of the task is known, or after the timeout.
+     * @param request the request of the client
+     */
+    void respondWhenStored(final HttpServletRequest request)
+    {
+        long timeoutMillis = ServerProperties.getLong("ack.timeoutMillis", 10_000);
+        AsyncContext async = request.startAsync();
+        async.setTimeout(timeoutMillis + 5000);
+        this.outcome.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((error, throwable) -> async.start(() ->
+        {
+            try
+            {
+                write((HttpServletResponse) async.getResponse(), error, timeoutMillis);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // the client has gone; the outcome is in the error table
+            }
+            finally
+            {
+                async.complete();
+            }
+        }));
+    }
+
+    private static void write(final HttpServletResponse response, final String error, final long timeoutMillis)
+            throws IOException
+    {
+        JSONObject json = new JSONObject();
+        if (error == null)
+        {
+            // timeout: the task is still queued or being retried, and will normally be stored later
+            timedOut.increment();
+            json.put("stored", false);
+            json.put("pending", true);
+            json.put("error", "Message not processed within " + timeoutMillis + " ms; it is still queued");
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        }
+        else if (error.isEmpty())
+        {
+            stored.increment();
+            json.put("stored", true);
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+        else
+        {
+            rejected.increment();
+            json.put("stored", false);
+            json.put("error", error);
+            response.setStatus(422);
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(json.toString());
+    }
+
+    /**
+     * Return the statistics of the stored acknowledgements.
+     * @return the statistics
+     */
+    static Statistics getStatistics()
+    {
+        return new Statistics(stored.sum(), rejected.sum(), timedOut.sum());
+    }
+
+    /**
+     * Statistics of the stored acknowledgements.
+     * @param stored the number of messages that were acknowledged as stored
+     * @param rejected the number of messages that were answered with an error
+     * @param timedOut the number of messages without an outcome within the timeout
+     */
+    record Statistics(long stored, long rejected, long timedOut)
+    {
+    }
+}
@@ -0,0 +1,512 @@
+package nl.gamedata.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * StreamServlet receives a long-lived stream of messages in one POST request with Content-Type
+ * <code>application/x-ndjson</code>, sent with chunked transfer encoding. Every line of the body is a JSON object. The first line
+ * is the handshake with the fields that apply to all messages of the stream, such as session_token, game_mission and
+ * player_name. Every next line holds only the fields of one message. The server answers with a stream of JSON lines: one line
+ * after the handshake, and acknowledgements with counters after every <code>stream.ackEvery</code> messages or
+ * <code>stream.ackMillis</code> ms, instead of one response per message. When the client sends nothing, the thread
+ * <code>stream-ack</code> writes the acknowledgement every <code>stream.ackMillis</code> ms when the counters changed, so a
+ * client that waits learns when its messages have been processed.
+ * <p>
+ * Flow control is per connection: when <code>stream.window</code> messages of the connection are queued but not yet processed,
+ * the server stops reading from the connection until the storage thread has caught up, so TCP backpressure slows down the
+ * client.
+ * </p>
+ * <p>
+ * Every open stream holds a thread of the servlet container while it waits for the next line, so at most
+ * <code>stream.maxOpen</code> streams are open at the same time; a new stream above that number receives 503 with
+ * <code>Retry-After</code>, and the container threads remain available for single requests. In cluster mode, every line is
+ * routed on its own session fields: a line that names a session of another node is forwarded to that node.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+@WebServlet("/stream")
+public class StreamServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    /** the Content-Type of the stream. */
+    public static final String CONTENT_TYPE = "application/x-ndjson";
+
+    private static final AtomicInteger openStreams = new AtomicInteger();
+
+    private static final LongAdder totalStreams = new LongAdder();
+
+    private static final LongAdder totalMessages = new LongAdder();
+
+    /** the thread that writes the timed acknowledgements of all streams; created at the first stream. */
+    private static ScheduledExecutorService ackWriter = null;
+
+    private static synchronized ScheduledExecutorService ackWriter()
+    {
+        if (ackWriter == null)
+            ackWriter = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+                Thread thread = new Thread(r, "stream-ack");
+                thread.setDaemon(true);
+                return thread;
+            });
+        return ackWriter;
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        if (!RateLimiter.allowClient(GameDataServer.clientAddress(request)))
+        {
+            GameDataServer.tooManyRequests(response);
+            return;
+        }
+        String contentType = request.getContentType() == null ? "" : request.getContentType().toLowerCase();
+        if (!contentType.contains(CONTENT_TYPE))
+        {
+            response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            response.getWriter().write("Content-Type of a stream should be " + CONTENT_TYPE);
+            return;
+        }
+        if (!TaskProcessor.getServletError().isEmpty())
+        {
+            // the connection pool could not be opened at startup, so the messages would never be stored
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().write("Server not available: " + TaskProcessor.getServletError());
+            return;
+        }
+        int maxOpen = ServerProperties.getInt("stream.maxOpen", 100);
+        if (openStreams.incrementAndGet() > maxOpen && maxOpen > 0)
+        {
+            openStreams.decrementAndGet();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "10");
+            response.getWriter().write("Too many open streams, try again later");
+            return;
+        }
+        try
+        {
+            stream(request, response);
+        }
+        finally
+        {
+            openStreams.decrementAndGet();
+        }
+    }
+
+    /**
+     * Read the handshake of a stream, and receive the messages of the stream when its session is stored by this node.
+     * @param request the request of the client
+     * @param response the response to the client
+     * @throws IOException on network error
+     */
+    private static void stream(final HttpServletRequest request, final HttpServletResponse response) throws IOException
+    {
+        int maxLineBytes = ServerProperties.getInt("stream.maxLineBytes", 65536);
+        long maxBytes = ServerProperties.getLong("stream.maxBytes", 0L);
+        try (InputStream stream = RequestBodies.open(request, maxBytes <= 0 ? Long.MAX_VALUE : maxBytes))
+        {
+            // handshake
+            Map<String, String> context;
+            try
+            {
+                String line = readLine(stream, maxLineBytes);
+                context = line == null ? null : parseHandshake(line);
+            }
+            catch (JSONException | LineTooLongException e)
+            {
+                context = null;
+            }
+            if (context == null || context.isEmpty())
+            {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("First line of a stream should be a JSON object with the session fields");
+                return;
+            }
+            ClusterManager.Route route = ClusterManager.route(new StorageRequestTask("STREAM", "application/json", "{}", null,
+                    context, null, LocalDateTime.now()));
+            if (route.kind() != ClusterManager.Route.Kind.LOCAL)
+            {
+                ClusterManager.redirect(route, "/stream", response);
+                return;
+            }
+
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(CONTENT_TYPE);
+            response.setCharacterEncoding("UTF-8");
+            PrintWriter writer = response.getWriter();
+            Connection connection = new Connection(context, ServerProperties.getInt("stream.window", 100));
+            totalStreams.increment();
+            JSONObject connected = new JSONObject();
+            connected.put("connected", true);
+            connected.put("window", connection.window);
+            writeLine(writer, connected);
+            receive(stream, writer, connection, maxLineBytes);
+        }
+        catch (RequestBodies.UnsupportedEncodingException e)
+        {
+            response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            response.getWriter().write(e.getMessage());
+        }
+        catch (ZipException e)
+        {
+            if (!response.isCommitted())
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("Request body could not be decompressed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the messages of the stream until the client closes it, and write the acknowledgements.
+     * @param stream the (decompressed) body
+     * @param writer the writer of the response
+     * @param connection the state of the connection
+     * @param maxLineBytes the maximum length of a line
+     * @throws IOException on network error
+     */
+    private static void receive(final InputStream stream, final PrintWriter writer, final Connection connection,
+            final int maxLineBytes) throws IOException
+    {
+        int ackEvery = ServerProperties.getInt("stream.ackEvery", 100);
+        long ackMillis = Math.max(10, ServerProperties.getLong("stream.ackMillis", 1000));
+        long ackNanos = TimeUnit.MILLISECONDS.toNanos(ackMillis);
+        connection.lastAckNanos = System.nanoTime();
+        // the timed acknowledgements are also written while the servlet thread waits for the next line
+        ScheduledFuture<?> ackTimer = ackWriter().scheduleWithFixedDelay(() -> connection.writeAck(writer, 0, ackNanos),
+                ackMillis, ackMillis, TimeUnit.MILLISECONDS);
+        String error = null;
+        try
+        {
+            String line;
+            while ((line = readLine(stream, maxLineBytes)) != null)
+            {
+                if (line.isBlank())
+                    continue;
+                connection.received++;
+                totalMessages.increment();
+                StorageRequestTask task = new StorageRequestTask("STREAM", "application/json", line, null,
+                        connection.context, connection, LocalDateTime.now(), Tracer.sample(System.nanoTime()));
+                HeavyHitters.ingress(task);
+                ClusterManager.Route route = ClusterManager.route(task);
+                if (route.kind() != ClusterManager.Route.Kind.LOCAL)
+                {
+                    // the fields of the line name a session of another node, or the partition is being handed over
+                    if (route.kind() == ClusterManager.Route.Kind.REMOTE && ClusterManager.forward(task, route))
+                        connection.forwarded++;
+                    else
+                        connection.rejected++;
+                }
+                else if (!RateLimiter.allowSession(task))
+                    connection.rejected++;
+                else if (DuplicateFilter.isDuplicate(task))
+                    connection.duplicates++;
+                else
+                {
+                    try
+                    {
+                        connection.acquire();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        DuplicateFilter.forget(task);
+                        throw e;
+                    }
+                    ClusterManager.accepted(task);
+                    if (RequestQueueManager.addTask(task))
+                        connection.queued++;
+                    else
+                    {
+                        ClusterManager.finished(task);
+                        DuplicateFilter.forget(task);
+                        connection.release();
+                        connection.rejected++;
+                    }
+                }
+                connection.writeAck(writer, ackEvery, ackNanos);
+            }
+        }
+        catch (LineTooLongException | RequestBodies.PayloadTooLargeException e)
+        {
+            error = e.getMessage();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            error = "server shutting down";
+        }
+        finally
+        {
+            ackTimer.cancel(false);
+        }
+
+        // wait for the queued messages of this stream, so the final acknowledgement is complete
+        try
+        {
+            connection.drain(ServerProperties.getLong("stream.drainMillis", 10_000));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        connection.writeLastAck(writer, error);
+    }
+
+    /**
+     * Parse the handshake line into the context of the stream.
+     * @param line the first line of the stream
+     * @return the keys (lower case) and values of the handshake
+     * @throws JSONException when the line is not a JSON object
+     */
+    static Map<String, String> parseHandshake(final String line) throws JSONException
+    {
+        JSONObject json = new JSONObject(line.strip());
+        Map<String, String> context = new HashMap<>();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext())
+        {
+            String key = keys.next();
+            context.put(key.toLowerCase().strip(), json.optString(key, ""));
+        }
+        return Collections.unmodifiableMap(context);
+    }
+
+    /**
+     * Read one line of UTF-8 text, ending with \n (an optional \r before it is removed).
+     * @param stream the stream
+     * @param maxLineBytes the maximum length of the line
+     * @return the line without the line ending, or null at the end of the stream
+     * @throws IOException on network error, or when the line is too long
+     */
+    static String readLine(final InputStream stream, final int maxLineBytes) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        int b;
+        while ((b = stream.read()) >= 0 && b != '\n')
+        {
+            if (line.size() >= maxLineBytes)
+                throw new LineTooLongException("Line in stream longer than " + maxLineBytes + " bytes");
+            line.write(b);
+        }
+        if (b < 0 && line.size() == 0)
+            return null;
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLine(final PrintWriter writer, final JSONObject json)
+    {
+        writer.write(json.toString());
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * Return the counters of the streams.
+     * @return the counters
+     */
+    public static Statistics getStatistics()
+    {
+        return new Statistics(openStreams.get(), totalStreams.sum(), totalMessages.sum());
+    }
+
+    /**
+     * Counters of the streams.
+     * @param open the number of open streams
+     * @param streams the total number of streams
+     * @param messages the total number of messages received through streams
+     */
+    public record Statistics(int open, long streams, long messages)
+    {
+    }
+
+    /** Exception for a line that is longer than the limit. */
+    static class LineTooLongException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        LineTooLongException(final String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * The state of one stream. The counters for received, queued, forwarded, rejected and duplicate messages are only changed
+     * by the servlet thread; the number of messages in flight is shared with the storage thread, which calls taskCompleted.
+     * The acknowledgements are written by the servlet thread and the ack writer, one at a time, under the write lock.
+     */
+    private static class Connection implements TaskListener
+    {
+        final Map<String, String> context;
+
+        final int window;
+
+        volatile long received = 0;
+
+        volatile long queued = 0;
+
+        volatile long forwarded = 0;
+
+        volatile long rejected = 0;
+
+        volatile long duplicates = 0;
+
+        private int inFlight = 0;
+
+        private long processed = 0;
+
+        /** the lock for writing to the response, which the storage thread does not take. */
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        /** the state of the last acknowledgement; only accessed while holding the write lock. */
+        long lastAckNanos = 0;
+
+        private long receivedAtLastAck = 0;
+
+        private long processedAtLastAck = 0;
+
+        private boolean closed = false;
+
+        Connection(final Map<String, String> context, final int window)
+        {
+            this.context = context;
+            this.window = Math.max(1, window);
+        }
+
+        /** Wait until there is room in the window, and claim a place for a new message. */
+        synchronized void acquire() throws InterruptedException
+        {
+            while (this.inFlight >= this.window)
+                wait();
+            this.inFlight++;
+        }
+
+        synchronized void release()
+        {
+            this.inFlight--;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void taskCompleted(final StorageRequestTask task, final String error)
+        {
+            this.processed++;
+            release();
+        }
+
+        /** Wait until all messages of the stream have been processed, or the timeout has passed. */
+        synchronized void drain(final long timeoutMillis) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining;
+            while (this.inFlight > 0 && (remaining = deadline - System.currentTimeMillis()) > 0)
+                wait(remaining);
+        }
+
+        /**
+         * Write an acknowledgement when ackEvery messages were received since the last one, or when ackNanos have passed and a
+         * counter changed. The ack writer skips the stream while the servlet thread writes.
+         * @param writer the writer of the response
+         * @param ackEvery the number of messages after which an acknowledgement is written, or 0 for the ack writer
+         * @param ackNanos the time after which an acknowledgement is written
+         */
+        void writeAck(final PrintWriter writer, final int ackEvery, final long ackNanos)
+        {
+            if (!this.writeLock.tryLock())
+                return;
+            try
+            {
+                long processedNow = processed();
+                boolean changed = this.received != this.receivedAtLastAck || processedNow != this.processedAtLastAck;
+                if (this.closed || !changed)
+                    return;
+                if ((ackEvery > 0 && this.received - this.receivedAtLastAck >= ackEvery)
+                        || System.nanoTime() - this.lastAckNanos >= ackNanos)
+                {
+                    this.receivedAtLastAck = this.received;
+                    this.processedAtLastAck = processedNow;
+                    this.lastAckNanos = System.nanoTime();
+                    writeLine(writer, ack(false));
+                }
+            }
+            finally
+            {
+                this.writeLock.unlock();
+            }
+        }
+
+        /**
+         * Write the last acknowledgement; no acknowledgements are written after it.
+         * @param writer the writer of the response
+         * @param error the reason the stream was stopped, or null
+         */
+        void writeLastAck(final PrintWriter writer, final String error)
+        {
+            this.writeLock.lock();
+            try
+            {
+                this.closed = true;
+                JSONObject ack = ack(true);
+                if (error != null)
+                    ack.put("error", error);
+                writeLine(writer, ack);
+            }
+            finally
+            {
+                this.writeLock.unlock();
+            }
+        }
+
+        private synchronized long processed()
+        {
+            return this.processed;
+        }
+
+        synchronized JSONObject ack(final boolean last)
+        {
+            JSONObject ack = new JSONObject();
+            ack.put("received", this.received);
+            ack.put("queued", this.queued);
+            if (this.forwarded > 0)
+                ack.put("forwarded", this.forwarded);
+            ack.put("processed", this.processed);
+            ack.put("rejected", this.rejected);
+            ack.put("duplicates", this.duplicates);
+            if (last)
+                ack.put("closed", true);
+            return ack;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package nl.gamedata.server;
+
+/**
+ * A TaskListener is notified when the processing of a StorageRequestTask has finished, either because the data has been stored,
+ * or because it could not be stored. A task that is scheduled for a retry is not finished yet.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+@FunctionalInterface
+public interface TaskListener
+{
+    /**
+     * Called by the storage thread when the processing of the task has finished.
+     * @param task the task that has been processed
+     * @param error the first error that prevented the storage of the data, or null when the data has been stored
+     */
+    void taskCompleted(StorageRequestTask task, String error);
+}
@@ -1,18 +1,17 @@
 package nl.gamedata.server;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
@@ -27,62 +26,248 @@ import com.zaxxer.hikari.HikariDataSource;
 import jakarta.servlet.ServletException;
 
 /**
- * The TaskProcessor is for now a single-threaded process taking care of processing storage tasks from jobs in the queue.
+ * The TaskProcessor takes care of processing storage tasks from jobs in the queue with <code>storage.workers</code> storage
+ * threads (default 1). The number of workers that store a task at the same time is limited by the AdaptiveLimiter. The
+ * RequestQueueManager hands out at most one task per session stripe at a time, so the tasks of one game session are stored
+ * one after the other in the order of arrival, and players, groups and attempts are never created twice. A retried task is
+ * only stored when no other task of its stripe is being stored.
  * @author <a href="https://www.tudelft.nl/averbraeck">Alexander Verbraeck</a>
  */
 public class TaskProcessor
 {
-    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final Log.Logger log = Log.logger("TaskProcessor");
 
-    private static boolean active = false;
+    /** the number of stripes of the session locks. */
+    private static final int SESSION_LOCK_STRIPES = 256;
 
-    private static String servletError = "";
+    /**
+     * the locks that let one worker at a time store the tasks of a game session; a lock is shared by many sessions. The queue
+     * already hands out one task per session at a time; the locks also cover messages of which the session fields are only
+     * found when the payload is decoded.
+     */
+    private static final Object[] sessionLocks = createSessionLocks();
+
+    private static ExecutorService executor = null;
+
+    /** whether the storage threads are running; read by the request threads and the HealthMonitor. */
+    private static volatile boolean active = false;
+
+    /** the number of storage threads that are running. */
+    private static final AtomicInteger runningWorkers = new AtomicInteger();
+
+    private static volatile String servletError = "";
+
+    /** the time in ms at which the storage thread last started a loop, to detect a storage thread that hangs. */
+    private static volatile long heartbeatMillis = 0;
+
+    private static volatile ServerData serverData = null;
 
     public static void startProcessing()
     {
         final ServerData serverData = new ServerData();
         try
         {
-            serverData.setDataSource(openDataSource());
+            // the connection pools are only needed when the data is stored in the database
+            if ("jooq".equals(StorageSink.sinkName()))
+            {
+                serverData.setDataSource(openDataSource());
+                serverData.setErrorDataSource(openErrorDataSource());
+                serverData.setReadDataSource(openReadDataSource());
+            }
+            serverData.setSink(StorageSink.create(serverData));
+            if (serverData.getSink().usesDatabase())
+            {
+                ShardRouter.start(serverData);
+                ClusterManager.start(serverData);
+            }
+            TaskProcessor.serverData = serverData;
         }
-        catch (ServletException e)
+        catch (ServletException | RuntimeException e)
         {
+            // e.g., ClusterManager.start failed after the pools were opened; their connections are not used
+            ShardRouter.stop();
+            serverData.stop();
+            serverData.closePools();
+            if (serverData.getSink() != null)
+                serverData.getSink().close();
             active = false;
             servletError = e.getMessage();
-            e.printStackTrace();
+            log.error("storage could not be started", e);
             return;
         }
+        log.info("storing through the " + serverData.getSink().name() + " sink");
+        if (serverData.getSink().usesDatabase())
+        {
+            MetadataCache.start(serverData);
+            SessionArchiver.start(serverData);
+            RollupManager.start(serverData);
+        }
+        RequestQueueManager.startSpill();
 
-        executor.submit(() ->
+        int workers = Math.max(1, ServerProperties.getInt("storage.workers", 1));
+        AdaptiveLimiter.configure(workers,
+                serverData.getSink().usesDatabase() ? ServerProperties.getInt("db.poolSize", 2) : 0);
+        AtomicInteger workerNr = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(workers, r ->
+        {
+            Thread thread = new Thread(r, "storage-worker-" + workerNr.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workers; i++)
         {
-            while (true)
+            executor.submit(() ->
             {
+                runningWorkers.incrementAndGet();
                 active = true;
                 try
                 {
-                    StorageRequestTask task = RequestQueueManager.takeTask();
-                    processTask(serverData, task);
+                    runStorageLoop(serverData);
                 }
-                catch (InterruptedException e)
+                finally
                 {
-                    Thread.currentThread().interrupt();
-                    break;
+                    active = runningWorkers.decrementAndGet() > 0;
                 }
-                catch (Exception exception)
+            });
+        }
+    }
+
+    private static Object[] createSessionLocks()
+    {
+        Object[] locks = new Object[SESSION_LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        return locks;
+    }
+
+    /**
+     * Return the lock for the game session of a message: the session_token, or the game_session_code and organization_code.
+     * @param requestMap the fields of the message
+     * @return the lock of the stripe of the session
+     */
+    private static Object sessionLock(final Map<String, String> requestMap)
+    {
+        String session = requestMap.get("session_token");
+        if (session == null)
+            session = requestMap.get("game_session_code") + "|" + requestMap.get("organization_code");
+        return sessionLocks[Math.floorMod(session.hashCode(), SESSION_LOCK_STRIPES)];
+    }
+
+    /**
+     * Take tasks from the retry queue and the request queue, and store them, until the thread is interrupted. The worker takes
+     * a permit of the AdaptiveLimiter after it took a task, so a worker that waits for a task does not hold a permit.
+     * @param serverData the server data with the connection pool
+     */
+    private static void runStorageLoop(final ServerData serverData)
+    {
+        while (true)
+        {
+            heartbeatMillis = System.currentTimeMillis();
+            try
+            {
+                CircuitBreaker.awaitPermission();
+                try
                 {
-                    // log error and continue...
+                    RetryManager.RetryTask retryTask = RetryManager.pollDue();
+                    if (retryTask != null)
+                    {
+                        if (RequestQueueManager.claim(retryTask.task()))
+                            processWithPermit(serverData, retryTask);
+                        else
+                            RetryManager.postpone(retryTask);
+                        continue;
+                    }
+                    RetryManager.RetryTask task =
+                            RequestQueueManager.pollAttempt(RetryManager.millisUntilNextDue(1000), TimeUnit.MILLISECONDS);
+                    if (task != null)
+                        processWithPermit(serverData, task);
+                }
+                finally
+                {
+                    // when the circuit is half-open and this worker tried no task, another worker may try one
+                    CircuitBreaker.releasePermission();
                 }
             }
-        });
-        active = false;
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (Exception exception)
+            {
+                // the worker continues with the next task
+                log.error("error in the storage loop of " + Thread.currentThread().getName(), exception);
+            }
+        }
+    }
+
+    /**
+     * Process a task that was taken from the queue or claimed, and release its stripe in the RequestQueueManager.
+     * @param data the server data with the connection pool
+     * @param task the task to process
+     * @param attempt the attempt number, 1 for the first time the task is processed
+     */
+    /**
+     * Store a task that the worker took, with a permit of the AdaptiveLimiter. When the worker is interrupted while it waits
+     * for a permit, the task is put back in front of the waiting tasks of its session.
+     * @param data the server data with the connection pool
+     * @param task the task and its attempt number; its stripe is claimed by the worker
+     * @throws InterruptedException when the thread is interrupted while waiting for a permit
+     */
+    private static void processWithPermit(final ServerData data, final RetryManager.RetryTask task)
+            throws InterruptedException
+    {
+        try
+        {
+            AdaptiveLimiter.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            RequestQueueManager.putBack(List.of(task));
+            RequestQueueManager.release(task.task());
+            throw e;
+        }
+        try
+        {
+            processAndRelease(data, task.task(), task.attempt());
+        }
+        finally
+        {
+            AdaptiveLimiter.release();
+        }
+    }
+
+    private static void processAndRelease(final ServerData data, final StorageRequestTask task, final int attempt)
+    {
+        try
+        {
+            processTask(data, task, attempt);
+        }
+        finally
+        {
+            RequestQueueManager.release(task);
+        }
     }
 
-    private static void processTask(final ServerData data, final StorageRequestTask task)
+
+    /**
+     * Process a task: decode the payload and store the data. When the storage fails because of a transient database error, the
+     * task is handed to the RetryManager instead of being reported as an error. The listener of the task, when present, is
+     * notified when the task is finished, but not when it is scheduled for a retry.
+     * @param data the server data with the connection pool
+     * @param task the task to process
+     * @param attempt the attempt number, 1 for the first time the task is processed
+     */
+    private static void processTask(final ServerData data, final StorageRequestTask task, final int attempt)
     {
+        // turn the request into a Map of keys and values.
+        Map<String, String> requestMap = new HashMap<>();
+        boolean finished = true;
+        String error = null;
+        StorageProcessor storageProcessor = null;
+        Tracer.mark(task.trace(), Tracer.Stage.DEQUEUED);
         try
         {
-            // turn the request into a Map of keys and values.
-            Map<String, String> requestMap = new HashMap<>();
             if ("GET".equals(task.requestType()))
                 convertFormTask(data, task, requestMap);
             else if ("POST".equals(task.requestType()))
@@ -93,27 +278,89 @@ public class TaskProcessor
                     convertJsonTask(data, task, requestMap);
                 else if (task.contentType().toLowerCase().contains("application/xml"))
                     convertXmlTask(data, task, requestMap);
+                else if (task.contentType().toLowerCase().contains(BinaryCodec.CONTENT_TYPE))
+                    convertBinaryTask(data, task, requestMap);
                 else
                 {
-                    ErrorHandler.storeError(data, task, requestMap,
-                            "Unknown Content-Type in POST request: " + task.contentType());
+                    error = "Unknown Content-Type in POST request: " + task.contentType();
+                    ErrorHandler.storeError(data, task, requestMap, error);
                     return;
                 }
             }
+            else if ("STREAM".equals(task.requestType()))
+                convertJsonTask(data, task, requestMap);
             else
             {
-                ErrorHandler.storeError(data, task, requestMap, "HTTP request is not GET or POST: " + task.requestType());
+                error = "HTTP request is not GET or POST: " + task.requestType();
+                ErrorHandler.storeError(data, task, requestMap, error);
                 return;
             }
 
-            new StorageProcessor(data, task, requestMap).store();
+            // the fields of the stream handshake apply to every message of the stream, unless the message overrides them
+            if (task.context() != null)
+                task.context().forEach(requestMap::putIfAbsent);
+
+            Tracer.mark(task.trace(), Tracer.Stage.DECODED);
+            storageProcessor = new StorageProcessor(data, task, requestMap);
+            synchronized (sessionLock(requestMap))
+            {
+                if (!ClusterManager.holdsLease(task))
+                {
+                    // the lease of the partition was lost, so another node may store the messages of the session now
+                    error = "Lease of the partition of the session lost";
+                    finished = !ClusterManager.handOff(task, attempt);
+                    return;
+                }
+                long start = System.nanoTime();
+                storageProcessor.store();
+                AdaptiveLimiter.sample(System.nanoTime() - start);
+            }
+            error = storageProcessor.getError();
+            if (error == null)
+                HeavyHitters.storage(task, storageProcessor.getGameSessionCode(), storageProcessor.getOrganizationCode(),
+                        requestMap.get("player_name"), requestMap.get("key"));
+            CircuitBreaker.recordSuccess();
+        }
+        catch (ShardRouter.TenantMovingException e)
+        {
+            // the data of the tenant is moved to another shard; store the message when the move is finished
+            finished = !ShardRouter.holdBack(e.getTenant(), task, attempt) && !RetryManager.scheduleRetry(task, attempt, e);
+            error = e.getMessage();
+            return;
         }
         catch (Exception e)
         {
-            e.printStackTrace();
-            ErrorHandler.storeError(data, task, null, "Error during processTask : " + e.getMessage());
+            if (RetryManager.isTransient(e))
+            {
+                CircuitBreaker.recordTransientFailure();
+                AdaptiveLimiter.drop();
+                finished = !RetryManager.scheduleRetry(task, attempt, e);
+                error = "Database not available: " + e.getMessage();
+                return;
+            }
+            log.error("error during processTask", e);
+            error = "Error during processTask : " + e.getMessage();
+            ErrorHandler.storeError(data, task, requestMap, error);
             return;
         }
+        finally
+        {
+            if (finished)
+                finish(task, storageProcessor == null ? null : storageProcessor.getGameSessionCode(), error);
+        }
+    }
+
+    /**
+     * Finish a task that has been stored or reported as an error: close its trace, and notify the cluster and the listener.
+     * @param task the task
+     * @param gameSessionCode the code of the game session, or null when not known
+     * @param error the error, or null when the task has been stored
+     */
+    static void finish(final StorageRequestTask task, final String gameSessionCode, final String error)
+    {
+        Tracer.finish(task.trace(), gameSessionCode, error);
+        ClusterManager.finished(task);
+        task.completed(error);
     }
 
     static DataSource openDataSource() throws ServletException
@@ -121,28 +368,8 @@ public class TaskProcessor
         System.getProperties().setProperty("org.jooq.no-logo", "true");
 
         // retrieve the username and password for the database
-        String homeFolder = System.getProperty("user.home");
-        if (homeFolder == null)
-        {
-            throw new ServletException("Home folder to retrieve database credentials not found");
-        }
-        String configDir = homeFolder + File.separator + "gamedata";
-        File configFile = new File(configDir, "gamedata.properties");
-        Properties gamedataProperties = new Properties();
-        try
-        {
-            InputStream stream = new FileInputStream(configFile);
-            gamedataProperties.load(stream);
-        }
-        catch (FileNotFoundException fnfe)
-        {
-            throw new ServletException(
-                    "File with database credentials not found at " + configDir + "/" + "gamedata.properties");
-        }
-        catch (IOException ioe)
-        {
-            throw new ServletException("Error when reading database credentials at " + configDir + "/" + "gamedata.properties");
-        }
+        Properties gamedataProperties = ServerProperties.load();
+        String configDir = ServerProperties.getConfigDir();
         String dbUser = gamedataProperties.getProperty("dbUser");
         String dbPassword = gamedataProperties.getProperty("dbPassword");
         if (dbUser == null || dbPassword == null)
@@ -161,16 +388,76 @@ public class TaskProcessor
             throw new ServletException(e);
         }
 
-        final HikariConfig config = new HikariConfig();
-        config.setJdbcUrl("jdbc:mysql://localhost:3306/gamedata");
-        config.setUsername(dbUser);
-        config.setPassword(dbPassword);
-        config.setMaximumPoolSize(2);
-        config.setDriverClassName("com.mysql.cj.jdbc.Driver");
+        final HikariConfig config = poolConfig("gamedata-write", dbUrl(), dbUser, dbPassword,
+                ServerProperties.getInt("db.poolSize", 2));
+        // for the batched inserts of the BulkImporter; LOAD DATA LOCAL INFILE is only allowed when configured
+        config.addDataSourceProperty("rewriteBatchedStatements", "true");
+        if (ServerProperties.getBoolean("import.loadData", false))
+            config.addDataSourceProperty("allowLoadLocalInfile", "true");
+        config.setConnectionInitSql(ShardRouter.idInitSql(0));
         DataSource dataSource = new HikariDataSource(config);
         return dataSource;
     }
 
+    /**
+     * Open the read pool for the lookups when <code>db.read.url</code> is configured, e.g., to a replica of the database.
+     * @return the read pool, or null when the lookups use the write pool
+     */
+    static DataSource openReadDataSource()
+    {
+        String url = ServerProperties.get("db.read.url", "");
+        if (url.isBlank())
+            return null;
+        String user = ServerProperties.get("db.read.user", ServerProperties.get("dbUser", null));
+        String password = ServerProperties.get("db.read.password", ServerProperties.get("dbPassword", null));
+        final HikariConfig config =
+                poolConfig("gamedata-read", url, user, password, ServerProperties.getInt("db.read.poolSize", 4));
+        config.setReadOnly(true);
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * Open the small pool for the error records, so errors are not written through the connections of the storage.
+     * @return the error pool, or null when <code>db.errorPoolSize</code> is 0 and errors use the write pool
+     */
+    static DataSource openErrorDataSource()
+    {
+        int poolSize = ServerProperties.getInt("db.errorPoolSize", 1);
+        if (poolSize <= 0)
+            return null;
+        HikariConfig config = poolConfig("gamedata-error", dbUrl(), ServerProperties.get("dbUser", null),
+                ServerProperties.get("dbPassword", null), poolSize);
+        config.setConnectionInitSql(ShardRouter.idInitSql(0));
+        return new HikariDataSource(config);
+    }
+
+    private static String dbUrl()
+    {
+        return ServerProperties.get("dbUrl", "jdbc:mysql://localhost:3306/gamedata");
+    }
+
+    /**
+     * Return the configuration of a connection pool, e.g., for the pools of the ShardRouter.
+     * @param name the name of the pool
+     * @param url the JDBC url of the database
+     * @param user the database user
+     * @param password the password of the user
+     * @param poolSize the maximum number of connections
+     * @return the configuration of the pool
+     */
+    static HikariConfig poolConfig(final String name, final String url, final String user, final String password,
+            final int poolSize)
+    {
+        final HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setJdbcUrl(url);
+        config.setUsername(user);
+        config.setPassword(password);
+        config.setMaximumPoolSize(Math.max(1, poolSize));
+        config.setDriverClassName(ServerProperties.get("db.driverClass", "com.mysql.cj.jdbc.Driver"));
+        return config;
+    }
+
     static void convertFormTask(final ServerData data, final StorageRequestTask task, final Map<String, String> requestMap)
     {
         try
@@ -247,9 +534,34 @@ public class TaskProcessor
         }
     }
 
+    static void convertBinaryTask(final ServerData data, final StorageRequestTask task, final Map<String, String> requestMap)
+    {
+        List<String> duplicateKeys = new ArrayList<>();
+        String error = BinaryCodec.decode(task.body(), requestMap, duplicateKeys);
+        for (String key : duplicateKeys)
+            ErrorHandler.storeWarning(data, task, requestMap,
+                    "Error during convertBinaryTask : key " + key + " has been used twice. Record still processed ");
+        if (error != null)
+            ErrorHandler.storeError(data, task, requestMap, "Error during convertBinaryTask : " + error);
+    }
+
     public static void stopProcessing()
     {
-        executor.shutdownNow();
+        ClusterManager.stop();
+        if (executor != null)
+            executor.shutdownNow();
+        RollupManager.stop();
+        RequestQueueManager.stopSpill();
+        MetadataCache.stop();
+        SessionArchiver.stop();
+        ShardRouter.stop();
+        if (serverData != null)
+        {
+            serverData.stop();
+            if (serverData.getSink() != null)
+                serverData.getSink().close();
+            serverData.closePools();
+        }
         active = false;
     }
 
@@ -258,6 +570,25 @@ public class TaskProcessor
         return active;
     }
 
+    /**
+     * Return the time at which the storage thread last started to wait for or process a task. The heartbeat is refreshed at least
+     * every second while the thread is idle, but not while it processes a task or waits for the circuit breaker.
+     * @return the time of the last heartbeat in ms since the epoch, or 0 when the storage thread never ran
+     */
+    public static long getHeartbeatMillis()
+    {
+        return heartbeatMillis;
+    }
+
+    /**
+     * Return the server data with the connection pool of the storage thread, e.g., for the BulkImporter.
+     * @return the server data, or null when the connection pool could not be opened
+     */
+    public static ServerData getServerData()
+    {
+        return serverData;
+    }
+
     public static String getServletError()
     {
         return servletError;
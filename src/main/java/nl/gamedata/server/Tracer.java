@@ -0,0 +1,249 @@
+package nl.gamedata.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracer follows a sample of the messages through the stages of the server, from the request in GameDataServer to the insert
+ * in the database, and records the time at which each stage ends. A sampled message carries a Trace in its StorageRequestTask;
+ * the other messages carry null, and mark() then returns without any work, so tracing allocates nothing for a message that is
+ * not sampled.
+ * <p>
+ * The traces are kept in a ring buffer of <code>trace.bufferSize</code> slots. A sampled message gets its own Trace, which is
+ * put in the next slot, so the buffer holds the last sampled messages. A message that has not finished when its slot is taken
+ * again is no longer shown, but its later stages are still recorded in its own Trace, so they never end up in the trace of the
+ * message that took the slot. The fraction of the messages that is sampled is <code>trace.sampleRate</code>, and can be changed
+ * at runtime through <code>/admin/trace</code>.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class Tracer
+{
+    /** the stages of a message; the time of a stage is the time between the end of the previous stage and its end. */
+    public enum Stage
+    {
+        /** the request was received by the servlet. */
+        RECEIVED,
+
+        /** the body was read, and the task was added to the queue. */
+        QUEUED,
+
+        /** the task was taken from the queue by the storage thread. */
+        DEQUEUED,
+
+        /** the payload was decoded into fields. */
+        DECODED,
+
+        /** the game session, version, game and organization were found. */
+        SESSION,
+
+        /** the game token and organization-game token were checked. */
+        TOKENS,
+
+        /** the game mission was found. */
+        MISSION,
+
+        /** the player or group and its attempt were found or created. */
+        IDENTITY,
+
+        /** the record was inserted, or the processing ended with an error. */
+        STORED
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static volatile double sampleRate = Math.max(0.0, ServerProperties.getDouble("trace.sampleRate", 0.01));
+
+    /** the last sampled traces; a slot is null until it is used. */
+    private static final Trace[] ring = new Trace[Math.max(16, ServerProperties.getInt("trace.bufferSize", 1024))];
+
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    private Tracer()
+    {
+        // utility class
+    }
+
+    /**
+     * Decide whether a message is traced, and when it is, create its trace in the next slot of the ring buffer.
+     * @param receivedNanos the time at which the request was received, from System.nanoTime()
+     * @return the trace of the message, or null when the message is not sampled
+     */
+    public static Trace sample(final long receivedNanos)
+    {
+        double rate = sampleRate;
+        if (rate <= 0.0 || (rate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rate))
+            return null;
+        long id = nextId.getAndIncrement();
+        Trace trace = new Trace(id, receivedNanos);
+        ring[(int) (id % ring.length)] = trace;
+        return trace;
+    }
+
+    /**
+     * Record the end of a stage for a traced message.
+     * @param trace the trace of the message, or null when the message is not sampled
+     * @param stage the stage that ended
+     */
+    public static void mark(final Trace trace, final Stage stage)
+    {
+        if (trace != null)
+            trace.stamps[stage.ordinal()] = System.nanoTime();
+    }
+
+    /**
+     * Record the end of the processing of a traced message.
+     * @param trace the trace of the message, or null when the message is not sampled
+     * @param session the code of the game session, or null when it was not found
+     * @param error the first error of the message, or null when it was stored
+     */
+    public static void finish(final Trace trace, final String session, final String error)
+    {
+        if (trace == null)
+            return;
+        trace.stamps[Stage.STORED.ordinal()] = System.nanoTime();
+        trace.session = session;
+        trace.error = error;
+        trace.complete = true;
+    }
+
+    public static double getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    /**
+     * Change the fraction of the messages that is traced.
+     * @param rate the fraction between 0 (no tracing) and 1 (all messages)
+     */
+    public static void setSampleRate(final double rate)
+    {
+        sampleRate = Math.max(0.0, Math.min(1.0, rate));
+    }
+
+    /**
+     * Return the finished traces in the ring buffer. The stamps of each trace are copied, since a message that is retried
+     * records its stages again.
+     * @return the finished traces, in no particular order
+     */
+    public static List<TraceView> finishedTraces()
+    {
+        List<TraceView> views = new ArrayList<>();
+        for (Trace trace : ring)
+        {
+            if (trace == null || !trace.complete)
+                continue;
+            long id = trace.id;
+            long[] stamps = Arrays.copyOf(trace.stamps, STAGES.length);
+            String session = trace.session;
+            String error = trace.error;
+            long[] durations = new long[STAGES.length];
+            long previous = stamps[0];
+            for (int i = 1; i < STAGES.length; i++)
+            {
+                if (stamps[i] == 0)
+                {
+                    durations[i] = -1;
+                    continue;
+                }
+                durations[i] = stamps[i] - previous;
+                previous = stamps[i];
+            }
+            views.add(new TraceView(id, session, error, stamps[Stage.STORED.ordinal()] - stamps[0], durations));
+        }
+        return views;
+    }
+
+    /**
+     * Return the slowest finished traces in the ring buffer.
+     * @param limit the maximum number of traces
+     * @return the slowest traces, slowest first
+     */
+    public static List<TraceView> slowest(final int limit)
+    {
+        List<TraceView> views = finishedTraces();
+        views.sort(Comparator.comparingLong(TraceView::totalNanos).reversed());
+        return views.subList(0, Math.min(limit, views.size()));
+    }
+
+    /**
+     * Return the distribution of the time per stage over the finished traces in the ring buffer.
+     * @return the statistics per stage, in the order of the stages; RECEIVED is left out
+     */
+    public static List<StageStatistics> breakdown()
+    {
+        List<TraceView> views = finishedTraces();
+        List<StageStatistics> result = new ArrayList<>();
+        for (int i = 1; i < STAGES.length; i++)
+        {
+            final int stage = i;
+            long[] values = views.stream().mapToLong(v -> v.durations()[stage]).filter(d -> d >= 0).sorted().toArray();
+            if (values.length == 0)
+            {
+                result.add(new StageStatistics(STAGES[i].name(), 0, 0, 0, 0, 0));
+                continue;
+            }
+            long sum = Arrays.stream(values).sum();
+            result.add(new StageStatistics(STAGES[i].name(), values.length, sum / values.length / 1000,
+                    values[(values.length - 1) / 2] / 1000, values[(int) Math.ceil(values.length * 0.99) - 1] / 1000,
+                    values[values.length - 1] / 1000));
+        }
+        return result;
+    }
+
+    /**
+     * The stamps of one sampled message. The stamps are written by the servlet thread until the task is queued, and then by the
+     * storage thread; the queue orders these writes. The volatile complete flag publishes the trace to the readers.
+     */
+    public static final class Trace
+    {
+        private final long id;
+
+        private final long[] stamps = new long[STAGES.length];
+
+        private String session;
+
+        private String error;
+
+        private volatile boolean complete;
+
+        private Trace(final long id, final long receivedNanos)
+        {
+            this.id = id;
+            this.stamps[0] = receivedNanos;
+        }
+    }
+
+    /**
+     * A copy of a finished trace.
+     * @param id the id of the trace
+     * @param session the code of the game session, or null when it was not found
+     * @param error the first error of the message, or null when it was stored
+     * @param totalNanos the time from the request to the end of the processing in ns
+     * @param durations the time of each stage in ns, in the order of the stages; -1 when the stage was not reached
+     */
+    public record TraceView(long id, String session, String error, long totalNanos, long[] durations)
+    {
+    }
+
+    /**
+     * The distribution of the time of a stage.
+     * @param stage the name of the stage
+     * @param count the number of traces that reached the stage
+     * @param meanMicros the mean time of the stage in microseconds
+     * @param p50Micros the median time of the stage in microseconds
+     * @param p99Micros the 99th percentile of the time of the stage in microseconds
+     * @param maxMicros the maximum time of the stage in microseconds
+     */
+    public record StageStatistics(String stage, int count, long meanMicros, long p50Micros, long p99Micros, long maxMicros)
+    {
+    }
+}
@@ -0,0 +1,317 @@
+package nl.gamedata.server;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+/**
+ * TrafficCapture writes a sample of the requests that GameDataServer receives to gzip-compressed NDJSON files, so the real
+ * mix of clients, content types, malformed payloads and sessions can be replayed with the ReplayTool. Every line holds the
+ * time of arrival in ms, the request type, the content type, the payload (or the Base64 body of a binary message) and the
+ * timestamp of the task. The requests are captured before the rate limits and the duplicate filter, so they are replayed as
+ * they arrived. The values of <code>game_token</code>, <code>organization_game_token</code> and <code>session_token</code>
+ * are replaced by <code>redacted</code> in JSON, form, XML and binary messages, unless <code>capture.tokens=true</code>; a
+ * binary body that cannot be read is left out for the same reason.
+ * <p>
+ * The servlet threads only offer the task to a bounded queue; a background thread writes the lines. When the queue is full,
+ * the request is not captured, so the capture never slows down the clients. A file is closed when it has reached
+ * <code>capture.maxFileBytes</code>, and the oldest files are removed when there are more than <code>capture.maxFiles</code>;
+ * the age of a file is taken from the time and the sequence number in its name.
+ * </p>
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class TrafficCapture
+{
+    private static final Log.Logger log = Log.logger("TrafficCapture");
+
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    /** the name of a capture file: the time it was opened, and a sequence number for files opened in the same second. */
+    private static final Pattern FILE_NAME = Pattern.compile("capture-(\\d{8}-\\d{6})(?:-(\\d+))?\\.ndjson\\.gz");
+
+    /** the keys of the tokens that are not written to the capture files, unless capture.tokens is true. */
+    static final Set<String> TOKEN_KEYS = Set.of("game_token", "organization_game_token", "session_token");
+
+    static final String REDACTED = "redacted";
+
+    private static final String TOKEN_KEY = "(game_token|organization_game_token|session_token)";
+
+    private static final Pattern JSON_TOKEN =
+            Pattern.compile("(\"" + TOKEN_KEY + "\"\\s*:\\s*)(\"(?:[^\"\\\\]|\\\\.)*\"|[^,}\\s]+)", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern FORM_TOKEN = Pattern.compile("((?:^|&)" + TOKEN_KEY + "=)[^&]*", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern XML_TOKEN =
+            Pattern.compile("(<" + TOKEN_KEY + ">)[^<]*(</\\2>)", Pattern.CASE_INSENSITIVE);
+
+    private static volatile boolean enabled = false;
+
+    /** set to stop the writer thread after it has written the queued requests. */
+    private static volatile boolean stopping = false;
+
+    private static double sampleRate = 1.0;
+
+    /** whether the tokens are written to the capture files. */
+    private static boolean keepTokens = false;
+
+    private static BlockingQueue<Captured> queue = null;
+
+    private static Thread writerThread = null;
+
+    private static final LongAdder captured = new LongAdder();
+
+    private static final LongAdder dropped = new LongAdder();
+
+    /** the open file; only accessed by the writer thread. */
+    private static FileOutputStream fileStream = null;
+
+    /** the writer of the open file; only accessed by the writer thread. */
+    private static BufferedWriter writer = null;
+
+    private TrafficCapture()
+    {
+        // utility class
+    }
+
+    /** Start the capture when <code>capture.enabled</code> is true. */
+    public static synchronized void start()
+    {
+        if (!ServerProperties.getBoolean("capture.enabled", false) || writerThread != null)
+            return;
+        sampleRate = Math.max(0.0, Math.min(1.0, ServerProperties.getDouble("capture.sampleRate", 1.0)));
+        keepTokens = ServerProperties.getBoolean("capture.tokens", false);
+        stopping = false;
+        queue = new ArrayBlockingQueue<>(Math.max(100, ServerProperties.getInt("capture.queueSize", 10_000)));
+        writerThread = new Thread(TrafficCapture::writeLoop, "traffic-capture");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        enabled = true;
+        log.info("capturing " + (sampleRate * 100.0) + "% of the requests in " + captureDir());
+    }
+
+    /** Stop the capture, and close the open file after the queued requests have been written. */
+    public static synchronized void stop()
+    {
+        if (writerThread == null)
+            return;
+        enabled = false;
+        stopping = true;
+        try
+        {
+            writerThread.join(5000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+    }
+
+    /**
+     * Capture a task when the capture is enabled and the task is sampled.
+     * @param task the task as received by the servlet
+     */
+    public static void capture(final StorageRequestTask task)
+    {
+        if (!enabled)
+            return;
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate)
+            return;
+        if (!queue.offer(new Captured(System.currentTimeMillis(), task)))
+            dropped.increment();
+    }
+
+    static Path captureDir()
+    {
+        return Paths.get(ServerProperties.get("capture.dir", ServerProperties.getConfigDir() + "/capture"));
+    }
+
+    private static void writeLoop()
+    {
+        long maxFileBytes = Math.max(1024 * 1024, ServerProperties.getLong("capture.maxFileBytes", 67_108_864L));
+        while (!stopping || !queue.isEmpty())
+        {
+            try
+            {
+                Captured entry = queue.poll(1, TimeUnit.SECONDS);
+                if (entry == null)
+                {
+                    if (writer != null)
+                        writer.flush();
+                    continue;
+                }
+                if (writer == null)
+                    openFile();
+                writer.write(toJson(entry).toString());
+                writer.write('\n');
+                captured.increment();
+                if (fileStream.getChannel().position() >= maxFileBytes)
+                    closeFile();
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            catch (IOException e)
+            {
+                log.error("capture file could not be written: " + e.getMessage());
+                closeFile();
+                dropped.increment();
+            }
+        }
+        closeFile();
+    }
+
+    private static JSONObject toJson(final Captured entry)
+    {
+        StorageRequestTask task = entry.task();
+        JSONObject line = new JSONObject();
+        line.put("t", entry.receivedMillis());
+        line.put("requestType", task.requestType());
+        line.put("contentType", task.contentType());
+        if (task.payload() != null)
+            line.put("payload", keepTokens ? task.payload() : redact(task.payload()));
+        byte[] body = task.body() == null || keepTokens ? task.body() : BinaryCodec.replace(task.body(), TOKEN_KEYS, REDACTED);
+        if (body != null)
+            line.put("body", Base64.getEncoder().encodeToString(body));
+        line.put("timestamp", task.timestamp().toString());
+        return line;
+    }
+
+    /**
+     * Replace the values of the tokens in a payload. The payload is not parsed, so the tokens are also replaced in a payload
+     * that is not valid, or of which the Content-Type is wrong.
+     * @param payload the JSON, form or XML payload
+     * @return the payload with <code>redacted</code> as the value of the tokens
+     */
+    static String redact(final String payload)
+    {
+        String redacted = JSON_TOKEN.matcher(payload).replaceAll("$1\"" + REDACTED + "\"");
+        redacted = FORM_TOKEN.matcher(redacted).replaceAll("$1" + REDACTED);
+        return XML_TOKEN.matcher(redacted).replaceAll("$1" + REDACTED + "$3");
+    }
+
+    private static void openFile() throws IOException
+    {
+        Path dir = captureDir();
+        Files.createDirectories(dir);
+        String base = "capture-" + LocalDateTime.now().format(FILE_TIME);
+        Path file = dir.resolve(base + ".ndjson.gz");
+        for (int i = 1; Files.exists(file); i++)
+            file = dir.resolve(base + "-" + i + ".ndjson.gz");
+        fileStream = new FileOutputStream(file.toFile());
+        writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(fileStream, 65536), StandardCharsets.UTF_8));
+        removeOldFiles(dir);
+    }
+
+    private static void closeFile()
+    {
+        if (writer == null)
+            return;
+        try
+        {
+            writer.close();
+        }
+        catch (IOException e)
+        {
+            log.error("capture file could not be closed: " + e.getMessage());
+        }
+        writer = null;
+        fileStream = null;
+    }
+
+    /**
+     * Remove the oldest capture files when there are more than <code>capture.maxFiles</code>.
+     * @param dir the capture folder
+     */
+    static void removeOldFiles(final Path dir)
+    {
+        int maxFiles = Math.max(1, ServerProperties.getInt("capture.maxFiles", 10));
+        try (Stream<Path> files = Files.list(dir))
+        {
+            List<Path> captures = new ArrayList<>(files.filter(f -> FILE_NAME.matcher(f.getFileName().toString()).matches())
+                    .sorted(Comparator.comparing(TrafficCapture::fileTime).thenComparingInt(TrafficCapture::fileSequence))
+                    .toList());
+            while (captures.size() > maxFiles)
+                Files.deleteIfExists(captures.remove(0));
+        }
+        catch (IOException e)
+        {
+            log.error("old capture files could not be removed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the time at which a capture file was opened, from its name.
+     * @param file the capture file
+     * @return the time as yyyyMMdd-HHmmss, which sorts in the order of time
+     */
+    private static String fileTime(final Path file)
+    {
+        Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() ? matcher.group(1) : "";
+    }
+
+    /**
+     * Return the sequence number of a capture file that was opened in the same second as another file.
+     * @param file the capture file
+     * @return the sequence number, 0 for the first file of a second
+     */
+    private static int fileSequence(final Path file)
+    {
+        Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() && matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 0;
+    }
+
+    /**
+     * Return the statistics of the capture.
+     * @return the statistics
+     */
+    public static Statistics getStatistics()
+    {
+        return new Statistics(enabled, sampleRate, captured.sum(), dropped.sum());
+    }
+
+    /**
+     * Statistics of the capture.
+     * @param enabled whether requests are captured
+     * @param sampleRate the fraction of the requests that is captured
+     * @param captured the number of requests that were written
+     * @param dropped the number of sampled requests that were not written, because the queue was full or the file failed
+     */
+    public record Statistics(boolean enabled, double sampleRate, long captured, long dropped)
+    {
+    }
+
+    /** A task with the time at which it arrived. */
+    private record Captured(long receivedMillis, StorageRequestTask task)
+    {
+    }
+}
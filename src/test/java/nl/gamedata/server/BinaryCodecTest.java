@@ -0,0 +1,127 @@
+package nl.gamedata.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a message encoded by the BinaryCodec decodes to the same keys and values, for the keys with a field id and for
+ * other keys, for values whose length needs more than one varint byte, and that damaged messages give an error.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class BinaryCodecTest
+{
+    private static Map<String, String> decode(final byte[] body)
+    {
+        Map<String, String> decoded = new HashMap<>();
+        List<String> duplicates = new ArrayList<>();
+        assertNull(BinaryCodec.decode(body, decoded, duplicates));
+        assertTrue(duplicates.isEmpty(), duplicates.toString());
+        return decoded;
+    }
+
+    @Test
+    public void testRoundTripOfAllFields()
+    {
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (int i = 1; i < BinaryCodec.FIELDS.length; i++)
+            fields.put(BinaryCodec.FIELDS[i], "value of " + BinaryCodec.FIELDS[i]);
+        fields.put("custom_key", "über 10 €");
+        fields.put("empty", "");
+        byte[] body = BinaryCodec.encode(fields);
+        assertEquals(fields, decode(body));
+        for (Map.Entry<String, String> entry : fields.entrySet())
+            assertEquals(entry.getValue(), BinaryCodec.find(body, entry.getKey()), entry.getKey());
+        assertNull(BinaryCodec.find(body, "missing"));
+    }
+
+    @Test
+    public void testVarintLengths()
+    {
+        for (int length : new int[] {0, 1, 127, 128, 16_383, 16_384, 2_097_152})
+        {
+            char[] chars = new char[length];
+            Arrays.fill(chars, 'x');
+            Map<String, String> fields = Map.of("value", new String(chars), "a".repeat(Math.min(length, 300) + 1), "k");
+            assertEquals(fields, decode(BinaryCodec.encode(fields)), "length " + length);
+        }
+    }
+
+    @Test
+    public void testKeysWithoutFieldIdAreNormalized()
+    {
+        byte[] body = BinaryCodec.encode(Map.of(" Custom_Key ", "v"));
+        assertEquals(Map.of("custom_key", "v"), decode(body));
+        assertEquals("v", BinaryCodec.find(body, "custom_key"));
+    }
+
+    @Test
+    public void testDuplicateKeys()
+    {
+        // the same key as a field id and as a key without field id
+        byte[] first = BinaryCodec.encode(Map.of("key", "first"));
+        byte[] second = BinaryCodec.encode(Map.of("KEY", "second"));
+        byte[] body = new byte[first.length + second.length - 1];
+        System.arraycopy(first, 0, body, 0, first.length);
+        System.arraycopy(second, 1, body, first.length, second.length - 1);
+        Map<String, String> decoded = new HashMap<>();
+        List<String> duplicates = new ArrayList<>();
+        assertNull(BinaryCodec.decode(body, decoded, duplicates));
+        assertEquals(Map.of("key", "second"), decoded);
+        assertEquals(List.of("key"), duplicates);
+    }
+
+    @Test
+    public void testReplace()
+    {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("data", "mission_event");
+        fields.put("game_token", "secret");
+        fields.put("Session_Token", "secret");
+        byte[] replaced = BinaryCodec.replace(BinaryCodec.encode(fields), Set.of("game_token", "session_token"), "x");
+        assertEquals(Map.of("data", "mission_event", "game_token", "x", "session_token", "x"), decode(replaced));
+    }
+
+    @Test
+    public void testDamagedMessages()
+    {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("value", "abcdef");
+        fields.put("custom", "v");
+        byte[] body = BinaryCodec.encode(fields);
+        // the version, and the id, length and bytes of the first field
+        int firstField = 1 + 2 + 6;
+        List<String> duplicates = new ArrayList<>();
+        assertNotNull(BinaryCodec.decode(null, new HashMap<>(), duplicates));
+        assertNotNull(BinaryCodec.decode(new byte[0], new HashMap<>(), duplicates));
+        assertNotNull(BinaryCodec.decode(new byte[] {2}, new HashMap<>(), duplicates));
+        assertNotNull(BinaryCodec.decode(new byte[] {BinaryCodec.VERSION, (byte) 200, 0}, new HashMap<>(), duplicates));
+        for (int length = 2; length < body.length; length++)
+        {
+            byte[] truncated = Arrays.copyOf(body, length);
+            if (length == firstField)
+                assertEquals(Map.of("value", "abcdef"), decode(truncated));
+            else
+                assertNotNull(BinaryCodec.decode(truncated, new HashMap<>(), duplicates), "truncated at " + length);
+        }
+        // a length varint of more than 4 bytes
+        assertNotNull(BinaryCodec.decode(new byte[] {BinaryCodec.VERSION, 20, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                (byte) 0x80, 1}, new HashMap<>(), duplicates));
+        assertNull(BinaryCodec.find(new byte[] {BinaryCodec.VERSION, 20, 10, 'a'}, "value"));
+    }
+}
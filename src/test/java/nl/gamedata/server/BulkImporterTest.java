@@ -0,0 +1,75 @@
+package nl.gamedata.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that an import holds the stripe of its game session in the RequestQueueManager, so the import and the messages of the
+ * same session that arrive by POST are not stored at the same time.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class BulkImporterTest
+{
+    private static final Map<String, String> HEADER = Map.of("game_session_code", "import-test-session",
+            "organization_code", "import-test-org", "data", "mission_event");
+
+    private static StorageRequestTask post(final String session)
+    {
+        return new StorageRequestTask("POST", "application/json", "{\"game_session_code\":\"" + session
+                + "\",\"organization_code\":\"import-test-org\",\"data\":\"mission_event\",\"key\":\"k\",\"value\":\"v\"}");
+    }
+
+    @Test
+    public void testImportHasTheSessionOfItsHeader()
+    {
+        StorageRequestTask importTask = BulkImporter.importTask(HEADER);
+        assertEquals(IngressFields.session(post("import-test-session")), IngressFields.session(importTask));
+        assertEquals("import-test-session|import-test-org", IngressFields.session(importTask));
+    }
+
+    @Test
+    public void testImportAndPostOfTheSameSessionWaitForEachOther() throws InterruptedException
+    {
+        StorageRequestTask importTask = BulkImporter.importTask(HEADER);
+        StorageRequestTask live = post("import-test-session");
+
+        // while the import resolves its identities, a worker does not get a message of the session
+        assertTrue(RequestQueueManager.claim(importTask));
+        try
+        {
+            assertTrue(RequestQueueManager.addTask(live));
+            assertNull(RequestQueueManager.pollTask(50, TimeUnit.MILLISECONDS));
+            assertFalse(RequestQueueManager.claim(live));
+        }
+        finally
+        {
+            RequestQueueManager.release(importTask);
+        }
+
+        // while a worker stores a message of the session, the import cannot claim the session
+        StorageRequestTask taken = RequestQueueManager.pollTask(1000, TimeUnit.MILLISECONDS);
+        assertNotNull(taken);
+        try
+        {
+            assertFalse(RequestQueueManager.claim(importTask));
+        }
+        finally
+        {
+            RequestQueueManager.release(taken);
+        }
+        assertTrue(RequestQueueManager.claim(importTask));
+        RequestQueueManager.release(importTask);
+    }
+}
@@ -0,0 +1,88 @@
+package nl.gamedata.server;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * DateTimeParserBenchmark compares the fast path of the DateTimeParser with the general java.time parser that it falls back
+ * on, and with <code>LocalDateTime.parse</code> with a caught exception, which is how the StorageProcessor parsed timestamps
+ * before. Each parser runs on a valid timestamp, a timestamp with an offset, epoch milliseconds and a malformed value. The
+ * class is not a unit test; run it with <code>java -cp ... nl.gamedata.server.DateTimeParserBenchmark [iterations]</code>
+ * from the test classes.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public final class DateTimeParserBenchmark
+{
+    private static final String[][] INPUTS = {{"valid", "2024-12-03T10:15:30.250"}, {"offset", "2024-12-03T10:15:30+01:00"},
+            {"epoch", "1733220930250"}, {"malformed", "03/12/2024 10:15"}};
+
+    /** consumed result, so the JIT cannot remove the parse calls. */
+    private static int sink;
+
+    private DateTimeParserBenchmark()
+    {
+        // utility class
+    }
+
+    private static LocalDateTime parseWithException(final String s)
+    {
+        try
+        {
+            return LocalDateTime.parse(s);
+        }
+        catch (DateTimeParseException e)
+        {
+            return null;
+        }
+    }
+
+    private static double nanosPerParse(final Function<String, LocalDateTime> parser, final String input,
+            final int iterations)
+    {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            LocalDateTime dateTime = parser.apply(input);
+            sink += dateTime == null ? 1 : dateTime.getNano();
+        }
+        return (double) (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * Run the benchmark.
+     * @param args optional number of iterations per parser and input, default 1,000,000
+     */
+    public static void main(final String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Map<String, Function<String, LocalDateTime>> parsers = new LinkedHashMap<>();
+        parsers.put("DateTimeParser.parse", DateTimeParser::parse);
+        parsers.put("DateTimeParser.parseGeneral", DateTimeParser::parseGeneral);
+        parsers.put("LocalDateTime.parse + catch", DateTimeParserBenchmark::parseWithException);
+
+        // warm up every parser on every input before measuring
+        for (Function<String, LocalDateTime> parser : parsers.values())
+        {
+            for (String[] input : INPUTS)
+                nanosPerParse(parser, input[1], iterations / 10 + 1);
+        }
+
+        System.out.println(String.format("%-30s %12s %12s %12s %12s", "ns per parse", INPUTS[0][0], INPUTS[1][0],
+                INPUTS[2][0], INPUTS[3][0]));
+        for (Map.Entry<String, Function<String, LocalDateTime>> parser : parsers.entrySet())
+        {
+            StringBuilder line = new StringBuilder(String.format("%-30s", parser.getKey()));
+            for (String[] input : INPUTS)
+                line.append(String.format(" %12.1f", nanosPerParse(parser.getValue(), input[1], iterations)));
+            System.out.println(line);
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+}
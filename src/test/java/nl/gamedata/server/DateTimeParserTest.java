@@ -0,0 +1,123 @@
+package nl.gamedata.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the edge cases of the DateTimeParser: the accepted shapes of the documented format, offsets, epoch milliseconds, and
+ * malformed values that have to return null instead of throwing.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class DateTimeParserTest
+{
+    private static LocalDateTime serverTime(final String offsetDateTime)
+    {
+        return OffsetDateTime.parse(offsetDateTime).atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+    }
+
+    @Test
+    public void testDocumentedFormat()
+    {
+        assertEquals(LocalDateTime.of(2024, 12, 3, 10, 15, 30), DateTimeParser.parse("2024-12-03T10:15:30"));
+        assertEquals(LocalDateTime.of(2024, 12, 3, 10, 15, 30), DateTimeParser.parse("2024-12-03 10:15:30"));
+        assertEquals(LocalDateTime.of(2024, 12, 3, 10, 15), DateTimeParser.parse("2024-12-03T10:15"));
+    }
+
+    @Test
+    public void testFraction()
+    {
+        assertEquals(LocalDateTime.of(2024, 12, 3, 10, 15, 30, 250_000_000), DateTimeParser.parse("2024-12-03T10:15:30.250"));
+        assertEquals(LocalDateTime.of(2024, 12, 3, 10, 15, 30, 5), DateTimeParser.parse("2024-12-03T10:15:30.000000005"));
+        assertNull(DateTimeParser.parse("2024-12-03T10:15:30."));
+        assertNull(DateTimeParser.parse("2024-12-03T10:15:30.1234567890"));
+    }
+
+    @Test
+    public void testInvalidDateAndTime()
+    {
+        assertNull(DateTimeParser.parse("2023-02-29T10:15:30"));
+        assertEquals(LocalDateTime.of(2024, 2, 29, 0, 0), DateTimeParser.parse("2024-02-29T00:00:00"));
+        assertNull(DateTimeParser.parse("1900-02-29T00:00:00"));
+        assertNull(DateTimeParser.parse("2024-02-30T10:15:30"));
+        assertNull(DateTimeParser.parse("2024-04-31T10:15:30"));
+        assertNull(DateTimeParser.parse("2024-13-01T10:15:30"));
+        assertNull(DateTimeParser.parse("2024-12-03T24:00:00"));
+        assertNull(DateTimeParser.parse("2024-12-03T10:60:00"));
+        assertNull(DateTimeParser.parse("2024-12-03T10:15:60"));
+        assertNull(DateTimeParser.parse("2024-12-03X10:15:30"));
+        assertNull(DateTimeParser.parse("2024/12/03T10:15:30"));
+    }
+
+    @Test
+    public void testOffset()
+    {
+        assertEquals(serverTime("2024-12-03T10:15:30Z"), DateTimeParser.parse("2024-12-03T10:15:30Z"));
+        assertEquals(serverTime("2024-12-03T10:15:30+01:00"), DateTimeParser.parse("2024-12-03T10:15:30+01:00"));
+        assertEquals(serverTime("2024-12-03T10:15:30+01:00"), DateTimeParser.parse("2024-12-03T10:15:30+0100"));
+        assertEquals(serverTime("2024-12-03T10:15:30+01:00"), DateTimeParser.parse("2024-12-03T10:15:30+01"));
+        assertEquals(serverTime("2024-12-03T10:15:30-05:30"), DateTimeParser.parse("2024-12-03T10:15:30-05:30"));
+    }
+
+    @Test
+    public void testOffsetOutOfRange()
+    {
+        assertEquals(serverTime("2024-12-03T10:15:30+18:00"), DateTimeParser.parse("2024-12-03T10:15:30+18:00"));
+        assertEquals(serverTime("2024-12-03T10:15:30-18:00"), DateTimeParser.parse("2024-12-03T10:15:30-18:00"));
+        assertNull(DateTimeParser.parse("2024-12-03T10:15:30+18:30"));
+        assertNull(DateTimeParser.parse("2024-12-03T10:15:30-1801"));
+        assertNull(DateTimeParser.parse("2024-12-03T10:15:30+19"));
+        assertNull(DateTimeParser.parse("2024-12-03T10:15:30+01:60"));
+        assertNull(DateTimeParser.parse("2024-12-03T10:15:30+1:00"));
+    }
+
+    @Test
+    public void testEpochMillis()
+    {
+        long millis = 1_733_220_930_250L;
+        assertEquals(LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()),
+                DateTimeParser.parse(Long.toString(millis)));
+        assertEquals(LocalDateTime.ofInstant(Instant.ofEpochMilli(100_000_000_000L), ZoneId.systemDefault()),
+                DateTimeParser.parse("100000000000"));
+        assertEquals(LocalDateTime.ofInstant(Instant.ofEpochMilli(999_999_999_999_999_999L), ZoneId.systemDefault()),
+                DateTimeParser.parse("999999999999999999"));
+        // epoch seconds, a compact date, and a number that does not fit in a long
+        assertNull(DateTimeParser.parse("1733220930"));
+        assertNull(DateTimeParser.parse("20240315"));
+        assertNull(DateTimeParser.parse("99999999999999999999"));
+    }
+
+    @Test
+    public void testGeneralFallback()
+    {
+        assertEquals(LocalDateTime.ofInstant(Instant.parse("2024-12-03T09:15:30Z"), ZoneId.systemDefault()),
+                DateTimeParser.parse("2024-12-03T10:15:30+01:00[Europe/Amsterdam]"));
+        assertEquals(LocalDateTime.of(2024, 12, 3, 10, 15, 30).atOffset(ZoneOffset.ofHoursMinutesSeconds(1, 0, 30))
+                .atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime(),
+                DateTimeParser.parse("2024-12-03T10:15:30+01:00:30"));
+        assertNull(DateTimeParser.parse("2024-12-03T10:15:30[Nowhere/Nothing]"));
+    }
+
+    @Test
+    public void testMalformed()
+    {
+        assertNull(DateTimeParser.parse(null));
+        assertNull(DateTimeParser.parse(""));
+        assertNull(DateTimeParser.parse("yesterday"));
+        assertNull(DateTimeParser.parse("03-12-2024 10:15:30"));
+        assertNull(DateTimeParser.parse("2024-12-03"));
+        assertNull(DateTimeParser.parse("+"));
+        assertNull(DateTimeParser.parse("-12"));
+    }
+}
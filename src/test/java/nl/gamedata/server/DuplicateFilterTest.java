@@ -0,0 +1,112 @@
+package nl.gamedata.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the window of the DuplicateFilter: message ids expire after the window, the oldest ids are dropped when a session has
+ * too many, and an id that was forgotten can be sent again.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class DuplicateFilterTest
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static void configure(final int windowSeconds, final int maxPerSession, final int maxSessions)
+    {
+        ServerProperties.override("dedup.windowSeconds", Integer.toString(windowSeconds));
+        ServerProperties.override("dedup.maxPerSession", Integer.toString(maxPerSession));
+        ServerProperties.override("dedup.maxSessions", Integer.toString(maxSessions));
+        DuplicateFilter.start();
+        DuplicateFilter.stop();
+    }
+
+    private static StorageRequestTask message(final String sessionKey, final String session, final String messageId)
+    {
+        return new StorageRequestTask("POST", "application/json", "{\"" + sessionKey + "\":\"" + session
+                + "\",\"organization_code\":\"dedup-test-org\",\"message_id\":\"" + messageId + "\"}");
+    }
+
+    @AfterEach
+    public void reset()
+    {
+        configure(600, 10_000, 10_000);
+    }
+
+    @Test
+    public void testWindow()
+    {
+        configure(10, 100, 10_000);
+        DuplicateFilter.SessionWindow window = new DuplicateFilter.SessionWindow();
+        long now = System.nanoTime();
+        assertFalse(window.checkAndAdd("a", now));
+        assertTrue(window.checkAndAdd("a", now + 9 * SECOND));
+        assertFalse(window.checkAndAdd("b", now + 9 * SECOND));
+
+        // a duplicate does not extend the window of the first message
+        assertFalse(window.checkAndAdd("a", now + 10 * SECOND + 1));
+        assertTrue(window.checkAndAdd("b", now + 10 * SECOND + 1));
+        assertFalse(window.expire(now + 19 * SECOND));
+        assertTrue(window.expire(now + 21 * SECOND));
+    }
+
+    @Test
+    public void testMaxPerSession()
+    {
+        configure(600, 3, 10_000);
+        DuplicateFilter.SessionWindow window = new DuplicateFilter.SessionWindow();
+        long now = System.nanoTime();
+        for (String id : new String[] {"a", "b", "c", "d"})
+            assertFalse(window.checkAndAdd(id, now));
+        // the oldest id was dropped
+        assertFalse(window.checkAndAdd("a", now));
+        assertTrue(window.checkAndAdd("c", now));
+        assertTrue(window.checkAndAdd("d", now));
+    }
+
+    @Test
+    public void testDuplicateAndForget()
+    {
+        configure(600, 100, 10_000);
+        StorageRequestTask first = message("game_session_code", "dedup-test-session", "m1");
+        assertFalse(DuplicateFilter.isDuplicate(first));
+        assertTrue(DuplicateFilter.isDuplicate(first));
+        assertTrue(DuplicateFilter.isDuplicate(message("GAME_SESSION_CODE", "dedup-test-session", "m1")));
+        assertFalse(DuplicateFilter.isDuplicate(message("game_session_code", "dedup-test-other", "m1")));
+
+        // a message that was not accepted can be sent again
+        DuplicateFilter.forget(first);
+        assertFalse(DuplicateFilter.isDuplicate(first));
+        assertFalse(DuplicateFilter.isDuplicate(message("game_session_code", "dedup-test-session", "")));
+        assertFalse(DuplicateFilter.isDuplicate(message("game_session_code", "dedup-test-session", "")));
+
+        DuplicateFilter.forget(first);
+        DuplicateFilter.forget(message("game_session_code", "dedup-test-other", "m1"));
+    }
+
+    @Test
+    public void testMaxSessions()
+    {
+        configure(600, 100, DuplicateFilter.getStatistics().sessions() + 1);
+        long overflow = DuplicateFilter.getStatistics().overflow();
+        StorageRequestTask first = message("game_session_code", "dedup-test-first", "m1");
+        StorageRequestTask second = message("game_session_code", "dedup-test-second", "m1");
+        assertFalse(DuplicateFilter.isDuplicate(first));
+        // a session beyond the maximum is not checked, and its messages are let through
+        assertFalse(DuplicateFilter.isDuplicate(second));
+        assertFalse(DuplicateFilter.isDuplicate(second));
+        assertTrue(DuplicateFilter.isDuplicate(first));
+        assertEquals(overflow + 2, DuplicateFilter.getStatistics().overflow());
+        DuplicateFilter.forget(first);
+    }
+}
@@ -0,0 +1,116 @@
+package nl.gamedata.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import nl.gamedata.server.HeavyHitters.Dimension;
+import nl.gamedata.server.HeavyHitters.Entry;
+import nl.gamedata.server.HeavyHitters.Metric;
+import nl.gamedata.server.HeavyHitters.Stage;
+
+/**
+ * Tests the Space-Saving summaries of HeavyHitters: exact counts while there are fewer keys than counters, the guarantee for a
+ * frequent key when there are more, the sliding window, and the counting at ingress.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class HeavyHittersTest
+{
+    /** the start of a bucket of 10 s. */
+    private static final long T0 = 1_700_000_000_000L;
+
+    @BeforeEach
+    public void start()
+    {
+        ServerProperties.override("heavyHitters.enabled", "true");
+        ServerProperties.override("heavyHitters.capacity", "10");
+        ServerProperties.override("heavyHitters.windowSeconds", "60");
+        ServerProperties.override("heavyHitters.buckets", "6");
+        HeavyHitters.start();
+    }
+
+    @AfterEach
+    public void stop()
+    {
+        HeavyHitters.stop();
+    }
+
+    @Test
+    public void testExactBelowCapacity()
+    {
+        StorageRequestTask task = new StorageRequestTask("POST", "application/json", "0123456789");
+        for (int i = 0; i < 5; i++)
+            HeavyHitters.storage(task, "s1", "org", "p1", "score");
+        for (int i = 0; i < 3; i++)
+            HeavyHitters.storage(task, "s1", "org", "p2", "move");
+        HeavyHitters.storage(task, "s2", "org", null, null);
+
+        assertEquals(List.of(new Entry("score", 5, 0), new Entry("move", 3, 0)),
+                HeavyHitters.top(Stage.STORAGE, Dimension.KEY, Metric.MESSAGES, 10));
+        assertEquals(List.of(new Entry("s1/p1", 50, 0)), HeavyHitters.top(Stage.STORAGE, Dimension.PLAYER, Metric.BYTES, 1));
+        assertEquals(List.of(new Entry("s1", 8, 0), new Entry("s2", 1, 0)),
+                HeavyHitters.top(Stage.STORAGE, Dimension.SESSION, Metric.MESSAGES, 10));
+    }
+
+    @Test
+    public void testFrequentKeyIsFound()
+    {
+        HeavyHitters.Window window = new HeavyHitters.Window(6, 10);
+        // one key in a third of 300 messages, the others only once, so every counter is taken over many times
+        for (int i = 0; i < 200; i++)
+        {
+            window.add("rare-" + i, 1, T0);
+            if (i % 2 == 0)
+                window.add("frequent", 1, T0);
+        }
+        List<Entry> top = window.top(10, T0);
+        assertEquals(10, top.size());
+        Entry first = top.get(0);
+        assertEquals("frequent", first.key());
+        assertTrue(first.count() >= 100, first.toString());
+        assertTrue(first.count() - first.error() <= 100, first.toString());
+        for (Entry entry : top)
+            assertTrue(entry.count() - entry.error() <= (entry.key().equals("frequent") ? 100 : 1), entry.toString());
+    }
+
+    @Test
+    public void testWindowSlides()
+    {
+        HeavyHitters.Window window = new HeavyHitters.Window(6, 10);
+        window.add("old", 7, T0);
+        window.add("new", 3, T0 + 30_000L);
+        assertEquals(List.of(new Entry("old", 7, 0), new Entry("new", 3, 0)), window.top(10, T0 + 59_999L));
+
+        // after 60 s, the bucket of the first key has left the window, and is reused for the next period
+        assertEquals(List.of(new Entry("new", 3, 0)), window.top(10, T0 + 60_000L));
+        window.add("next", 1, T0 + 60_000L);
+        assertEquals(List.of(new Entry("new", 3, 0), new Entry("next", 1, 0)), window.top(10, T0 + 60_000L));
+        assertEquals(List.of(), window.top(10, T0 + 130_000L));
+    }
+
+    @Test
+    public void testIngress()
+    {
+        HeavyHitters.ingress(new StorageRequestTask("POST", "application/json",
+                "{\"game_session_code\":\"s1\",\"organization_code\":\"ACME\"}"));
+        HeavyHitters.ingress(new StorageRequestTask("POST", "application/json",
+                "{\"Game_Session_Code\":\"s1\",\"ORGANIZATION_CODE\":\"ACME\"}"));
+        HeavyHitters.ingress(new StorageRequestTask("POST", "application/json", "{\"session_token\":\"t1\"}"));
+        assertEquals(List.of(new Entry("s1", 2, 0), new Entry("t1", 1, 0)),
+                HeavyHitters.top(Stage.INGRESS, Dimension.SESSION, Metric.MESSAGES, 10));
+        assertEquals(List.of(new Entry("ACME", 2, 0)),
+                HeavyHitters.top(Stage.INGRESS, Dimension.ORGANIZATION, Metric.MESSAGES, 10));
+
+        HeavyHitters.stop();
+        assertEquals(List.of(), HeavyHitters.top(Stage.INGRESS, Dimension.SESSION, Metric.MESSAGES, 10));
+    }
+}
@@ -0,0 +1,76 @@
+package nl.gamedata.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that IngressFields finds the keys of a message in any case and with surrounding whitespace, as the TaskProcessor
+ * normalizes them before storage, so the dedup, the rate limits and the traffic statistics use the same fields.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class IngressFieldsTest
+{
+    @Test
+    public void testJson()
+    {
+        StorageRequestTask task = new StorageRequestTask("POST", "application/json",
+                "{\"data\":\"organization_code\", \" Organization_Code \" : \"ACME\", \"MESSAGE_ID\":42}");
+        assertEquals("ACME", IngressFields.find(task, "organization_code"));
+        assertEquals("42", IngressFields.find(task, "message_id"));
+        assertNull(IngressFields.find(task, "game_session_code"));
+        assertNull(IngressFields.find(task, "organization"));
+    }
+
+    @Test
+    public void testForm()
+    {
+        StorageRequestTask task = new StorageRequestTask("POST", "application/x-www-form-urlencoded",
+                "Game_Session_Code=s+1&organization_codes=x&%20ORGANIZATION_CODE=ACME&key");
+        assertEquals("s 1", IngressFields.find(task, "game_session_code"));
+        assertEquals("ACME", IngressFields.find(task, "organization_code"));
+        assertNull(IngressFields.find(task, "key"));
+
+        // like convertFormTask, the last value of a key that is used twice wins
+        task = new StorageRequestTask("GET", "", "message_id=1&Message_Id=2");
+        assertEquals("2", IngressFields.find(task, "message_id"));
+    }
+
+    @Test
+    public void testXml()
+    {
+        StorageRequestTask task = new StorageRequestTask("POST", "application/xml",
+                "<gamedata><Game_Session_Code>s1</GAME_SESSION_CODE><organization_codes>x</organization_codes>"
+                        + "<Organization_Code> ACME </Organization_Code></gamedata>");
+        assertEquals("s1", IngressFields.find(task, "game_session_code"));
+        assertEquals("ACME", IngressFields.find(task, "organization_code"));
+        assertNull(IngressFields.find(task, "game_code"));
+    }
+
+    @Test
+    public void testBinary()
+    {
+        byte[] body = BinaryCodec.encode(Map.of("organization_code", "ACME", "Player_Score ", "7"));
+        StorageRequestTask task = new StorageRequestTask("POST", BinaryCodec.CONTENT_TYPE, body);
+        assertEquals("ACME", IngressFields.find(task, "organization_code"));
+        assertEquals("7", IngressFields.find(task, "player_score"));
+    }
+
+    @Test
+    public void testSessionAndTenantIgnoreCase()
+    {
+        StorageRequestTask lower = new StorageRequestTask("POST", "application/json",
+                "{\"game_session_code\":\"s1\",\"organization_code\":\"ACME\"}");
+        StorageRequestTask upper = new StorageRequestTask("POST", "application/json",
+                "{\"GAME_SESSION_CODE\":\"s1\",\"Organization_Code\":\"ACME\"}");
+        assertEquals(IngressFields.session(lower), IngressFields.session(upper));
+        assertEquals("ACME", IngressFields.tenant(upper));
+    }
+}
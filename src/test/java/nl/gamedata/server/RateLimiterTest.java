@@ -0,0 +1,98 @@
+package nl.gamedata.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the generic cell rate algorithm of the RateLimiter: the burst, the sustained rate, the recovery after an idle period,
+ * and the session limit at ingress.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class RateLimiterTest
+{
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testLimit()
+    {
+        assertSame(RateLimiter.Limit.NONE, RateLimiter.Limit.of(0.0, 5));
+        assertSame(RateLimiter.Limit.NONE, RateLimiter.Limit.of(-1.0, 5));
+        assertEquals(new RateLimiter.Limit(100 * MS, 1), RateLimiter.Limit.of(10.0, 0));
+        assertTrue(new RateLimiter.Bucket(RateLimiter.Limit.NONE).tryAcquire(System.nanoTime()));
+    }
+
+    @Test
+    public void testBurstAndRate()
+    {
+        // 10 messages per second, so one per 100 ms, and a burst of 3
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket(RateLimiter.Limit.of(10.0, 3));
+        long now = System.nanoTime();
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now + 99 * MS));
+
+        // after one interval, exactly one message is allowed
+        assertTrue(bucket.tryAcquire(now + 100 * MS));
+        assertFalse(bucket.tryAcquire(now + 100 * MS));
+
+        // at the sustained rate, every message is allowed
+        for (int i = 2; i < 20; i++)
+            assertTrue(bucket.tryAcquire(now + i * 100 * MS), "message " + i);
+        assertFalse(bucket.tryAcquire(now + 1950 * MS));
+    }
+
+    @Test
+    public void testIdleBucketRecoversOnlyTheBurst()
+    {
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket(RateLimiter.Limit.of(10.0, 3));
+        long now = System.nanoTime();
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.isIdle(now, 1000 * MS));
+
+        // a long idle period does not save up more than the burst
+        long later = now + 60_000 * MS;
+        assertTrue(bucket.isIdle(later, 1000 * MS));
+        for (int i = 0; i < 3; i++)
+            assertTrue(bucket.tryAcquire(later));
+        assertFalse(bucket.tryAcquire(later));
+    }
+
+    @Test
+    public void testSessionLimit()
+    {
+        ServerProperties.override("ratelimit.session.rate", "0.001");
+        ServerProperties.override("ratelimit.session.burst", "2");
+        RateLimiter.start();
+        try
+        {
+            StorageRequestTask first = new StorageRequestTask("POST", "application/json",
+                    "{\"game_session_code\":\"rate-test-session\",\"organization_code\":\"rate-test-org\"}");
+            StorageRequestTask upperCase = new StorageRequestTask("POST", "application/json",
+                    "{\"GAME_SESSION_CODE\":\"rate-test-session\",\"organization_code\":\"rate-test-org\"}");
+            StorageRequestTask other = new StorageRequestTask("POST", "application/json",
+                    "{\"game_session_code\":\"rate-test-other\",\"organization_code\":\"rate-test-org\"}");
+            assertTrue(RateLimiter.allowSession(first));
+            assertTrue(RateLimiter.allowSession(upperCase));
+            assertFalse(RateLimiter.allowSession(first));
+            assertTrue(RateLimiter.allowSession(other));
+        }
+        finally
+        {
+            ServerProperties.override("ratelimit.session.rate", "0");
+            RateLimiter.start();
+            RateLimiter.stop();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package nl.gamedata.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that the SpillQueue gives back the synced tasks after a crash, in order, skips a record that was only partly written,
+ * and does not give back the tasks that were read before a clean stop.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class SpillQueueTest
+{
+    private static final long MAX_DISK = 1L << 30;
+
+    private static StorageRequestTask task(final int nr)
+    {
+        return new StorageRequestTask("POST", "application/json", "{\"game_session_code\":\"s\",\"value\":\"" + nr + "\"}");
+    }
+
+    private static List<String> drain(final SpillQueue queue)
+    {
+        List<SpillQueue.SpilledTask> tasks = new ArrayList<>();
+        queue.poll(Integer.MAX_VALUE, tasks);
+        return tasks.stream().map(t -> IngressFields.find(t.task(), "value")).toList();
+    }
+
+    private static List<Path> segments(final Path dir) throws IOException
+    {
+        try (Stream<Path> files = Files.list(dir))
+        {
+            return files.filter(f -> f.getFileName().toString().startsWith("spill-")).sorted().toList();
+        }
+    }
+
+    @Test
+    public void testSyncedTasksSurviveACrash(@TempDir final Path dir) throws IOException
+    {
+        // small segments, so the tasks are spread over several files
+        SpillQueue crashed = new SpillQueue(dir, 200);
+        for (int i = 1; i <= 10; i++)
+            assertTrue(crashed.append(task(i), MAX_DISK, true));
+        assertTrue(segments(dir).size() > 1);
+
+        // the queue is not closed, as after a crash
+        SpillQueue recovered = new SpillQueue(dir, 200);
+        assertEquals(10, recovered.waiting());
+        assertEquals(List.of("1", "2", "3", "4", "5", "6", "7", "8", "9", "10"), drain(recovered));
+        assertEquals(0, recovered.waiting());
+
+        // new tasks after the recovery are appended after the old segments
+        assertTrue(recovered.append(task(11), MAX_DISK, true));
+        assertEquals(List.of("11"), drain(recovered));
+        assertTrue(segments(dir).size() <= 1);
+    }
+
+    @Test
+    public void testPartlyWrittenRecordIsSkipped(@TempDir final Path dir) throws IOException
+    {
+        SpillQueue crashed = new SpillQueue(dir, 1 << 20);
+        for (int i = 1; i <= 3; i++)
+            assertTrue(crashed.append(task(i), MAX_DISK, true));
+        Path segment = segments(dir).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE))
+        {
+            channel.truncate(channel.size() - 5);
+        }
+
+        SpillQueue recovered = new SpillQueue(dir, 1 << 20);
+        assertEquals(2, recovered.waiting());
+        assertEquals(List.of("1", "2"), drain(recovered));
+    }
+
+    @Test
+    public void testReadTasksAreNotReadAgain(@TempDir final Path dir)
+    {
+        SpillQueue queue = new SpillQueue(dir, 1 << 20);
+        for (int i = 1; i <= 5; i++)
+            assertTrue(queue.append(task(i), MAX_DISK, false));
+        List<SpillQueue.SpilledTask> first = new ArrayList<>();
+        assertEquals(2, queue.poll(2, first));
+        queue.close();
+        assertFalse(queue.append(task(6), MAX_DISK, false));
+
+        SpillQueue restarted = new SpillQueue(dir, 1 << 20);
+        assertEquals(3, restarted.waiting());
+        assertEquals(List.of("3", "4", "5"), drain(restarted));
+    }
+
+    @Test
+    public void testDiskLimit(@TempDir final Path dir)
+    {
+        SpillQueue queue = new SpillQueue(dir, 1 << 20);
+        assertTrue(queue.append(task(1), 200, false));
+        assertFalse(queue.append(task(2), 200, false));
+        assertEquals(1, queue.waiting());
+        assertEquals(List.of("1"), drain(queue));
+    }
+
+    @Test
+    public void testEncodeDecode()
+    {
+        LocalDateTime timestamp = LocalDateTime.of(2024, 12, 3, 10, 15, 30, 123_000_000);
+        StorageRequestTask task = new StorageRequestTask("POST", BinaryCodec.CONTENT_TYPE, null, new byte[] {1, 2, 3},
+                Map.of("game_session_code", "s", "organization_code", "ACME"), null, timestamp);
+        StorageRequestTask decoded = SpillQueue.decode(SpillQueue.encode(task));
+        assertEquals("POST", decoded.requestType());
+        assertEquals(BinaryCodec.CONTENT_TYPE, decoded.contentType());
+        assertNull(decoded.payload());
+        assertArrayEquals(new byte[] {1, 2, 3}, decoded.body());
+        assertEquals(task.context(), decoded.context());
+        assertEquals(timestamp, decoded.timestamp());
+
+        decoded = SpillQueue.decode(SpillQueue.encode(task(7)));
+        assertEquals(task(7).payload(), decoded.payload());
+        assertNull(decoded.body());
+        assertNull(decoded.context());
+    }
+}
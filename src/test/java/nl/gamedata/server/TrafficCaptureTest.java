@@ -0,0 +1,83 @@
+package nl.gamedata.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that the TrafficCapture leaves the tokens out of the capture files, and removes the oldest capture files.
+ * <p>
+ * Copyright (c) 2024-2024 Delft University of Technology, PO Box 5, 2600 AA, Delft, the Netherlands. All rights reserved. <br>
+ * BSD-style license. See <a href="https://github.com/averbraeck/gamedata-server/LICENSE">GameData project License</a>.
+ * </p>
+ * @author <a href="https://github.com/averbraeck">Alexander Verbraeck</a>
+ */
+public class TrafficCaptureTest
+{
+    @Test
+    public void testRedactJson()
+    {
+        String payload = "{\"game_token\": \"g-secret\", \"Session_Token\":\"s-\\\"secret\", \"organization_game_token\":12,"
+                + "\"key\":\"game_token\",\"value\":\"v\"}";
+        String redacted = TrafficCapture.redact(payload);
+        assertFalse(redacted.contains("secret"), redacted);
+        assertFalse(redacted.contains(":12"), redacted);
+        assertEquals("{\"game_token\": \"redacted\", \"Session_Token\":\"redacted\", \"organization_game_token\":\"redacted\","
+                + "\"key\":\"game_token\",\"value\":\"v\"}", redacted);
+    }
+
+    @Test
+    public void testRedactFormAndXml()
+    {
+        assertEquals("data=x&game_token=redacted&session_token=redacted&my_game_token=keep",
+                TrafficCapture.redact("data=x&game_token=abc%20d&session_token=s&my_game_token=keep"));
+        assertEquals("<m><GAME_TOKEN>redacted</GAME_TOKEN><key>k</key></m>",
+                TrafficCapture.redact("<m><GAME_TOKEN>secret</GAME_TOKEN><key>k</key></m>"));
+    }
+
+    @Test
+    public void testRedactBinary()
+    {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("data", "mission_event");
+        fields.put("session_token", "secret-session");
+        fields.put("key", "k");
+        fields.put("game_token", "secret-game");
+        byte[] redacted = BinaryCodec.replace(BinaryCodec.encode(fields), TrafficCapture.TOKEN_KEYS, TrafficCapture.REDACTED);
+        Map<String, String> decoded = new HashMap<>();
+        assertNull(BinaryCodec.decode(redacted, decoded, new ArrayList<>()));
+        assertEquals(Map.of("data", "mission_event", "session_token", "redacted", "key", "k", "game_token", "redacted"),
+                decoded);
+        assertNull(BinaryCodec.replace(new byte[] {BinaryCodec.VERSION, 1, 100}, TrafficCapture.TOKEN_KEYS, "x"));
+    }
+
+    @Test
+    public void testOldestFilesAreRemoved(@TempDir final Path dir) throws IOException
+    {
+        ServerProperties.override("capture.maxFiles", "3");
+        // in the order in which they were opened; by name, "-1" and "-10" sort before the first file of the second
+        for (String name : List.of("capture-20240101-235959", "capture-20240102-100000", "capture-20240102-100000-1",
+                "capture-20240102-100000-2", "capture-20240102-100000-10"))
+            Files.createFile(dir.resolve(name + ".ndjson.gz"));
+        TrafficCapture.removeOldFiles(dir);
+        try (Stream<Path> files = Files.list(dir))
+        {
+            List<String> left = files.map(f -> f.getFileName().toString()).sorted().toList();
+            assertEquals(List.of("capture-20240102-100000-1.ndjson.gz", "capture-20240102-100000-10.ndjson.gz",
+                    "capture-20240102-100000-2.ndjson.gz"), left);
+        }
+    }
+}